@@ -222,6 +222,41 @@ JNIEXPORT jlong JNICALL Java_edu_stanford_nlp_mt_lm_KenLM_scoreNGramSeq
   return result;
 }
   
+/*
+ * Class:     edu_stanford_nlp_mt_lm_KenLM
+ * Method:    scoreNGramSeqBatch
+ * Signature: (JLjava/nio/IntBuffer;Ljava/nio/LongBuffer;I)I
+ *
+ * Scores a batch of sequences with one native call. The queries are packed into a
+ * direct IntBuffer as [length, start_index, word_0, ..., word_{length-1}] with the
+ * words in reverse order as in scoreNGramSeq. The marshalled result of query i is
+ * written to position i of the direct LongBuffer. Returns the number of queries
+ * scored, or -1 if the buffers are not direct or are too small, or if a query
+ * has a negative length or a start index outside [0, length].
+ */
+JNIEXPORT jint JNICALL Java_edu_stanford_nlp_mt_lm_KenLM_scoreNGramSeqBatch
+(JNIEnv *env, jobject this_jobj, jlong kenLM_ptr, jobject jqueries, jobject jresults, jint num_queries) {
+  const jint *queries = static_cast<const jint*>(env->GetDirectBufferAddress(jqueries));
+  jlong *results = static_cast<jlong*>(env->GetDirectBufferAddress(jresults));
+  if (!queries || !results || num_queries < 0 ||
+      env->GetDirectBufferCapacity(jresults) < num_queries) return -1;
+  const jint *queries_end = queries + env->GetDirectBufferCapacity(jqueries);
+
+  const WrapAbstract *model = reinterpret_cast<WrapAbstract*>(kenLM_ptr);
+  for (jint q = 0; q < num_queries; ++q) {
+    if (queries + 2 > queries_end) return -1;
+    const jint length = queries[0];
+    const jint start_index = queries[1];
+    if (length < 0 || start_index < 0 || start_index > length) return -1;
+    // Compare sizes so that the pointer arithmetic cannot overflow
+    if (length > queries_end - queries - 2) return -1;
+    const lm::WordIndex *words = reinterpret_cast<const lm::WordIndex*>(queries + 2);
+    results[q] = model->QuerySequence(words, words + start_index, words + length);
+    queries += 2 + length;
+  }
+  return num_queries;
+}
+
 /*
  * Class:     edu_stanford_nlp_more_lm_KenLM
  * Method:    getOrder
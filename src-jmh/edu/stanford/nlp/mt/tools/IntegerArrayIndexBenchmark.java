@@ -0,0 +1,159 @@
+package edu.stanford.nlp.mt.tools;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stanford.nlp.mt.util.ConcurrentIntegerArrayIndex;
+import edu.stanford.nlp.mt.util.DynamicIntegerArrayIndex;
+import edu.stanford.nlp.mt.util.IntegerArrayIndex;
+import edu.stanford.nlp.mt.util.ProbingIntegerArrayIndex;
+import edu.stanford.nlp.util.concurrent.ConcurrentHashIndex;
+
+/**
+ * JMH benchmark of concurrent inserts and lookups in the implementations of
+ * <code>IntegerArrayIndex</code>. <code>ConcurrentHashIndex</code> is included
+ * with the keys converted to strings.
+ *
+ * The workload resembles phrase extraction: short keys drawn from a skewed
+ * vocabulary, so that most inserts hit keys that are already in the index.
+ * Run with <code>gradle jmh -PjmhArgs="IntegerArrayIndexBenchmark -t 8"</code>, where the
+ * arguments are the options of <code>org.openjdk.jmh.Main</code>.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IntegerArrayIndexBenchmark {
+
+  private static final int VOCAB_SIZE = 50000;
+  private static final int MAX_KEY_LENGTH = 7;
+
+  @Param({"DynamicIntegerArrayIndex", "ProbingIntegerArrayIndex", "ConcurrentHashIndex",
+    "ConcurrentIntegerArrayIndex"})
+  public String implementation;
+
+  @Param({"1000000"})
+  public int numKeys;
+
+  private int[][] keys;
+
+  // Filled before each iteration
+  private IntegerArrayIndex insertIndex;
+
+  // Holds all keys
+  private IntegerArrayIndex fullIndex;
+
+  /**
+   * Adapter for <code>ConcurrentHashIndex</code>.
+   */
+  private static class StringIndex implements IntegerArrayIndex {
+    private final ConcurrentHashIndex<String> index = new ConcurrentHashIndex<>();
+    @Override
+    public int size() { return index.size(); }
+    @Override
+    public int[] get(int idx) {
+      if (idx < 0 || idx >= index.size()) return null;
+      String key = index.get(idx);
+      if (key.length() == 2) return new int[0];
+      // Inverse of Arrays.toString()
+      String[] fields = key.substring(1, key.length() - 1).split(", ");
+      int[] ints = new int[fields.length];
+      for (int i = 0; i < ints.length; ++i) ints[i] = Integer.parseInt(fields[i]);
+      return ints;
+    }
+    @Override
+    public int indexOf(int[] key) { return index.indexOf(Arrays.toString(key)); }
+    @Override
+    public int indexOf(int[] key, boolean add) {
+      return add ? index.addToIndex(Arrays.toString(key)) : indexOf(key);
+    }
+    @Override
+    public void lock() {}
+  }
+
+  /**
+   * The position of a thread in the key sequence. Threads start at random
+   * offsets so that they insert different keys.
+   */
+  @State(Scope.Thread)
+  public static class Cursor {
+    private int position;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      position = ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE);
+    }
+
+    int next(int bound) {
+      position = (position + 1) % bound;
+      return position;
+    }
+  }
+
+  private IntegerArrayIndex newIndex() {
+    switch (implementation) {
+      case "DynamicIntegerArrayIndex":
+        return new DynamicIntegerArrayIndex();
+      case "ProbingIntegerArrayIndex":
+        return new ProbingIntegerArrayIndex();
+      case "ConcurrentHashIndex":
+        return new StringIndex();
+      case "ConcurrentIntegerArrayIndex":
+        return new ConcurrentIntegerArrayIndex();
+    }
+    throw new IllegalArgumentException("Unknown index: " + implementation);
+  }
+
+  @Setup(Level.Trial)
+  public void setupKeys() {
+    // Zipfian keys
+    final Random random = new Random(1);
+    keys = new int[numKeys][];
+    for (int i = 0; i < numKeys; ++i) {
+      keys[i] = new int[1 + random.nextInt(MAX_KEY_LENGTH)];
+      for (int j = 0; j < keys[i].length; ++j) {
+        keys[i][j] = (int) Math.pow(VOCAB_SIZE, random.nextDouble());
+      }
+    }
+    fullIndex = newIndex();
+    for (int[] key : keys) fullIndex.indexOf(key, true);
+  }
+
+  @Setup(Level.Iteration)
+  public void setupIndex() {
+    insertIndex = newIndex();
+  }
+
+  @Benchmark
+  public int insert(Cursor cursor) {
+    return insertIndex.indexOf(keys[cursor.next(numKeys)], true);
+  }
+
+  @Benchmark
+  public int lookup(Cursor cursor) {
+    return fullIndex.indexOf(keys[cursor.next(numKeys)]);
+  }
+
+  @Benchmark
+  public int[] get(Cursor cursor) {
+    return fullIndex.get(cursor.next(fullIndex.size()));
+  }
+}
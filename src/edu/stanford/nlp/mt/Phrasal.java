@@ -36,6 +36,7 @@ import java.io.PrintStream;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -43,12 +44,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Pattern;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import edu.stanford.nlp.mt.decoder.AbstractBeamInfererBuilder;
+import edu.stanford.nlp.mt.decoder.CubePruningDecoder.CubePruningDecoderBuilder;
 import edu.stanford.nlp.mt.decoder.DTUDecoder;
 import edu.stanford.nlp.mt.decoder.Inferer;
 import edu.stanford.nlp.mt.decoder.InfererBuilderFactory;
@@ -60,11 +66,12 @@ import edu.stanford.nlp.mt.decoder.util.Derivation;
 import edu.stanford.nlp.mt.decoder.util.OutputSpace;
 import edu.stanford.nlp.mt.decoder.util.OutputSpaceFactory;
 import edu.stanford.nlp.mt.decoder.util.Scorer;
-import edu.stanford.nlp.mt.decoder.util.ScorerFactory;
+import edu.stanford.nlp.mt.decoder.util.SparseScorer;
 import edu.stanford.nlp.mt.metrics.MetricUtils;
 import edu.stanford.nlp.mt.process.Postprocessor;
 import edu.stanford.nlp.mt.process.Preprocessor;
 import edu.stanford.nlp.mt.process.ProcessorFactory;
+import edu.stanford.nlp.mt.tm.AbstractPhraseGenerator;
 import edu.stanford.nlp.mt.tm.CombinedPhraseGenerator;
 import edu.stanford.nlp.mt.tm.ConcreteRule;
 import edu.stanford.nlp.mt.tm.DTUTable;
@@ -76,11 +83,13 @@ import edu.stanford.nlp.mt.tm.TranslationModel;
 import edu.stanford.nlp.mt.tm.TranslationModelFactory;
 import edu.stanford.nlp.mt.tm.PhraseTable;
 import edu.stanford.nlp.mt.tm.UnknownWordPhraseGenerator;
+import edu.stanford.nlp.mt.util.BinaryWeights;
 import edu.stanford.nlp.mt.util.IOTools;
 import edu.stanford.nlp.mt.util.IString;
 import edu.stanford.nlp.mt.util.IStrings;
 import edu.stanford.nlp.mt.util.InputProperties;
 import edu.stanford.nlp.mt.util.InputProperty;
+import edu.stanford.nlp.mt.util.PipelineStage;
 import edu.stanford.nlp.mt.util.RichTranslation;
 import edu.stanford.nlp.mt.util.Sequence;
 import edu.stanford.nlp.mt.util.Sequences;
@@ -96,6 +105,7 @@ import edu.stanford.nlp.mt.decoder.feat.base.DTULinearDistortionFeaturizer;
 import edu.stanford.nlp.mt.decoder.feat.base.HierarchicalReorderingFeaturizer;
 import edu.stanford.nlp.mt.decoder.feat.base.LexicalReorderingFeaturizer;
 import edu.stanford.nlp.mt.decoder.feat.base.LinearFutureCostFeaturizer;
+import edu.stanford.nlp.mt.decoder.feat.base.NGramLanguageModelFeaturizer;
 import edu.stanford.nlp.mt.decoder.h.HeuristicFactory;
 import edu.stanford.nlp.mt.decoder.h.SearchHeuristic;
 import edu.stanford.nlp.stats.ClassicCounter;
@@ -103,8 +113,6 @@ import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.stats.Counters;
 import edu.stanford.nlp.util.Pair;
 import edu.stanford.nlp.util.StringUtils;
-import edu.stanford.nlp.util.concurrent.MulticoreWrapper;
-import edu.stanford.nlp.util.concurrent.ThreadsafeProcessor;
 
 /**
  * Phrasal: a phrase-based machine translation system from the Stanford University
@@ -146,9 +154,14 @@ public class Phrasal {
       .append("  -").append(ADDITIONAL_FEATURIZERS).append(" class [class] : List of additional feature functions.").append(nl)
       .append("  -").append(DISABLED_FEATURIZERS).append(" class [class] : List of baseline featurizers to disable.").append(nl)
       .append("  -").append(NUM_THREADS).append(" num : Number of decoding threads (default: 1)").append(nl)
+      .append("  -").append(PIPELINE_THREADS).append(" num : Number of threads for pre- and post-processing of console input (default: 1)").append(nl)
+      .append("  -").append(PIPELINE_QUEUE_SIZE).append(" num : Capacity of the queues between the stages of console decoding (default: 4x -threads)").append(nl)
+      .append("  -").append(INTRA_SENTENCE_THREADS).append(" num : Number of threads for seeding each beam (cube pruning only) (default: 1)").append(nl)
       .append("  -").append(USE_ITG_CONSTRAINTS).append(" boolean : Use ITG constraints for decoding (multibeam search only)").append(nl)
       .append("  -").append(RECOMBINATION_MODE).append(" name : Recombination mode [pharoah,exact,dtu] (default: exact).").append(nl)
       .append("  -").append(DROP_UNKNOWN_WORDS).append(" boolean : Drop unknown source words from the output (default: false)").append(nl)
+      .append("  -").append(RULE_CACHE_SIZE).append(" num : Number of source n-grams per phrase table for which featurized rules are cached across inputs (default: 0)").append(nl)
+      .append("  -").append(PRUNE_RULES).append(" num : Keep only the top-k rules per source phrase under the dense translation model weights in the weights file.").append(nl)
       .append("  -").append(INDEPENDENT_PHRASE_TABLES).append(" filename [filename] : Phrase tables that cannot have associated reordering models. Optionally supports custom per-table prefixes for features (e.g., pref:filename).").append(nl)
       .append("  -").append(ALIGNMENT_OUTPUT_FILE).append(" filename : Output word-word alignments to file for each translation.").append(nl)
       .append("  -").append(PREPROCESSOR_FILTER).append(" language [opts] : Pre-processor to apply to source input.").append(nl)
@@ -187,6 +200,9 @@ public class Phrasal {
   public static final String ADDITIONAL_FEATURIZERS = "additional-featurizers";
   public static final String DISABLED_FEATURIZERS = "disabled-featurizers";
   public static final String NUM_THREADS = "threads";
+  public static final String PIPELINE_THREADS = "pipeline-threads";
+  public static final String PIPELINE_QUEUE_SIZE = "pipeline-queue-size";
+  public static final String INTRA_SENTENCE_THREADS = "intra-sentence-threads";
   public static final String USE_ITG_CONSTRAINTS = "use-itg-constraints";
   public static final String RECOMBINATION_MODE = "recombination-mode";
   public static final String GAPS_OPT = "gaps";
@@ -195,6 +211,8 @@ public class Phrasal {
   public static final String LINEAR_DISTORTION_TYPE = "linear-distortion-type";
   public static final String DROP_UNKNOWN_WORDS = "drop-unknown-words";
   public static final String INDEPENDENT_PHRASE_TABLES = "independent-phrase-tables";
+  public static final String RULE_CACHE_SIZE = "rule-cache-size";
+  public static final String PRUNE_RULES = "prune-rules";
   public static final String ALIGNMENT_OUTPUT_FILE = "alignment-output-file";
   public static final String PREPROCESSOR_FILTER = "preprocessor-filter";
   public static final String POSTPROCESSOR_FILTER = "postprocessor-filter";
@@ -220,9 +238,9 @@ public class Phrasal {
         RECOMBINATION_MODE, SEARCH_ALGORITHM,
         BEAM_SIZE, WEIGHTS_FILE, MAX_SENTENCE_LENGTH,
         MIN_SENTENCE_LENGTH, USE_ITG_CONSTRAINTS,
-        NUM_THREADS, GAPS_OPT, GAPS_IN_FUTURE_COST_OPT,
+        NUM_THREADS, PIPELINE_THREADS, PIPELINE_QUEUE_SIZE, INTRA_SENTENCE_THREADS, GAPS_OPT, GAPS_IN_FUTURE_COST_OPT,
         LINEAR_DISTORTION_TYPE, MAX_PENDING_PHRASES_OPT,
-        DROP_UNKNOWN_WORDS, INDEPENDENT_PHRASE_TABLES,
+        DROP_UNKNOWN_WORDS, INDEPENDENT_PHRASE_TABLES, RULE_CACHE_SIZE, PRUNE_RULES,
         LANGUAGE_MODEL_OPT, 
         ALIGNMENT_OUTPUT_FILE, PREPROCESSOR_FILTER, POSTPROCESSOR_FILTER,
         SOURCE_CLASS_MAP,TARGET_CLASS_MAP, PRINT_MODEL_SCORES,
@@ -240,6 +258,16 @@ public class Phrasal {
    */
   private int numThreads = 1;
 
+  /**
+   * Number of pre- and post-processing threads in <code>decode(InputStream,boolean)</code>.
+   */
+  private int pipelineThreads = 1;
+
+  /**
+   * Capacity of the queues between the stages of <code>decode(InputStream,boolean)</code>.
+   */
+  private int pipelineQueueSize = 4;
+
   /**
    * Hard distortion limit for phrase-based decoder
    */
@@ -273,11 +301,33 @@ public class Phrasal {
    */
   private List<Scorer<String>> scorers;
 
+  /**
+   * The weights held by each scorer, so that a scorer is only updated when the
+   * weights change.
+   */
+  private List<Counter<String>> scorerModels;
+
   /**
    * Phrase table / translation model
    */
   private TranslationModel<IString,String> phraseGenerator;
   
+  /**
+   * The phrase tables loaded from file.
+   */
+  private final List<PhraseTable<IString>> phraseTables = new ArrayList<>();
+
+  /**
+   * The language model featurizers, which report cache statistics on shutdown.
+   */
+  private final List<NGramLanguageModelFeaturizer> lmFeaturizers = new ArrayList<>();
+
+  /**
+   * Pools for intra-sentence parallelism in the cube pruning decoder, one per decoding
+   * thread. Empty if disabled.
+   */
+  private final List<ForkJoinPool> intraSentencePools = new ArrayList<>();
+  
   /**
    * Whether to filter unknown words in the output
    */
@@ -344,11 +394,16 @@ public class Phrasal {
   public Postprocessor getPostprocessor() { return postprocessor; }
 
   /**
-   * Set the global model used by Phrasal.
+   * Set the global model used by Phrasal. The scorers are updated when the
+   * model is replaced, so call this method after changing the weights of the
+   * model in place.
    * 
    * @param m
    */
-  public void setModel(Counter<String> m) { this.globalModel = m; }
+  public void setModel(Counter<String> m) { 
+    this.globalModel = m;
+    if (scorerModels != null) Collections.fill(scorerModels, null);
+  }
 
   /**
    * Return the global Phrasal model.
@@ -362,6 +417,14 @@ public class Phrasal {
    */
   public int getNumThreads() { return numThreads; }
   
+  /**
+   * Access the inferer of a decoding thread.
+   * 
+   * @param threadId
+   * @return
+   */
+  public Inferer<IString,String> getInferer(int threadId) { return inferers.get(threadId); }
+
   /**
    * Access the decoder's phrase table.
    * 
@@ -415,6 +478,10 @@ public class Phrasal {
     numThreads = config.containsKey(NUM_THREADS) ? Integer.parseInt(config.get(NUM_THREADS).get(0)) : 1;
     if (numThreads < 1) throw new RuntimeException("Number of threads must be positive: " + numThreads);
     System.err.printf("Number of threads: %d%n", numThreads);
+    pipelineThreads = config.containsKey(PIPELINE_THREADS) ? Integer.parseInt(config.get(PIPELINE_THREADS).get(0)) : 1;
+    if (pipelineThreads < 1) throw new RuntimeException("Number of pipeline threads must be positive: " + pipelineThreads);
+    pipelineQueueSize = config.containsKey(PIPELINE_QUEUE_SIZE) ? Integer.parseInt(config.get(PIPELINE_QUEUE_SIZE).get(0)) : 4 * numThreads;
+    if (pipelineQueueSize < 1) throw new RuntimeException("Pipeline queue size must be positive: " + pipelineQueueSize);
 
     if (withGaps) {
       recombinationMode = RecombinationFilterFactory.DTU_RECOMBINATION;
@@ -545,14 +612,43 @@ public class Phrasal {
     }
     System.err.printf("Phrase table option limit: %d%n", ruleQueryLimit);
 
+    // Create the weight vector. The phrase tables are pruned under the initial weights.
+    this.globalModel = new ClassicCounter<String>();
+
+    // The weights file is read once. Binary weights are also kept so that the
+    // scorers can be filled without building a counter.
+    final String weightsFile = config.containsKey(WEIGHTS_FILE) ? 
+        config.get(WEIGHTS_FILE).get(0) : null;
+    BinaryWeights binaryWeights = null;
+    if (weightsFile != null) {
+      System.err.printf("Weights file: %s%n", weightsFile);
+      if (BinaryWeights.isBinaryWeightsFile(weightsFile)) {
+        binaryWeights = BinaryWeights.load(weightsFile);
+        globalModel = binaryWeights.toCounter();
+      } else {
+        globalModel = IOTools.readWeights(weightsFile);
+      }
+    }
+
+    // Cross-sentence rule cache
+    final String ruleCacheString = config.containsKey(RULE_CACHE_SIZE) ?
+        config.get(RULE_CACHE_SIZE).get(0) : "0";
+
+    // Load-time rule pruning
+    final String ruleLimitString = config.containsKey(PRUNE_RULES) ?
+        config.get(PRUNE_RULES).get(0) : "0";
+
     // Create the phrase table(s) 
     final String optionLimitString = String.valueOf(this.ruleQueryLimit);
     final String phraseTableType = withGaps ? TranslationModelFactory.DTU_GENERATOR
         : TranslationModelFactory.PSEUDO_PHARAOH_GENERATOR; 
     Pair<TranslationModel<IString,String>,List<PhraseTable<IString>>> phraseTablePair = 
-        TranslationModelFactory.<String>factory(phraseTableType, phraseTable,
-            makePair(TranslationModelFactory.QUERY_LIMIT_OPTION, optionLimitString));
+        TranslationModelFactory.<String>factory(phraseTableType, phraseTable, globalModel,
+            makePair(TranslationModelFactory.QUERY_LIMIT_OPTION, optionLimitString),
+            makePair(TranslationModelFactory.RULE_CACHE_OPTION, ruleCacheString),
+            makePair(TranslationModelFactory.RULE_LIMIT_OPTION, ruleLimitString));
     phraseGenerator = phraseTablePair.first();
+    phraseTables.addAll(phraseTablePair.second());
     
     // Load independent phrase tables that do not have associated lexicalized reordering models
     if (config.get(INDEPENDENT_PHRASE_TABLES) != null) {
@@ -562,13 +658,17 @@ public class Phrasal {
          String[] fields = filename.split(":");
          String[] generatorOptions;
          if (fields.length == 1) {
-           generatorOptions = new String[1];
+           generatorOptions = new String[3];
            generatorOptions[0] = makePair(TranslationModelFactory.QUERY_LIMIT_OPTION, optionLimitString);
+           generatorOptions[1] = makePair(TranslationModelFactory.RULE_CACHE_OPTION, ruleCacheString);
+           generatorOptions[2] = makePair(TranslationModelFactory.RULE_LIMIT_OPTION, ruleLimitString);
          
          } else if (fields.length == 2) {
-           generatorOptions = new String[2];
+           generatorOptions = new String[4];
            generatorOptions[0] = makePair(TranslationModelFactory.QUERY_LIMIT_OPTION, optionLimitString);
-           generatorOptions[1] = makePair(TranslationModelFactory.FEATURE_PREFIX_OPTION, fields[0]);
+           generatorOptions[1] = makePair(TranslationModelFactory.RULE_CACHE_OPTION, ruleCacheString);
+           generatorOptions[2] = makePair(TranslationModelFactory.RULE_LIMIT_OPTION, ruleLimitString);
+           generatorOptions[3] = makePair(TranslationModelFactory.FEATURE_PREFIX_OPTION, fields[0]);
            filename = fields[1];
          
          } else {
@@ -577,8 +677,9 @@ public class Phrasal {
          System.err.printf("Loading independent phrase table: %s %s%n", filename, Arrays.toString(generatorOptions));
          Pair<TranslationModel<IString,String>,List<PhraseTable<IString>>> generatorPair =  
              TranslationModelFactory.<String>factory(TranslationModelFactory.PSEUDO_PHARAOH_GENERATOR, 
-                 filename, generatorOptions); 
+                 filename, globalModel, generatorOptions); 
          generators.add(generatorPair.first());
+         phraseTables.addAll(generatorPair.second());
        }
        phraseGenerator = new CombinedPhraseGenerator<IString,String>(generators, ruleQueryLimit);
     }
@@ -741,13 +842,10 @@ public class Phrasal {
     
     // Link the final featurizer and the phrase table
     phraseGenerator.setFeaturizer(featurizer);
-
-    // Create Scorer / weight vector
-    this.globalModel = new ClassicCounter<String>();
-
-    if (config.containsKey(WEIGHTS_FILE)) {
-      System.err.printf("Weights file: %s%n", config.get(WEIGHTS_FILE).get(0));
-      globalModel = IOTools.readWeights(config.get(WEIGHTS_FILE).get(0));
+    for (Featurizer<IString, String> f : featurizer.getFeaturizers()) {
+      if (f instanceof NGramLanguageModelFeaturizer) {
+        lmFeaturizers.add((NGramLanguageModelFeaturizer) f);
+      }
     }
 
     if (config.containsKey(MAX_SENTENCE_LENGTH)) {
@@ -799,6 +897,7 @@ public class Phrasal {
     // Create Inferers and scorers
     inferers = new ArrayList<>(numThreads);
     scorers = new ArrayList<>(numThreads);
+    scorerModels = new ArrayList<>(numThreads);
 
     boolean dtuDecoder = (gapT != FeaturizerFactory.GapType.none);
 
@@ -812,6 +911,21 @@ public class Phrasal {
     // Configure InfererBuilder
     AbstractBeamInfererBuilder<IString, String> infererBuilder = (AbstractBeamInfererBuilder<IString, String>) 
         InfererBuilderFactory.factory(searchAlgorithm);
+    int numIntraSentenceThreads = 1;
+    if (config.containsKey(INTRA_SENTENCE_THREADS)) {
+      numIntraSentenceThreads = Integer.parseInt(config.get(INTRA_SENTENCE_THREADS).get(0));
+      if (numIntraSentenceThreads < 1) {
+        throw new IllegalArgumentException("Number of threads must be positive: " + numIntraSentenceThreads);
+      }
+      if ( ! (infererBuilder instanceof CubePruningDecoderBuilder)) {
+        System.err.printf("WARNING: %s is only supported by the cube pruning decoder%n", INTRA_SENTENCE_THREADS);
+        numIntraSentenceThreads = 1;
+      }
+    }
+
+    // The scorers share one copy of the initial weights
+    final SparseScorer initialScorer = binaryWeights == null ? new SparseScorer(globalModel) :
+      new SparseScorer(binaryWeights);
 
     // Create the decoders, one per thread
     for (int i = 0; i < numThreads; i++) {
@@ -819,9 +933,10 @@ public class Phrasal {
         infererBuilder.setUnknownWordModel(oovModel, dropUnknownWords);
         infererBuilder.setFeaturizer((FeatureExtractor<IString, String>) featurizer.clone());
         infererBuilder.setPhraseGenerator((TranslationModel<IString,String>) phraseGenerator.clone());
-        Scorer<String> scorer = ScorerFactory.factory(ScorerFactory.SPARSE_SCORER, globalModel, null);
+        Scorer<String> scorer = new SparseScorer(initialScorer);
         infererBuilder.setScorer(scorer);
         scorers.add(scorer);
+        scorerModels.add(globalModel);
         infererBuilder.setSearchHeuristic((SearchHeuristic<IString, String>) heuristic.clone());
         infererBuilder.setRecombinationFilter((RecombinationFilter<Derivation<IString, String>>) filter.clone());
       
@@ -829,9 +944,22 @@ public class Phrasal {
         throw new RuntimeException(e);
       }
 
+      // Each decoding thread gets its own pool. The workers of a pool then only
+      // featurize derivations of one input at a time, so the per-thread LM caches are
+      // not reset by the inputs of other decoding threads.
+      if (numIntraSentenceThreads > 1) {
+        ForkJoinPool intraSentencePool = new ForkJoinPool(numIntraSentenceThreads);
+        intraSentencePools.add(intraSentencePool);
+        ((CubePruningDecoderBuilder<IString, String>) infererBuilder).setThreadPool(intraSentencePool);
+      }
+
       // Silently ignored by the cube pruning decoder
       infererBuilder.setBeamType(BeamFactory.BeamType.sloppybeam);
 
+      // Feature values are only needed for n-best lists. The 1-best features are
+      // recomputed by the inferer.
+      infererBuilder.setScoreOnly( ! config.containsKey(NBEST_LIST_OPT));
+
       if (distortionLimit != -1) {
         infererBuilder.setMaxDistortion(distortionLimit);
       }
@@ -943,68 +1071,114 @@ public class Phrasal {
     public final Sequence<IString> bestTranslation;
     public final int sourceInputId;
     public final int sourceLength;
+    // Formatted n-best list and alignments. Null if not requested.
+    public final String nbestList;
+    public final String alignments;
 
-    public DecoderOutput(int sourceLength, List<RichTranslation<IString, String>> translations, Sequence<IString> bestTranslation, int sourceInputId) {
+    public DecoderOutput(int sourceLength, List<RichTranslation<IString, String>> translations, Sequence<IString> bestTranslation, int sourceInputId,
+        String nbestList, String alignments) {
       this.sourceLength = sourceLength;
       this.translations = translations;
       this.bestTranslation = bestTranslation;
       this.sourceInputId = sourceInputId;
+      this.nbestList = nbestList;
+      this.alignments = alignments;
     }
   }
 
   /**
-   * Wrapper class to submit this decoder instance to the thread pool.
+   * Preprocessing stage of <code>decode(InputStream,boolean)</code>.
    *
-   * @author Spence Green
+   * NOTE: This call is threadsafe if the preprocessor is threadsafe.
    *
+   * @param line
+   * @param sourceInputId
+   * @return the decoder input, or null if the input should be skipped.
    */
-  private class PhrasalProcessor implements ThreadsafeProcessor<DecoderInput,DecoderOutput> {
-    private final int infererId;
-    private int childInfererId;
-
-    /**
-     * Constructor.
-     *
-     * @param parentInfererId - the bast infererId for this instance. Calls to newInstance()
-     * will increment from this value.
-     */
-    public PhrasalProcessor(int parentInfererId) {
-      this.infererId = parentInfererId;
-      this.childInfererId = parentInfererId+1;
+  private DecoderInput preprocess(String line, int sourceInputId) {
+    Sequence<IString> source = preprocessor == null ? IStrings.tokenize(line) :
+      preprocessor.process(line.trim());
+
+    if (source.size() > maxSentenceSize || source.size() < minSentenceSize) {
+      System.err.printf("Skipping: %s%n", line);
+      System.err.printf("Tokens: %d (min: %d max: %d)%n", source.size(), minSentenceSize,
+          maxSentenceSize);
+      return null;
     }
 
-    @Override
-    public DecoderOutput process(DecoderInput input) {
-      // Generate n-best list
-      List<RichTranslation<IString, String>> translations = 
-          decode(input.source, input.sourceInputId, infererId, nbestListSize, input.targets, input.inputProps);
-      
-     
-      // Select and process the best translation
-      Sequence<IString> bestTranslation = null;
-      if (translations.size() > 0) {
-        bestTranslation = translations.get(0).translation;
-        if (postprocessor != null) {
-          try {
-            bestTranslation = postprocessor.process(bestTranslation).e();
-          } catch (Exception e) {
-            // The postprocessor exploded. Silently ignore and return
-            // the unprocessed translation.
-            bestTranslation = translations.get(0).translation;
-          }
-        }
-        if (wrapBoundary) {
-          bestTranslation = bestTranslation.subsequence(1, bestTranslation.size() - 1);
+    final InputProperties inputProps = inputPropertiesList != null && sourceInputId < inputPropertiesList.size() ? 
+        inputPropertiesList.get(sourceInputId) : new InputProperties();
+    final List<Sequence<IString>> targets = 
+        forceDecodeReferences == null ? null : forceDecodeReferences.get(sourceInputId);
+    return new DecoderInput(source, sourceInputId, targets, inputProps);
+  }
+
+  /**
+   * Decoding stage of <code>decode(InputStream,boolean)</code>.
+   *
+   * @param input
+   * @param infererId
+   * @return
+   */
+  private DecoderOutput decodeInput(DecoderInput input, int infererId) {
+    List<RichTranslation<IString, String>> translations = 
+        decode(input.source, input.sourceInputId, infererId, nbestListSize, input.targets, input.inputProps);
+    return new DecoderOutput(input.source.size(), translations, null, input.sourceInputId, null, null);
+  }
+
+  /**
+   * Postprocessing stage of <code>decode(InputStream,boolean)</code>. Postprocesses the
+   * best translation and formats the n-best list and alignments for output.
+   *
+   * NOTE: This call is threadsafe if the postprocessor is threadsafe.
+   *
+   * @param output
+   * @param formatOutput if true, format the n-best list and alignments.
+   * @return
+   */
+  private DecoderOutput postprocess(DecoderOutput output, boolean formatOutput) {
+    final List<RichTranslation<IString, String>> translations = output.translations;
+    final int sourceInputId = output.sourceInputId;
+
+    // Select and process the best translation
+    Sequence<IString> bestTranslation = null;
+    if (translations.size() > 0) {
+      bestTranslation = translations.get(0).translation;
+      if (postprocessor != null) {
+        try {
+          bestTranslation = postprocessor.process(bestTranslation).e();
+        } catch (Exception e) {
+          // The postprocessor exploded. Silently ignore and return
+          // the unprocessed translation.
+          bestTranslation = translations.get(0).translation;
         }
       }
-        
-      return new DecoderOutput(input.source.size(), translations, bestTranslation, input.sourceInputId);
+      if (wrapBoundary) {
+        bestTranslation = bestTranslation.subsequence(1, bestTranslation.size() - 1);
+      }
     }
 
-    @Override
-    public ThreadsafeProcessor<DecoderInput, DecoderOutput> newInstance() {
-      return new PhrasalProcessor(childInfererId++);
+    String nbestList = null;
+    String alignments = null;
+    if (formatOutput) {
+      if (nbestListWriter != null) {
+        nbestList = translations.size() > 0 ?
+            IOTools.nbestToString(translations, sourceInputId, nbestListOutputType, nBestListFeaturePattern) :
+              IOTools.emptyNBestToString(sourceInputId);
+      }
+      if (alignmentWriter != null) {
+        StringBuilder sb = new StringBuilder();
+        String nl = System.getProperty("line.separator");
+        for (RichTranslation<IString,String> translation : translations) {
+          sb.append(sourceInputId).append(" ").append(CompiledPhraseTable.FIELD_DELIM).append(" ");
+          sb.append(translation.alignmentString()).append(nl);
+        }
+        if (translations.size() == 0) sb.append(nl);
+        alignments = sb.toString();
+      }
     }
+    return new DecoderOutput(output.sourceLength, translations, bestTranslation, sourceInputId, 
+        nbestList, alignments);
   }
 
   /**
@@ -1013,52 +1187,33 @@ public class Phrasal {
    *
    * NOTE: This call is *not* threadsafe.
    *
-   * @param translations n-best list
-   * @param bestTranslation if post-processing has been applied, then this is post-processed
-   *        sequence at the top of the n-best list
-   * @param sourceInputId
+   * @param result the output of <code>postprocess()</code>
    */
-  private void processConsoleResult(List<RichTranslation<IString, String>> translations,
-      Sequence<IString> bestTranslation, int sourceLength, int sourceInputId) {
+  private void processConsoleResult(DecoderOutput result) {
+    final List<RichTranslation<IString, String>> translations = result.translations;
     if (translations.size() > 0) {
       RichTranslation<IString,String> bestTranslationInfo = translations.get(0);
       if (printModelScores) {
-        System.out.printf("%e\t%s%n", bestTranslationInfo.score, bestTranslation.toString());
+        System.out.printf("%e\t%s%n", bestTranslationInfo.score, result.bestTranslation.toString());
       } else {
-        System.out.println(bestTranslation.toString());
+        System.out.println(result.bestTranslation.toString());
       }
       
       // log additional information to stderr
-      System.err.printf("input %d: 1-best model score: %.3f%n", sourceInputId, bestTranslationInfo.score);
-
-      // Output the n-best list if necessary
-      if (nbestListWriter != null) {
-        IOTools.writeNbest(translations, sourceInputId, nbestListOutputType, nBestListFeaturePattern, nbestListWriter);
-      }
-      
-      // Output the alignments if necessary
-      if (alignmentWriter != null) {
-        for (RichTranslation<IString,String> translation : translations) {
-          alignmentWriter.printf("%d %s %s%n", sourceInputId, CompiledPhraseTable.FIELD_DELIM, 
-              translation.alignmentString());
-        }
-      }
+      System.err.printf("input %d: 1-best model score: %.3f%n", result.sourceInputId, bestTranslationInfo.score);
 
     } else {
       // Decoder failure. Print an empty line.
       System.out.println();
-      
-      // Output the n-best list if necessary
-      if (nbestListWriter != null) {
-        IOTools.writeEmptyNBest(sourceInputId, nbestListWriter);
-      }
-      
-      // Output the alignments if necessary
-      if (alignmentWriter != null) {
-        alignmentWriter.printf("%n");
-      }
-      
-      System.err.printf("<<< decoder failure for id: %d >>>%n", sourceInputId);
+      System.err.printf("<<< decoder failure for id: %d >>>%n", result.sourceInputId);
+    }
+
+    // Output the n-best list and alignments if necessary
+    if (nbestListWriter != null && result.nbestList != null) {
+      nbestListWriter.append(result.nbestList);
+    }
+    if (alignmentWriter != null && result.alignments != null) {
+      alignmentWriter.append(result.alignments);
     }
   }
 
@@ -1066,6 +1221,11 @@ public class Phrasal {
    * Decode input from inputStream and either write 1-best translations to stdout or
    * return them in a <code>List</code>.
    * 
+   * The input is processed by a pipeline of thread pools: preprocessing, decoding,
+   * and postprocessing (including formatting of the n-best list). The output is
+   * written in the input order by the calling thread. The queues between the stages
+   * are bounded, so the input is read only as fast as it can be decoded.
+   * 
    * @param inputStream 
    * @param outputToConsole if true, output the 1-best translations to the console. Otherwise,
    *                        return them in a <code>List</code>
@@ -1073,64 +1233,88 @@ public class Phrasal {
    */
   public List<RichTranslation<IString,String>> decode(InputStream inputStream, boolean outputToConsole) throws IOException {
     System.err.println("Entering main translation loop");
-    final MulticoreWrapper<DecoderInput,DecoderOutput> wrapper =
-        new MulticoreWrapper<DecoderInput,DecoderOutput>(numThreads, new PhrasalProcessor(0));
     final LineNumberReader reader = new LineNumberReader(new InputStreamReader(
         inputStream, "UTF-8"));
     final List<RichTranslation<IString,String>> bestTranslationList = outputToConsole ? null :
       new ArrayList<RichTranslation<IString,String>>();
     
     // Sanity check -- Set each thread's model to the current global model.
-    this.scorers.stream().forEach(scorer -> scorer.updateWeights(globalModel));
+    for (int i = 0; i < scorers.size(); ++i) setScorerWeights(i, globalModel);
+    
+    // Setup the pipeline. Decoding worker i uses inferer i.
+    final PipelineStage<String,DecoderInput> preprocessStage = new PipelineStage<>("preprocess", 
+        pipelineThreads, pipelineQueueSize, (jobId, line, workerId) -> preprocess(line, (int) jobId));
+    final PipelineStage<DecoderInput,DecoderOutput> decodeStage = preprocessStage.then(new PipelineStage<>("decode", 
+        numThreads, pipelineQueueSize, (jobId, input, workerId) -> decodeInput(input, workerId)));
+    final PipelineStage<DecoderOutput,DecoderOutput> postprocessStage = decodeStage.then(new PipelineStage<>("postprocess", 
+        pipelineThreads, pipelineQueueSize, (jobId, output, workerId) -> postprocess(output, outputToConsole)));
+    final List<PipelineStage<?,?>> stages = Arrays.asList(preprocessStage, decodeStage, postprocessStage);
+    stages.forEach(PipelineStage::start);
     
     final long startTime = System.nanoTime();
-    int sourceInputId = 0;
-    for (String line; (line = reader.readLine()) != null; ++sourceInputId) {
-      Sequence<IString> source = preprocessor == null ? IStrings.tokenize(line) :
-        preprocessor.process(line.trim());
-            
-      if (source.size() > maxSentenceSize || source.size() < minSentenceSize) {
-        System.err.printf("Skipping: %s%n", line);
-        System.err.printf("Tokens: %d (min: %d max: %d)%n", source.size(), minSentenceSize,
-            maxSentenceSize);
-        continue;
-      }
 
-      final InputProperties inputProps = inputPropertiesList != null && sourceInputId < inputPropertiesList.size() ? 
-          inputPropertiesList.get(sourceInputId) : new InputProperties();
-      final List<Sequence<IString>> targets = 
-          forceDecodeReferences == null ? null : forceDecodeReferences.get(sourceInputId);
-      
-      wrapper.put(new DecoderInput(source, sourceInputId, targets, inputProps));
-      for (DecoderOutput result; (result = wrapper.poll()) != null;) {
+    // Read the input. Blocks when the pipeline is full, or when the output of a
+    // slow input holds back the inputs that follow it.
+    final Semaphore inFlight = new Semaphore(pipelineQueueSize);
+    final FutureTask<Integer> readerTask = new FutureTask<>(() -> {
+      int sourceInputId = 0;
+      try {
+        for (String line; (line = reader.readLine()) != null; ++sourceInputId) {
+          inFlight.acquire();
+          preprocessStage.put(sourceInputId, line);
+        }
+      } finally {
+        preprocessStage.close();
+      }
+      return sourceInputId;
+    });
+    final Thread readerThread = new Thread(readerTask, "input-reader");
+    readerThread.setDaemon(true);
+    readerThread.start();
+
+    // Write the output in order.
+    int numInputs = 0;
+    try {
+      postprocessStage.drainInOrder(result -> {
+        // Skipped input
+        if (result == null) return;
         if (outputToConsole) {
-          processConsoleResult(result.translations, result.bestTranslation, result.sourceLength, result.sourceInputId);
+          processConsoleResult(result);
         } else {
           RichTranslation<IString,String> best = result.translations.size() > 0 ? result.translations.get(0) : null;
           bestTranslationList.add(best);
         }
-      }
-    }
-
-    // Finished reading the input. Wait for threadpool to finish, then process
-    // last few translations.
-    wrapper.join();
-    while(wrapper.peek()) {
-      DecoderOutput result = wrapper.poll();
-      if (outputToConsole) {
-        processConsoleResult(result.translations, result.bestTranslation, result.sourceLength, result.sourceInputId);
-      } else {
-        RichTranslation<IString,String> best = result.translations.size() > 0 ? result.translations.get(0) : null;
-        bestTranslationList.add(best);
-      }
+      }, inFlight);
+      numInputs = readerTask.get();
+
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new RuntimeException(e.getCause());
     }
 
     double totalTime = ((double) System.nanoTime() - startTime) / 1e9;
-    double segmentsPerSec = (double) sourceInputId / totalTime;
+    double segmentsPerSec = (double) numInputs / totalTime;
     System.err.printf("Decoding at %.2f segments/sec (total: %.2f sec)%n", segmentsPerSec, totalTime);
+    stages.forEach(stage -> System.err.println(stage.toString()));
     return bestTranslationList;
   }
 
+  /**
+   * Set the weights of the scorer of a thread unless it already holds them. This
+   * keeps the weights that were loaded directly from a binary weights file.
+   *
+   * @param threadId
+   * @param weights
+   */
+  private void setScorerWeights(int threadId, Counter<String> weights) {
+    if (scorerModels.get(threadId) != weights) {
+      scorers.get(threadId).updateWeights(weights);
+      scorerModels.set(threadId, weights);
+    }
+  }
+
   /**
    * Decode a tokenized input string. Returns an n-best list of translations as
    * specified by the decoders <code>nbestListSize</code> parameter.
@@ -1222,9 +1406,11 @@ public class Phrasal {
     if (inputProperties.containsKey(InputProperty.DecoderLocalWeights)) {
       Counter<String> weights = (Counter<String>) inputProperties.get(InputProperty.DecoderLocalWeights);
       this.scorers.get(threadId).updateWeights(weights);
+      // Reload the global model for the next input
+      scorerModels.set(threadId, null);
     
     } else {
-      this.scorers.get(threadId).updateWeights(this.globalModel);      
+      setScorerWeights(threadId, this.globalModel);
     }
     
     // Decode
@@ -1254,6 +1440,17 @@ public class Phrasal {
    * Free resources and cleanup.
    */
   private void shutdown() {
+    for (PhraseTable<IString> phraseTable : phraseTables) {
+      if (phraseTable instanceof AbstractPhraseGenerator &&
+          ((AbstractPhraseGenerator<?,?>) phraseTable).getRuleCache() != null) {
+        System.err.printf("%s: %s%n", phraseTable, 
+            ((AbstractPhraseGenerator<?,?>) phraseTable).getRuleCache());
+      }
+    }
+    for (NGramLanguageModelFeaturizer lmFeaturizer : lmFeaturizers) {
+      System.err.println(lmFeaturizer.getCacheStatistics());
+    }
+    
     if (nbestListWriter != null) {
       System.err.println("Closing n-best writer");
       nbestListWriter.close();
@@ -1263,6 +1460,10 @@ public class Phrasal {
       System.err.println("Closing alignment writer");
       alignmentWriter.close();
     }
+
+    for (ForkJoinPool intraSentencePool : intraSentencePools) {
+      intraSentencePool.shutdown();
+    }
   }
 
   /**
@@ -16,10 +16,10 @@ import edu.stanford.nlp.mt.decoder.util.Beam;
 import edu.stanford.nlp.mt.decoder.util.BeamFactory;
 import edu.stanford.nlp.mt.decoder.util.DTUHypothesis;
 import edu.stanford.nlp.mt.decoder.util.Derivation;
+import edu.stanford.nlp.mt.decoder.util.KBestExtractor;
 import edu.stanford.nlp.mt.decoder.util.OutputSpace;
 import edu.stanford.nlp.mt.decoder.util.RuleGrid;
 import edu.stanford.nlp.mt.decoder.util.Scorer;
-import edu.stanford.nlp.mt.decoder.util.StateLatticeDecoder;
 import edu.stanford.nlp.mt.tm.ConcreteRule;
 import edu.stanford.nlp.mt.tm.DTURule;
 import edu.stanford.nlp.mt.tm.Rule;
@@ -43,6 +43,10 @@ abstract public class AbstractBeamInferer<TK, FV> extends
     AbstractInferer<TK, FV> {
 
   private static final boolean DEBUG = false;
+
+  // Bound on the number of duplicate paths discarded during extraction of
+  // distinct n-best lists, as a multiple of the n-best list size.
+  private static final int MAX_DUPLICATES_PER_ITEM = 100;
   
   public final int beamCapacity;
   public final BeamFactory.BeamType beamType;
@@ -125,8 +129,10 @@ abstract public class AbstractBeamInferer<TK, FV> extends
   }
   
   /**
-   * TODO(spenceg): This routine is *extremely* inefficient. Rewrite with e.g., Huang and Chiang's
-   * k-best extraction or something.
+   * Extracts the n-best list with lazy k-best extraction over the recombination
+   * history. The feature values of each derivation are reused, so the featurizers
+   * are only run for paths that cannot be reconstructed from the lattice, i.e.,
+   * paths with discontinuous rules and paths built in score-only mode.
    */
   @Override
   public List<RichTranslation<TK, FV>> nbest(Scorer<FV> scorer,
@@ -151,56 +157,18 @@ abstract public class AbstractBeamInferer<TK, FV> extends
     }
 
     // Setup for n-best extraction
-    StateLatticeDecoder<Derivation<TK, FV>> latticeDecoder = new StateLatticeDecoder<Derivation<TK, FV>>(
-        goalStates, recombinationHistory);
-    Set<Sequence<TK>> distinctSurfaceTranslations = new HashSet<>();
-
-    // Extract
-    List<RichTranslation<TK, FV>> translations = new LinkedList<>();
     final long nbestStartTime = System.nanoTime();
-    
-    // Limit the number of popped items in the case of distinct nbest lists.
-    // We want the algorithm to terminate eventually....
-    final int maxItemsToExtract = distinct ? size * 5 : Integer.MAX_VALUE;
-    int numExtracted = 0;
-    long nbestId = 0;
-    for (List<Derivation<TK, FV>> latticePath : latticeDecoder) {
-      if (numExtracted >= maxItemsToExtract) {
-        break;
-      }
-      // DTU stuff
-      boolean withDTUs = false;
-      Set<Rule<TK>> seenOptions = new HashSet<>();
-      
-      // TODO(spenceg): This is very inefficient. Reconstruct the derivation
-      // from the lattice path since the current n-best list extractor
-      // does not set the parent references when it traverses the lattice. These
-      // references may be incorrect due to recombination.
-      // When we replace StateLatticeDecoder, this code should go away.
-      Derivation<TK, FV> goalHyp = null;
-      for (Derivation<TK, FV> node : latticePath) {
-        if (goalHyp == null) {
-          goalHyp = node;
-          continue;
-        }
-        if (node.rule.abstractRule instanceof DTURule)
-          withDTUs = true;
-        if (withDTUs) {
-          goalHyp = new DTUHypothesis<TK, FV>(sourceInputId,
-              node.rule, goalHyp.length, goalHyp, node, featurizer,
-              scorer, heuristic, seenOptions);
-        } else {
-          goalHyp = new Derivation<TK, FV>(sourceInputId, node.rule,
-              goalHyp.length, goalHyp, featurizer, scorer, heuristic);
-        }
-      }
+    KBestExtractor<TK, FV> kbestExtractor = new KBestExtractor<TK, FV>(goalStates, 
+        recombinationHistory, distinct, size * MAX_DUPLICATES_PER_ITEM);
 
-      if (withDTUs) {
-        DTUHypothesis<TK, FV> dtuHyp = (DTUHypothesis<TK, FV>) goalHyp;
-        if (!dtuHyp.isDone() || dtuHyp.hasExpired())
-          System.err.printf("Warning: option not complete(%d,%s): %s\n",
-              translations.size(), dtuHyp.hasExpired(), goalHyp);
-      }
+    // Extract. The extractor does not remove duplicates of paths with discontinuous
+    // derivations since their target strings are only known after rebuilding them.
+    List<RichTranslation<TK, FV>> translations = new ArrayList<>(size);
+    final Set<Sequence<TK>> distinctTargets = distinct ? new HashSet<>() : null;
+    int numDuplicates = 0;
+    long nbestId = 0;
+    for (List<Derivation<TK, FV>> latticePath : kbestExtractor) {
+      Derivation<TK, FV> goalHyp = buildDerivation(latticePath, sourceInputId, scorer);
 
       // Decoder failure in which the null hypothesis was returned.
       if (goalHyp == null || goalHyp.featurizable == null) {
@@ -208,16 +176,9 @@ abstract public class AbstractBeamInferer<TK, FV> extends
             this.getClass().getName(), sourceInputId);
         return null;
       }
-      
-      ++numExtracted;
-      
-      if (distinct) {
-        if (distinctSurfaceTranslations.contains(goalHyp.featurizable.targetPrefix)) {
-          // Seen a higher-scoring derivation with this target string before
-          continue;
-        } else {
-          distinctSurfaceTranslations.add(goalHyp.featurizable.targetPrefix);
-        }
+      if (distinctTargets != null && ! distinctTargets.add(goalHyp.targetSequence)) {
+        if (++numDuplicates > size * MAX_DUPLICATES_PER_ITEM) break;
+        continue;
       }
       
       translations.add(new RichTranslation<TK, FV>(goalHyp.featurizable,
@@ -227,20 +188,90 @@ abstract public class AbstractBeamInferer<TK, FV> extends
       }
     }
 
-    // If a non-admissible recombination heuristic is used, the hypothesis
-    // scores predicted by the lattice may not actually correspond to their real
-    // scores.
-    // Since the n-best list should be sorted according to the true scores, we
-    // re-sort things here just in case.
+    // Paths with discontinuous rules are re-scored, so their scores may not
+    // match the scores predicted by the lattice. Since the n-best list should be
+    // sorted according to the true scores, we re-sort things here just in case.
     Collections.sort(translations, translationComparator);
 
     if (DEBUG) {
-      System.err.printf("source id %d: #extracted: %d #final: %d time: %.3fsec%n", sourceInputId, numExtracted, translations.size(),
-          (System.nanoTime() - nbestStartTime) / 1e9);
+      System.err.printf("source id %d: #final: %d #duplicates: %d time: %.3fsec%n", sourceInputId, 
+          translations.size(), kbestExtractor.numDuplicates() + numDuplicates, (System.nanoTime() - nbestStartTime) / 1e9);
     }
     
     return translations;
   }
+
+  /**
+   * Reconstruct a derivation from a path through the lattice. The antecedent of a
+   * derivation in the path may have been replaced by a derivation with which it
+   * was recombined, in which case the derivation is re-attached to the new
+   * antecedent. The local feature values are reused.
+   * 
+   * @param latticePath
+   * @param sourceInputId
+   * @param scorer
+   * @return
+   */
+  private Derivation<TK, FV> buildDerivation(List<Derivation<TK, FV>> latticePath, 
+      int sourceInputId, Scorer<FV> scorer) {
+    for (Derivation<TK, FV> node : latticePath) {
+      if (node instanceof DTUHypothesis || 
+          (node.rule != null && node.localFeatures == null)) {
+        return replayPath(latticePath, sourceInputId, scorer);
+      }
+    }
+    Derivation<TK, FV> goalHyp = null;
+    for (Derivation<TK, FV> node : latticePath) {
+      if (goalHyp == null) {
+        goalHyp = node;
+      } else if (node.preceedingDerivation != goalHyp) {
+        goalHyp = new Derivation<TK, FV>(node, goalHyp);
+      } else {
+        // Shared prefix
+        goalHyp = node;
+      }
+    }
+    return goalHyp;
+  }
+
+  /**
+   * Rebuild a derivation from a path through the lattice by re-running the
+   * featurizers.
+   * 
+   * @param latticePath
+   * @param sourceInputId
+   * @param scorer
+   * @return
+   */
+  private Derivation<TK, FV> replayPath(List<Derivation<TK, FV>> latticePath, 
+      int sourceInputId, Scorer<FV> scorer) {
+    boolean withDTUs = false;
+    Set<Rule<TK>> seenOptions = new HashSet<>();
+    Derivation<TK, FV> goalHyp = null;
+    for (Derivation<TK, FV> node : latticePath) {
+      if (goalHyp == null) {
+        goalHyp = node;
+        continue;
+      }
+      if (node.rule.abstractRule instanceof DTURule)
+        withDTUs = true;
+      if (withDTUs) {
+        goalHyp = new DTUHypothesis<TK, FV>(sourceInputId,
+            node.rule, goalHyp.length, goalHyp, node, featurizer,
+            scorer, heuristic, seenOptions);
+      } else {
+        goalHyp = new Derivation<TK, FV>(sourceInputId, node.rule,
+            goalHyp.length, goalHyp, featurizer, scorer, heuristic);
+      }
+    }
+    if (withDTUs) {
+      DTUHypothesis<TK, FV> dtuHyp = (DTUHypothesis<TK, FV>) goalHyp;
+      if (!dtuHyp.isDone() || dtuHyp.hasExpired())
+        System.err.printf("Warning: option not complete(%s): %s\n",
+            dtuHyp.hasExpired(), goalHyp);
+    }
+    return goalHyp;
+  }
   
   private static class RichTranslationComparator<TK,FV> implements Comparator<RichTranslation<TK,FV>> {
     @Override
@@ -270,10 +301,39 @@ abstract public class AbstractBeamInferer<TK, FV> extends
     if (beam == null)
       return null;
     Derivation<TK, FV> hyp = beam.iterator().next();
+    if (hyp.rule != null && hyp.localFeatures == null) {
+      // Score-only mode
+      hyp = replay(hyp, sourceInputId, scorer);
+    }
     return new RichTranslation<TK, FV>(hyp.featurizable, hyp.score,
         FeatureValues.combine(hyp), 0);
   }
 
+  /**
+   * Rebuild a derivation that was built in score-only mode, retaining the feature
+   * values this time.
+   * 
+   * @param goal
+   * @param sourceInputId
+   * @param scorer
+   * @return
+   */
+  protected Derivation<TK, FV> replay(Derivation<TK, FV> goal, int sourceInputId, 
+      Scorer<FV> scorer) {
+    List<Derivation<TK, FV>> path = new ArrayList<>(goal.depth + 1);
+    for (Derivation<TK, FV> d = goal; d != null; d = d.preceedingDerivation) {
+      path.add(d);
+    }
+    Collections.reverse(path);
+    Derivation<TK, FV> hyp = path.get(0);
+    for (int i = 1, sz = path.size(); i < sz; ++i) {
+      Derivation<TK, FV> node = path.get(i);
+      hyp = new Derivation<TK, FV>(sourceInputId, node.rule, node.insertionPosition, 
+          hyp, featurizer, scorer, heuristic);
+    }
+    return hyp;
+  }
+
   /**
 	 * 
 	 */
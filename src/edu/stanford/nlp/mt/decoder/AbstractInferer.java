@@ -28,6 +28,7 @@ abstract public class AbstractInferer<TK, FV> implements Inferer<TK, FV> {
   protected final RecombinationFilter<Derivation<TK, FV>> filter;
   protected final boolean filterUnknownWords;
   protected final TranslationModel<TK,FV> unknownWordModel;
+  protected final boolean scoreOnly;
 
   /**
    * Constructor.
@@ -42,6 +43,7 @@ abstract public class AbstractInferer<TK, FV> implements Inferer<TK, FV> {
     filter = builder.filter;
     filterUnknownWords = builder.filterUnknownWords;
     unknownWordModel = builder.unknownWordModel;
+    scoreOnly = builder.scoreOnly;
   }
 
   /**
@@ -57,6 +59,7 @@ abstract public class AbstractInferer<TK, FV> implements Inferer<TK, FV> {
     filter = inferer.filter;
     filterUnknownWords = inferer.filterUnknownWords;
     unknownWordModel = inferer.unknownWordModel;
+    scoreOnly = inferer.scoreOnly;
   }
 
   protected FeatureValueCollection<FV> collectFeatureValues(
@@ -21,6 +21,7 @@ abstract public class AbstractInfererBuilder<TK, FV> implements InfererBuilder<T
   protected RecombinationFilter<Derivation<TK, FV>> filter;
   protected boolean filterUnknownWords;
   protected TranslationModel<TK, FV> unknownWordModel;
+  protected boolean scoreOnly = false;
 
   @Override
   abstract public Inferer<TK, FV> newInferer();
@@ -67,4 +68,10 @@ abstract public class AbstractInfererBuilder<TK, FV> implements InfererBuilder<T
     return this;
   }
 
+  @Override
+  public InfererBuilder<TK, FV> setScoreOnly(boolean scoreOnly) {
+    this.scoreOnly = scoreOnly;
+    return this;
+  }
+
 }
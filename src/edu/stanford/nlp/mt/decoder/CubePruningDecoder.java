@@ -1,15 +1,24 @@
 package edu.stanford.nlp.mt.decoder;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import edu.stanford.nlp.mt.decoder.feat.DerivationFeaturizer;
+import edu.stanford.nlp.mt.decoder.feat.Featurizer;
+import edu.stanford.nlp.mt.decoder.feat.ThreadsafeFeaturizer;
 import edu.stanford.nlp.mt.decoder.recomb.RecombinationHistory;
 import edu.stanford.nlp.mt.decoder.util.Beam;
 import edu.stanford.nlp.mt.decoder.util.BundleBeam;
@@ -42,7 +51,27 @@ public class CubePruningDecoder<TK,FV> extends AbstractBeamInferer<TK, FV> {
   public static final int DEFAULT_BEAM_SIZE = 1200;
   public static final int DEFAULT_MAX_DISTORTION = -1;
 
+  // Minimum number of bundles for which the priority queue is initialized
+  // in parallel.
+  private static final int MIN_PARALLEL_BUNDLES = 32;
+
   protected final int maxDistortion;
+  
+  // Pool for intra-sentence parallelism. Null if disabled. Only the seeding of
+  // the priority queue for each beam is parallel.
+  protected final ForkJoinPool threadPool;
+
+  // Upper bound on the number of recycled objects of each type
+  private static final int MAX_POOL_SIZE = 1 << 16;
+
+  // Search state that is reused across beams and sentences. Each decoder instance
+  // is confined to one thread.
+  private final ItemQueue<TK,FV> pq;
+  private final Deque<Item<TK,FV>> itemPool = new ArrayDeque<>();
+  private final Deque<Consequent<TK,FV>> consequentPool = new ArrayDeque<>();
+  private final Supplier<Consequent<TK,FV>> consequentFactory = 
+      () -> consequentPool.isEmpty() ? new Consequent<TK,FV>() : consequentPool.pop();
+  private final List<Consequent<TK,FV>> successors = new ArrayList<>(2);
 
   static public <TK, FV> CubePruningDecoderBuilder<TK, FV> builder() {
     return new CubePruningDecoderBuilder<TK, FV>();
@@ -51,18 +80,40 @@ public class CubePruningDecoder<TK,FV> extends AbstractBeamInferer<TK, FV> {
   protected CubePruningDecoder(CubePruningDecoderBuilder<TK, FV> builder) {
     super(builder);
     maxDistortion = builder.maxDistortion;
+    threadPool = builder.threadPool != null && isThreadsafe(builder.decoderId) ? 
+        builder.threadPool : null;
+    pq = new ItemQueue<TK,FV>(beamCapacity);
 
     if (maxDistortion != -1) {
       logger.info("Cube pruning decoder {}. Distortion limit: {}", builder.decoderId, 
           maxDistortion);
     } else {
       logger.info("Cube pruning decoder {}. No hard distortion limit", builder.decoderId);
-    }    
+    }
+    if (threadPool != null) {
+      logger.info("Cube pruning decoder {}. Intra-sentence threads: {}", builder.decoderId, 
+          threadPool.getParallelism());
+    }
+  }
+
+  /**
+   * True if all derivation featurizers support concurrent calls to featurize().
+   */
+  private boolean isThreadsafe(int decoderId) {
+    for (Featurizer<TK,FV> f : featurizer.getFeaturizers()) {
+      if (f instanceof DerivationFeaturizer && ! (f instanceof ThreadsafeFeaturizer)) {
+        logger.warn("Cube pruning decoder {}. Intra-sentence threads disabled: {} is not threadsafe", 
+            decoderId, f.getClass().getName());
+        return false;
+      }
+    }
+    return true;
   }
 
   public static class CubePruningDecoderBuilder<TK, FV> extends AbstractBeamInfererBuilder<TK, FV> {
     int maxDistortion = DEFAULT_MAX_DISTORTION;
     int decoderId = -1;
+    ForkJoinPool threadPool = null;
 
     @Override
     public AbstractBeamInfererBuilder<TK, FV> setMaxDistortion(int maxDistortion) {
@@ -70,6 +121,24 @@ public class CubePruningDecoder<TK,FV> extends AbstractBeamInferer<TK, FV> {
       return this;
     }
 
+    /**
+     * Build the first derivation of each hyperedge bundle of a beam, which seeds the
+     * priority queue, with multiple threads. Successors of popped items are still
+     * generated sequentially. The pool is used by all decoders created by this
+     * builder until it is replaced, and the caller must shut it down. Give each
+     * decoding thread its own pool: featurizers may keep per-thread state for the
+     * current input, like the LM state cache, which the workers of a shared pool
+     * would reset whenever they switch between inputs. A decoder ignores the pool
+     * unless all of its derivation featurizers implement <code>ThreadsafeFeaturizer</code>.
+     * 
+     * @param threadPool
+     * @return
+     */
+    public CubePruningDecoderBuilder<TK, FV> setThreadPool(ForkJoinPool threadPool) {
+      this.threadPool = threadPool;
+      return this;
+    }
+
     public CubePruningDecoderBuilder() {
       super(DEFAULT_BEAM_SIZE, null);
     }
@@ -129,6 +198,9 @@ public class CubePruningDecoder<TK,FV> extends AbstractBeamInferer<TK, FV> {
 
     // Initialize feature extractors
     featurizer.initialize(sourceInputId, source);
+    
+    // Discard state from a previous search that terminated abnormally
+    pq.clear();
 
     // main translation loop---beam expansion
     final int maxPhraseLength = phraseGenerator.longestSourcePhrase();
@@ -142,14 +214,11 @@ public class CubePruningDecoder<TK,FV> extends AbstractBeamInferer<TK, FV> {
       if (startBeam > 0) beams.remove(0);
 
       // Initialize the priority queue
-      Queue<Item<TK,FV>> pq = new PriorityQueue<Item<TK,FV>>(beamCapacity);
+      List<HyperedgeBundle<TK,FV>> bundles = new ArrayList<>();
       for (BundleBeam<TK,FV> beam : beams) {
-        for (HyperedgeBundle<TK,FV> bundle : beam.getBundlesForConsequentSize(i)) {
-          List<Item<TK,FV>> consequents = generateConsequentsFrom(null, bundle, sourceInputId, outputSpace);
-          pq.addAll(consequents);
-          totalHypothesesGenerated += consequents.size();
-        }
+        bundles.addAll(beam.getBundlesForConsequentSize(i));
       }
+      totalHypothesesGenerated += generateConsequentsFrom(bundles, sourceInputId, outputSpace);
 
       // Populate beam i by popping items and generating successors
       BundleBeam<TK,FV> newBeam = new BundleBeam<TK,FV>(beamCapacity, filter, ruleGrid, 
@@ -169,10 +238,9 @@ public class CubePruningDecoder<TK,FV> extends AbstractBeamInferer<TK, FV> {
         }
         outputConstraintsEnabled = outputConstraintsEnabled || item.derivation == null;
         
-        List<Item<TK,FV>> consequents = generateConsequentsFrom(item.consequent, item.consequent.bundle, 
+        totalHypothesesGenerated += generateConsequentsFrom(item.consequent, item.consequent.bundle, 
             sourceInputId, outputSpace);
-        pq.addAll(consequents);
-        totalHypothesesGenerated += consequents.size();
+        release(item);
         
         if (outputConstraintsEnabled && numPoppedItems == beamCapacity-1 && newBeam.size() < sourceLength - i) {
           // Search until we build at least one derivation or the priority queue
@@ -184,6 +252,9 @@ public class CubePruningDecoder<TK,FV> extends AbstractBeamInferer<TK, FV> {
       }
       beams.add(newBeam);
       numRecombined += newBeam.recombined();
+      
+      // Recycle the items that were not popped
+      while ( ! pq.isEmpty()) release(pq.poll());
     }
     
     // Debug statistics
@@ -216,57 +287,163 @@ public class CubePruningDecoder<TK,FV> extends AbstractBeamInferer<TK, FV> {
   }
 
   /**
-   * Searches for consequents, always returning at least one and at most two.
+   * Searches for consequents and adds them to the priority queue.
    * 
    * @param antecedent
    * @param bundle
    * @param sourceInputId
    * @param outputSpace
-   * @return
+   * @return the number of consequents, which is at most two.
    */
-  private List<Item<TK, FV>> generateConsequentsFrom(Consequent<TK, FV> antecedent, 
+  private int generateConsequentsFrom(Consequent<TK, FV> antecedent, 
       HyperedgeBundle<TK, FV> bundle, int sourceInputId, OutputSpace<TK, FV> outputSpace) {
-    List<Item<TK,FV>> consequents = new ArrayList<>(2);
-    List<Consequent<TK,FV>> successors = bundle.nextSuccessors(antecedent);
-    for (Consequent<TK,FV> successor : successors) {
+    successors.clear();
+    bundle.nextSuccessors(antecedent, successors, consequentFactory);
+    final int numSuccessors = successors.size();
+    for (int k = 0; k < numSuccessors; ++k) {
+      Consequent<TK,FV> successor = successors.get(k);
       boolean buildDerivation = outputSpace.allowableContinuation(successor.antecedent.featurizable, successor.rule);
     
       // Derivation construction: this is the expensive part
       Derivation<TK, FV> derivation = buildDerivation ? new Derivation<TK, FV>(sourceInputId,
-          successor.rule, successor.antecedent.length, successor.antecedent, featurizer, scorer, heuristic) :
+          successor.rule, successor.antecedent.length, successor.antecedent, featurizer, scorer, heuristic,
+          ! scoreOnly) :
             null;
-      consequents.add(new Item<TK,FV>(derivation, successor));
+      if (derivation != null) derivation.recombinationHashCode(filter);
+      pq.add(newItem(derivation, successor));
+    }
+    successors.clear();
+    return numSuccessors;
+  }
+
+  /**
+   * Generates the first consequent of each bundle and adds them to the priority queue.
+   * The derivations are featurized in two stages. First, the featurizers that support
+   * batch queries are called once for all consequents. Second, the derivations are
+   * built, in parallel if there are enough bundles. The derivation ids are reserved up 
+   * front in bundle order, so the output is the same as that of sequential generation.
+   * 
+   * @param bundles
+   * @param sourceInputId
+   * @param outputSpace
+   * @return the number of consequents.
+   */
+  @SuppressWarnings("unchecked")
+  private int generateConsequentsFrom(List<HyperedgeBundle<TK,FV>> bundles, 
+      int sourceInputId, OutputSpace<TK, FV> outputSpace) {
+    final int numBundles = bundles.size();
+    if (numBundles == 0) return 0;
+    
+    // The top-left corner of a grid is the only successor of a fresh bundle
+    final Consequent<TK,FV>[] consequents = new Consequent[numBundles];
+    final boolean[] buildDerivation = new boolean[numBundles];
+    final List<Derivation<TK,FV>> antecedents = new ArrayList<>(numBundles);
+    final List<ConcreteRule<TK,FV>> rules = new ArrayList<>(numBundles);
+    for (int b = 0; b < numBundles; ++b) {
+      successors.clear();
+      bundles.get(b).nextSuccessors(null, successors, consequentFactory);
+      Consequent<TK,FV> successor = successors.get(0);
+      consequents[b] = successor;
+      buildDerivation[b] = outputSpace.allowableContinuation(successor.antecedent.featurizable, 
+          successor.rule);
+      if (buildDerivation[b]) {
+        antecedents.add(successor.antecedent);
+        rules.add(successor.rule);
+      }
     }
-    return consequents;
+    successors.clear();
+    
+    // Batch queries, e.g., for the language model
+    featurizer.prefetch(sourceInputId, antecedents, rules);
+    
+    // Derivation construction
+    final Derivation<TK,FV>[] derivations = new Derivation[numBundles];
+    final long firstId = Derivation.nextId.getAndAdd(numBundles) + 1;
+    if (threadPool != null && numBundles >= MIN_PARALLEL_BUNDLES) {
+      final int numTasks = Math.min(numBundles, 4 * threadPool.getParallelism());
+      List<Callable<Void>> tasks = new ArrayList<>(numTasks);
+      for (int t = 0; t < numTasks; ++t) {
+        final int start = (int) ((long) t * numBundles / numTasks);
+        final int end = (int) ((long) (t + 1) * numBundles / numTasks);
+        tasks.add(() -> {
+          for (int b = start; b < end; ++b) {
+            derivations[b] = newDerivation(consequents[b], buildDerivation[b], sourceInputId, 
+                firstId + b);
+          }
+          return null;
+        });
+      }
+      try {
+        for (Future<Void> future : threadPool.invokeAll(tasks)) {
+          future.get();
+        }
+      } catch (InterruptedException | ExecutionException e) {
+        throw new RuntimeException(e);
+      }
+    } else {
+      for (int b = 0; b < numBundles; ++b) {
+        derivations[b] = newDerivation(consequents[b], buildDerivation[b], sourceInputId, 
+            firstId + b);
+      }
+    }
+    for (int b = 0; b < numBundles; ++b) {
+      pq.add(newItem(derivations[b], consequents[b]));
+    }
+    return numBundles;
+  }
+  
+  private Derivation<TK,FV> newDerivation(Consequent<TK,FV> successor, boolean buildDerivation, 
+      int sourceInputId, long id) {
+    if ( ! buildDerivation) return null;
+    Derivation<TK,FV> derivation = new Derivation<TK, FV>(sourceInputId, successor.rule, 
+        successor.antecedent.length, successor.antecedent, featurizer, scorer, heuristic, 
+        ! scoreOnly, id);
+    derivation.recombinationHashCode(filter);
+    return derivation;
+  }
+
+  private Item<TK,FV> newItem(Derivation<TK,FV> derivation, Consequent<TK,FV> consequent) {
+    Item<TK,FV> item = itemPool.isEmpty() ? new Item<TK,FV>() : itemPool.pop();
+    return item.set(derivation, consequent);
   }
 
   /**
-   * Wrapper for class for the priority queue that organizes successors.
+   * Return an item and its consequent to the pools.
+   * 
+   * @param item
+   */
+  private void release(Item<TK,FV> item) {
+    if (itemPool.size() < MAX_POOL_SIZE) {
+      item.consequent.clear();
+      consequentPool.push(item.consequent);
+      item.set(null, null);
+      itemPool.push(item);
+    }
+  }
+
+  /**
+   * Wrapper for class for the priority queue that organizes successors. Mutable
+   * so that the decoder can recycle these objects.
    * 
    * @author Spence Green
    *
    * @param <TK>
    * @param <FV>
    */
-  protected static class Item<TK,FV> implements Comparable<Item<TK,FV>> {
-    public final Derivation<TK, FV> derivation;
-    public final Consequent<TK, FV> consequent;
+  protected static class Item<TK,FV> {
+    public Derivation<TK, FV> derivation;
+    public Consequent<TK, FV> consequent;
 
+    public Item() {}
+    
     public Item(Derivation<TK,FV> derivation, Consequent<TK,FV> consequent) {
-      this.derivation = derivation;
-      this.consequent = consequent;
+      set(derivation, consequent);
     }
 
-    @Override
-    public int compareTo(Item<TK,FV> o) {
-      if (derivation == null && o.derivation == null) {
-        return 0;
-      } else if (derivation == null) {
-        return -1;
-      } else if (o.derivation == null) {
-        return 1;
-      }
-      return this.derivation.compareTo(o.derivation);
+    public Item<TK,FV> set(Derivation<TK,FV> derivation, Consequent<TK,FV> consequent) {
+      this.derivation = derivation;
+      this.consequent = consequent;
+      return this;
     }
     
     @Override
@@ -275,6 +452,100 @@ public class CubePruningDecoder<TK,FV> extends AbstractBeamInferer<TK, FV> {
     }
   }
 
+  /**
+   * Binary max-heap of items keyed on primitive scores. Items with null derivations
+   * come first. Otherwise, the order is the same as <code>Derivation.compareTo()</code>:
+   * higher scores first, with ties broken by lower derivation id.
+   * 
+   * @author Spence Green
+   *
+   * @param <TK>
+   * @param <FV>
+   */
+  protected static class ItemQueue<TK,FV> {
+    private Item<TK,FV>[] items;
+    private double[] scores;
+    private long[] ids;
+    private int size = 0;
+
+    @SuppressWarnings("unchecked")
+    public ItemQueue(int initialCapacity) {
+      initialCapacity = Math.max(1, initialCapacity);
+      items = new Item[initialCapacity];
+      scores = new double[initialCapacity];
+      ids = new long[initialCapacity];
+    }
+
+    public boolean isEmpty() { return size == 0; }
+
+    public int size() { return size; }
+
+    public void clear() {
+      Arrays.fill(items, 0, size, null);
+      size = 0;
+    }
+
+    public void add(Item<TK,FV> item) {
+      if (size == items.length) {
+        int newCapacity = 2 * items.length;
+        items = Arrays.copyOf(items, newCapacity);
+        scores = Arrays.copyOf(scores, newCapacity);
+        ids = Arrays.copyOf(ids, newCapacity);
+      }
+      final double score = item.derivation == null ? Double.POSITIVE_INFINITY : 
+        item.derivation.finalScoreEstimate();
+      final long id = item.derivation == null ? Long.MIN_VALUE : item.derivation.id;
+      int k = size++;
+      while (k > 0) {
+        int parent = (k - 1) >>> 1;
+        if ( ! precedes(score, id, scores[parent], ids[parent])) break;
+        move(parent, k);
+        k = parent;
+      }
+      items[k] = item;
+      scores[k] = score;
+      ids[k] = id;
+    }
+
+    public Item<TK,FV> poll() {
+      if (size == 0) return null;
+      final Item<TK,FV> top = items[0];
+      final int last = --size;
+      final Item<TK,FV> item = items[last];
+      final double score = scores[last];
+      final long id = ids[last];
+      items[last] = null;
+      if (last > 0) {
+        int k = 0;
+        final int half = last >>> 1;
+        while (k < half) {
+          int child = 2*k + 1;
+          int right = child + 1;
+          if (right < last && precedes(scores[right], ids[right], scores[child], ids[child])) {
+            child = right;
+          }
+          if ( ! precedes(scores[child], ids[child], score, id)) break;
+          move(child, k);
+          k = child;
+        }
+        items[k] = item;
+        scores[k] = score;
+        ids[k] = id;
+      }
+      return top;
+    }
+
+    private void move(int from, int to) {
+      items[to] = items[from];
+      scores[to] = scores[from];
+      ids[to] = ids[from];
+    }
+
+    private static boolean precedes(double score1, long id1, double score2, long id2) {
+      return score1 > score2 || (score1 == score2 && id1 < id2);
+    }
+  }
+
   @Override
   public void dump(Derivation<TK, FV> hyp) {
     throw new UnsupportedOperationException();
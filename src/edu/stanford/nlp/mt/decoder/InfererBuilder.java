@@ -69,6 +69,15 @@ public interface InfererBuilder<TK, FV> {
   InfererBuilder<TK, FV> setUnknownWordModel(TranslationModel<TK, FV> unknownWordModel, 
       boolean filterUnknownWords);
 
+  /**
+   * Set score-only mode. Derivations do not retain their feature values,
+   * which are recomputed for the output translations.
+   * 
+   * @param scoreOnly
+   * @return
+   */
+  InfererBuilder<TK, FV> setScoreOnly(boolean scoreOnly);
+
   /**
    * Get a new Inferer instance.
    * 
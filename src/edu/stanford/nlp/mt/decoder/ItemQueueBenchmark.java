@@ -0,0 +1,147 @@
+package edu.stanford.nlp.mt.decoder;
+
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import edu.stanford.nlp.mt.decoder.CubePruningDecoder.Item;
+import edu.stanford.nlp.mt.decoder.CubePruningDecoder.ItemQueue;
+import edu.stanford.nlp.mt.decoder.h.SearchHeuristic;
+import edu.stanford.nlp.mt.decoder.util.Derivation;
+import edu.stanford.nlp.mt.decoder.util.Scorer;
+import edu.stanford.nlp.mt.tm.ConcreteRule;
+import edu.stanford.nlp.mt.util.CoverageSet;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.IStrings;
+import edu.stanford.nlp.mt.util.InputProperties;
+import edu.stanford.nlp.mt.util.Sequence;
+
+/**
+ * Microbenchmark of the primitive heap of {@link CubePruningDecoder} against the
+ * <code>PriorityQueue</code> of items that it replaced.
+ *
+ * The workload follows one beam of cube pruning: the queue is seeded with the
+ * first item of every hyperedge bundle, and then each pop adds two successors
+ * until the pop limit is reached. The derivations are built ahead of time, so
+ * only the queue operations are timed.
+ *
+ */
+public final class ItemQueueBenchmark {
+
+  private static final int DEFAULT_SEEDS = 200;
+  private static final int DEFAULT_POPS = 1200;
+  private static final int DEFAULT_BEAMS = 5000;
+  private static final int DEFAULT_ITERATIONS = 5;
+  private static final int NUM_DERIVATIONS = 1 << 16;
+
+  private ItemQueueBenchmark() {}
+
+  /**
+   * Assigns the next precomputed score to each root derivation.
+   */
+  private static class ScoreHeuristic implements SearchHeuristic<IString,String> {
+    double score;
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+      return super.clone();
+    }
+
+    @Override
+    public double getInitialHeuristic(Sequence<IString> sourceSequence,
+        InputProperties sourceInputProperties,
+        List<List<ConcreteRule<IString,String>>> options, Scorer<String> scorer,
+        int sourceInputId) {
+      return score;
+    }
+
+    @Override
+    public double getHeuristicDelta(Derivation<IString,String> newHypothesis,
+        CoverageSet newCoverage) {
+      return 0.0;
+    }
+  }
+
+  /**
+   *
+   * @param args
+   */
+  @SuppressWarnings("unchecked")
+  public static void main(String[] args) {
+    int numSeeds = DEFAULT_SEEDS;
+    int numPops = DEFAULT_POPS;
+    int numBeams = DEFAULT_BEAMS;
+    int iterations = DEFAULT_ITERATIONS;
+    for (int argIdx = 0; argIdx < args.length; ++argIdx) {
+      if (args[argIdx].equals("-seeds")) {
+        numSeeds = Integer.parseInt(args[++argIdx]);
+      } else if (args[argIdx].equals("-pops")) {
+        numPops = Integer.parseInt(args[++argIdx]);
+      } else if (args[argIdx].equals("-beams")) {
+        numBeams = Integer.parseInt(args[++argIdx]);
+      } else if (args[argIdx].equals("-iters")) {
+        iterations = Integer.parseInt(args[++argIdx]);
+      } else {
+        System.err.printf("Usage: java %s [-seeds n] [-pops n] [-beams n] [-iters n]%n",
+            ItemQueueBenchmark.class.getName());
+        System.exit(-1);
+      }
+    }
+
+    // Scores are rounded so that some of them tie
+    final Random random = new Random(1);
+    final ScoreHeuristic heuristic = new ScoreHeuristic();
+    final Sequence<IString> source = IStrings.tokenize("a b c");
+    final Item<IString,String>[] items = new Item[NUM_DERIVATIONS];
+    for (int i = 0; i < NUM_DERIVATIONS; ++i) {
+      heuristic.score = Math.round(-100.0 * random.nextDouble() * 1000.0) / 1000.0;
+      items[i] = new Item<IString,String>(new Derivation<IString,String>(0, source, null,
+          heuristic, null, null), null);
+    }
+    final int mask = NUM_DERIVATIONS - 1;
+    System.out.printf("#seeds: %d  #pops: %d  #beams: %d  iterations: %d%n", numSeeds,
+        numPops, numBeams, iterations);
+
+    final ItemQueue<IString,String> itemQueue = new ItemQueue<>(numSeeds);
+    final PriorityQueue<Item<IString,String>> priorityQueue = new PriorityQueue<>(numSeeds,
+        (a, b) -> a.derivation.compareTo(b.derivation));
+    for (int iter = 0; iter < iterations; ++iter) {
+      long startTime = System.nanoTime();
+      long pqChecksum = 0;
+      for (int beam = 0; beam < numBeams; ++beam) {
+        int next = beam;
+        for (int i = 0; i < numSeeds; ++i) {
+          priorityQueue.add(items[next++ & mask]);
+        }
+        for (int i = 0; i < numPops && ! priorityQueue.isEmpty(); ++i) {
+          pqChecksum = 31 * pqChecksum + priorityQueue.poll().derivation.id;
+          priorityQueue.add(items[next++ & mask]);
+          priorityQueue.add(items[next++ & mask]);
+        }
+        priorityQueue.clear();
+      }
+      double pqTime = (System.nanoTime() - startTime) / 1e9;
+
+      startTime = System.nanoTime();
+      long heapChecksum = 0;
+      for (int beam = 0; beam < numBeams; ++beam) {
+        int next = beam;
+        for (int i = 0; i < numSeeds; ++i) {
+          itemQueue.add(items[next++ & mask]);
+        }
+        for (int i = 0; i < numPops && ! itemQueue.isEmpty(); ++i) {
+          heapChecksum = 31 * heapChecksum + itemQueue.poll().derivation.id;
+          itemQueue.add(items[next++ & mask]);
+          itemQueue.add(items[next++ & mask]);
+        }
+        itemQueue.clear();
+      }
+      double heapTime = (System.nanoTime() - startTime) / 1e9;
+
+      // Both queues must pop the same items in the same order
+      if (pqChecksum != heapChecksum) throw new RuntimeException("Queues disagree on the pop order");
+      System.out.printf("iter %d  PriorityQueue: %.3fs  ItemQueue: %.3fs  speedup: %.2fx%n",
+          iter, pqTime, heapTime, pqTime / heapTime);
+    }
+  }
+}
@@ -399,7 +399,7 @@ public class MultiBeamDecoder<TK, FV> extends AbstractBeamInferer<TK, FV> {
             }
 
             Derivation<TK, FV> newHyp = new Derivation<TK, FV>(sourceInputId,
-                option, hyp.length, hyp, featurizer, scorer, heuristic);
+                option, hyp.length, hyp, featurizer, scorer, heuristic, ! scoreOnly);
 
             if (DETAILED_DEBUG) {
               System.err.printf("creating hypothesis %d from %d\n",
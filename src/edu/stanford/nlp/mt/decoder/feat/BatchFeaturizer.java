@@ -0,0 +1,30 @@
+package edu.stanford.nlp.mt.decoder.feat;
+
+import java.util.List;
+
+import edu.stanford.nlp.mt.decoder.util.Derivation;
+import edu.stanford.nlp.mt.tm.ConcreteRule;
+
+/**
+ * A derivation featurizer that can compute its features for a batch of
+ * derivations before they are constructed. The decoder calls
+ * <code>prefetch()</code> with the expansions that it is about to make, and
+ * the featurizer then reuses the precomputed values in <code>featurize()</code>.
+ *
+ * @param <TK>
+ * @param <FV>
+ */
+public interface BatchFeaturizer<TK,FV> {
+
+  /**
+   * Precompute features for the derivations that result from applying
+   * <code>rules.get(i)</code> to <code>antecedents.get(i)</code>. Each of these
+   * derivations should be featurized exactly once after this call.
+   *
+   * @param sourceInputId
+   * @param antecedents
+   * @param rules
+   */
+  public void prefetch(int sourceInputId, List<Derivation<TK,FV>> antecedents, 
+      List<ConcreteRule<TK,FV>> rules);
+}
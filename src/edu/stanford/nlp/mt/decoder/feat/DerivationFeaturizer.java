@@ -35,6 +35,21 @@ public abstract class DerivationFeaturizer<TK, FV> implements Featurizer<TK,FV>
    * @return a list of features or null.
    */
   public abstract List<FeatureValue<FV>> featurize(Featurizable<TK, FV> f);
+
+  /**
+   * Extract features and append them to a list supplied by the caller. Featurizers
+   * that are called for every derivation should override this method so that they
+   * do not allocate a new list for each call.
+   * 
+   * @param f
+   * @param features
+   */
+  public void featurize(Featurizable<TK, FV> f, List<FeatureValue<FV>> features) {
+    List<FeatureValue<FV>> featureValues = featurize(f);
+    if (featureValues != null) {
+      for (FeatureValue<FV> fv : featureValues) features.add(fv);
+    }
+  }
     
   /**
    * DO NOT MODIFY OR OVERRIDE ANYTHING BELOW THIS LINE. PHRASAL USES THESE
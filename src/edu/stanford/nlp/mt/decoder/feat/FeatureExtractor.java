@@ -6,6 +6,8 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
+import edu.stanford.nlp.mt.decoder.util.Derivation;
+import edu.stanford.nlp.mt.tm.ConcreteRule;
 import edu.stanford.nlp.mt.util.FeatureValue;
 import edu.stanford.nlp.mt.util.Featurizable;
 import edu.stanford.nlp.mt.util.InputProperties;
@@ -23,11 +25,15 @@ import edu.stanford.nlp.mt.util.Sequence;
  */
 public class FeatureExtractor<TK, FV> extends 
     DerivationFeaturizer<TK, FV> implements RuleFeaturizer<TK, FV>,
-    Cloneable {
+    BatchFeaturizer<TK, FV>, Cloneable {
   
   private List<Featurizer<TK, FV>> featurizers;
   private final int numDerivationFeaturizers;
   private int featureAugmentationMode = -1;
+
+  // Reusable per-thread buffer for derivation features
+  private final ThreadLocal<List<FeatureValue<FV>>> featureBuffer =
+      ThreadLocal.withInitial(() -> new ArrayList<FeatureValue<FV>>());
   
   /**
    * Constructor.
@@ -138,27 +144,61 @@ public class FeatureExtractor<TK, FV> extends
     return numDerivationFeaturizers;
   }
 
+  /**
+   * Returns an empty, reusable buffer for derivation features. The buffer
+   * is owned by the calling thread and is cleared on the next call.
+   * 
+   * @return
+   */
+  public List<FeatureValue<FV>> getFeatureBuffer() {
+    List<FeatureValue<FV>> buffer = featureBuffer.get();
+    buffer.clear();
+    return buffer;
+  }
+
   /**
    * Extract derivation features.
    */
   @Override
   public List<FeatureValue<FV>> featurize(Featurizable<TK, FV> f) {
-    List<FeatureValue<FV>> featureValues = new LinkedList<>();
+    List<FeatureValue<FV>> featureValues = new ArrayList<>();
+    featurize(f, featureValues);
+    return featureValues;
+  }
+
+  /**
+   * Extract derivation features and append them to featureValues.
+   */
+  @Override
+  public void featurize(Featurizable<TK, FV> f, List<FeatureValue<FV>> featureValues) {
     for (Featurizer<TK, FV> featurizer : featurizers) {
       if (featurizer instanceof DerivationFeaturizer) {
-        List<FeatureValue<FV>> listFeatureValues = 
-            ((DerivationFeaturizer<TK,FV>) featurizer).featurize(f);
-        if (listFeatureValues != null) {
-          for (FeatureValue<FV> fv : listFeatureValues) {
-            featureValues.add(fv);
-            if (featureAugmentationMode >= 0) {
-              augmentFeatureValue(fv, f.derivation.sourceInputProperties, featureValues);
-            }
+        final int start = featureValues.size();
+        ((DerivationFeaturizer<TK,FV>) featurizer).featurize(f, featureValues);
+        if (featureAugmentationMode >= 0) {
+          for (int i = start, end = featureValues.size(); i < end; ++i) {
+            augmentFeatureValue(featureValues.get(i), f.derivation.sourceInputProperties, 
+                featureValues);
           }
         }
       }
     }
-    return featureValues;
+  }
+
+  /**
+   * Precompute features for a batch of derivations with the featurizers that
+   * support batch queries.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public void prefetch(int sourceInputId, List<Derivation<TK, FV>> antecedents, 
+      List<ConcreteRule<TK, FV>> rules) {
+    if (antecedents.isEmpty()) return;
+    for (Featurizer<TK, FV> featurizer : featurizers) {
+      if (featurizer instanceof BatchFeaturizer) {
+        ((BatchFeaturizer<TK,FV>) featurizer).prefetch(sourceInputId, antecedents, rules);
+      }
+    }
   }
 
   /**
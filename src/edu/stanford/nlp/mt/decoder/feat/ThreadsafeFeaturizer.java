@@ -0,0 +1,19 @@
+package edu.stanford.nlp.mt.decoder.feat;
+
+/**
+ * Indicates that featurize() may be called concurrently for derivations of the
+ * same input. The featurizer must not modify its fields after initialize().
+ * Derivation featurizers without this interface are only called from one thread
+ * at a time.
+ * 
+ * With intra-sentence threads, the cube pruning decoder calls featurize() from the
+ * workers of its pool, and initialize() from the decoding thread. Per-thread state
+ * must therefore not be required for correctness. The LM, linear distortion and
+ * lexical reordering featurizers implement this interface.
+ * 
+ * @param <TK>
+ * @param <FV>
+ */
+public interface ThreadsafeFeaturizer<TK, FV> {
+
+}
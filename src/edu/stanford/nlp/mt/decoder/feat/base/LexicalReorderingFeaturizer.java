@@ -9,6 +9,7 @@ import java.util.Properties;
 import edu.stanford.nlp.mt.decoder.feat.DerivationFeaturizer;
 import edu.stanford.nlp.mt.decoder.feat.FeaturizerState;
 import edu.stanford.nlp.mt.decoder.feat.FeatureUtils;
+import edu.stanford.nlp.mt.decoder.feat.ThreadsafeFeaturizer;
 import edu.stanford.nlp.mt.decoder.util.Derivation;
 import edu.stanford.nlp.mt.tm.ConcreteRule;
 import edu.stanford.nlp.mt.tm.LexicalReorderingTable;
@@ -31,7 +32,7 @@ import edu.stanford.nlp.util.PropertiesUtils;
  * @author Spence Green
  */
 public class LexicalReorderingFeaturizer extends
-    DerivationFeaturizer<IString, String> {
+    DerivationFeaturizer<IString, String> implements ThreadsafeFeaturizer<IString, String> {
 
   private static final boolean DETAILED_DEBUG = false;
   private static final Sequence<IString> INITIAL_PHRASE = new SimpleSequence<IString>(
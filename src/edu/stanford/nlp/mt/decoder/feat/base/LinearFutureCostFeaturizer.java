@@ -5,8 +5,10 @@ import java.util.List;
 import edu.stanford.nlp.mt.decoder.feat.DerivationFeaturizer;
 import edu.stanford.nlp.mt.decoder.feat.FeatureUtils;
 import edu.stanford.nlp.mt.decoder.feat.FeaturizerState;
+import edu.stanford.nlp.mt.decoder.feat.ThreadsafeFeaturizer;
 import edu.stanford.nlp.mt.decoder.util.Derivation;
 import edu.stanford.nlp.mt.util.FeatureValue;
+import edu.stanford.nlp.mt.util.GlobalFeatureIndex;
 import edu.stanford.nlp.mt.util.Featurizable;
 import edu.stanford.nlp.mt.util.IString;
 import edu.stanford.nlp.mt.util.Sequence;
@@ -18,12 +20,13 @@ import edu.stanford.nlp.mt.util.Sequence;
  * @author Michel Galley
  */
 public class LinearFutureCostFeaturizer extends
-    DerivationFeaturizer<IString, String> {
+    DerivationFeaturizer<IString, String> implements ThreadsafeFeaturizer<IString, String> {
 
   public static final String DEBUG_PROPERTY = "DebugStatefulLinearDistortionFeaturizer";
   public static final boolean DEBUG = Boolean.parseBoolean(System.getProperty(
       DEBUG_PROPERTY, "false"));
   public static final String FEATURE_NAME = "LinearDistortion";
+  private static final int FEATURE_ID = GlobalFeatureIndex.add(FEATURE_NAME);
 
   public static final boolean ADD_EOS = Boolean.parseBoolean(System
       .getProperty("addEOS", "false"));
@@ -61,6 +64,15 @@ public class LinearFutureCostFeaturizer extends
   @Override
   public List<FeatureValue<String>> featurize(
       Featurizable<IString, String> f) {
+    return FeatureUtils.wrapFeature(new FeatureValue<String>(FEATURE_NAME, featureValue(f), true, FEATURE_ID));
+  }
+
+  @Override
+  public void featurize(Featurizable<IString, String> f, List<FeatureValue<String>> features) {
+    features.add(new FeatureValue<String>(FEATURE_NAME, featureValue(f), true, FEATURE_ID));
+  }
+
+  private double featureValue(Featurizable<IString, String> f) {
     float oldFutureCost = f.prior != null ? ((FutureCostState) f.prior.getState(this)).f
         : 0.0f;
     float futureCost;
@@ -73,7 +85,7 @@ public class LinearFutureCostFeaturizer extends
     int edge = lastOptionForeignEdge(f.derivation);
     f.setState(this, new FutureCostState(edge, futureCost));
     float deltaCost = futureCost - oldFutureCost;
-    return FeatureUtils.wrapFeature(new FeatureValue<String>(FEATURE_NAME, -1.0 * (cost(f) + deltaCost), true));
+    return -1.0 * (cost(f) + deltaCost);
   }
 
   @Override
@@ -4,16 +4,27 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
+import edu.stanford.nlp.mt.decoder.feat.BatchFeaturizer;
 import edu.stanford.nlp.mt.decoder.feat.DerivationFeaturizer;
 import edu.stanford.nlp.mt.decoder.feat.RuleFeaturizer;
+import edu.stanford.nlp.mt.decoder.feat.ThreadsafeFeaturizer;
 import edu.stanford.nlp.mt.decoder.feat.FeatureUtils;
+import edu.stanford.nlp.mt.decoder.util.Derivation;
+import edu.stanford.nlp.mt.lm.BatchLanguageModel;
+import edu.stanford.nlp.mt.lm.IntegerArrayLanguageModel;
 import edu.stanford.nlp.mt.lm.LMState;
+import edu.stanford.nlp.mt.lm.LMStateCache;
 import edu.stanford.nlp.mt.lm.LanguageModel;
 import edu.stanford.nlp.mt.lm.LanguageModelFactory;
+import edu.stanford.nlp.mt.tm.ConcreteRule;
 import edu.stanford.nlp.mt.util.AbstractWordClassMap;
 import edu.stanford.nlp.mt.util.FeatureValue;
+import edu.stanford.nlp.mt.util.GlobalFeatureIndex;
 import edu.stanford.nlp.mt.util.Featurizable;
 import edu.stanford.nlp.mt.util.IString;
 import edu.stanford.nlp.mt.util.Sequence;
@@ -29,12 +40,17 @@ import edu.stanford.nlp.util.PropertiesUtils;
  * @author Spence Green
  */
 public class NGramLanguageModelFeaturizer extends DerivationFeaturizer<IString, String> implements
-RuleFeaturizer<IString, String> {
+RuleFeaturizer<IString, String>, BatchFeaturizer<IString, String>, 
+ThreadsafeFeaturizer<IString, String> {
   private static final boolean DEBUG = false;
   public static final String DEFAULT_FEATURE_NAME = "LM";
+  public static final int DEFAULT_STATE_CACHE_SIZE = 1 << 14;
 
   private final String featureName;
+  private final int featureId;
   private final LanguageModel<IString> lm;
+  private final IntegerArrayLanguageModel arrayLm;
+  private final BatchLanguageModel batchLm;
   private final IString startToken;
   private final IString endToken;
 
@@ -43,6 +59,17 @@ RuleFeaturizer<IString, String> {
 
   private static final boolean wrapBoundary = System.getProperties().containsKey("wrapBoundary");
 
+  // States computed by prefetch() for each sentence. Each entry is removed when the
+  // derivation is featurized. Since derivations may be pruned before they are built,
+  // the states of a sentence are dropped when the decoding thread starts the next one.
+  private final Map<Integer, Map<PrefetchKey, LMState>> prefetched = new ConcurrentHashMap<>();
+  private final ThreadLocal<Integer> currentSourceInputId = new ThreadLocal<>();
+
+  // Per-thread cache of LM queries. Null if disabled.
+  private final ThreadLocal<LMStateCache> stateCache;
+  private final LongAdder cacheHits = new LongAdder();
+  private final LongAdder cacheMisses = new LongAdder();
+
   /**
    * Constructor.
    * 
@@ -50,11 +77,15 @@ RuleFeaturizer<IString, String> {
    */
   public NGramLanguageModelFeaturizer(LanguageModel<IString> lm) {
     this.lm = lm;
+    this.arrayLm = toArrayLm(lm);
+    this.batchLm = arrayLm instanceof BatchLanguageModel ? (BatchLanguageModel) arrayLm : null;
     featureName = DEFAULT_FEATURE_NAME;
+    featureId = GlobalFeatureIndex.add(featureName);
     this.startToken = lm.getStartToken();
     this.endToken = lm.getEndToken();
     this.isClassBased = false;
     this.targetClassMap = null;
+    this.stateCache = createStateCache(DEFAULT_STATE_CACHE_SIZE);
   }
 
   /**
@@ -73,11 +104,14 @@ RuleFeaturizer<IString, String> {
     }
     // Load the LM
     this.lm = LanguageModelFactory.load(args[0]);
+    this.arrayLm = toArrayLm(lm);
+    this.batchLm = arrayLm instanceof BatchLanguageModel ? (BatchLanguageModel) arrayLm : null;
     this.startToken = lm.getStartToken();
     this.endToken = lm.getEndToken();
 
     // Set the feature name
     this.featureName = args[1];
+    this.featureId = GlobalFeatureIndex.add(featureName);
 
     // Named parameters
     Properties options = FeatureUtils.argsToProperties(args);
@@ -90,7 +124,54 @@ RuleFeaturizer<IString, String> {
       this.targetClassMap = TargetClassMap.getInstance();
     } else {
       this.targetClassMap = null;
-    }    
+    }
+    this.stateCache = createStateCache(PropertiesUtils.getInt(options, "stateCacheSize", 
+        DEFAULT_STATE_CACHE_SIZE));
+  }
+
+  /**
+   * Create the per-thread LM state cache. Returns null if the cache is disabled.
+   */
+  private static ThreadLocal<LMStateCache> createStateCache(int size) {
+    return size > 0 && ! wrapBoundary ? 
+        ThreadLocal.withInitial(() -> new LMStateCache(size)) : null;
+  }
+
+  /**
+   * Hit rate statistics for the LM state cache.
+   * 
+   * @return
+   */
+  public String getCacheStatistics() {
+    final long hits = cacheHits.sum();
+    final long total = hits + cacheMisses.sum();
+    return String.format("LM state cache (%s) hits: %d misses: %d hit rate: %.2f%%", featureName,
+        hits, total - hits, total == 0 ? 0.0 : 100.0 * hits / total);
+  }
+
+  /**
+   * Returns the LM if it supports queries on IString ids, and null otherwise.
+   */
+  private static IntegerArrayLanguageModel toArrayLm(LanguageModel<IString> lm) {
+    return ! wrapBoundary && lm instanceof IntegerArrayLanguageModel ?
+        (IntegerArrayLanguageModel) lm : null;
+  }
+
+  /**
+   * Convert a target phrase to an LM query over IString ids, adding the boundary
+   * tokens as needed.
+   */
+  private int[] toQuery(Sequence<IString> targetPhrase, boolean isStart, boolean done) {
+    final int phraseLength = targetPhrase == null ? 0 : targetPhrase.size();
+    final int offset = isStart ? 1 : 0;
+    int[] query = new int[offset + phraseLength + (done ? 1 : 0)];
+    if (offset == 1) query[0] = startToken.id;
+    for (int i = 0; i < phraseLength; ++i) {
+      IString token = targetPhrase.get(i);
+      query[offset + i] = isClassBased ? targetClassMap.get(token).id : token.id;
+    }
+    if (done) query[query.length - 1] = endToken.id;
+    return query;
   }
 
   /**
@@ -114,6 +195,28 @@ RuleFeaturizer<IString, String> {
 
   @Override
   public List<FeatureValue<String>> featurize(Featurizable<IString, String> f) {
+    LMState state = scoreDerivation(f);
+    if (state == null) return null;
+    List<FeatureValue<String>> features = new LinkedList<>();
+    features.add(new FeatureValue<String>(featureName, state.getScore(), false, featureId));
+    return features;
+  }
+
+  @Override
+  public void featurize(Featurizable<IString, String> f, List<FeatureValue<String>> features) {
+    LMState state = scoreDerivation(f);
+    if (state != null) {
+      features.add(new FeatureValue<String>(featureName, state.getScore(), false, featureId));
+    }
+  }
+
+  /**
+   * Score the target phrase in f and set the LM state of f.
+   * 
+   * @param f
+   * @return the new state or null if the phrase could not be scored.
+   */
+  private LMState scoreDerivation(Featurizable<IString, String> f) {
     if (DEBUG) {
       System.err.printf("Sequence: %s%n\tNovel Phrase: %s%n",
           f.targetPrefix, f.targetPhrase);
@@ -122,7 +225,55 @@ RuleFeaturizer<IString, String> {
     }
     
     LMState priorState = f.prior == null ? null : (LMState) f.prior.getState(this);
-    
+    Map<PrefetchKey, LMState> prefetchedStates = prefetched.get(f.sourceInputId);
+    LMState state = prefetchedStates == null || prefetchedStates.isEmpty() ? null : 
+      prefetchedStates.remove(new PrefetchKey(f.derivation.preceedingDerivation, f.rule));
+    if (state != null) {
+      f.setState(this, state);
+      return state;
+    }
+
+    if (stateCache != null) {
+      // The cache is keyed on the prior state and the query, which determine the result
+      LMStateCache cache = stateCache.get();
+      if (cache.sourceInputId() != f.sourceInputId) cache.reset(f.sourceInputId);
+      final int[] query = toQuery(f.targetPhrase, f.prior == null, f.done);
+      final int startIndex = f.prior == null ? 1 : 0;
+      final int hash = LMStateCache.hash(priorState, query, startIndex);
+      state = cache.get(hash, priorState, query, startIndex);
+      if (state == null) {
+        cacheMisses.increment();
+        state = arrayLm == null ? scoreSequence(f, priorState) : 
+          arrayLm.score(query, startIndex, priorState);
+        cache.put(hash, priorState, query, startIndex, state);
+      } else {
+        cacheHits.increment();
+      }
+      f.setState(this, state);
+      return state;
+    }
+
+    if (arrayLm != null) {
+      // Query with IString ids, without building Sequence objects.
+      state = arrayLm.score(toQuery(f.targetPhrase, f.prior == null, f.done), 
+          f.prior == null ? 1 : 0, priorState);
+      f.setState(this, state);
+      return state;
+    }
+
+    state = scoreSequence(f, priorState);
+    if (state != null) f.setState(this, state);
+    return state;
+  }
+
+  /**
+   * Score the target phrase in f as a Sequence.
+   * 
+   * @param f
+   * @param priorState
+   * @return the new state or null if the phrase could not be scored.
+   */
+  private LMState scoreSequence(Featurizable<IString, String> f, LMState priorState) {
     Sequence<IString> partialTranslation = isClassBased ? 
         toClassRepresentation(f.targetPhrase) : f.targetPhrase;
     int startIndex = 0;
@@ -146,18 +297,41 @@ RuleFeaturizer<IString, String> {
     }
     
     LMState state = lm.score(partialTranslation, startIndex, priorState);
-   
-    List<FeatureValue<String>> features = new LinkedList<>();
-    
-    features.add(new FeatureValue<String>(featureName, state.getScore()));
-
-    f.setState(this, state);
     
     if (DEBUG) {
       System.err.printf("Final score: %f%n", state.getScore());
       System.err.println("===================");
     }
-    return features;
+    return state;
+  }
+
+  /**
+   * Score the target phrases of a batch of derivations with a single LM query. This
+   * is a no-op unless the LM supports batch queries.
+   */
+  @Override
+  public void prefetch(int sourceInputId, List<Derivation<IString, String>> antecedents,
+      List<ConcreteRule<IString, String>> rules) {
+    if (batchLm == null) return;
+    final int numQueries = antecedents.size();
+    final int[][] queries = new int[numQueries][];
+    final int[] startIndices = new int[numQueries];
+    final LMState[] priorStates = new LMState[numQueries];
+    for (int i = 0; i < numQueries; ++i) {
+      Derivation<IString, String> antecedent = antecedents.get(i);
+      ConcreteRule<IString, String> rule = rules.get(i);
+      boolean isStart = antecedent.featurizable == null;
+      boolean done = antecedent.untranslatedTokens == rule.sourceCoverage.cardinality();
+      queries[i] = toQuery(rule.abstractRule.target, isStart, done);
+      startIndices[i] = isStart ? 1 : 0;
+      priorStates[i] = isStart ? null : (LMState) antecedent.featurizable.getState(this);
+    }
+    LMState[] states = batchLm.score(queries, startIndices, priorStates);
+    Map<PrefetchKey, LMState> prefetchedStates = prefetched.computeIfAbsent(sourceInputId, 
+        k -> new ConcurrentHashMap<>());
+    for (int i = 0; i < numQueries; ++i) {
+      prefetchedStates.put(new PrefetchKey(antecedents.get(i), rules.get(i)), states[i]);
+    }
   }
 
   @Override
@@ -166,13 +340,30 @@ RuleFeaturizer<IString, String> {
     assert (f.targetPhrase != null);
     double lmScore = lm.score(f.targetPhrase, 0, null).getScore();
     List<FeatureValue<String>> features = new LinkedList<>();
-    features.add(new FeatureValue<String>(featureName, lmScore));
+    features.add(new FeatureValue<String>(featureName, lmScore, false, featureId));
     return features;
   }
 
   @Override
   public void initialize(int sourceInputId,
       Sequence<IString> foreign) {
+    Integer previousSourceInputId = currentSourceInputId.get();
+    if (previousSourceInputId != null) prefetched.remove(previousSourceInputId);
+    prefetched.remove(sourceInputId);
+    currentSourceInputId.set(sourceInputId);
+  }
+
+  /**
+   * The number of prefetched states that have not been used yet.
+   * 
+   * @return
+   */
+  int numPrefetched() {
+    int numPrefetched = 0;
+    for (Map<PrefetchKey, LMState> prefetchedStates : prefetched.values()) {
+      numPrefetched += prefetchedStates.size();
+    }
+    return numPrefetched;
   }
 
   @Override
@@ -183,6 +374,31 @@ RuleFeaturizer<IString, String> {
     return true;
   }
   
+  /**
+   * Identifies a derivation before it is constructed.
+   */
+  private static class PrefetchKey {
+    private final Derivation<IString, String> antecedent;
+    private final ConcreteRule<IString, String> rule;
+    private final int hashCode;
+
+    public PrefetchKey(Derivation<IString, String> antecedent, ConcreteRule<IString, String> rule) {
+      this.antecedent = antecedent;
+      this.rule = rule;
+      this.hashCode = 31 * System.identityHashCode(antecedent) + System.identityHashCode(rule);
+    }
+
+    @Override
+    public int hashCode() { return hashCode; }
+
+    @Override
+    public boolean equals(Object o) {
+      if ( ! (o instanceof PrefetchKey)) return false;
+      PrefetchKey other = (PrefetchKey) o;
+      return antecedent == other.antecedent && rule == other.rule;
+    }
+  }
+
   private static class LocalTargetMap extends AbstractWordClassMap {
     public LocalTargetMap() {
       wordToClass = new HashMap<>();
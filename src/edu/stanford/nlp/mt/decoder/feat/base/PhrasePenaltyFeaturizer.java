@@ -7,6 +7,7 @@ import java.util.List;
 import edu.stanford.nlp.mt.decoder.feat.RuleFeaturizer;
 import edu.stanford.nlp.mt.util.FeatureValue;
 import edu.stanford.nlp.mt.util.Featurizable;
+import edu.stanford.nlp.mt.util.GlobalFeatureIndex;
 
 /**
  * Moses phrase penalty generated here so that you don't have to read it
@@ -24,7 +25,8 @@ public class PhrasePenaltyFeaturizer<TK> implements
   private static final List<FeatureValue<String>> features;
   static {
     List<FeatureValue<String>> feats = new ArrayList<>(1);
-    feats.add(new FeatureValue<String>(FEATURE_NAME, 1.0, true));
+    feats.add(new FeatureValue<String>(FEATURE_NAME, 1.0, true,
+        GlobalFeatureIndex.add(FEATURE_NAME)));
     features = Collections.unmodifiableList(feats);
   }
   
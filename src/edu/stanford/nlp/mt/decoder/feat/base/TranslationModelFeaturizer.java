@@ -8,6 +8,7 @@ import edu.stanford.nlp.mt.decoder.feat.RuleFeaturizer;
 import edu.stanford.nlp.mt.tm.UnknownWordPhraseGenerator;
 import edu.stanford.nlp.mt.util.FeatureValue;
 import edu.stanford.nlp.mt.util.Featurizable;
+import edu.stanford.nlp.mt.util.GlobalFeatureIndex;
 import edu.stanford.nlp.mt.util.IString;
 
 /**
@@ -25,6 +26,7 @@ public class TranslationModelFeaturizer implements RuleFeaturizer<IString, Strin
 
   // Only construct the feature strings once for each phrase table
   private final ConcurrentHashMap<String, String[]> featureNamesHash;
+  private final ConcurrentHashMap<String, int[]> featureIdsHash;
   private final int numFeatures;
 
   private String[] createAndCacheFeatureNames(String phraseTableName, String[] phraseScoreNames) {
@@ -34,6 +36,12 @@ public class TranslationModelFeaturizer implements RuleFeaturizer<IString, Strin
         featureNames[i] = String.format("%s:%s", FEATURE_PREFIX, phraseScoreNames[i]);
       }
     }
+    int[] featureIds = new int[featureNames.length];
+    for (int i = 0; i < featureIds.length; i++) {
+      featureIds[i] = featureNames[i] == null ? -1 : GlobalFeatureIndex.add(featureNames[i]);
+    }
+    // Insert the ids first so that readers of featureNamesHash always see them
+    featureIdsHash.putIfAbsent(phraseTableName, featureIds);
     featureNamesHash.putIfAbsent(phraseTableName, featureNames);
     return featureNames;
   }
@@ -46,6 +54,7 @@ public class TranslationModelFeaturizer implements RuleFeaturizer<IString, Strin
    */
   public TranslationModelFeaturizer(int numFeatures) {
     this.featureNamesHash = new ConcurrentHashMap<String,String[]>();
+    this.featureIdsHash = new ConcurrentHashMap<String,int[]>();
     this.numFeatures = numFeatures;
   }
 
@@ -63,13 +72,14 @@ public class TranslationModelFeaturizer implements RuleFeaturizer<IString, Strin
     String[] featureNames = featureNamesHash.containsKey(phraseTableName) ? 
         featureNamesHash.get(phraseTableName) : 
           createAndCacheFeatureNames(phraseTableName, featurizable.phraseScoreNames);
+    final int[] featureIds = featureIdsHash.get(phraseTableName);
 
     // construct array of FeatureValue objects
     List<FeatureValue<String>> features = new LinkedList<>();
     final int numEffectiveFeatures = Math.min(this.numFeatures, featureNames.length);
     for (int i = 0; i < numEffectiveFeatures; i++) {
       features.add((i < featurizable.translationScores.length) ? new FeatureValue<String>(
-          featureNames[i], featurizable.translationScores[i], true) : emptyFV);
+          featureNames[i], featurizable.translationScores[i], true, featureIds[i]) : emptyFV);
     }
     return features;
   }
@@ -7,6 +7,7 @@ import edu.stanford.nlp.mt.decoder.feat.RuleFeaturizer;
 import edu.stanford.nlp.mt.tm.UnknownWordPhraseGenerator;
 import edu.stanford.nlp.mt.util.FeatureValue;
 import edu.stanford.nlp.mt.util.Featurizable;
+import edu.stanford.nlp.mt.util.GlobalFeatureIndex;
 
 /**
  * Unknown word feature.
@@ -20,6 +21,7 @@ public class UnknownWordFeaturizer<TK> implements
     RuleFeaturizer<TK, String> {
 
   public static final String FEATURE_NAME = "UnknownWord";
+  private static final int FEATURE_ID = GlobalFeatureIndex.add(FEATURE_NAME);
   public static final double MOSES_UNKNOWN_WORD_MUL = -100.0;
 
   @Override
@@ -28,7 +30,7 @@ public class UnknownWordFeaturizer<TK> implements
     final int size = f.targetPhrase.size();
     if (size != 0 && f.phraseTableName.equals(UnknownWordPhraseGenerator.PHRASE_TABLE_NAME)) {
       return FeatureUtils.wrapFeature(new FeatureValue<String>(FEATURE_NAME,
-          MOSES_UNKNOWN_WORD_MUL * size, true));
+          MOSES_UNKNOWN_WORD_MUL * size, true, FEATURE_ID));
     }
     return null;
   }
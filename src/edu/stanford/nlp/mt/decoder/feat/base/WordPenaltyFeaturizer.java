@@ -6,6 +6,7 @@ import edu.stanford.nlp.mt.decoder.feat.FeatureUtils;
 import edu.stanford.nlp.mt.decoder.feat.RuleFeaturizer;
 import edu.stanford.nlp.mt.util.FeatureValue;
 import edu.stanford.nlp.mt.util.Featurizable;
+import edu.stanford.nlp.mt.util.GlobalFeatureIndex;
 
 /**
  * Word penalty feature: count of the target side of a rule.
@@ -17,6 +18,7 @@ public class WordPenaltyFeaturizer<TK> implements
     RuleFeaturizer<TK, String> {
 
   public static final String FEATURE_NAME = "WordPenalty";
+  private static final int FEATURE_ID = GlobalFeatureIndex.add(FEATURE_NAME);
   private static final double MOSES_WORD_PENALTY_MUL = -1.0;
 
   @Override
@@ -26,7 +28,7 @@ public class WordPenaltyFeaturizer<TK> implements
       return null;
     } else {
       return FeatureUtils.wrapFeature(new FeatureValue<String>(FEATURE_NAME, MOSES_WORD_PENALTY_MUL
-          * f.targetPhrase.size(), true));
+          * f.targetPhrase.size(), true, FEATURE_ID));
     }
   }
 
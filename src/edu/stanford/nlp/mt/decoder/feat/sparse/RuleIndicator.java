@@ -1,7 +1,9 @@
 package edu.stanford.nlp.mt.decoder.feat.sparse;
 
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import edu.stanford.nlp.mt.decoder.feat.RuleFeaturizer;
@@ -32,6 +34,18 @@ public class RuleIndicator implements RuleFeaturizer<IString, String> {
 
   private SourceClassMap sourceMap;
   private TargetClassMap targetMap;
+
+  // Lexicalized features for phrase table rules, keyed by rule id. Avoids
+  // re-building the feature string each time a rule is featurized. Each thread
+  // decodes one sentence at a time, so the cache is per thread and only holds
+  // the rules of the current sentence.
+  private final ThreadLocal<LexicalFeatureCache> lexicalFeatureCache =
+      ThreadLocal.withInitial(() -> new LexicalFeatureCache());
+
+  private static class LexicalFeatureCache {
+    int sourceInputId = -1;
+    final Map<Integer, FeatureValue<String>> features = new HashMap<>();
+  }
   
   /**
    * Constructor.
@@ -68,10 +82,7 @@ public class RuleIndicator implements RuleFeaturizer<IString, String> {
   public List<FeatureValue<String>> ruleFeaturize(Featurizable<IString, String> f) {
     List<FeatureValue<String>> features = new LinkedList<>();
     if (addLexicalizedRule && aboveLexicalThreshold(f.rule)) {
-      String sourcePhrase = f.sourcePhrase.toString("-");
-      String targetPhrase = f.targetPhrase.toString("-");
-      String featureString = FEATURE_NAME + ":" + String.format("%s>%s", sourcePhrase, targetPhrase);
-      features.add(new FeatureValue<String>(featureString, 1.0));
+      features.add(lexicalFeature(f));
     }
     if (addClassBasedRule) {
       StringBuilder sb = new StringBuilder();
@@ -94,6 +105,28 @@ public class RuleIndicator implements RuleFeaturizer<IString, String> {
     return features;
   }
 
+  private FeatureValue<String> lexicalFeature(Featurizable<IString, String> f) {
+    final int ruleId = f.rule.abstractRule.id;
+    final boolean cacheable = ! f.rule.abstractRule.isSynthetic();
+    LexicalFeatureCache cache = null;
+    if (cacheable) {
+      cache = lexicalFeatureCache.get();
+      if (cache.sourceInputId != f.sourceInputId) {
+        cache.sourceInputId = f.sourceInputId;
+        cache.features.clear();
+      }
+    }
+    FeatureValue<String> feature = cacheable ? cache.features.get(ruleId) : null;
+    if (feature == null) {
+      String sourcePhrase = f.sourcePhrase.toString("-");
+      String targetPhrase = f.targetPhrase.toString("-");
+      String featureString = FEATURE_NAME + ":" + sourcePhrase + ">" + targetPhrase;
+      feature = new FeatureValue<String>(featureString, 1.0);
+      if (cacheable) cache.features.put(ruleId, feature);
+    }
+    return feature;
+  }
+
   private boolean aboveLexicalThreshold(ConcreteRule<IString, String> rule) {
     if (countFeatureIndex < 0 || lexicalCutoff <= 0) return true;
     if (countFeatureIndex >= rule.abstractRule.scores.length) {
@@ -1,6 +1,5 @@
 package edu.stanford.nlp.mt.decoder.recomb;
 
-import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -88,14 +87,13 @@ RecombinationFilter<Derivation<IString, String>> {
       return hyp.sourceSequence.hashCode();
     }
 
-    // Generate a hash code from individual hash codes
-    int[] stateHashCodes = new int[featurizers.size()];
-    int i = 0;
+    // Mix the individual hash codes into a 64-bit signature
+    long hashCode = 1;
     for (DerivationFeaturizer<IString, String> featurizer : featurizers) {
       FeaturizerState state = (FeaturizerState) hyp.featurizable.getState(featurizer);
-      stateHashCodes[i++] = state == null ? 0 : state.hashCode();
+      hashCode = hashCode * 0x9E3779B97F4A7C15L + (state == null ? 0 : state.hashCode());
     }
-    return Arrays.hashCode(stateHashCodes);
+    return hashCode;
   }
 
   @Override
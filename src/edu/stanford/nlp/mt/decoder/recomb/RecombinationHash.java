@@ -1,7 +1,6 @@
 package edu.stanford.nlp.mt.decoder.recomb;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 import edu.stanford.nlp.mt.decoder.util.Derivation;
@@ -26,7 +25,18 @@ public class RecombinationHash<S extends State<S>> {
   private static int comparisons = 0;
   private static int equalityExpensiveComparisions = 0;
 
-  private final HashMap<FilterWrappedHypothesis, FilterWrappedHypothesis> recombinationHash;
+  private static final int INITIAL_CAPACITY = 64;
+  private static final double LOAD_FACTOR = 0.5;
+
+  // Open-addressing table with linear probing. Each slot holds the best
+  // hypothesis for a recombination class and the signature of that 
+  // class. Null marks an empty slot.
+  private long[] keys;
+  private S[] hypotheses;
+  private int size = 0;
+  private int mask;
+  private int resizeThreshold;
+
   // private
   final RecombinationFilter<S> filter;
 
@@ -59,8 +69,16 @@ public class RecombinationHash<S extends State<S>> {
 	 * 
 	 */
   public RecombinationHash(RecombinationFilter<S> filter) {
-    this.recombinationHash = new HashMap<FilterWrappedHypothesis, FilterWrappedHypothesis>();
     this.filter = filter;
+    allocate(INITIAL_CAPACITY);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    hypotheses = (S[]) new State[capacity];
+    mask = capacity - 1;
+    resizeThreshold = (int) (capacity * LOAD_FACTOR);
   }
 
   /**
@@ -76,17 +94,74 @@ public class RecombinationHash<S extends State<S>> {
   };
 
   public int size() {
-    return recombinationHash.size();
+    return size;
+  }
+
+  /**
+   * Spread the filter hash code over the table. The hash codes returned by 
+   * some filters only use the lower 32 bits.
+   */
+  private static int slot(long key, int mask) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int) key & mask;
+  }
+
+  /**
+   * Returns the slot of the recombination class of hypothesis, or the
+   * empty slot at which the class would be inserted.
+   */
+  private int find(S hypothesis, long key) {
+    int i = slot(key, mask);
+    for (S other; (other = hypotheses[i]) != null; i = (i + 1) & mask) {
+      ++comparisons;
+      if (other == hypothesis) return i;
+      if (keys[i] == key) {
+        boolean isCombinable = filter.combinable(other, hypothesis);
+        if (DEBUG) {
+          expensiveComparisons++;
+          if (isCombinable) {
+            equalityExpensiveComparisions++;
+          }
+        }
+        if (isCombinable) return i;
+      }
+    }
+    return i;
+  }
+
+  private void insert(int i, S hypothesis, long key) {
+    keys[i] = key;
+    hypotheses[i] = hypothesis;
+    if (++size > resizeThreshold) {
+      long[] oldKeys = keys;
+      S[] oldHypotheses = hypotheses;
+      allocate(2 * oldKeys.length);
+      for (int j = 0; j < oldKeys.length; ++j) {
+        if (oldHypotheses[j] != null) {
+          int k = slot(oldKeys[j], mask);
+          while (hypotheses[k] != null) k = (k + 1) & mask;
+          keys[k] = oldKeys[j];
+          hypotheses[k] = oldHypotheses[j];
+        }
+      }
+    }
+  }
+
+  /**
+   * Derivations store their signature, so the filter is only called once per 
+   * derivation.
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private long signature(S hypothesis) {
+    return hypothesis instanceof Derivation ? 
+        ((Derivation) hypothesis).recombinationHashCode((RecombinationFilter) filter) :
+          filter.recombinationHashCode(hypothesis);
   }
 
   public boolean isBest(S hypothesis) {
-    FilterWrappedHypothesis wrappedHyp = new FilterWrappedHypothesis(
-        hypothesis, filter);
-    FilterWrappedHypothesis filterEquivWrappedHyp = recombinationHash
-        .get(wrappedHyp);
-    if (filterEquivWrappedHyp == null)
-      return false;
-    return filterEquivWrappedHyp.hypothesis == hypothesis;
+    return hypotheses[find(hypothesis, signature(hypothesis))] == hypothesis;
   }
 
   /**
@@ -95,41 +170,40 @@ public class RecombinationHash<S extends State<S>> {
 	 */
   @SuppressWarnings("rawtypes")
   public Status update(S hypothesis) {
-    FilterWrappedHypothesis wrappedHyp = new FilterWrappedHypothesis(
-        hypothesis, filter);
-    FilterWrappedHypothesis filterEquivWrappedHyp = recombinationHash
-        .get(wrappedHyp);
+    final long key = signature(hypothesis);
+    final int i = find(hypothesis, key);
+    final S filterEquivHyp = hypotheses[i];
 
     if (DETAILED_DEBUG) {
-      if (filterEquivWrappedHyp != null) {
+      if (filterEquivHyp != null) {
         
         Derivation h1 = (Derivation) hypothesis;
-        Derivation h2 = (Derivation) filterEquivWrappedHyp.hypothesis;
+        Derivation h2 = (Derivation) filterEquivHyp;
         System.err.printf("Recombining: %d with %d scores %.3f %.3f\n",
             Math.min(h1.id, h2.id), Math.max(h1.id, h2.id),
             Math.min(h1.score(), h2.score()), Math.max(h1.score(), h2.score()));
       }
     }
-    if (filterEquivWrappedHyp == null) {
+    if (filterEquivHyp == null) {
       lastBestOnQuery = hypothesis;
       lastRedundantOnQuery = null;
-      recombinationHash.put(wrappedHyp, wrappedHyp);
+      insert(i, hypothesis, key);
       return Status.NOVEL;
     }
-    if (hypothesis == filterEquivWrappedHyp.hypothesis) {
+    if (hypothesis == filterEquivHyp) {
       lastBestOnQuery = hypothesis;
       lastRedundantOnQuery = null;
       return Status.SELF;
     }
-    if (hypothesis.score() > filterEquivWrappedHyp.hypothesis.score()) {
-      lastRedundantOnQuery = filterEquivWrappedHyp.hypothesis;
+    if (hypothesis.score() > filterEquivHyp.score()) {
+      lastRedundantOnQuery = filterEquivHyp;
       lastBestOnQuery = hypothesis;
-      filterEquivWrappedHyp.hypothesis = hypothesis;
+      hypotheses[i] = hypothesis;
       return Status.BETTER;
     }
 
     lastRedundantOnQuery = hypothesis;
-    lastBestOnQuery = filterEquivWrappedHyp.hypothesis;
+    lastBestOnQuery = filterEquivHyp;
     return Status.COMBINABLE;
   }
 
@@ -148,9 +222,13 @@ public class RecombinationHash<S extends State<S>> {
 	 * 
 	 */
   public void put(S hypothesis) {
-    FilterWrappedHypothesis wrappedHyp = new FilterWrappedHypothesis(
-        hypothesis, filter);
-    recombinationHash.put(wrappedHyp, wrappedHyp);
+    final long key = signature(hypothesis);
+    final int i = find(hypothesis, key);
+    if (hypotheses[i] == null) {
+      insert(i, hypothesis, key);
+    } else {
+      hypotheses[i] = hypothesis;
+    }
   }
 
   public void remove(S hypothesis) {
@@ -158,67 +236,26 @@ public class RecombinationHash<S extends State<S>> {
   }
 
   public void remove(S hypothesis, boolean missingOkay) {
-    FilterWrappedHypothesis wrappedHyp = new FilterWrappedHypothesis(
-        hypothesis, filter);
-    FilterWrappedHypothesis filterEquivWrappedHyp = recombinationHash
-        .get(wrappedHyp);
-    if (filterEquivWrappedHyp == null) {
+    int i = find(hypothesis, signature(hypothesis));
+    if (hypotheses[i] == null) {
       if (missingOkay)
         return;
       throw new RuntimeException("hypothesis not found in recombination hash");
     }
-    if (hypothesis == filterEquivWrappedHyp.hypothesis)
-      recombinationHash.remove(wrappedHyp);
-  }
-
-  public class FilterWrappedHypothesis {
-    public S hypothesis;
-    public final RecombinationFilter<S> filter;
-    private final long hashCode;
-
-    public FilterWrappedHypothesis(S hyp, RecombinationFilter<S> filter) {
-      this.hypothesis = hyp;
-      this.filter = filter;
-      hashCode = filter.recombinationHashCode(hypothesis);
-    }
-
-    @SuppressWarnings("unchecked")
-    @Override
-    public boolean equals(Object o) {
-
-      comparisons++;
-      if (!(o instanceof RecombinationHash.FilterWrappedHypothesis)) {
-        return false;
-      }
-
-      FilterWrappedHypothesis wrappedHyp = (FilterWrappedHypothesis) o;
-      if (wrappedHyp.hypothesis == this.hypothesis) {
-        return true;
-      }
-
-      if (wrappedHyp.longHashCode() != this.longHashCode()) {
-        return false;
-      }
-
-      boolean isCombinable = filter.combinable(this.hypothesis,
-          wrappedHyp.hypothesis);
-
-      if (DEBUG) {
-        expensiveComparisons++;
-        if (isCombinable) {
-          equalityExpensiveComparisions++;
-        }
-      }
-      return isCombinable;
-    }
-
-    private long longHashCode() {
-      return hashCode;
-    }
-
-    @Override
-    public int hashCode() {
-      return (int) (longHashCode() >> 32);
+    if (hypothesis != hypotheses[i]) return;
+    
+    // Backward-shift deletion
+    hypotheses[i] = null;
+    --size;
+    for (int j = (i + 1) & mask; hypotheses[j] != null; j = (j + 1) & mask) {
+      int k = slot(keys[j], mask);
+      // Move the entry at j into the hole at i if its home slot k is not
+      // cyclically in (i,j]
+      if ((i <= j) ? (i < k && k <= j) : (i < k || k <= j)) continue;
+      keys[i] = keys[j];
+      hypotheses[i] = hypotheses[j];
+      hypotheses[j] = null;
+      i = j;
     }
   }
 
@@ -228,10 +265,10 @@ public class RecombinationHash<S extends State<S>> {
    * @return
    */
   public List<S> hypotheses() {
-    List<S> hypotheses = new ArrayList<>(recombinationHash.size());
-    for (FilterWrappedHypothesis fwh : recombinationHash.keySet()) {
-      hypotheses.add(fwh.hypothesis);
+    List<S> hypothesisList = new ArrayList<>(size);
+    for (S hypothesis : hypotheses) {
+      if (hypothesis != null) hypothesisList.add(hypothesis);
     }
-    return hypotheses;
+    return hypothesisList;
   }
 }
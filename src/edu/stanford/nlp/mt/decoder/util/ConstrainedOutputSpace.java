@@ -181,8 +181,9 @@ public class ConstrainedOutputSpace<TK, FV> implements
           filteredIndices.add(j);
         }
       }
-      for (int ruleId : filteredIndices) {
-        ruleGrid.remove(i, ruleId);
+      // Remove from the back so that the remaining indices stay valid
+      for (int k = filteredIndices.size() - 1; k >= 0; --k) {
+        ruleGrid.remove(i, filteredIndices.get(k));
       }
     }
   }
@@ -3,8 +3,10 @@ package edu.stanford.nlp.mt.decoder.util;
 import java.io.IOException;
 import java.util.Collection;
 
+import edu.stanford.nlp.mt.util.BinaryWeights;
 import edu.stanford.nlp.mt.util.DenseFeatureValueCollection;
 import edu.stanford.nlp.mt.util.FeatureValue;
+import edu.stanford.nlp.mt.util.GlobalFeatureIndex;
 import edu.stanford.nlp.mt.util.IOTools;
 
 import edu.stanford.nlp.stats.Counter;
@@ -23,13 +25,29 @@ public class DenseScorer implements Scorer<String> {
 
   private final Index<String> featureIndex;
   private double[] weights;
+  // Weights indexed by GlobalFeatureIndex id
+  private double[] globalWeights;
   private final boolean sharedFeatureIndex;
 
+  /**
+   * Constructor. Weights in the binary format are loaded directly into the
+   * weight arrays.
+   *
+   * @param filename
+   */
   public DenseScorer(String filename) {
     sharedFeatureIndex = false;
     featureIndex = new HashIndex<String>();
-    Counter<String> wts = IOTools.readWeights(filename, featureIndex);
-    updateWeights(wts);
+    if (BinaryWeights.isBinaryWeightsFile(filename)) {
+      try {
+        BinaryWeights wts = BinaryWeights.load(filename);
+        setWeights(wts.names(), wts.weights());
+      } catch (IOException e) {
+        throw new RuntimeException("Could not load weights: " + filename, e);
+      }
+    } else {
+      updateWeights(IOTools.readWeights(filename, featureIndex));
+    }
   }
 
   public DenseScorer(Counter<String> featureWts) {
@@ -56,15 +74,14 @@ public class DenseScorer implements Scorer<String> {
 
   private double getIncrementalScoreHash(
       Collection<FeatureValue<String>> features) {
+    final double[] w = globalWeights;
     double score = 0;
-
     for (FeatureValue<String> feature : features) {
-      int index = featureIndex.indexOf(feature.name);
-      if (index >= 0 && index < weights.length) {
-        score += weights[index] * feature.value;
+      int id = feature.getId();
+      if (id >= 0 && id < w.length) {
+        score += w[id] * feature.value;
       }
     }
-
     return score;
   }
 
@@ -76,18 +93,37 @@ public class DenseScorer implements Scorer<String> {
 
   @Override
   public void updateWeights(Counter<String> featureWts) {
-    for (String key : featureWts.keySet()) {
-      // TODO(spenceg) - find out what is generating 'null' model weights
-      // for now, we'll just have the decoding model ignore them
-      if (key == null) continue;
-      featureIndex.addToIndex(key);
+    BinaryWeights wts = BinaryWeights.fromCounter(featureWts);
+    setWeights(wts.names(), wts.weights());
+  }
+
+  /**
+   * Set the weights from parallel arrays of feature names and values.
+   *
+   * @param names
+   * @param values
+   */
+  private void setWeights(String[] names, double[] values) {
+    for (String name : names) {
+      featureIndex.addToIndex(name);
     }
 
     weights = new double[featureIndex.size()];
-    for (String key : featureWts.keySet()) {
-      if (key == null) continue;
-      weights[featureIndex.indexOf(key)] = featureWts.getCount(key);
+    for (int i = 0; i < names.length; ++i) {
+      weights[featureIndex.indexOf(names[i])] = values[i];
+    }
+
+    int[] globalIds = new int[weights.length];
+    int maxId = -1;
+    for (int i = 0; i < globalIds.length; ++i) {
+      globalIds[i] = GlobalFeatureIndex.add(featureIndex.get(i));
+      maxId = Math.max(maxId, globalIds[i]);
+    }
+    double[] w = new double[maxId + 1];
+    for (int i = 0; i < globalIds.length; ++i) {
+      w[globalIds[i]] = weights[i];
     }
+    globalWeights = w;
   }
 
   @Override
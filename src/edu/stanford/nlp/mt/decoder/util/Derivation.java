@@ -5,6 +5,7 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import edu.stanford.nlp.mt.decoder.feat.FeatureExtractor;
 import edu.stanford.nlp.mt.decoder.h.SearchHeuristic;
+import edu.stanford.nlp.mt.decoder.recomb.RecombinationFilter;
 import edu.stanford.nlp.mt.tm.ConcreteRule;
 import edu.stanford.nlp.mt.tm.Rule;
 import edu.stanford.nlp.mt.util.CoverageSet;
@@ -13,6 +14,7 @@ import edu.stanford.nlp.mt.util.EmptySequence;
 import edu.stanford.nlp.mt.util.FeatureValue;
 import edu.stanford.nlp.mt.util.Featurizable;
 import edu.stanford.nlp.mt.util.InputProperties;
+import edu.stanford.nlp.mt.util.PackedFeatureValues;
 import edu.stanford.nlp.mt.util.Sequence;
 import edu.stanford.nlp.mt.util.Sequences;
 
@@ -61,8 +63,14 @@ State<Derivation<TK, FV>> {
   public final CoverageSet sourceCoverage;
   public final Featurizable<TK, FV> featurizable;
 
+  // Packed copy of the features extracted for this derivation. Null for the
+  // root derivation and for derivations built in score-only mode.
   public final List<FeatureValue<FV>> localFeatures;
 
+  // Recombination signature and the filter that computed it
+  private long recombinationHashCode;
+  private RecombinationFilter<Derivation<TK,FV>> recombinationFilter;
+
   /**
    * 
    */
@@ -132,13 +140,56 @@ State<Derivation<TK, FV>> {
       ConcreteRule<TK,FV> rule, int insertionPosition,
       Derivation<TK, FV> base, FeatureExtractor<TK, FV> featurizer,
       Scorer<FV> scorer, SearchHeuristic<TK, FV> heuristic) {
-    this.id = nextId.incrementAndGet();
+    this(sourceInputId, rule, insertionPosition, base, featurizer, scorer, heuristic, true);
+  }
+
+  /**
+   * Constructor for derivation/hypothesis expansion.
+   * 
+   * @param sourceInputId
+   * @param rule
+   * @param insertionPosition
+   * @param base
+   * @param featurizer
+   * @param scorer
+   * @param heuristic
+   * @param retainFeatures If false, then only the score of the derivation is
+   *        computed, and <code>localFeatures</code> is null.
+   */
+  public Derivation(int sourceInputId,
+      ConcreteRule<TK,FV> rule, int insertionPosition,
+      Derivation<TK, FV> base, FeatureExtractor<TK, FV> featurizer,
+      Scorer<FV> scorer, SearchHeuristic<TK, FV> heuristic, boolean retainFeatures) {
+    this(sourceInputId, rule, insertionPosition, base, featurizer, scorer, heuristic, 
+        retainFeatures, nextId.incrementAndGet());
+  }
+
+  /**
+   * Constructor for derivation/hypothesis expansion with an id reserved by the caller
+   * from <code>nextId</code>. Decoders that build derivations concurrently use this
+   * constructor to assign ids in a deterministic order.
+   * 
+   * @param sourceInputId
+   * @param rule
+   * @param insertionPosition
+   * @param base
+   * @param featurizer
+   * @param scorer
+   * @param heuristic
+   * @param retainFeatures
+   * @param id
+   */
+  public Derivation(int sourceInputId,
+      ConcreteRule<TK,FV> rule, int insertionPosition,
+      Derivation<TK, FV> base, FeatureExtractor<TK, FV> featurizer,
+      Scorer<FV> scorer, SearchHeuristic<TK, FV> heuristic, boolean retainFeatures,
+      long id) {
+    this.id = id;
     this.insertionPosition = insertionPosition;
     this.rule = rule;
     this.preceedingDerivation = base;
     this.sourceInputProperties = base.sourceInputProperties;
-    this.sourceCoverage = base.sourceCoverage.clone();
-    this.sourceCoverage.or(rule.sourceCoverage);
+    this.sourceCoverage = base.sourceCoverage.union(rule.sourceCoverage);
     this.length = (insertionPosition < base.length ? base.length : // internal
       // insertion
       insertionPosition + rule.abstractRule.target.size()); // edge
@@ -153,9 +204,11 @@ State<Derivation<TK, FV>> {
     featurizable = new Featurizable<TK, FV>(this, sourceInputId, featurizer
         .getNumDerivationFeaturizers());
     
-    localFeatures = featurizer.featurize(featurizable);
-    localFeatures.addAll(rule.cachedFeatureList);
-    score = base.score + scorer.getIncrementalScore(localFeatures);
+    List<FeatureValue<FV>> features = featurizer.getFeatureBuffer();
+    featurizer.featurize(featurizable, features);
+    for (FeatureValue<FV> fv : rule.cachedFeatureList) features.add(fv);
+    score = base.score + scorer.getIncrementalScore(features);
+    localFeatures = retainFeatures ? new PackedFeatureValues<FV>(features) : null;
     h = (Double.isInfinite(base.h)) ? base.h : base.h
         + heuristic.getHeuristicDelta(this, rule.sourceCoverage);
     // System.err.printf("h: %f %f %d %s\n", baseHyp.h,
@@ -165,6 +218,36 @@ State<Derivation<TK, FV>> {
     depth = base.depth + 1;
   }
 
+  /**
+   * Constructor that replaces the antecedent of <code>node</code> with
+   * <code>base</code>, which must have been recombined with the antecedent. Since
+   * recombined derivations are equivalent with respect to future expansions, the
+   * local features and the score delta of <code>node</code> are reused and the
+   * featurizers are not run.
+   *
+   * @param node
+   * @param base
+   */
+  public Derivation(Derivation<TK, FV> node, Derivation<TK, FV> base) {
+    this.id = nextId.incrementAndGet();
+    this.insertionPosition = base.length;
+    this.rule = node.rule;
+    this.preceedingDerivation = base;
+    this.sourceInputProperties = base.sourceInputProperties;
+    this.sourceCoverage = node.sourceCoverage;
+    this.length = base.length + rule.abstractRule.target.size();
+    sourceSequence = base.sourceSequence;
+    targetSequence = Sequences.concatenate(base.targetSequence, rule.abstractRule.target);
+    untranslatedTokens = node.untranslatedTokens;
+    linearDistortion = (base.rule == null ? rule.sourcePosition
+        : base.rule.linearDistortion(rule));
+    featurizable = new Featurizable<TK, FV>(this, node.featurizable);
+    score = base.score + (node.score - node.preceedingDerivation.score);
+    localFeatures = node.localFeatures;
+    h = node.h;
+    depth = base.depth + 1;
+  }
+
   /**
    * Constructor for DTU.
    * 
@@ -191,8 +274,7 @@ State<Derivation<TK, FV>> {
     this.rule = rule;
     this.preceedingDerivation = base;
     this.sourceInputProperties = base.sourceInputProperties;
-    this.sourceCoverage = base.sourceCoverage.clone();
-    this.sourceCoverage.or(rule.sourceCoverage);
+    this.sourceCoverage = base.sourceCoverage.union(rule.sourceCoverage);
     this.length = (insertionPosition < base.length) ? base.length
         : insertionPosition + targetPhrase.size();
     sourceSequence = base.sourceSequence;
@@ -206,9 +288,11 @@ State<Derivation<TK, FV>> {
         sourceInputId, featurizer.getNumDerivationFeaturizers(), targetPhrase,
         hasPendingPhrases, segmentIdx);
 
-    localFeatures = featurizer.featurize(featurizable);
-    localFeatures.addAll(rule.cachedFeatureList);
-    score = base.score + scorer.getIncrementalScore(localFeatures);
+    List<FeatureValue<FV>> features = featurizer.getFeatureBuffer();
+    featurizer.featurize(featurizable, features);
+    for (FeatureValue<FV> fv : rule.cachedFeatureList) features.add(fv);
+    score = base.score + scorer.getIncrementalScore(features);
+    localFeatures = new PackedFeatureValues<FV>(features);
     depth = base.depth + 1;
     h = (Double.isInfinite(base.h)) ? base.h : base.h
         + heuristic.getHeuristicDelta(this, rule.sourceCoverage);
@@ -246,6 +330,29 @@ State<Derivation<TK, FV>> {
     return depth;
   }
 
+  /**
+   * Returns <code>filter.recombinationHashCode(this)</code>. The signature is
+   * computed once and stored, so recombination tables do not recompute it on
+   * every query. Decoders call this method when the derivation is built.
+   *
+   * The signature is not an extension of the parent's signature. Two parents in
+   * different recombination classes can have children in the same class, e.g.,
+   * when the LM history that separated them slides out of the context window.
+   * Instead, the hashes that the filters combine are cached on the objects that
+   * they describe. The coverage set caches its hash, and the LM states compute
+   * theirs once, when the state is built.
+   *
+   * @param filter
+   * @return
+   */
+  public long recombinationHashCode(RecombinationFilter<Derivation<TK,FV>> filter) {
+    if (recombinationFilter != filter) {
+      recombinationHashCode = filter.recombinationHashCode(this);
+      recombinationFilter = filter;
+    }
+    return recombinationHashCode;
+  }
+
   @Override
   public int hashCode() {
     return (int) id;
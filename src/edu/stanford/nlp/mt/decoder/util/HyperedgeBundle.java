@@ -3,6 +3,7 @@ package edu.stanford.nlp.mt.decoder.util;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.List;
+import java.util.function.Supplier;
 
 import edu.stanford.nlp.mt.tm.ConcreteRule;
 
@@ -45,11 +46,29 @@ public class HyperedgeBundle<TK,FV> {
    */
   public List<Consequent<TK,FV>> nextSuccessors(Consequent<TK,FV> antecedent) {
     List<Consequent<TK,FV>> consequentList = new ArrayList<>(2);
+    nextSuccessors(antecedent, consequentList, Consequent::new);
+    return consequentList;
+  }
+
+  /**
+   * Appends unsorted, ungenerated successors to this antecedent to consequentList.
+   * New <code>Consequent</code> objects are obtained from the factory, which may
+   * recycle them.
+   * 
+   * @param antecedent
+   * @param consequentList
+   * @param factory
+   * @return the number of successors in the range [0,2].
+   */
+  public int nextSuccessors(Consequent<TK,FV> antecedent, List<Consequent<TK,FV>> consequentList,
+      Supplier<Consequent<TK,FV>> factory) {
+    int numSuccessors = 0;
     if (expandedItems.cardinality() == 0) {
       // Top-left corner of the grid
       assert antecedent == null || (antecedent.itemId < 0 && antecedent.ruleId < 0);
-      consequentList.add(new Consequent<TK,FV>(itemList.get(0), ruleList.get(0), this, 0, 0));
+      consequentList.add(factory.get().set(itemList.get(0), ruleList.get(0), this, 0, 0));
       expandedItems.set(0);
+      ++numSuccessors;
 
     } else {
       // Move down in the grid
@@ -57,19 +76,21 @@ public class HyperedgeBundle<TK,FV> {
       int lastRule = antecedent.ruleId;
       int nextItem = getIndex(lastItem+1, lastRule);
       if ( ! expandedItems.get(nextItem) && lastItem+1 < itemList.size()) {
-        consequentList.add(new Consequent<TK,FV>(itemList.get(lastItem+1), ruleList.get(lastRule), 
+        consequentList.add(factory.get().set(itemList.get(lastItem+1), ruleList.get(lastRule), 
             this, lastItem+1, lastRule));
         expandedItems.set(nextItem);
+        ++numSuccessors;
       }
       // Move right in the grid
       int nextRule = getIndex(lastItem, lastRule+1);
       if ( ! expandedItems.get(nextRule) && lastRule+1 < ruleList.size()) {
-        consequentList.add(new Consequent<TK,FV>(itemList.get(lastItem), ruleList.get(lastRule+1), 
+        consequentList.add(factory.get().set(itemList.get(lastItem), ruleList.get(lastRule+1), 
             this, lastItem, lastRule+1));
         expandedItems.set(nextRule);
+        ++numSuccessors;
       }
     }
-    return consequentList;
+    return numSuccessors;
   }
 
   private int getIndex(int itemId, int ruleId) {
@@ -83,22 +104,52 @@ public class HyperedgeBundle<TK,FV> {
         itemList.size(), ruleList.size(), expandedItems.toString());
   }
 
+  /**
+   * A cell in the grid. Mutable so that decoders can recycle these objects.
+   * 
+   * @author Spence Green
+   *
+   * @param <TK>
+   * @param <FV>
+   */
   public static class Consequent<TK,FV> {
-    public final Derivation<TK,FV> antecedent;
-    public final ConcreteRule<TK,FV> rule;
-    public final HyperedgeBundle<TK, FV> bundle;
-    private final int itemId;
-    private final int ruleId;
+    public Derivation<TK,FV> antecedent;
+    public ConcreteRule<TK,FV> rule;
+    public HyperedgeBundle<TK, FV> bundle;
+    private int itemId;
+    private int ruleId;
+    
+    /**
+     * Constructor for pooled objects.
+     */
+    public Consequent() {}
+    
     public Consequent(Derivation<TK,FV> antecedent, 
         ConcreteRule<TK,FV> rule,
         HyperedgeBundle<TK,FV> bundle,
         int itemId,
         int ruleId) {
+      set(antecedent, rule, bundle, itemId, ruleId);
+    }
+
+    Consequent<TK,FV> set(Derivation<TK,FV> antecedent, 
+        ConcreteRule<TK,FV> rule,
+        HyperedgeBundle<TK,FV> bundle,
+        int itemId,
+        int ruleId) {
       this.antecedent = antecedent;
       this.rule = rule;
       this.bundle = bundle;
       this.itemId = itemId;
       this.ruleId = ruleId;
+      return this;
+    }
+
+    /**
+     * Drop references so that a recycled object does not retain the search graph.
+     */
+    public void clear() {
+      set(null, null, null, -1, -1);
     }
 
     @Override
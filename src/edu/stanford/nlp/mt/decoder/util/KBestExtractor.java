@@ -0,0 +1,288 @@
+package edu.stanford.nlp.mt.decoder.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import edu.stanford.nlp.mt.decoder.recomb.RecombinationHistory;
+import edu.stanford.nlp.mt.util.Sequence;
+import edu.stanford.nlp.mt.util.Sequences;
+
+/**
+ * Lazy k-best extraction from the hypergraph induced by a recombination history.
+ * This is Algorithm 3 of Huang and Chiang (2005).
+ *
+ * Each derivation that survived recombination is a node in the hypergraph. The
+ * incoming hyperedges of a node are the node itself and the derivations that were
+ * recombined with it. Each hyperedge has a single tail, the antecedent of the
+ * derivation, and its weight is the score delta of the derivation. The goal node
+ * is a virtual node with an incoming edge from each goal state.
+ *
+ * Paths are returned from the root to the goal state in order of descending score.
+ * Adjacent derivations in a path need not be linked by <code>preceedingDerivation</code>
+ * since a derivation may follow a derivation that was recombined with its antecedent.
+ *
+ * In distinct mode, only the highest-scoring path for each target string is returned.
+ * Duplicates are also removed at internal nodes since the target string of a path
+ * is the target string of its prefix plus the target string of the last rule.
+ * This does not hold for paths with discontinuous derivations, which are rebuilt
+ * with a different target string, so those paths are never removed here. The
+ * caller must remove their duplicates after rebuilding them.
+ *
+ * @param <TK>
+ * @param <FV>
+ */
+public class KBestExtractor<TK,FV> implements Iterator<List<Derivation<TK,FV>>>,
+  Iterable<List<Derivation<TK,FV>>> {
+
+  private final RecombinationHistory<Derivation<TK,FV>> recombinationHistory;
+  private final Map<Derivation<TK,FV>,Node> nodes = new HashMap<>();
+  private final Node goal;
+  private final boolean distinct;
+  private final int maxDuplicates;
+  private int numDuplicates = 0;
+  private boolean exhausted = false;
+  private int rank = 0;
+  private Item next;
+
+  /**
+   * Constructor.
+   *
+   * @param goalStates
+   * @param recombinationHistory
+   * @param distinct If true, only return the best path for each target string.
+   * @param maxDuplicates In distinct mode, stop extraction once more than this many
+   *        duplicate paths have been discarded. The paths returned up to that point
+   *        are still the best distinct paths.
+   */
+  public KBestExtractor(List<Derivation<TK,FV>> goalStates,
+      RecombinationHistory<Derivation<TK,FV>> recombinationHistory, boolean distinct,
+      int maxDuplicates) {
+    this.recombinationHistory = recombinationHistory;
+    this.distinct = distinct;
+    this.maxDuplicates = maxDuplicates;
+    this.goal = new Node(null);
+    goal.candidates = new PriorityQueue<>(Math.max(1, goalStates.size()));
+    for (Derivation<TK,FV> goalState : goalStates) {
+      Node tail = node(goalState);
+      Item tailItem = kthBest(tail, 0);
+      if (tailItem != null) {
+        goal.candidates.add(new Item(null, tail, 0, tailItem, 0.0));
+      }
+    }
+    this.next = kthBest(goal, rank);
+  }
+
+  /**
+   * The number of discarded duplicate paths.
+   *
+   * @return
+   */
+  public int numDuplicates() { return numDuplicates; }
+
+  @Override
+  public Iterator<List<Derivation<TK,FV>>> iterator() {
+    return this;
+  }
+
+  @Override
+  public boolean hasNext() {
+    return next != null;
+  }
+
+  /**
+   * The score of the path that will be returned by <code>next()</code>.
+   *
+   * @return
+   */
+  public double nextScore() {
+    if (next == null) throw new NoSuchElementException();
+    return next.score;
+  }
+
+  @Override
+  public List<Derivation<TK,FV>> next() {
+    if (next == null) throw new NoSuchElementException();
+    List<Derivation<TK,FV>> path = new ArrayList<>();
+    for (Item item = next.tailItem; item != null; item = item.tailItem) {
+      path.add(item.derivation);
+    }
+    // Root to goal
+    for (int i = 0, j = path.size() - 1; i < j; ++i, --j) {
+      Derivation<TK,FV> tmp = path.get(i);
+      path.set(i, path.get(j));
+      path.set(j, tmp);
+    }
+    next = kthBest(goal, ++rank);
+    return path;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  private Node node(Derivation<TK,FV> state) {
+    Node node = nodes.get(state);
+    if (node == null) {
+      node = new Node(state);
+      nodes.put(state, node);
+    }
+    return node;
+  }
+
+  /**
+   * Returns the k-th best item (zero-indexed) of the node, or null if the node
+   * has fewer than k+1 derivations.
+   *
+   * @param v
+   * @param k
+   * @return
+   */
+  private Item kthBest(Node v, int k) {
+    if (v.candidates == null) initialize(v);
+    while (v.kbest.size() <= k) {
+      if (v.last != null) {
+        lazyNext(v, v.last);
+        v.last = null;
+      }
+      if (exhausted || v.candidates.isEmpty()) return null;
+      Item item = v.candidates.poll();
+      v.last = item;
+      if (v.targets != null && item.target != null && ! v.targets.add(item.target)) {
+        // Dominated by a higher-scoring item with the same target string.
+        if (++numDuplicates > maxDuplicates) {
+          exhausted = true;
+          return null;
+        }
+        continue;
+      }
+      v.kbest.add(item);
+    }
+    return v.kbest.get(k);
+  }
+
+  /**
+   * Push the successor of an item onto the candidate heap of its node.
+   *
+   * @param v
+   * @param item
+   */
+  private void lazyNext(Node v, Item item) {
+    if (item.tail == null) return;
+    Item tailItem = kthBest(item.tail, item.rank + 1);
+    if (tailItem != null) {
+      v.candidates.add(new Item(item.derivation, item.tail, item.rank + 1, tailItem,
+          item.weight));
+    }
+  }
+
+  /**
+   * Setup the candidate heap of a node with the best derivation of each incoming
+   * edge.
+   *
+   * @param v
+   */
+  private void initialize(Node v) {
+    final Derivation<TK,FV> state = v.state;
+    if (state.preceedingDerivation == null) {
+      // Root
+      v.candidates = new PriorityQueue<>(1);
+      v.candidates.add(new Item(state, null, 0, null, state.score));
+      return;
+    }
+    List<Derivation<TK,FV>> recombined = recombinationHistory == null ? null :
+      recombinationHistory.recombinations(state);
+    int numEdges = 1 + (recombined == null ? 0 : recombined.size());
+    v.candidates = new PriorityQueue<>(numEdges);
+    addEdge(v, state);
+    if (recombined != null) {
+      for (Derivation<TK,FV> d : recombined) addEdge(v, d);
+    }
+  }
+
+  private void addEdge(Node v, Derivation<TK,FV> d) {
+    Node tail = node(d.preceedingDerivation);
+    Item tailItem = kthBest(tail, 0);
+    if (tailItem != null) {
+      v.candidates.add(new Item(d, tail, 0, tailItem,
+          d.score - d.preceedingDerivation.score));
+    }
+  }
+
+  /**
+   * A node in the hypergraph.
+   */
+  private class Node {
+    // Null for the goal node
+    public final Derivation<TK,FV> state;
+    public final List<Item> kbest = new ArrayList<>();
+    public PriorityQueue<Item> candidates;
+    // The most recently popped item, which has not been advanced yet.
+    public Item last;
+    public final Set<Sequence<TK>> targets;
+
+    public Node(Derivation<TK,FV> state) {
+      this.state = state;
+      // Derivations with pending phrases can be extended with different strings
+      // even if their prefixes match.
+      this.targets = distinct && (state == null || ! state.hasPendingPhrases()) ?
+          new HashSet<>() : null;
+    }
+  }
+
+  /**
+   * A derivation of a node, which is an incoming edge and the k-th best
+   * derivation of the tail of the edge.
+   */
+  private class Item implements Comparable<Item> {
+    // Null for edges into the goal node. For the root, this is the root derivation.
+    public final Derivation<TK,FV> derivation;
+    public final Node tail;
+    public final int rank;
+    public final Item tailItem;
+    public final double weight;
+    public final double score;
+    // True if the path contains a discontinuous derivation
+    public final boolean withDTUs;
+    // Null if the path is not deduplicated
+    public final Sequence<TK> target;
+
+    public Item(Derivation<TK,FV> derivation, Node tail, int rank, Item tailItem, double weight) {
+      this.derivation = derivation;
+      this.tail = tail;
+      this.rank = rank;
+      this.tailItem = tailItem;
+      this.weight = weight;
+      this.score = tailItem == null ? weight : tailItem.score + weight;
+      this.withDTUs = derivation instanceof DTUHypothesis ||
+          (tailItem != null && tailItem.withDTUs);
+      this.target = distinct && ! withDTUs ? target() : null;
+    }
+
+    private Sequence<TK> target() {
+      if (tailItem == null) {
+        return derivation.targetSequence;
+      } else if (derivation == null) {
+        return tailItem.target;
+      } else {
+        Sequence<TK> prefix = derivation.preceedingDerivation.targetSequence;
+        Sequence<TK> suffix = derivation.targetSequence.subsequence(prefix.size(),
+            derivation.targetSequence.size());
+        return Sequences.concatenate(tailItem.target, suffix);
+      }
+    }
+
+    @Override
+    public int compareTo(Item o) {
+      int cmp = (int) Math.signum(o.score - score);
+      return cmp != 0 ? cmp : o.rank < rank ? 1 : o.rank > rank ? -1 : 0;
+    }
+  }
+}
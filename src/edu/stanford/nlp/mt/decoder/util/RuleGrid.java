@@ -31,7 +31,7 @@ public class RuleGrid<TK,FV> implements Iterable<ConcreteRule<TK,FV>> {
   private final BitSet isSorted;
   private final boolean doLazySorting;
   private boolean completeCoverage;
-  private BitSet incrementalCoverage;
+  private CoverageSet incrementalCoverage;
   private int size = 0;
   
   /**
@@ -76,7 +76,7 @@ public class RuleGrid<TK,FV> implements Iterable<ConcreteRule<TK,FV>> {
     doLazySorting = false;
     grid = new List[sourceLength * sourceLength];
     completeCoverage = false;
-    incrementalCoverage = new BitSet();
+    incrementalCoverage = new CoverageSet();
   }
 
   /**
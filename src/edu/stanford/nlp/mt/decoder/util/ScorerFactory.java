@@ -45,4 +45,25 @@ public class ScorerFactory {
         scorerName));
   }
 
+  /**
+   * Creates a scorer from a weights file. Weights in the binary format are
+   * loaded directly by the scorer.
+   *
+   * @param scorerName
+   * @param weightsFile
+   * @return
+   */
+  public static Scorer<String> factory(String scorerName, String weightsFile) {
+    switch (scorerName) {
+      case UNIFORM_SCORER:
+        return new UniformScorer<String>();
+      case DENSE_SCORER:
+        return new DenseScorer(weightsFile);
+      case SPARSE_SCORER:
+        return new SparseScorer(weightsFile);
+    }
+
+    throw new RuntimeException(String.format("Unknown scorer \"%s\"",
+        scorerName));
+  }
 }
@@ -1,24 +1,47 @@
 package edu.stanford.nlp.mt.decoder.util;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
 
+import edu.stanford.nlp.mt.util.BinaryWeights;
 import edu.stanford.nlp.mt.util.FeatureValue;
+import edu.stanford.nlp.mt.util.GlobalFeatureIndex;
+import edu.stanford.nlp.mt.util.IOTools;
+import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.util.Index;
 
 /**
  * A sparse scorer for high dimensional models.
  * 
- * NOTE: This class is not threadsafe, which is okay for the current implementation
- * in which each Inferer has its own scorer.
+ * NOTE: getIncrementalScore() may be called concurrently, but updateWeights()
+ * may not. Each Inferer has its own scorer.
  * 
  * @author Spence Green
  *
  */
 public class SparseScorer implements Scorer<String> {
 
-  private Counter<String> weights;
+  /**
+   * A weight vector and a lazily-filled cache of its weights indexed by
+   * GlobalFeatureIndex id. NaN marks an empty entry. Concurrent readers may race
+   * on the cache, but they all fill an entry with the same weight.
+   */
+  private static class Weights {
+    // Null if the weights were loaded directly into the cache
+    final Counter<String> counter;
+    final double[] cache;
+    Weights(Counter<String> counter, double[] cache) {
+      this.counter = counter;
+      this.cache = cache;
+    }
+  }
+
+  // updateWeights() publishes a new instance with a new cache, so a reader on
+  // another thread sees the new counter together with its own cache. A published
+  // cache is never cleared.
+  private volatile Weights weights;
   
   public SparseScorer(Counter<String> featureWts) {
     this(featureWts, null);
@@ -34,19 +57,107 @@ public class SparseScorer implements Scorer<String> {
     updateWeights(featureWts);
   }
   
+  /**
+   * Constructor. Loads weights in the binary format directly into the cache
+   * without building a counter. Other formats are read with
+   * <code>IOTools.readWeights()</code>.
+   *
+   * @param filename
+   */
+  public SparseScorer(String filename) {
+    if (BinaryWeights.isBinaryWeightsFile(filename)) {
+      try {
+        setWeights(BinaryWeights.load(filename));
+      } catch (IOException e) {
+        throw new RuntimeException("Could not load weights: " + filename, e);
+      }
+    } else {
+      updateWeights(IOTools.readWeights(filename));
+    }
+  }
+
+  /**
+   * Constructor. Loads weights that were read in the binary format directly
+   * into the cache without building a counter.
+   *
+   * @param wts
+   */
+  public SparseScorer(BinaryWeights wts) {
+    setWeights(wts);
+  }
+
+  /**
+   * Constructor. Shares the weights of another scorer until the weights of
+   * either scorer are updated, so that the weights are loaded once for all
+   * decoder threads.
+   *
+   * @param other
+   */
+  public SparseScorer(SparseScorer other) {
+    this.weights = other.weights;
+  }
+
   @Override
   public double getIncrementalScore(Collection<FeatureValue<String>> features) {
+    final Weights w = weights;
     double score = 0.0;
     for (FeatureValue<String> feature : features) {
-      score += feature.value * weights.getCount(feature.name);
+      score += feature.value * lookup(w, feature);
     }
     return score;
   }
 
+  private static double lookup(Weights w, FeatureValue<String> feature) {
+    final int id = feature.getId();
+    if (id < 0 || id >= w.cache.length) {
+      // Every name in the weight vector was added to the index before the
+      // cache was sized, so this feature has no weight.
+      return 0.0;
+    }
+    double weight = w.cache[id];
+    if (Double.isNaN(weight) && w.counter != null) {
+      weight = w.counter.getCount(feature.name);
+      w.cache[id] = weight;
+    }
+    return weight;
+  }
+
+  /**
+   * Fill the cache from a weight vector. Features that are not in the
+   * weight vector have zero weight.
+   *
+   * @param wts
+   */
+  private void setWeights(BinaryWeights wts) {
+    final String[] names = wts.names();
+    final double[] values = wts.weights();
+    int[] ids = new int[names.length];
+    int maxId = -1;
+    for (int i = 0; i < names.length; ++i) {
+      ids[i] = GlobalFeatureIndex.add(names[i]);
+      maxId = Math.max(maxId, ids[i]);
+    }
+    double[] cache = new double[Math.max(maxId + 1, GlobalFeatureIndex.size())];
+    for (int i = 0; i < ids.length; ++i) {
+      cache[ids[i]] = values[i];
+    }
+    this.weights = new Weights(null, cache);
+  }
+
+  /**
+   * Set the weight vector. The weight vector is not copied. Its names are added
+   * to the <code>GlobalFeatureIndex</code>, so features that are absent from the
+   * index have zero weight. The names are registered on every call since the
+   * counter may have changed in place.
+   */
   @Override
   public void updateWeights(Counter<String> weights) {
-    // Do not copy the weights vector.
-    this.weights = weights;
+    for (String featureName : weights.keySet()) {
+      GlobalFeatureIndex.add(featureName);
+    }
+    final double[] cache = new double[GlobalFeatureIndex.size()];
+    Arrays.fill(cache, Double.NaN);
+    this.weights = new Weights(weights, cache);
   }
 
   @Override
@@ -62,10 +173,26 @@ public class SparseScorer implements Scorer<String> {
   
   // Thang Apr14
   public double getWeight(String featureName){
-    return weights.getCount(featureName);
+    final Weights w = weights;
+    if (w.counter == null) {
+      int id = GlobalFeatureIndex.indexOf(featureName);
+      return id >= 0 && id < w.cache.length ? w.cache[id] : 0.0;
+    }
+    return w.counter.getCount(featureName);
   }
   
   public Counter<String> getWeightVector(){
-    return weights;
+    final Weights w = weights;
+    if (w.counter == null) {
+      // Materialize the directly loaded weights
+      Counter<String> wts = new ClassicCounter<>();
+      for (int id = 0; id < w.cache.length; ++id) {
+        if (w.cache[id] != 0.0) {
+          wts.setCount(GlobalFeatureIndex.get(id), w.cache[id]);
+        }
+      }
+      return wts;
+    }
+    return w.counter;
   }
 }
@@ -1,36 +1,67 @@
 package edu.stanford.nlp.mt.lm;
 
-import edu.stanford.nlp.mt.util.IString;
-import edu.stanford.nlp.mt.util.Sequence;
+import java.util.Arrays;
+
+import edu.stanford.nlp.mt.util.MurmurHash;
 
 /**
- * Result of an ARPALanguageModel query.
- * 
+ * Result of an ARPALanguageModel query. The state is the matched context,
+ * stored as IString ids, plus a 64-bit hash of the context.
+ *
  * @author Spence Green
  *
  */
 public class ARPALMState extends LMState {
 
-  private final Sequence<IString> state;
-  private final int hashCode;
+  private static final int HASH_SEED = 0x5f3759df;
+  private static final int[] EMPTY_CONTEXT = new int[0];
+
+  private final int[] state;
+  private final long stateId;
 
-  public ARPALMState(double score, Sequence<IString> state) {
+  /**
+   * Constructor.
+   *
+   * @param score
+   * @param state IString ids of the context. Not copied.
+   */
+  public ARPALMState(double score, int[] state) {
     this.score = score;
     this.state = state;
-    this.hashCode = state.hashCode();
+    this.stateId = MurmurHash.hash64(state, state.length, HASH_SEED);
+  }
+
+  /**
+   * Constructor. Copies the context <code>ngram[start, end)</code>.
+   *
+   * @param score
+   * @param ngram
+   * @param start
+   * @param end
+   */
+  public ARPALMState(double score, int[] ngram, int start, int end) {
+    this(score, start == end ? EMPTY_CONTEXT : Arrays.copyOfRange(ngram, start, end));
   }
-  
+
   public ARPALMState(double score, ARPALMState state) {
     this.score = score;
     this.state = state.state;
-    this.hashCode = state.hashCode;
+    this.stateId = state.stateId;
   }
-  
-  public Sequence<IString> getState() { return state; }
+
+  /**
+   * The IString ids of the context. Callers should not modify the array.
+   */
+  public int[] getState() { return state; }
+
+  /**
+   * A 64-bit hash of the context.
+   */
+  public long getStateId() { return stateId; }
 
   @Override
   public int hashCode() {
-    return hashCode;
+    return (int) (stateId ^ (stateId >>> 32));
   }
 
   @Override
@@ -41,17 +72,17 @@ public class ARPALMState extends LMState {
       return false;
     } else {
       ARPALMState otherState = (ARPALMState) other;
-      return this.state.equals(otherState.state);
+      return this.stateId == otherState.stateId && Arrays.equals(this.state, otherState.state);
     }
   }
 
   @Override
   public int length() {
-    return state.size();
+    return state.length;
   }
-  
+
   @Override
   public String toString() {
-    return String.format("%.6f ||| %s", score, state.toString());
+    return String.format("%.6f ||| %s", score, Arrays.toString(state));
   }
 }
@@ -2,15 +2,13 @@ package edu.stanford.nlp.mt.lm;
 
 import java.io.IOException;
 import java.io.LineNumberReader;
+import java.util.Arrays;
 import java.util.StringTokenizer;
 
-import edu.stanford.nlp.mt.util.EmptySequence;
 import edu.stanford.nlp.mt.util.IOTools;
 import edu.stanford.nlp.mt.util.IString;
-import edu.stanford.nlp.mt.util.IntegerArrayRawIndex;
 import edu.stanford.nlp.mt.util.ProbingIntegerArrayRawIndex;
 import edu.stanford.nlp.mt.util.Sequence;
-import edu.stanford.nlp.mt.util.Sequences;
 import edu.stanford.nlp.mt.util.TokenUtils;
 
 /**
@@ -19,7 +17,7 @@ import edu.stanford.nlp.mt.util.TokenUtils;
  * 
  * @author Daniel Cer
  */
-public class ARPALanguageModel implements LanguageModel<IString> {
+public class ARPALanguageModel implements IntegerArrayLanguageModel {
 
   static boolean verbose = false;
 
@@ -28,8 +26,7 @@ public class ARPALanguageModel implements LanguageModel<IString> {
 
   protected final String name;
   
-  private static final Sequence<IString> EMPTY_SEQUENCE = new EmptySequence<IString>();
-  private static final ARPALMState EMPTY_STATE = new ARPALMState(0.0, EMPTY_SEQUENCE);
+  private static final ARPALMState EMPTY_STATE = new ARPALMState(0.0, new int[0]);
   private static final int[] UNK_QUERY = new int[]{TokenUtils.UNK_TOKEN.id};
   
   @Override
@@ -56,9 +53,10 @@ public class ARPALanguageModel implements LanguageModel<IString> {
     return inline;
   }
 
-  protected IntegerArrayRawIndex[] tables;
+  protected ProbingIntegerArrayRawIndex[] tables;
   private float[][] probs;
   private float[][] bows;
+  private int unkIndex;
 
   protected static final int MAX_GRAM = 10; // highest order ngram possible
   protected static final float LOAD_MULTIPLIER = (float) 1.7;
@@ -144,6 +142,10 @@ public class ARPALanguageModel implements LanguageModel<IString> {
       }
     }
 
+    // First check for an <unk> class, which is present for KenLM
+    // but not necessarily for SRILM.
+    unkIndex = tables[0].getIndex(UNK_QUERY);
+
     // print some status information
     long postLMLoadMemUsed = rt.totalMemory() - rt.freeMemory();
     long loadTimeMillis = System.currentTimeMillis() - startTimeMillis;
@@ -165,6 +167,26 @@ public class ARPALanguageModel implements LanguageModel<IString> {
     return getName();
   }
 
+  /**
+   * Per-thread scratch space for queries.
+   */
+  private static class Scratch {
+    int[] ngram = new int[64];
+    double[] bows = new double[MAX_GRAM];
+    int[] matchStart = new int[1];
+    int[] ensureCapacity(int size) {
+      if (ngram.length < size) {
+        ngram = new int[Math.max(size, 2 * ngram.length)];
+      }
+      return ngram;
+    }
+  }
+
+  private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() { return new Scratch(); }
+  };
+
   /**
    * 
    * From CMU language model headers:
@@ -177,72 +199,102 @@ public class ARPALanguageModel implements LanguageModel<IString> {
    * 
    * p(wd2|wd1)= if(bigram exists) p_2(wd1,wd2) else bo_wt_1(wd1)*p_1(wd2)
    * 
+   * Scores the n-gram <code>ngram[start, end]</code> iteratively. The backoff weights
+   * are summed from the innermost to the outermost context so that the result
+   * is identical to the recursive definition.
+   * 
+   * @return the score. The start of the matched n-gram is stored in
+   *   <code>matchStart</code>, or -1 for an unknown word.
    */
-  protected ARPALMState scoreNgram(Sequence<IString> sequence) {
-    int[] ngramInts = Sequences.toIntArray(sequence);
-    int index;
-
-    index = tables[ngramInts.length - 1].getIndex(ngramInts);
-    if (index >= 0) { // found a match
-      double p = probs[ngramInts.length - 1][index];
-      if (verbose)
-        System.err.printf("EM: scoreR: seq: %s logp: %f%n", sequence.toString(), p);
-      return new ARPALMState(p, sequence.subsequence(1, sequence.size()));
-    }
-    
-    // OOV
-    if (ngramInts.length == 1) {
-      // First check for an <unk> class, which is present for KenLM
-      // but not necessarily for SRILM.
-      index = tables[0].getIndex(UNK_QUERY);
-      double p = index >= 0 ? probs[0][index] : UNKNOWN_WORD_SCORE;
-      return new ARPALMState(p, EMPTY_SEQUENCE);
-    }
-    
-    // Backoff recursively
-    Sequence<IString> prefix = sequence.subsequence(0, ngramInts.length - 1);
-    int[] prefixInts = Sequences.toIntArray(prefix);
-    index = tables[prefixInts.length - 1].getIndex(prefixInts);
-    double bow = 0;
-    if (index >= 0) {
-      bow = bows[prefixInts.length - 1][index];
-    }
-    if (Double.isNaN(bow)) {
-      bow = 0.0; // treat NaNs as bow that are not found at all
+  private double scoreNgram(int[] ngram, int start, int end, double[] bowBuffer, int[] matchStart) {
+    int numBows = 0;
+    double p = UNKNOWN_WORD_SCORE;
+    matchStart[0] = -1;
+    for (int i = start; i <= end; ++i) {
+      final int length = end - i + 1;
+      int index = tables[length - 1].find(ngram, i, length);
+      if (index >= 0) { // found a match
+        p = probs[length - 1][index];
+        matchStart[0] = i;
+        break;
+      }
+
+      // OOV
+      if (length == 1) {
+        p = unkIndex >= 0 ? probs[0][unkIndex] : UNKNOWN_WORD_SCORE;
+        break;
+      }
+
+      // Backoff
+      index = tables[length - 2].find(ngram, i, length - 1);
+      double bow = index >= 0 ? bows[length - 2][index] : 0.0;
+      if (Double.isNaN(bow)) {
+        bow = 0.0; // treat NaNs as bow that are not found at all
+      }
+      bowBuffer[numBows++] = bow;
     }
-    ARPALMState state = scoreNgram(sequence.subsequence(1, ngramInts.length));
-    double p = bow + state.getScore();
-    if (verbose) {
-      System.err.printf("scoreR: seq: %s logp: %f [%f] bow: %f\n",
-          sequence.toString(), p, p / Math.log(10), bow);
+    for (int i = numBows - 1; i >= 0; --i) {
+      p = bowBuffer[i] + p;
     }
-    return new ARPALMState(p, state);
+    return p;
   }
 
   @Override
   public LMState score(Sequence<IString> sequence, int startOffsetIndex, LMState priorState) {
     // Concatenate the state onto the sequence.
-    if (priorState != null && priorState instanceof ARPALMState) {
-      int seqLength = sequence.size();
-    	sequence = Sequences.concatenate(((ARPALMState) priorState).getState(), sequence);
-    	startOffsetIndex += (sequence.size() - seqLength);
+    final int[] context = getContext(priorState);
+    final int limit = context.length + sequence.size();
+    final Scratch buffers = scratch.get();
+    final int[] ngram = buffers.ensureCapacity(limit);
+    System.arraycopy(context, 0, ngram, 0, context.length);
+    for (int i = context.length; i < limit; ++i) {
+      ngram[i] = sequence.get(i - context.length).id;
     }
+    return scoreBuffer(buffers, limit, startOffsetIndex + context.length);
+  }
+
+  @Override
+  public LMState score(int[] sequence, int startOffsetIndex, LMState priorState) {
+    // Concatenate the state onto the sequence.
+    final int[] context = getContext(priorState);
+    final int limit = context.length + sequence.length;
+    final Scratch buffers = scratch.get();
+    final int[] ngram = buffers.ensureCapacity(limit);
+    System.arraycopy(context, 0, ngram, 0, context.length);
+    System.arraycopy(sequence, 0, ngram, context.length, sequence.length);
+    return scoreBuffer(buffers, limit, startOffsetIndex + context.length);
+  }
 
-    // Score the sequence
+  private static int[] getContext(LMState priorState) {
+    return priorState != null && priorState instanceof ARPALMState ?
+        ((ARPALMState) priorState).getState() : EMPTY_STATE.getState();
+  }
+
+  /**
+   * Score positions <code>[startOffsetIndex, limit)</code> of the scratch n-gram buffer.
+   * The only allocation is the returned state, which owns a copy of its context.
+   */
+  private LMState scoreBuffer(Scratch buffers, int limit, int startOffsetIndex) {
+    final int[] ngram = buffers.ngram;
+    final int order = order();
+    final int[] matchStart = buffers.matchStart;
     double lmSumScore = 0.0;
-    ARPALMState state = EMPTY_STATE;
-    for (int pos = startOffsetIndex, limit = sequence.size(); pos < limit; pos++) {
-      final int seqStart = Math.max(0, pos - order() + 1);
-      Sequence<IString> ngram = sequence.subsequence(seqStart, pos + 1);
-      state = scoreNgram(ngram);
-      lmSumScore += state.getScore();
+    int stateStart = -1;
+    int stateEnd = -1;
+    for (int pos = startOffsetIndex; pos < limit; pos++) {
+      final int seqStart = Math.max(0, pos - order + 1);
+      lmSumScore += scoreNgram(ngram, seqStart, pos, buffers.bows, matchStart);
+      stateStart = matchStart[0] < 0 ? pos + 1 : matchStart[0] + 1;
+      stateEnd = pos + 1;
     }
+    ARPALMState state = stateStart < 0 ? EMPTY_STATE : 
+      new ARPALMState(lmSumScore, ngram, stateStart, stateEnd);
     
     if (verbose) {
-      System.err.printf("ARPALM: seq: %s  state: %s  score: %f%n", sequence.toString(),
-          state.toString(), lmSumScore);
+      System.err.printf("ARPALM: seq: %s  state: %s  score: %f%n",
+          Arrays.toString(Arrays.copyOf(ngram, limit)), state.toString(), lmSumScore);
     }
-    return new ARPALMState(lmSumScore, state);
+    return state;
   }
 
   @Override
@@ -0,0 +1,112 @@
+package edu.stanford.nlp.mt.lm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.Sequence;
+import edu.stanford.nlp.mt.util.Sequences;
+
+/**
+ * KenLM language model that supports batch queries. A batch is packed into a
+ * per-thread direct buffer and scored with a single native call, so the JNI
+ * transition and the pinning of the query arrays are amortized over the batch.
+ *
+ * Load with the <code>LanguageModelFactory.KEN_LM_BATCH_TAG</code> prefix.
+ *
+ */
+public class BatchKenLanguageModel extends KenLanguageModel implements BatchLanguageModel {
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(() -> new Buffers());
+
+  /**
+   * Constructor.
+   *
+   * @param filename
+   */
+  public BatchKenLanguageModel(String filename) {
+    super(filename);
+  }
+
+  @Override
+  public LMState score(Sequence<IString> sequence, int startIndex, LMState priorState) {
+    return score(Sequences.toIntArray(sequence), startIndex, priorState);
+  }
+
+  @Override
+  public LMState score(int[] sequence, int startIndex, LMState priorState) {
+    int[] state = priorState == null ? EMPTY_INT_ARRAY : ((KenLMState) priorState).getState();
+    int[] ngramIds = makeKenLMInput(sequence, state);
+    int kenLMStartIndex = ngramIds.length - state.length - startIndex - 1;
+    long got = model.scoreSeqMarshalled(ngramIds, kenLMStartIndex);
+    return new KenLMState(KenLM.scoreFromMarshalled(got), ngramIds, KenLM.rightStateFromMarshalled(got));
+  }
+
+  @Override
+  public LMState[] score(int[][] sequences, int[] startIndices, LMState[] priorStates) {
+    final int numQueries = sequences.length;
+    final int[][] ngramIds = new int[numQueries][];
+    int size = 0;
+    for (int i = 0; i < numQueries; ++i) {
+      int[] state = priorStates[i] == null ? EMPTY_INT_ARRAY : ((KenLMState) priorStates[i]).getState();
+      ngramIds[i] = makeKenLMInput(sequences[i], state);
+      size += ngramIds[i].length + 2;
+    }
+
+    // Pack the queries
+    final Buffers b = buffers.get();
+    b.ensureCapacity(size, numQueries);
+    final IntBuffer queries = b.queries;
+    queries.clear();
+    for (int i = 0; i < numQueries; ++i) {
+      final int[] ids = ngramIds[i];
+      final int stateLength = ids.length - sequences[i].length;
+      queries.put(ids.length);
+      // Reverse the start index for KenLM
+      queries.put(ids.length - stateLength - startIndices[i] - 1);
+      queries.put(ids);
+    }
+
+    // Execute the query (via JNI) and construct the return states
+    model.scoreSeqMarshalled(queries, b.results, numQueries);
+    final LMState[] states = new LMState[numQueries];
+    for (int i = 0; i < numQueries; ++i) {
+      long got = b.results.get(i);
+      states[i] = new KenLMState(KenLM.scoreFromMarshalled(got), ngramIds[i],
+          KenLM.rightStateFromMarshalled(got));
+    }
+    return states;
+  }
+
+  /**
+   * Direct buffers for batch queries.
+   */
+  private static class Buffers {
+    public IntBuffer queries;
+    public LongBuffer results;
+
+    public Buffers() {
+      queries = ByteBuffer.allocateDirect(INITIAL_CAPACITY * Integer.BYTES)
+          .order(ByteOrder.nativeOrder()).asIntBuffer();
+      results = ByteBuffer.allocateDirect(INITIAL_CAPACITY * Long.BYTES)
+          .order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+
+    public void ensureCapacity(int numInts, int numLongs) {
+      if (queries.capacity() < numInts) {
+        int capacity = Math.max(numInts, 2 * queries.capacity());
+        queries = ByteBuffer.allocateDirect(capacity * Integer.BYTES)
+            .order(ByteOrder.nativeOrder()).asIntBuffer();
+      }
+      if (results.capacity() < numLongs) {
+        int capacity = Math.max(numLongs, 2 * results.capacity());
+        results = ByteBuffer.allocateDirect(capacity * Long.BYTES)
+            .order(ByteOrder.nativeOrder()).asLongBuffer();
+      }
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package edu.stanford.nlp.mt.lm;
+
+/**
+ * A language model that can score many sequences in one call. Implementations
+ * can amortize per-query overhead, e.g., mini-batches in a neural LM or the
+ * JNI crossing of a native LM.
+ *
+ */
+public interface BatchLanguageModel extends IntegerArrayLanguageModel {
+
+  /**
+   * Score a batch of sequences. Position i of the output is the result of
+   * <code>score(sequences[i], startOffsetIndices[i], priorStates[i])</code>.
+   *
+   * @param sequences IString ids of each sequence. Not modified.
+   * @param startOffsetIndices index in each sequence to start scoring.
+   * @param priorStates State from a prior call to score() for each sequence. Entries
+   *        may be null.
+   * @return the language model states of the sequences
+   */
+  LMState[] score(int[][] sequences, int[] startOffsetIndices, LMState[] priorStates);
+}
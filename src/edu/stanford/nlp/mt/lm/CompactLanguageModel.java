@@ -0,0 +1,641 @@
+package edu.stanford.nlp.mt.lm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import edu.stanford.nlp.mt.util.IOTools;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.MurmurHash;
+import edu.stanford.nlp.mt.util.Sequence;
+import edu.stanford.nlp.mt.util.TokenUtils;
+
+/**
+ * A pure Java n-gram language model stored in a compact binary file that is
+ * memory-mapped at load time. Each n-gram order is an open-addressing table of
+ * 64-bit hashed keys. Log probabilities and backoff weights are quantized to 8 or
+ * 16 bits with per-order codebooks.
+ *
+ * Each entry also stores a 32-bit fingerprint from an independent hash. A query
+ * matches an entry only if both the key and the fingerprint agree, so an n-gram
+ * that is not in the model is mistaken for one that is with probability about
+ * 2^-96 per probe. The build fails if two n-grams of the model agree on both.
+ *
+ * The binary file is built once from an ARPA file with {@link #build(String, String, int, double)}.
+ * Optionally, highest-order n-grams below a log10 probability threshold are pruned
+ * during the build. The backoff weights of the affected contexts are then
+ * recomputed so that each conditional distribution still sums to one, as in
+ * SRILM pruning. Queries back off to shorter n-grams as in
+ * {@link ARPALanguageModel}.
+ *
+ */
+public class CompactLanguageModel implements IntegerArrayLanguageModel {
+
+  public static final int DEFAULT_BITS = 16;
+
+  private static final int MAGIC = 0x434c4d31;
+  private static final int VERSION = 2;
+  private static final float LOAD_FACTOR = 0.6f;
+  private static final long EMPTY_KEY = 0L;
+  private static final int HASH_SEED = 1;
+  private static final int FINGERPRINT_SEED = 0x5bd1e995;
+
+  private static final ARPALMState EMPTY_STATE = new ARPALMState(0.0, new int[0]);
+
+  private final String name;
+  private final int order;
+  private final int bits;
+  private final int[] systemToFile;
+
+  // Per-order tables
+  private final int[] masks;
+  private final LongBuffer[] keys;
+  private final IntBuffer[] fingerprints;
+  private final ShortBuffer[] probCodes16;
+  private final ShortBuffer[] bowCodes16;
+  private final ByteBuffer[] probCodes8;
+  private final ByteBuffer[] bowCodes8;
+  private final float[][] probCodebooks;
+  private final float[][] bowCodebooks;
+  private final double unkScore;
+
+  /**
+   * Constructor.
+   *
+   * @param filename
+   * @throws IOException
+   */
+  public CompactLanguageModel(String filename) throws IOException {
+    final long startTime = System.nanoTime();
+    name = String.format("CompactLM(%s)", filename);
+    File f = new File(filename);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+      in.close();
+      throw new IOException("Not a compact language model file: " + filename);
+    }
+    final int prefixBytes = in.readInt();
+    order = in.readInt();
+    bits = in.readInt();
+    if (bits != 8 && bits != 16) {
+      in.close();
+      throw new IOException("Unsupported quantization: " + bits);
+    }
+    final int vocabSize = in.readInt();
+    int[] fileIds = new int[vocabSize];
+    int maxSystemId = -1;
+    for (int i = 0; i < vocabSize; ++i) {
+      fileIds[i] = new IString(in.readUTF()).id;
+      maxSystemId = Math.max(maxSystemId, fileIds[i]);
+    }
+    systemToFile = new int[maxSystemId + 1];
+    Arrays.fill(systemToFile, -1);
+    for (int i = 0; i < vocabSize; ++i) {
+      systemToFile[fileIds[i]] = i;
+    }
+    final int codebookSize = 1 << bits;
+    int[] tableSizes = new int[order];
+    probCodebooks = new float[order][];
+    bowCodebooks = new float[order][];
+    for (int i = 0; i < order; ++i) {
+      tableSizes[i] = in.readInt();
+      probCodebooks[i] = readFloats(in, codebookSize);
+      if (i + 1 < order) bowCodebooks[i] = readFloats(in, codebookSize);
+    }
+    in.close();
+
+    masks = new int[order];
+    keys = new LongBuffer[order];
+    fingerprints = new IntBuffer[order];
+    probCodes16 = new ShortBuffer[order];
+    bowCodes16 = new ShortBuffer[order];
+    probCodes8 = new ByteBuffer[order];
+    bowCodes8 = new ByteBuffer[order];
+    final int codeBytes = bits / Byte.SIZE;
+    try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+      FileChannel channel = raf.getChannel();
+      long offset = 3 * (Integer.SIZE / Byte.SIZE) + prefixBytes;
+      for (int i = 0; i < order; ++i) {
+        final int tableSize = tableSizes[i];
+        masks[i] = tableSize - 1;
+        keys[i] = channel.map(MapMode.READ_ONLY, offset, (long) tableSize * (Long.SIZE / Byte.SIZE)).asLongBuffer();
+        offset += (long) tableSize * (Long.SIZE / Byte.SIZE);
+        fingerprints[i] = channel.map(MapMode.READ_ONLY, offset, (long) tableSize * (Integer.SIZE / Byte.SIZE)).asIntBuffer();
+        offset += (long) tableSize * (Integer.SIZE / Byte.SIZE);
+        ByteBuffer probs = channel.map(MapMode.READ_ONLY, offset, (long) tableSize * codeBytes);
+        offset += (long) tableSize * codeBytes;
+        ByteBuffer bows = null;
+        if (i + 1 < order) {
+          bows = channel.map(MapMode.READ_ONLY, offset, (long) tableSize * codeBytes);
+          offset += (long) tableSize * codeBytes;
+        }
+        if (bits == 16) {
+          probCodes16[i] = probs.asShortBuffer();
+          bowCodes16[i] = bows == null ? null : bows.asShortBuffer();
+        } else {
+          probCodes8[i] = probs;
+          bowCodes8[i] = bows;
+        }
+      }
+    }
+
+    // First check for an <unk> class, which is present for KenLM
+    // but not necessarily for SRILM.
+    int unkId = toFileId(TokenUtils.UNK_TOKEN);
+    int slot = unkId < 0 ? -1 : find(new int[] { unkId }, 0, 1);
+    unkScore = slot < 0 ? ARPALanguageModel.UNKNOWN_WORD_SCORE : prob(0, slot);
+
+    double elapsedTime = ((double) System.nanoTime() - startTime) / 1e9;
+    System.err.printf("Done mapping compact lm: %s (order: %d bits: %d time: %.3f s)%n",
+        filename, order, bits, elapsedTime);
+  }
+
+  private static float[] readFloats(DataInputStream in, int size) throws IOException {
+    float[] values = new float[size];
+    for (int i = 0; i < size; ++i) values[i] = in.readFloat();
+    return values;
+  }
+
+  private int toFileId(IString token) {
+    return token.id >= 0 && token.id < systemToFile.length ? systemToFile[token.id] : -1;
+  }
+
+  private static long hash(int[] ngram, int start, int length) {
+    long hashed = MurmurHash.hash64(ngram, start, length, HASH_SEED);
+    return hashed == EMPTY_KEY ? 1L : hashed;
+  }
+
+  private static int fingerprint(int[] ngram, int start, int length) {
+    return (int) MurmurHash.hash64(ngram, start, length, FINGERPRINT_SEED);
+  }
+
+  /**
+   * Find the table slot of an n-gram.
+   *
+   * @return the slot, or -1 if the n-gram is not in the model.
+   */
+  private int find(int[] ngram, int start, int length) {
+    final int tableOrder = length - 1;
+    final LongBuffer table = keys[tableOrder];
+    final int mask = masks[tableOrder];
+    final long hashed = hash(ngram, start, length);
+    int fp = 0;
+    boolean hasFingerprint = false;
+    for (int i = ((int) hashed) & mask; ; i = (i + 1) & mask) {
+      long key = table.get(i);
+      if (key == hashed) {
+        if ( ! hasFingerprint) {
+          fp = fingerprint(ngram, start, length);
+          hasFingerprint = true;
+        }
+        if (fingerprints[tableOrder].get(i) == fp) return i;
+      }
+      if (key == EMPTY_KEY) return -1;
+    }
+  }
+
+  private double prob(int tableOrder, int slot) {
+    int code = bits == 16 ? probCodes16[tableOrder].get(slot) & 0xffff :
+      probCodes8[tableOrder].get(slot) & 0xff;
+    return probCodebooks[tableOrder][code];
+  }
+
+  private double bow(int tableOrder, int slot) {
+    int code = bits == 16 ? bowCodes16[tableOrder].get(slot) & 0xffff :
+      bowCodes8[tableOrder].get(slot) & 0xff;
+    return bowCodebooks[tableOrder][code];
+  }
+
+  /**
+   * Per-thread scratch space for queries.
+   */
+  private static class Scratch {
+    int[] ngram = new int[64];
+    int[] fileIds = new int[64];
+    void ensureCapacity(int size) {
+      if (ngram.length < size) {
+        ngram = new int[Math.max(size, 2 * ngram.length)];
+        fileIds = new int[ngram.length];
+      }
+    }
+  }
+
+  private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() { return new Scratch(); }
+  };
+
+  @Override
+  public LMState score(Sequence<IString> sequence, int startOffsetIndex, LMState priorState) {
+    // Concatenate the state onto the sequence.
+    final int[] context = getContext(priorState);
+    final int limit = context.length + sequence.size();
+    final Scratch buffers = scratch.get();
+    buffers.ensureCapacity(limit);
+    System.arraycopy(context, 0, buffers.ngram, 0, context.length);
+    for (int i = context.length; i < limit; ++i) {
+      buffers.ngram[i] = sequence.get(i - context.length).id;
+    }
+    return scoreBuffer(buffers, limit, startOffsetIndex + context.length);
+  }
+
+  @Override
+  public LMState score(int[] sequence, int startOffsetIndex, LMState priorState) {
+    // Concatenate the state onto the sequence.
+    final int[] context = getContext(priorState);
+    final int limit = context.length + sequence.length;
+    final Scratch buffers = scratch.get();
+    buffers.ensureCapacity(limit);
+    System.arraycopy(context, 0, buffers.ngram, 0, context.length);
+    System.arraycopy(sequence, 0, buffers.ngram, context.length, sequence.length);
+    return scoreBuffer(buffers, limit, startOffsetIndex + context.length);
+  }
+
+  private static int[] getContext(LMState priorState) {
+    return priorState != null && priorState instanceof ARPALMState ?
+        ((ARPALMState) priorState).getState() : EMPTY_STATE.getState();
+  }
+
+  /**
+   * Score positions <code>[startOffsetIndex, limit)</code> of the scratch n-gram buffer.
+   * The only allocation is the returned state, which owns a copy of its context.
+   */
+  private LMState scoreBuffer(Scratch buffers, int limit, int startOffsetIndex) {
+    final int[] ngram = buffers.ngram;
+    final int[] fileIds = buffers.fileIds;
+    for (int i = 0; i < limit; ++i) {
+      fileIds[i] = ngram[i] >= 0 && ngram[i] < systemToFile.length ? systemToFile[ngram[i]] : -1;
+    }
+
+    // Score each position, backing off as in ARPALanguageModel
+    double lmSumScore = 0.0;
+    int stateStart = -1;
+    int stateEnd = -1;
+    for (int pos = startOffsetIndex; pos < limit; pos++) {
+      final int seqStart = Math.max(0, pos - order + 1);
+      double bowSum = 0.0;
+      double p = unkScore;
+      stateStart = pos + 1;
+      for (int i = seqStart; i <= pos; ++i) {
+        final int length = pos - i + 1;
+        int slot = fileIds[pos] < 0 ? -1 : find(fileIds, i, length);
+        if (slot >= 0) {
+          p = prob(length - 1, slot);
+          stateStart = i + 1;
+          break;
+        }
+        if (length > 1) {
+          int prefixSlot = find(fileIds, i, length - 1);
+          if (prefixSlot >= 0) bowSum += bow(length - 2, prefixSlot);
+        }
+      }
+      lmSumScore += bowSum + p;
+      stateEnd = pos + 1;
+    }
+    return stateStart < 0 ? EMPTY_STATE :
+      new ARPALMState(lmSumScore, ngram, stateStart, stateEnd);
+  }
+
+  @Override
+  public IString getStartToken() {
+    return TokenUtils.START_TOKEN;
+  }
+
+  @Override
+  public IString getEndToken() {
+    return TokenUtils.END_TOKEN;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public int order() {
+    return order;
+  }
+
+  @Override
+  public String toString() {
+    return getName();
+  }
+
+  /**
+   * Build a codebook by equal-population binning of the sorted values. Code 0 is
+   * reserved for values that cannot be binned (-inf probabilities and missing
+   * backoff weights).
+   */
+  private static float[] makeCodebook(float[] values, int size, int bits, float reservedValue) {
+    float[] sorted = new float[size];
+    int numFinite = 0;
+    for (int i = 0; i < size; ++i) {
+      if ( ! Float.isNaN(values[i]) && ! Float.isInfinite(values[i])) sorted[numFinite++] = values[i];
+    }
+    Arrays.sort(sorted, 0, numFinite);
+    final int numCodes = (1 << bits) - 1;
+    float[] codebook = new float[numCodes + 1];
+    codebook[0] = reservedValue;
+    if (numFinite == 0) return codebook;
+    for (int c = 0; c < numCodes; ++c) {
+      int lo = (int) ((long) c * numFinite / numCodes);
+      int hi = (int) ((long) (c + 1) * numFinite / numCodes);
+      if (hi <= lo) {
+        codebook[c + 1] = sorted[Math.min(lo, numFinite - 1)];
+        continue;
+      }
+      double sum = 0.0;
+      for (int j = lo; j < hi; ++j) sum += sorted[j];
+      codebook[c + 1] = (float) (sum / (hi - lo));
+    }
+    Arrays.sort(codebook, 1, codebook.length);
+    return codebook;
+  }
+
+  /**
+   * Nearest codebook entry of a value.
+   */
+  private static int quantize(float[] codebook, float value) {
+    if (Float.isNaN(value) || Float.isInfinite(value)) return 0;
+    int idx = Arrays.binarySearch(codebook, 1, codebook.length, value);
+    if (idx >= 0) return idx;
+    int insertion = -(idx + 1);
+    if (insertion <= 1) return 1;
+    if (insertion >= codebook.length) return codebook.length - 1;
+    return value - codebook[insertion - 1] <= codebook[insertion] - value ? insertion - 1 : insertion;
+  }
+
+  /**
+   * Build a compact language model from an ARPA file.
+   *
+   * @param arpaFile
+   * @param outputFile
+   * @param bits 8 or 16
+   * @param pruneThreshold Discard highest-order n-grams with log10 probability below
+   *        this value. Use Double.NEGATIVE_INFINITY to disable pruning.
+   * @throws IOException
+   */
+  public static void build(String arpaFile, String outputFile, int bits, double pruneThreshold)
+      throws IOException {
+    if (bits != 8 && bits != 16) {
+      throw new IllegalArgumentException("Quantization must be 8 or 16 bits: " + bits);
+    }
+    final long startTime = System.nanoTime();
+    LineNumberReader reader = IOTools.getReaderFromFile(arpaFile);
+
+    // skip everything until the line that begins with '\data\'
+    while (!ARPALanguageModel.readLineNonNull(reader).startsWith("\\data\\")) {
+    }
+    int[] ngramCounts = new int[LanguageModelFactory.MAX_NGRAM_ORDER];
+    String inline;
+    int maxOrder = 0;
+    while ((inline = ARPALanguageModel.readLineNonNull(reader)).startsWith("ngram")) {
+      inline = inline.replaceFirst("ngram\\s+", "");
+      String[] fields = inline.split("=");
+      int ngramOrder = Integer.parseInt(fields[0]);
+      if (ngramOrder > LanguageModelFactory.MAX_NGRAM_ORDER) {
+        reader.close();
+        throw new RuntimeException(String.format("Max n-gram order: %d%n",
+            LanguageModelFactory.MAX_NGRAM_ORDER));
+      }
+      ngramCounts[ngramOrder - 1] = Integer.parseInt(fields[1].replaceAll("[^0-9]", ""));
+      maxOrder = Math.max(maxOrder, ngramOrder);
+    }
+
+    final float log10LogConstant = (float) Math.log(10);
+    final float logPruneThreshold = (float) (pruneThreshold * log10LogConstant);
+    Map<String,Integer> vocab = new HashMap<>();
+    List<String> vocabList = new ArrayList<>();
+    long[][] ngramKeys = new long[maxOrder][];
+    int[][] ngramFingerprints = new int[maxOrder][];
+    float[][] probs = new float[maxOrder][];
+    float[][] bows = new float[maxOrder][];
+    int[] sizes = new int[maxOrder];
+    int numPruned = 0;
+
+    // Pruning state. Lower-order n-grams are indexed by key so that backed-off
+    // probabilities can be computed for the contexts of the highest order.
+    final boolean prune = pruneThreshold != Double.NEGATIVE_INFINITY && maxOrder > 1;
+    final Long2IntOpenHashMap[] ngramIndex = prune ? new Long2IntOpenHashMap[maxOrder - 1] : null;
+    final LongOpenHashSet prunedContexts = prune ? new LongOpenHashSet() : null;
+    final Long2DoubleOpenHashMap keptProb = prune ? new Long2DoubleOpenHashMap() : null;
+    final Long2DoubleOpenHashMap keptLowerProb = prune ? new Long2DoubleOpenHashMap() : null;
+    for (int order = 0; order < maxOrder; order++) {
+      String nextOrderHeader = String.format("\\%d-grams:", order + 1);
+      ngramKeys[order] = new long[ngramCounts[order]];
+      ngramFingerprints[order] = new int[ngramCounts[order]];
+      if (prune && order + 1 < maxOrder) {
+        ngramIndex[order] = new Long2IntOpenHashMap(ngramCounts[order]);
+        ngramIndex[order].defaultReturnValue(-1);
+      }
+      probs[order] = new float[ngramCounts[order]];
+      if (order + 1 < maxOrder) bows[order] = new float[ngramCounts[order]];
+      int[] ngram = new int[order + 1];
+      while (!ARPALanguageModel.readLineNonNull(reader).startsWith(nextOrderHeader)) {
+      }
+      int n = 0;
+      while (!(inline = ARPALanguageModel.readLineNonNull(reader)).equals("") && !(inline.equals("\\end\\"))) {
+        StringTokenizer tok = new StringTokenizer(inline);
+        String probStr = tok.nextToken();
+        float prob = (probStr.equals("-inf") ? Float.NEGATIVE_INFINITY : Float.parseFloat(probStr))
+            * log10LogConstant;
+        for (int i = 0; i <= order; i++) {
+          String word = tok.nextToken();
+          Integer id = vocab.get(word);
+          if (id == null) {
+            id = vocabList.size();
+            vocab.put(word, id);
+            vocabList.add(word);
+          }
+          ngram[i] = id;
+        }
+        float bow = tok.hasMoreElements() ? Float.parseFloat(tok.nextToken()) * log10LogConstant
+            : Float.NaN;
+        if (prune && order + 1 == maxOrder) {
+          final long context = hash(ngram, 0, order);
+          if (prob < logPruneThreshold) {
+            prunedContexts.add(context);
+            ++numPruned;
+            continue;
+          }
+          keptProb.addTo(context, Math.exp(prob));
+          keptLowerProb.addTo(context, Math.exp(backoffProb(ngram, 1, order + 1, ngramIndex, probs, bows)));
+        }
+        ngramKeys[order][n] = hash(ngram, 0, ngram.length);
+        ngramFingerprints[order][n] = fingerprint(ngram, 0, ngram.length);
+        if (prune && order + 1 < maxOrder) ngramIndex[order].put(ngramKeys[order][n], n);
+        probs[order][n] = prob;
+        if (bows[order] != null) bows[order][n] = bow;
+        ++n;
+      }
+      sizes[order] = n;
+    }
+    reader.close();
+
+    // Recompute the backoff weights of contexts that lost n-grams:
+    //   bow(h) = (1 - sum_w P(w|h)) / (1 - sum_w P(w|h'))
+    // where the sums are over the remaining n-grams (h,w), and h' is h without its first word.
+    int numRenormalized = 0;
+    if (prune) {
+      final int contextOrder = maxOrder - 2;
+      for (LongIterator it = prunedContexts.iterator(); it.hasNext();) {
+        final long context = it.nextLong();
+        final int idx = ngramIndex[contextOrder].get(context);
+        if (idx < 0) continue;
+        final double numerator = 1.0 - keptProb.get(context);
+        final double denominator = 1.0 - keptLowerProb.get(context);
+        if (numerator <= 0.0 || denominator <= 0.0) continue;
+        bows[contextOrder][idx] = (float) (Math.log(numerator) - Math.log(denominator));
+        ++numRenormalized;
+      }
+    }
+
+    // Serialize the vocabulary and the codebooks
+    ByteArrayOutputStream prefixBytes = new ByteArrayOutputStream();
+    DataOutputStream prefix = new DataOutputStream(prefixBytes);
+    prefix.writeInt(maxOrder);
+    prefix.writeInt(bits);
+    prefix.writeInt(vocabList.size());
+    for (String word : vocabList) prefix.writeUTF(word);
+    int[] tableSizes = new int[maxOrder];
+    float[][] probCodebooks = new float[maxOrder][];
+    float[][] bowCodebooks = new float[maxOrder][];
+    for (int order = 0; order < maxOrder; ++order) {
+      long tableSize = Long.highestOneBit((long) (Math.max(sizes[order], 1) / LOAD_FACTOR)) << 1;
+      if (tableSize * (Long.SIZE / Byte.SIZE) > Integer.MAX_VALUE) {
+        throw new RuntimeException(String.format("Too many %d-grams for a mapped table: %d",
+            order + 1, sizes[order]));
+      }
+      tableSizes[order] = (int) tableSize;
+      prefix.writeInt(tableSizes[order]);
+      probCodebooks[order] = makeCodebook(probs[order], sizes[order], bits, Float.NEGATIVE_INFINITY);
+      for (float v : probCodebooks[order]) prefix.writeFloat(v);
+      if (order + 1 < maxOrder) {
+        bowCodebooks[order] = makeCodebook(bows[order], sizes[order], bits, 0.0f);
+        for (float v : bowCodebooks[order]) prefix.writeFloat(v);
+      }
+    }
+    prefix.close();
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(outputFile), 1 << 16));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(prefixBytes.size());
+    prefixBytes.writeTo(out);
+    for (int order = 0; order < maxOrder; ++order) {
+      final int tableSize = tableSizes[order];
+      final int mask = tableSize - 1;
+      long[] table = new long[tableSize];
+      int[] fingerprintTable = new int[tableSize];
+      int[] probTable = new int[tableSize];
+      int[] bowTable = bows[order] == null ? null : new int[tableSize];
+      for (int n = 0; n < sizes[order]; ++n) {
+        final long hashed = ngramKeys[order][n];
+        final int fp = ngramFingerprints[order][n];
+        int i = ((int) hashed) & mask;
+        for (; table[i] != EMPTY_KEY; i = (i + 1) & mask) {
+          if (table[i] == hashed && fingerprintTable[i] == fp) {
+            out.close();
+            throw new RuntimeException(String.format(
+                "Hash collision or duplicate %d-gram in %s", order + 1, arpaFile));
+          }
+        }
+        table[i] = hashed;
+        fingerprintTable[i] = fp;
+        probTable[i] = quantize(probCodebooks[order], probs[order][n]);
+        if (bowTable != null) bowTable[i] = quantize(bowCodebooks[order], bows[order][n]);
+      }
+      for (long key : table) out.writeLong(key);
+      for (int fp : fingerprintTable) out.writeInt(fp);
+      writeCodes(out, probTable, bits);
+      if (bowTable != null) writeCodes(out, bowTable, bits);
+      // Release memory for the next order
+      ngramKeys[order] = null;
+      ngramFingerprints[order] = null;
+      probs[order] = null;
+      bows[order] = null;
+    }
+    out.close();
+
+    double elapsedTime = ((double) System.nanoTime() - startTime) / 1e9;
+    System.err.printf("Built compact lm %s from %s (order: %d bits: %d pruned: %d renormalized: %d time: %.3f s)%n",
+        outputFile, arpaFile, maxOrder, bits, numPruned, numRenormalized, elapsedTime);
+  }
+
+  /**
+   * Backed-off log probability of the last word of <code>ngram[start,end)</code> given
+   * the preceding words, computed from the n-grams that have been read so far.
+   */
+  private static double backoffProb(int[] ngram, int start, int end, Long2IntOpenHashMap[] ngramIndex,
+      float[][] probs, float[][] bows) {
+    final int length = end - start;
+    final int idx = ngramIndex[length - 1].get(hash(ngram, start, length));
+    if (idx >= 0) return probs[length - 1][idx];
+    if (length == 1) return ARPALanguageModel.UNKNOWN_WORD_SCORE;
+    final int contextIdx = ngramIndex[length - 2].get(hash(ngram, start, length - 1));
+    final float bow = contextIdx < 0 ? Float.NaN : bows[length - 2][contextIdx];
+    return (Float.isNaN(bow) ? 0.0 : bow) + backoffProb(ngram, start + 1, end, ngramIndex, probs, bows);
+  }
+
+  private static void writeCodes(DataOutputStream out, int[] codes, int bits) throws IOException {
+    for (int code : codes) {
+      if (bits == 16) {
+        out.writeShort(code);
+      } else {
+        out.writeByte(code);
+      }
+    }
+  }
+
+  /**
+   *
+   * @param args
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    int bits = DEFAULT_BITS;
+    double pruneThreshold = Double.NEGATIVE_INFINITY;
+    int argIdx = 0;
+    for (; argIdx < args.length && args[argIdx].startsWith("-"); ++argIdx) {
+      if (args[argIdx].equals("-bits")) {
+        bits = Integer.parseInt(args[++argIdx]);
+      } else if (args[argIdx].equals("-prune")) {
+        pruneThreshold = Double.parseDouble(args[++argIdx]);
+      } else {
+        break;
+      }
+    }
+    if (args.length - argIdx != 2) {
+      System.err.printf("Usage: java %s [-bits 8|16] [-prune log10_prob] arpa_file output_file%n",
+          CompactLanguageModel.class.getName());
+      System.exit(-1);
+    }
+    build(args[argIdx], args[argIdx + 1], bits, pruneThreshold);
+  }
+}
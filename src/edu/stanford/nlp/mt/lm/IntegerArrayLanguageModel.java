@@ -0,0 +1,22 @@
+package edu.stanford.nlp.mt.lm;
+
+import edu.stanford.nlp.mt.util.IString;
+
+/**
+ * A language model that can be queried directly with IString ids, without
+ * constructing Sequence objects.
+ *
+ */
+public interface IntegerArrayLanguageModel extends LanguageModel<IString> {
+
+  /**
+   * Same contract as {@link LanguageModel#score(edu.stanford.nlp.mt.util.Sequence, int, LMState)},
+   * but the sequence is an array of IString ids.
+   *
+   * @param sequence IString ids of the sequence to score. Not modified.
+   * @param startOffsetIndex index in sequence to start scoring.
+   * @param priorState State from a prior call to score(). Could be null.
+   * @return the language model state and the score of the sequence
+   */
+  LMState score(int[] sequence, int startOffsetIndex, LMState priorState);
+}
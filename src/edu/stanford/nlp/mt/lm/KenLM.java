@@ -1,6 +1,8 @@
 package edu.stanford.nlp.mt.lm;
 
 import java.io.File;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 
 /**
  * KenLM language model support via JNI.
@@ -36,6 +38,8 @@ public class KenLM {
   private native long readKenLM(String filename, long nplm_cache_size, int loadMethod);
   private native long scoreNGramSeq(long kenLMPtr, int[] ngram, int startIndex);
   private native long scoreNGram(long kenLMPtr, int[] ngram);
+  private native int scoreNGramSeqBatch(long kenLMPtr, IntBuffer queries, LongBuffer results, 
+      int numQueries);
   private native int getLMId(long kenLMPtr, String token);
   private native int getOrder(long kenLMPtr);
 
@@ -120,6 +124,28 @@ public class KenLM {
     return scoreNGramSeq(kenLMPtr, words, startIndex);
   }
 
+  /**
+   * Score a batch of sequences with a single native call. Each query is packed into
+   * <code>queries</code> as the sequence length, the start index, and then the words
+   * in reverse order, i.e., the arguments of <code>scoreSeqMarshalled</code>. The
+   * marshalled result of the i-th query is written to position i of <code>results</code>.
+   * 
+   * Both buffers must be direct and in native byte order. The contents are read from 
+   * and written to the start of the buffers irrespective of their positions.
+   * 
+   * @param queries
+   * @param results
+   * @param numQueries
+   */
+  public void scoreSeqMarshalled(IntBuffer queries, LongBuffer results, int numQueries) {
+    if ( ! queries.isDirect() || ! results.isDirect()) {
+      throw new IllegalArgumentException("Batch queries require direct buffers");
+    }
+    if (scoreNGramSeqBatch(kenLMPtr, queries, results, numQueries) != numQueries) {
+      throw new IllegalArgumentException("Malformed batch query or result buffer too small");
+    }
+  }
+
   /**
    * Just get the score of a sequence if you don't care about right state length
    */
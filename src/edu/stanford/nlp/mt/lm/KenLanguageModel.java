@@ -18,13 +18,13 @@ import edu.stanford.nlp.mt.util.TranslationModelIndex;
  */
 public class KenLanguageModel implements LanguageModel<IString> {
 
-  private static final int[] EMPTY_INT_ARRAY = new int[0];
+  protected static final int[] EMPTY_INT_ARRAY = new int[0];
 
   static {
     System.loadLibrary("PhrasalKenLM");
   }
 
-  private KenLM model;
+  protected KenLM model;
 
   private final String name;
 
@@ -65,10 +65,24 @@ public class KenLanguageModel implements LanguageModel<IString> {
    * @return kenlm id of the string
    */
   private int toKenLMId(IString token) {
+    return toKenLMId(token.id);
+  }
+
+  /**
+   * Maps the IString id to a kenLM id.
+   * 
+   * @param id
+   * @return kenlm id of the string
+   */
+  protected int toKenLMId(int id) {
+    if (id < 0) {
+      // Decoder-local vocabulary
+      return model.index(TranslationModelIndex.systemGet(id));
+    }
     {
       int[] map = istringIdToKenLMId.get();
-      if (token.id < map.length) {
-        return map[token.id];
+      if (id < map.length) {
+        return map[id];
       }
     }
     // Rare event: we have to expand the vocabulary.
@@ -79,8 +93,8 @@ public class KenLanguageModel implements LanguageModel<IString> {
       try {
         // Maybe another thread did the work for us?
         int[] oldTable = istringIdToKenLMId.get();
-        if (token.id < oldTable.length) {
-          return oldTable[token.id];
+        if (id < oldTable.length) {
+          return oldTable[id];
         }
         int[] newTable = new int[TranslationModelIndex.systemSize()];
         System.arraycopy(oldTable, 0, newTable, 0, oldTable.length);
@@ -88,13 +102,13 @@ public class KenLanguageModel implements LanguageModel<IString> {
           newTable[i] = model.index(TranslationModelIndex.systemGet(i));
         }
         istringIdToKenLMId.set(newTable);
-        return newTable[token.id];
+        return newTable[id];
       } finally {
         preventDuplicateWork.unlock();
       }
     }
     // Another thread is working.  Lookup directly.
-    return model.index(token.toString());
+    return model.index(TranslationModelIndex.systemGet(id));
   }
 
   @Override
@@ -131,6 +145,26 @@ public class KenLanguageModel implements LanguageModel<IString> {
     return new KenLMState(KenLM.scoreFromMarshalled(got), ngramIds, KenLM.rightStateFromMarshalled(got));
   }
 
+  /**
+   * Convert an array of IString ids and an optional state to an input for KenLM.
+   *
+   * @param sequence
+   * @param priorState
+   * @return
+   */
+  protected int[] makeKenLMInput(int[] sequence, int[] priorState) {
+    final int sequenceSize = sequence.length;
+    int[] ngramIds = new int[sequenceSize + priorState.length];
+    if (priorState.length > 0) {
+      System.arraycopy(priorState, 0, ngramIds, sequenceSize, priorState.length);
+    }
+    for (int i = 0; i < sequenceSize; i++) {
+      // Notice: ngramids are in reverse order vv. the Sequence
+      ngramIds[sequenceSize-1-i] = toKenLMId(sequence[i]);
+    }
+    return ngramIds;
+  }
+
   /**
    * Convert a Sequence and an optional state to an input for KenLM.
    *
@@ -0,0 +1,122 @@
+package edu.stanford.nlp.mt.lm;
+
+import java.util.Arrays;
+
+/**
+ * A bounded, direct-mapped cache of language model queries. The key is the
+ * prior state, the query as an array of IString ids, and the start index. The
+ * value is the state returned by the language model, which holds the score.
+ *
+ * Since the language model score of a sequence depends only on the prior
+ * state, cache hits return exactly the result of the query. Keys are
+ * compared with <code>LMState.equals()</code>, not just the hash.
+ *
+ * NOTE: Not threadsafe.
+ *
+ */
+public class LMStateCache {
+
+  private final int mask;
+  private final int[] hashes;
+  private final LMState[] priorStates;
+  private final int[][] queries;
+  private final int[] startIndices;
+  private final LMState[] states;
+  private int sourceInputId = -1;
+
+  /**
+   * Constructor.
+   *
+   * @param size Maximum number of entries. Rounded up to a power of two.
+   */
+  public LMStateCache(int size) {
+    if (size <= 0) throw new IllegalArgumentException("Invalid cache size: " + size);
+    int capacity = Integer.highestOneBit(size);
+    if (capacity < size) capacity <<= 1;
+    mask = capacity - 1;
+    hashes = new int[capacity];
+    priorStates = new LMState[capacity];
+    queries = new int[capacity][];
+    startIndices = new int[capacity];
+    states = new LMState[capacity];
+  }
+
+  /**
+   * The input for which the cache is valid.
+   *
+   * @return
+   */
+  public int sourceInputId() { return sourceInputId; }
+
+  /**
+   * Clear the cache for a new input.
+   *
+   * @param sourceInputId
+   */
+  public void reset(int sourceInputId) {
+    this.sourceInputId = sourceInputId;
+    Arrays.fill(priorStates, null);
+    Arrays.fill(queries, null);
+    Arrays.fill(states, null);
+  }
+
+  /**
+   * Hash of a query.
+   *
+   * @param priorState
+   * @param query
+   * @param startIndex
+   * @return
+   */
+  public static int hash(LMState priorState, int[] query, int startIndex) {
+    int h = priorState == null ? 0 : priorState.hashCode();
+    h = 31 * h + startIndex;
+    for (int id : query) h = 31 * h + id;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Lookup a query.
+   *
+   * @param hash The value of <code>hash()</code> for the query.
+   * @param priorState
+   * @param query
+   * @param startIndex
+   * @return the cached state, or null if the query is not in the cache.
+   */
+  public LMState get(int hash, LMState priorState, int[] query, int startIndex) {
+    final int slot = hash & mask;
+    final LMState state = states[slot];
+    if (state != null && hashes[slot] == hash && startIndices[slot] == startIndex &&
+        (priorStates[slot] == priorState || (priorState != null && priorState.equals(priorStates[slot]))) &&
+        Arrays.equals(queries[slot], query)) {
+      return state;
+    }
+    return null;
+  }
+
+  /**
+   * Insert a query. Replaces the entry with which the query conflicts, if any.
+   *
+   * @param hash The value of <code>hash()</code> for the query.
+   * @param priorState
+   * @param query Not copied.
+   * @param startIndex
+   * @param state The state returned by the language model.
+   */
+  public void put(int hash, LMState priorState, int[] query, int startIndex, LMState state) {
+    final int slot = hash & mask;
+    hashes[slot] = hash;
+    priorStates[slot] = priorState;
+    queries[slot] = query;
+    startIndices[slot] = startIndex;
+    states[slot] = state;
+  }
+
+  /**
+   * Maximum number of entries.
+   *
+   * @return
+   */
+  public int capacity() { return mask + 1; }
+}
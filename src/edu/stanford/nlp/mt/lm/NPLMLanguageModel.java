@@ -0,0 +1,165 @@
+package edu.stanford.nlp.mt.lm;
+
+import java.util.Arrays;
+
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.Sequence;
+import edu.stanford.nlp.mt.util.Sequences;
+import edu.stanford.nlp.mt.util.TokenUtils;
+import edu.stanford.nlp.mt.util.TranslationModelIndex;
+
+/**
+ * Neural Probabilistic Language Model (NPLM) support via JNI. Batch queries
+ * are sent to NPLM as a single list of n-grams, which NPLM scores in
+ * mini-batches.
+ *
+ * The state is the last <code>order-1</code> IString ids of the sequence. The
+ * context of the first words in a sentence is padded with the start token.
+ *
+ */
+public class NPLMLanguageModel implements BatchLanguageModel {
+
+  public static final long DEFAULT_CACHE_SIZE = 1 << 20;
+  public static final int DEFAULT_MINI_BATCH_SIZE = 256;
+
+  private static final int[] EMPTY_CONTEXT = new int[0];
+
+  private final NPLM model;
+  private final String name;
+  private final int order;
+  private final int startId;
+
+  private volatile int[] istringIdToNPLMId;
+
+  /**
+   * Constructor.
+   *
+   * @param filename
+   * @param cacheSize
+   * @param miniBatchSize
+   */
+  public NPLMLanguageModel(String filename, long cacheSize, int miniBatchSize) {
+    model = new NPLM(filename, cacheSize, miniBatchSize);
+    name = String.format("NPLM(%s)", filename);
+    order = model.order();
+    startId = model.BeginSentence();
+    istringIdToNPLMId = EMPTY_CONTEXT;
+    growIdTable(0);
+  }
+
+  public NPLMLanguageModel(String filename) {
+    this(filename, DEFAULT_CACHE_SIZE, DEFAULT_MINI_BATCH_SIZE);
+  }
+
+  /**
+   * Maps an IString id to an NPLM id.
+   *
+   * @param id
+   * @return
+   */
+  private int toNPLMId(int id) {
+    if (id < 0) {
+      // Decoder-local vocabulary
+      return model.nplmIndex(TranslationModelIndex.systemGet(id));
+    }
+    int[] table = istringIdToNPLMId;
+    return id < table.length ? table[id] : growIdTable(id);
+  }
+
+  /**
+   * Extend the vocabulary mapping to cover IString ids up to id.
+   *
+   * @param id
+   * @return the NPLM id of id
+   */
+  private synchronized int growIdTable(int id) {
+    int[] oldTable = istringIdToNPLMId;
+    if (id < oldTable.length) return oldTable[id];
+    int[] newTable = Arrays.copyOf(oldTable, Math.max(id + 1, TranslationModelIndex.systemSize()));
+    for (int i = oldTable.length; i < newTable.length; ++i) {
+      newTable[i] = model.nplmIndex(TranslationModelIndex.systemGet(i));
+    }
+    istringIdToNPLMId = newTable;
+    return newTable[id];
+  }
+
+  @Override
+  public IString getStartToken() {
+    return TokenUtils.START_TOKEN;
+  }
+
+  @Override
+  public IString getEndToken() {
+    return TokenUtils.END_TOKEN;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public int order() {
+    return order;
+  }
+
+  @Override
+  public LMState score(Sequence<IString> sequence, int startOffsetIndex, LMState priorState) {
+    return score(Sequences.toIntArray(sequence), startOffsetIndex, priorState);
+  }
+
+  @Override
+  public LMState score(int[] sequence, int startOffsetIndex, LMState priorState) {
+    return score(new int[][] { sequence }, new int[] { startOffsetIndex },
+        new LMState[] { priorState })[0];
+  }
+
+  @Override
+  public LMState[] score(int[][] sequences, int[] startOffsetIndices, LMState[] priorStates) {
+    // Prepend the context to each sequence
+    final int numSequences = sequences.length;
+    final int[][] histories = new int[numSequences][];
+    final int[] starts = new int[numSequences];
+    int numNgrams = 0;
+    for (int i = 0; i < numSequences; ++i) {
+      final int[] context = priorStates[i] instanceof ARPALMState ?
+          ((ARPALMState) priorStates[i]).getState() : EMPTY_CONTEXT;
+      final int[] history = new int[context.length + sequences[i].length];
+      System.arraycopy(context, 0, history, 0, context.length);
+      System.arraycopy(sequences[i], 0, history, context.length, sequences[i].length);
+      histories[i] = history;
+      starts[i] = context.length + startOffsetIndices[i];
+      numNgrams += Math.max(0, history.length - starts[i]);
+    }
+
+    // Gather the n-grams of all sequences for a single NPLM query
+    final int[][] ngrams = new int[numNgrams][];
+    int n = 0;
+    for (int i = 0; i < numSequences; ++i) {
+      final int[] history = histories[i];
+      for (int pos = starts[i]; pos < history.length; ++pos) {
+        final int[] ngram = new int[order];
+        for (int j = 0; j < order; ++j) {
+          final int k = pos - order + 1 + j;
+          ngram[j] = k < 0 ? startId : toNPLMId(history[k]);
+        }
+        ngrams[n++] = ngram;
+      }
+    }
+    final double[] scores = model.scoreNgrams(ngrams);
+
+    // Sum the n-gram scores of each sequence
+    final LMState[] states = new LMState[numSequences];
+    n = 0;
+    for (int i = 0; i < numSequences; ++i) {
+      final int[] history = histories[i];
+      double lmScore = 0.0;
+      for (int pos = starts[i]; pos < history.length; ++pos) {
+        lmScore += scores[n++];
+      }
+      final int stateStart = Math.max(0, history.length - order + 1);
+      states[i] = new ARPALMState(lmScore, Arrays.copyOfRange(history, stateStart, history.length));
+    }
+    return states;
+  }
+}
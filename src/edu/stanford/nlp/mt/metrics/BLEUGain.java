@@ -1,6 +1,8 @@
 package edu.stanford.nlp.mt.metrics;
 
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import edu.stanford.nlp.mt.util.Sequence;
 
@@ -19,6 +21,19 @@ public class BLEUGain<TK,FV> implements SentenceLevelMetric<TK, FV> {
   private final int order;
   private final boolean doNakov;
   private final boolean scaleLength;
+
+  // Reference n-gram statistics for each segment
+  private final ConcurrentMap<Integer,CachedReferences<TK>> referenceCache =
+      new ConcurrentHashMap<Integer,CachedReferences<TK>>();
+
+  private static class CachedReferences<TK> {
+    public final List<Sequence<TK>> references;
+    public final NGramReferences ngrams;
+    public CachedReferences(List<Sequence<TK>> references, NGramReferences ngrams) {
+      this.references = references;
+      this.ngrams = ngrams;
+    }
+  }
   
   /**
    * Constructor.
@@ -53,22 +68,30 @@ public class BLEUGain<TK,FV> implements SentenceLevelMetric<TK, FV> {
   public double score(int sourceId, Sequence<TK> source,
       List<Sequence<TK>> references, Sequence<TK> translation) {
     
-    double score = BLEUMetric.computeLocalSmoothScore(translation, references, order, doNakov);
+    NGramReferences refs = getReferences(sourceId, references);
+    double score = BLEUMetric.computeLocalSmoothScore(translation, refs, doNakov);
 
     if (scaleLength) {
-      // Take the min reference length
-      int minLength = Integer.MAX_VALUE;
-      for (Sequence<TK> sentence : references) {
-        if (sentence.size() < minLength) {
-          minLength = sentence.size();
-        }
-      }
       // Scale the score by the min reference length
-      score *= minLength;
+      score *= refs.minLength();
     }
     return score;
   }
 
+  /**
+   * Reference n-gram statistics of a segment. The statistics are computed once
+   * per segment unless the caller changes the references.
+   */
+  private NGramReferences getReferences(int sourceId, List<Sequence<TK>> references) {
+    if (sourceId < 0) return new NGramReferences(references, order);
+    CachedReferences<TK> cached = referenceCache.get(sourceId);
+    if (cached == null || cached.references != references) {
+      cached = new CachedReferences<TK>(references, new NGramReferences(references, order));
+      referenceCache.put(sourceId, cached);
+    }
+    return cached.ngrams;
+  }
+
   @Override
   public void update(int sourceId, List<Sequence<TK>> references,
       Sequence<TK> translation) {}
@@ -12,8 +12,6 @@ import edu.stanford.nlp.mt.util.NBestListContainer;
 import edu.stanford.nlp.mt.util.ScoredFeaturizedTranslation;
 import edu.stanford.nlp.mt.util.Sequence;
 import edu.stanford.nlp.mt.util.SimpleSequence;
-import edu.stanford.nlp.stats.ClassicCounter;
-import edu.stanford.nlp.stats.Counter;
 
 import edu.stanford.nlp.util.Pair;
 import edu.stanford.nlp.util.PropertiesUtils;
@@ -25,13 +23,13 @@ import edu.stanford.nlp.util.StringUtils;
  *
  * @param <TK>
  */
-public class BLEUMetric<TK, FV> extends AbstractMetric<TK, FV> {
+public class BLEUMetric<TK, FV> extends AbstractMetric<TK, FV> implements DecomposableMetric<TK> {
   public static final int DEFAULT_MAX_NGRAM_ORDER = 4;
 
   public static final double LENGTH_BIAS = Double.parseDouble(System
       .getProperty("bleuLengthBias", "1"));
 
-  final List<Counter<Sequence<TK>>> maxReferenceCounts;
+  final List<NGramReferences> referenceNgrams;
   final int[][] refLengths;
   final int order;
   final double multiplier;
@@ -48,19 +46,6 @@ public class BLEUMetric<TK, FV> extends AbstractMetric<TK, FV> {
     return d >= 0 ? d : 0;
   }
 
-  private static <TK> double[] localMatchCounts(Counter<Sequence<TK>> clippedCounts, int order) {
-    double[] counts = new double[order];
-    for (Sequence<TK> ngram : clippedCounts.keySet()) {
-      double cnt = clippedCounts.getCount(ngram);
-      if (cnt > 0.0) {
-        int len = ngram.size();
-        counts[len - 1] += cnt;
-      }
-    }
-
-    return counts;
-  }
-
   private static int bestMatchLength(int[] refLengths, int candidateLength) {
     int best = refLengths[0];
     for (int i = 1; i < refLengths.length; i++) {
@@ -96,25 +81,64 @@ public class BLEUMetric<TK, FV> extends AbstractMetric<TK, FV> {
 
   public static <TK> double computeLocalSmoothScore(Sequence<TK> seq,
       List<Sequence<TK>> refs, int order, boolean doNakovExtension) {
+    return computeLocalSmoothScore(seq, new NGramReferences(refs, order), doNakovExtension);
+  }
 
-    Counter<Sequence<TK>> candidateCounts = MetricUtils.getNGramCounts(seq,
-        order);
-    Counter<Sequence<TK>> maxReferenceCount = MetricUtils.getMaxNGramCounts(refs, order);
-    
-    MetricUtils.clipCounts(candidateCounts, maxReferenceCount);
-    int seqSz = seq.size();
+  /**
+   * Sentence-level smoothed BLEU with precomputed reference n-gram statistics.
+   *
+   * @param seq The candidate translation
+   * @param refs N-gram statistics of the references
+   * @param doNakovExtension
+   * @return The smoothed BLEU score
+   */
+  public static <TK> double computeLocalSmoothScore(Sequence<TK> seq,
+      NGramReferences refs, boolean doNakovExtension) {
+    return computeLocalSmoothScore(refs.matchCounts(seq), seq.size(), refs.lengths(),
+        refs.order(), doNakovExtension);
+  }
+
+  /**
+   * Sentence-level smoothed BLEU of a translation given as sorted n-gram ids.
+   *
+   * @param sortedNgramIds The output of <code>NGramReferences.sortedNgramIds()</code>
+   * @param seqSz The length of the candidate translation
+   * @param refs N-gram statistics of the references
+   * @param doNakovExtension
+   * @return The smoothed BLEU score
+   */
+  public static double computeLocalSmoothScore(long[][] sortedNgramIds, int seqSz,
+      NGramReferences refs, boolean doNakovExtension) {
+    return computeLocalSmoothScore(refs.sortedMatchCounts(sortedNgramIds, null), seqSz,
+        refs.lengths(), refs.order(), doNakovExtension);
+  }
+
+  private static double computeLocalSmoothScore(double[] localCounts, int seqSz,
+      int[] refLengths, int order, boolean doNakovExtension) {
+    return computeLocalSmoothScore(localCounts, seqSz, bestMatchLength(refLengths, seqSz),
+        order, doNakovExtension);
+  }
+
+  /**
+   * Sentence-level smoothed BLEU from clipped match counts and an effective
+   * reference length, which need not be integral, e.g., an expected length.
+   *
+   * @param localCounts Match counts. Index i holds the matches of order i+1.
+   * @param seqSz The length of the candidate translation
+   * @param refLength The effective reference length
+   * @param order
+   * @param doNakovExtension
+   * @return The smoothed BLEU score
+   */
+  public static double computeLocalSmoothScore(double[] localCounts, int seqSz,
+      double refLength, int order, boolean doNakovExtension) {
     int[] localPossibleMatchCounts = new int[order];
     for (int i = 0; i < order; i++) {
       localPossibleMatchCounts[i] = possibleMatchCounts(i, seqSz);
     }
 
-    double[] localCounts = localMatchCounts(candidateCounts,order);
-    int localC = seq.size();
-    int[] refLengths = new int[refs.size()];
-    for (int i = 0; i < refLengths.length; i++) {
-      refLengths[i] = refs.get(i).size();
-    }
-    int localR = bestMatchLength(refLengths, seq.size());
+    int localC = seqSz;
+    double localR = refLength;
     if (doNakovExtension) ++localR;
 
     double localLogBP;
@@ -152,8 +176,7 @@ public class BLEUMetric<TK, FV> extends AbstractMetric<TK, FV> {
    */
   public BLEUMetric(double multiplier, List<List<Sequence<TK>>> referencesList) {
     this.order = DEFAULT_MAX_NGRAM_ORDER;
-    maxReferenceCounts = new ArrayList<Counter<Sequence<TK>>>(
-        referencesList.size());
+    referenceNgrams = new ArrayList<NGramReferences>(referencesList.size());
     refLengths = new int[referencesList.size()][];
     init(referencesList);
     this.multiplier = multiplier;
@@ -169,8 +192,7 @@ public class BLEUMetric<TK, FV> extends AbstractMetric<TK, FV> {
    */
   public BLEUMetric(List<List<Sequence<TK>>> referencesList, boolean smooth) {
     this.order = DEFAULT_MAX_NGRAM_ORDER;
-    maxReferenceCounts = new ArrayList<Counter<Sequence<TK>>>(
-        referencesList.size());
+    referenceNgrams = new ArrayList<NGramReferences>(referencesList.size());
     refLengths = new int[referencesList.size()][];
     multiplier = 1;
     init(referencesList);
@@ -183,8 +205,7 @@ public class BLEUMetric<TK, FV> extends AbstractMetric<TK, FV> {
   public BLEUMetric(List<List<Sequence<TK>>> referencesList, int order,
       boolean smooth) {
     this.order = order;
-    maxReferenceCounts = new ArrayList<Counter<Sequence<TK>>>(
-        referencesList.size());
+    referenceNgrams = new ArrayList<NGramReferences>(referencesList.size());
     refLengths = new int[referencesList.size()][];
     multiplier = 1;
     init(referencesList);
@@ -193,8 +214,7 @@ public class BLEUMetric<TK, FV> extends AbstractMetric<TK, FV> {
 
   public BLEUMetric(List<List<Sequence<TK>>> referencesList, int order) {
     this.order = order;
-    maxReferenceCounts = new ArrayList<Counter<Sequence<TK>>>(
-        referencesList.size());
+    referenceNgrams = new ArrayList<NGramReferences>(referencesList.size());
     refLengths = new int[referencesList.size()][];
     multiplier = 1;
     init(referencesList);
@@ -207,9 +227,7 @@ public class BLEUMetric<TK, FV> extends AbstractMetric<TK, FV> {
     for (int listI = 0; listI < listSz; listI++) {
       List<Sequence<TK>> references = referencesList.get(listI);
 
-      Counter<Sequence<TK>> maxReferenceCount = MetricUtils.getMaxNGramCounts(
-          references, order);
-      maxReferenceCounts.add(maxReferenceCount);
+      referenceNgrams.add(new NGramReferences(references, order));
 
       int refsSz = references.size();
       assert refsSz > 0;
@@ -236,6 +254,51 @@ public class BLEUMetric<TK, FV> extends AbstractMetric<TK, FV> {
     return new BLEUIncrementalMetricRecombinationFilter<TK, FV>();
   }
 
+  @Override
+  public int numSufficientStatistics() {
+    // Smoothed: sum and count of the sentence-level scores.
+    // Otherwise: match counts, possible match counts, candidate length, reference length.
+    return smooth ? 2 : 2 * order + 2;
+  }
+
+  @Override
+  public double[] sufficientStatistics(Sequence<TK> translation, int segmentId) {
+    double[] stats = new double[numSufficientStatistics()];
+    if (translation == null) return stats;
+    double[] localCounts = referenceNgrams.get(segmentId).matchCounts(translation);
+    int seqSz = translation.size();
+    if (smooth) {
+      stats[0] = computeLocalSmoothScore(localCounts, seqSz, refLengths[segmentId], order, false);
+      stats[1] = 1.0;
+    } else {
+      for (int i = 0; i < order; i++) {
+        stats[i] = localCounts[i];
+        stats[order + i] = possibleMatchCounts(i, seqSz);
+      }
+      stats[2 * order] = seqSz;
+      stats[2 * order + 1] = bestMatchLength(refLengths[segmentId], seqSz);
+    }
+    return stats;
+  }
+
+  @Override
+  public double scoreStatistics(double[] stats) {
+    double s;
+    if (smooth) {
+      s = stats[0] / stats[1];
+    } else {
+      double c = stats[2 * order];
+      double r = stats[2 * order + 1];
+      double logBP = c < r ? 1 - r / c : 0.0;
+      double ngramPrecisionScore = 0;
+      for (int i = 0; i < order; i++) {
+        ngramPrecisionScore += (1.0 / order) * Math.log(stats[i] / stats[order + i]);
+      }
+      s = multiplier * Math.exp(logBP + ngramPrecisionScore);
+    }
+    return (Double.isNaN(s) ? 0 : s);
+  }
+
   private static int maxIncrementalId = 0;
 
   public class BLEUIncrementalMetric implements
@@ -271,7 +334,7 @@ public class BLEUMetric<TK, FV> extends AbstractMetric<TK, FV> {
       futurePossibleCounts = null;
       r = 0;
       c = 0;
-      this.sequences = new ArrayList<Sequence<TK>>(maxReferenceCounts.size());
+      this.sequences = new ArrayList<Sequence<TK>>(referenceNgrams.size());
     }
 
     BLEUIncrementalMetric(NBestListContainer<TK, FV> nbest) {
@@ -296,10 +359,7 @@ public class BLEUMetric<TK, FV> extends AbstractMetric<TK, FV> {
               futurePossibleCounts[i][j] = possibleMatchCounts(j, seqSz);
             }
           }
-          Counter<Sequence<TK>> candidateCounts = MetricUtils.getNGramCounts(
-              tran.translation, order);
-          MetricUtils.clipCounts(candidateCounts, maxReferenceCounts.get(i));
-          double[] localCounts = localMatchCounts(candidateCounts,order);
+          double[] localCounts = referenceNgrams.get(i).matchCounts(tran.translation);
           for (int j = 0; j < order; j++) {
             if (futureMatchCounts[i][j] < localCounts[j]) {
               futureMatchCounts[i][j] = localCounts[j];
@@ -319,7 +379,7 @@ public class BLEUMetric<TK, FV> extends AbstractMetric<TK, FV> {
         System.err.println();
       }
 
-      this.sequences = new ArrayList<Sequence<TK>>(maxReferenceCounts.size());
+      this.sequences = new ArrayList<Sequence<TK>>(referenceNgrams.size());
     }
 
     public double getMultiplier() {
@@ -370,28 +430,27 @@ public class BLEUMetric<TK, FV> extends AbstractMetric<TK, FV> {
       return id - ((BLEUIncrementalMetric) o).id;
     }
 
-    private void incCounts(Counter<Sequence<TK>> clippedCounts,
+    private void incCounts(double[] localCounts,
         Sequence<TK> sequence, int mul) {
       int seqSz = sequence.size();
       for (int i = 0; i < order; i++) {
         possibleMatchCounts[i] += mul * possibleMatchCounts(i, seqSz);
       }
 
-      double[] localCounts = localMatchCounts(clippedCounts,order);
       for (int i = 0; i < order; i++) {
         // System.err.printf("local Counts[%d]: %d\n", i, localCounts[i]);
         matchCounts[i] += mul * localCounts[i];
       }
     }
 
-    private void incCounts(Counter<Sequence<TK>> clippedCounts,
+    private void incCounts(double[] localCounts,
         Sequence<TK> sequence) {
-      incCounts(clippedCounts, sequence, 1);
+      incCounts(localCounts, sequence, 1);
     }
 
-    private void decCounts(Counter<Sequence<TK>> clippedCounts,
+    private void decCounts(double[] localCounts,
         Sequence<TK> sequence) {
-      incCounts(clippedCounts, sequence, -1);
+      incCounts(localCounts, sequence, -1);
     }
 
     private double getLocalSmoothScore(Sequence<TK> seq, int pos, int nbestId) {
@@ -407,46 +466,8 @@ public class BLEUMetric<TK, FV> extends AbstractMetric<TK, FV> {
     }
 
     public double computeLocalSmoothScore(Sequence<TK> seq, int pos) {
-      Counter<Sequence<TK>> candidateCounts = MetricUtils.getNGramCounts(seq,
-          order);
-      MetricUtils.clipCounts(candidateCounts, maxReferenceCounts.get(pos));
-      int seqSz = seq.size();
-      int[] localPossibleMatchCounts = new int[order];
-      for (int i = 0; i < order; i++) {
-        localPossibleMatchCounts[i] = possibleMatchCounts(i, seqSz);
-      }
-
-      double[] localCounts = localMatchCounts(candidateCounts,order);
-      int localC = seq.size();
-      int localR = bestMatchLength(refLengths[pos], seq.size());
-
-      double localLogBP;
-      if (localC < localR) {
-        localLogBP = 1 - localR / (1.0 * localC);
-      } else {
-        localLogBP = 0.0;
-      }
-
-      double[] localPrecisions = new double[order];
-      for (int i = 0; i < order; i++) {
-        if (i == 0) {
-          localPrecisions[i] = (1.0 * localCounts[i])
-              / localPossibleMatchCounts[i];
-        } else {
-          localPrecisions[i] = (localCounts[i] + 1.0)
-              / (localPossibleMatchCounts[i] + 1.0);
-        }
-      }
-      double localNgramPrecisionScore = 0;
-      for (int i = 0; i < order; i++) {
-        localNgramPrecisionScore += (1.0 / order)
-            * Math.log(localPrecisions[i]);
-      }
-
-      // System.err.printf("BLEUS: %e logbp %e logPrec %e Prec %e\n",
-      // Math.exp(localLogBP + localNgramPrecisionScore), localLogBP,
-      // localNgramPrecisionScore, Math.exp(localNgramPrecisionScore));
-      final double localScore = Math.exp(localLogBP + localNgramPrecisionScore);
+      final double localScore = BLEUMetric.computeLocalSmoothScore(
+          referenceNgrams.get(pos).matchCounts(seq), seq.size(), refLengths[pos], order, false);
       if (printLocalScores)
         System.out.printf("%d %f\n", pos, localScore);
       return localScore;
@@ -473,10 +494,10 @@ public class BLEUMetric<TK, FV> extends AbstractMetric<TK, FV> {
     public IncrementalEvaluationMetric<TK, FV> add(int nbestId,
         Sequence<TK> translation) {
       int pos = sequences.size();
-      if (pos >= maxReferenceCounts.size()) {
+      if (pos >= referenceNgrams.size()) {
         throw new RuntimeException(String.format(
             "Attempt to add more candidates, %d, than references, %d.",
-            pos + 1, maxReferenceCounts.size()));
+            pos + 1, referenceNgrams.size()));
       }
 
       if (smooth) {
@@ -489,11 +510,9 @@ public class BLEUMetric<TK, FV> extends AbstractMetric<TK, FV> {
         }
       } else {
         if (translation != null) {
-          Counter<Sequence<TK>> candidateCounts = MetricUtils.getNGramCounts(
-              translation, order);
-          MetricUtils.clipCounts(candidateCounts, maxReferenceCounts.get(pos));
+          double[] localCounts = referenceNgrams.get(pos).matchCounts(translation);
           sequences.add(translation);
-          incCounts(candidateCounts, translation);
+          incCounts(localCounts, translation);
           c += translation.size();
           r += bestMatchLength(refLengths[pos], translation.size());
         } else {
@@ -518,21 +537,18 @@ public class BLEUMetric<TK, FV> extends AbstractMetric<TK, FV> {
           add(is_null);
         add(trans);
       }
-      Counter<Sequence<TK>> candidateCounts = null;
+      double[] localCounts = null;
       if (smooth) {
         if (sequences.get(index) != null) {
           smoothSum -= getLocalSmoothScore(sequences.get(index), index, nbestId);
           smoothCnt--;
         }
       } else {
-        candidateCounts = (trans == null ? new ClassicCounter<Sequence<TK>>()
-            : MetricUtils.getNGramCounts(trans.translation, order));
-        MetricUtils.clipCounts(candidateCounts, maxReferenceCounts.get(index));
+        localCounts = (trans == null ? new double[order]
+            : referenceNgrams.get(index).matchCounts(trans.translation));
         if (sequences.get(index) != null) {
-          Counter<Sequence<TK>> oldCandidateCounts = MetricUtils
-              .getNGramCounts(sequences.get(index), order);
-          MetricUtils.clipCounts(oldCandidateCounts, maxReferenceCounts.get(index));
-          decCounts(oldCandidateCounts, sequences.get(index));
+          double[] oldLocalCounts = referenceNgrams.get(index).matchCounts(sequences.get(index));
+          decCounts(oldLocalCounts, sequences.get(index));
           c -= sequences.get(index).size();
           r -= bestMatchLength(refLengths[index], sequences.get(index).size());
         }
@@ -547,7 +563,7 @@ public class BLEUMetric<TK, FV> extends AbstractMetric<TK, FV> {
         }
       } else {
         if (trans != null) {
-          incCounts(candidateCounts, trans.translation);
+          incCounts(localCounts, trans.translation);
           c += sequences.get(index).size();
           r += bestMatchLength(refLengths[index], sequences.get(index).size());
         }
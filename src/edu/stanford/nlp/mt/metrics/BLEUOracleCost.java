@@ -11,7 +11,6 @@ import java.util.Map;
 import edu.stanford.nlp.mt.util.IString;
 import edu.stanford.nlp.mt.util.IStrings;
 import edu.stanford.nlp.mt.util.Sequence;
-import edu.stanford.nlp.stats.Counter;
 
 /**
  * Implements the oracle smooth BLEU metric of Watanabe et al. (2007) with
@@ -52,7 +51,7 @@ public class BLEUOracleCost<TK,FV> implements SentenceLevelMetric<TK, FV> {
   private final double[] NULL_COUNTS;
 
   // Caches for faster computation of the scores
-  Map<Integer,Counter<Sequence<TK>>> maxRefCounts;
+  Map<Integer,NGramReferences> maxRefCounts;
   Map<Integer,Integer> maxRefLengths;
 
   // Cherry and Foster (2012) oracle document
@@ -80,13 +79,13 @@ public class BLEUOracleCost<TK,FV> implements SentenceLevelMetric<TK, FV> {
     NULL_COUNTS = new double[order];
 
     // Initialize the caches
-    maxRefCounts = new HashMap<Integer,Counter<Sequence<TK>>>();
+    maxRefCounts = new HashMap<Integer,NGramReferences>();
     maxRefLengths = new HashMap<Integer,Integer>();
   }
 
-  private Counter<Sequence<TK>> getMaxRefCounts(int sourceId,  List<Sequence<TK>> references) {
+  private NGramReferences getMaxRefCounts(int sourceId,  List<Sequence<TK>> references) {
     if ( ! maxRefCounts.containsKey(sourceId)) {
-      Counter<Sequence<TK>> counts = MetricUtils.getMaxNGramCounts(references, order);
+      NGramReferences counts = new NGramReferences(references, order);
       maxRefCounts.put(sourceId, counts);
     }
     return maxRefCounts.get(sourceId);
@@ -150,21 +149,14 @@ public class BLEUOracleCost<TK,FV> implements SentenceLevelMetric<TK, FV> {
   private double score(int sourceId, List<Sequence<TK>> references,
         Sequence<TK> translation, boolean updateCounts) {
     // Extract n-grams
-    final Counter<Sequence<TK>> maxRefCounts = getMaxRefCounts(sourceId, references);
-    final Counter<Sequence<TK>> hypothesisCounts = MetricUtils.getNGramCounts(translation, order);
+    final NGramReferences maxRefCounts = getMaxRefCounts(sourceId, references);
     
     // Calculate the BLEU statistics for this example
-    final double[] m = new double[order];
+    final double[] m = maxRefCounts.matchCounts(translation);
     final double[] n = new double[order];
     final double rho = getMinRefLength(sourceId, references);
-
-    for (Sequence<TK> ngram : hypothesisCounts.keySet()) {
-      double numProposed = hypothesisCounts.getCount(ngram);
-      double refCount = maxRefCounts.containsKey(ngram) ? maxRefCounts.getCount(ngram) : 0.0;
-      double numMatches = Math.min(numProposed, refCount);
-      final int ngramIdx = ngram.size() - 1;
-      m[ngramIdx] += numMatches;
-      n[ngramIdx] += numProposed;
+    for (int i = 0; i < order; ++i) {
+      n[i] = Math.max(0, translation.size() - i);
     }
 
     // Smoothed BLEU according to the current pseudocounts
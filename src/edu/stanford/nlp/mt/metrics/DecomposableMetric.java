@@ -0,0 +1,48 @@
+package edu.stanford.nlp.mt.metrics;
+
+import edu.stanford.nlp.mt.util.Sequence;
+
+/**
+ * A corpus-level metric whose score is a function of the sum of per-segment
+ * sufficient statistics, e.g., n-gram match counts and lengths for BLEU. The
+ * statistics of each segment can be computed once, after which the score of
+ * any subset or resample of the corpus is a vector sum.
+ *
+ * @param <TK>
+ */
+public interface DecomposableMetric<TK> {
+
+  /**
+   * True if the metric supports sufficient statistics. Combinations of metrics
+   * are decomposable only if all of their components are.
+   *
+   * @return
+   */
+  public default boolean isDecomposable() { return true; }
+
+  /**
+   * Dimension of the sufficient statistics.
+   *
+   * @return
+   */
+  public int numSufficientStatistics();
+
+  /**
+   * Sufficient statistics of a translation of a segment.
+   *
+   * @param translation The translation, or null if the segment is not translated.
+   * @param segmentId Index of the segment in the reference set.
+   * @return
+   */
+  public double[] sufficientStatistics(Sequence<TK> translation, int segmentId);
+
+  /**
+   * Corpus-level score from the sum of the sufficient statistics of the segments.
+   * Equal to the score of the incremental metric to which the translations
+   * were added.
+   *
+   * @param statistics
+   * @return
+   */
+  public double scoreStatistics(double[] statistics);
+}
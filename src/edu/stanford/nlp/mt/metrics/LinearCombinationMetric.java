@@ -24,7 +24,7 @@ import java.util.Map;
  * 
  * @author Michel Galley
  */
-public class LinearCombinationMetric<TK, FV> extends AbstractMetric<TK, FV> {
+public class LinearCombinationMetric<TK, FV> extends AbstractMetric<TK, FV> implements DecomposableMetric<TK> {
 
   final boolean DEBUG = System.getProperty("debugLinearCombination") != null;
 
@@ -78,6 +78,57 @@ public class LinearCombinationMetric<TK, FV> extends AbstractMetric<TK, FV> {
     throw new UnsupportedOperationException();
   }
 
+  @Override
+  public boolean isDecomposable() {
+    for (EvaluationMetric<TK, FV> metric : metrics) {
+      if ( ! (metric instanceof DecomposableMetric &&
+          ((DecomposableMetric<?>) metric).isDecomposable())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  private DecomposableMetric<TK> decomposable(int i) {
+    if ( ! (metrics[i] instanceof DecomposableMetric)) {
+      throw new UnsupportedOperationException("Not a decomposable metric: " + metrics[i]);
+    }
+    return (DecomposableMetric<TK>) metrics[i];
+  }
+
+  @Override
+  public int numSufficientStatistics() {
+    int size = 0;
+    for (int i = 0; i < metrics.length; ++i)
+      size += decomposable(i).numSufficientStatistics();
+    return size;
+  }
+
+  @Override
+  public double[] sufficientStatistics(Sequence<TK> translation, int segmentId) {
+    // Concatenation of the statistics of the component metrics
+    double[] stats = new double[numSufficientStatistics()];
+    for (int i = 0, offset = 0; i < metrics.length; ++i) {
+      double[] statsi = decomposable(i).sufficientStatistics(translation, segmentId);
+      System.arraycopy(statsi, 0, stats, offset, statsi.length);
+      offset += statsi.length;
+    }
+    return stats;
+  }
+
+  @Override
+  public double scoreStatistics(double[] stats) {
+    double score = 0.0;
+    for (int i = 0, offset = 0; i < metrics.length; ++i) {
+      DecomposableMetric<TK> metric = decomposable(i);
+      int size = metric.numSufficientStatistics();
+      score += weights[i] * metric.scoreStatistics(Arrays.copyOfRange(stats, offset, offset + size));
+      offset += size;
+    }
+    return score;
+  }
+
   public class LCIncrementalMetric implements
       IncrementalEvaluationMetric<TK, FV> {
 
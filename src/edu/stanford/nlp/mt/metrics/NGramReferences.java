@@ -0,0 +1,265 @@
+package edu.stanford.nlp.mt.metrics;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+
+import java.util.Arrays;
+import java.util.List;
+
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.Sequence;
+
+/**
+ * N-gram statistics of the references of one segment for BLEU-style metrics.
+ * N-grams are hashed to 64-bit ids over <code>int[]</code> token arrays, and the
+ * maximum reference count of each n-gram is stored in a primitive hash table.
+ * The table is built once per segment, after which the clipped match counts of
+ * a translation are computed without boxing or subsequence objects.
+ *
+ * Tokens are mapped to ints by <code>IString</code> id, or by hash code for other
+ * token types. Two distinct n-grams can thus share an id, but the probability
+ * of a collision within one segment is negligible.
+ *
+ * Instances are immutable and threadsafe.
+ *
+ */
+public class NGramReferences {
+
+  private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+  private final int order;
+  private final Long2IntOpenHashMap maxCounts;
+  private final int[] lengths;
+  private final int minLength;
+
+  /**
+   * Constructor.
+   *
+   * @param references The references of the segment.
+   * @param order Maximum n-gram order.
+   */
+  public <TK> NGramReferences(List<Sequence<TK>> references, int order) {
+    this.order = order;
+    this.lengths = new int[references.size()];
+    int numNgrams = 0;
+    for (int i = 0; i < lengths.length; ++i) {
+      lengths[i] = references.get(i).size();
+      numNgrams += lengths[i] * order;
+    }
+    this.minLength = Arrays.stream(lengths).min().orElse(0);
+    this.maxCounts = new Long2IntOpenHashMap(Math.max(16, numNgrams / 2));
+
+    for (Sequence<TK> reference : references) {
+      long[][] ids = ngramIds(toIds(reference), order);
+      for (long[] orderIds : ids) {
+        Arrays.sort(orderIds);
+        for (int i = 0; i < orderIds.length;) {
+          final long id = orderIds[i];
+          int j = i + 1;
+          while (j < orderIds.length && orderIds[j] == id) ++j;
+          final int count = j - i;
+          if (maxCounts.get(id) < count) maxCounts.put(id, count);
+          i = j;
+        }
+      }
+    }
+  }
+
+  /**
+   * Maximum n-gram order.
+   *
+   * @return
+   */
+  public int order() { return order; }
+
+  /**
+   * The lengths of the references.
+   *
+   * @return
+   */
+  public int[] lengths() { return lengths; }
+
+  /**
+   * The length of the shortest reference.
+   *
+   * @return
+   */
+  public int minLength() { return minLength; }
+
+  /**
+   * Clipped n-gram match counts of a translation. Index i holds the number of
+   * matches of order i+1.
+   *
+   * @param translation
+   * @return
+   */
+  public <TK> double[] matchCounts(Sequence<TK> translation) {
+    return matchCounts(toIds(translation), null);
+  }
+
+  /**
+   * Clipped n-gram match counts of a translation, where each match is scaled by
+   * the weight of the n-gram, e.g., the information weights of NIST.
+   *
+   * @param translation
+   * @param weights N-gram weights. If null, then each match has weight 1.
+   * @return
+   */
+  public <TK> double[] matchCounts(Sequence<TK> translation, Long2DoubleOpenHashMap weights) {
+    return matchCounts(toIds(translation), weights);
+  }
+
+  /**
+   * Clipped n-gram match counts of a translation given as token ids.
+   *
+   * @param tokens
+   * @param weights
+   * @return
+   */
+  public double[] matchCounts(int[] tokens, Long2DoubleOpenHashMap weights) {
+    return sortedMatchCounts(sortedNgramIds(tokens, order), weights);
+  }
+
+  /**
+   * Clipped n-gram match counts of a translation given as the output of
+   * <code>sortedNgramIds()</code>, e.g., to match one translation against the
+   * references of many segments.
+   *
+   * @param sortedIds
+   * @param weights
+   * @return
+   */
+  public double[] sortedMatchCounts(long[][] sortedIds, Long2DoubleOpenHashMap weights) {
+    final double[] counts = new double[order];
+    for (int n = 0; n < Math.min(order, sortedIds.length); ++n) {
+      final long[] orderIds = sortedIds[n];
+      double matches = 0.0;
+      for (int i = 0; i < orderIds.length;) {
+        final long id = orderIds[i];
+        int j = i + 1;
+        while (j < orderIds.length && orderIds[j] == id) ++j;
+        final int refCount = maxCounts.get(id);
+        if (refCount > 0) {
+          final int clipped = Math.min(j - i, refCount);
+          matches += weights == null ? clipped : clipped * weights.get(id);
+        }
+        i = j;
+      }
+      counts[n] = matches;
+    }
+    return counts;
+  }
+
+  /**
+   * Map a token to an int.
+   *
+   * @param token
+   * @return
+   */
+  public static int tokenId(Object token) {
+    return token instanceof IString ? ((IString) token).id : token.hashCode();
+  }
+
+  /**
+   * Map a sequence to token ids.
+   *
+   * @param sequence
+   * @return
+   */
+  public static <TK> int[] toIds(Sequence<TK> sequence) {
+    final int[] ids = new int[sequence.size()];
+    for (int i = 0; i < ids.length; ++i) {
+      ids[i] = tokenId(sequence.get(i));
+    }
+    return ids;
+  }
+
+  /**
+   * The ids of the n-grams of a token array. Row n-1 holds the ids of the
+   * n-grams of order n in order of their start position.
+   *
+   * @param tokens
+   * @param order
+   * @return
+   */
+  public static long[][] ngramIds(int[] tokens, int order) {
+    final long[][] ids = new long[order][];
+    for (int n = 0; n < order; ++n) {
+      ids[n] = new long[Math.max(0, tokens.length - n)];
+    }
+    for (int i = 0; i < tokens.length; ++i) {
+      long h = 0;
+      final int jMax = Math.min(tokens.length, i + order);
+      for (int j = i; j < jMax; ++j) {
+        h = (h ^ (tokens[j] & 0xffffffffL)) * MULTIPLIER;
+        ids[j - i][i] = mix(h + j - i);
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * The ids of the n-grams of a token array as in <code>ngramIds()</code>, but
+   * with each row sorted.
+   *
+   * @param tokens
+   * @param order
+   * @return
+   */
+  public static long[][] sortedNgramIds(int[] tokens, int order) {
+    final long[][] ids = ngramIds(tokens, order);
+    for (long[] orderIds : ids) Arrays.sort(orderIds);
+    return ids;
+  }
+
+  /**
+   * The finalizer of MurmurHash3.
+   */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Information weights of the n-grams in a set of references, as used by the
+   * NIST metric. The information of the n-gram w_1:n is
+   * -log2(count(w_1:n)/count(w_1:n-1)), where the count of the empty prefix is
+   * the total number of reference tokens.
+   *
+   * @param referencesList
+   * @param order
+   * @return
+   */
+  public static <TK> Long2DoubleOpenHashMap informationWeights(
+      List<List<Sequence<TK>>> referencesList, int order) {
+    final Long2IntOpenHashMap counts = new Long2IntOpenHashMap();
+    final Long2LongOpenHashMap prefixes = new Long2LongOpenHashMap();
+    long numTokens = 0;
+    for (List<Sequence<TK>> references : referencesList) {
+      for (Sequence<TK> reference : references) {
+        numTokens += reference.size();
+        final long[][] ids = ngramIds(toIds(reference), order);
+        for (int n = 0; n < order; ++n) {
+          for (int i = 0; i < ids[n].length; ++i) {
+            counts.addTo(ids[n][i], 1);
+            if (n > 0) prefixes.put(ids[n][i], ids[n - 1][i]);
+          }
+        }
+      }
+    }
+    final double log2 = Math.log(2);
+    final Long2DoubleOpenHashMap weights = new Long2DoubleOpenHashMap(counts.size());
+    for (LongIterator it = counts.keySet().iterator(); it.hasNext();) {
+      final long id = it.nextLong();
+      final double denom = prefixes.containsKey(id) ? counts.get(prefixes.get(id)) : numTokens;
+      weights.put(id, -Math.log(counts.get(id) / denom) / log2);
+    }
+    return weights;
+  }
+}
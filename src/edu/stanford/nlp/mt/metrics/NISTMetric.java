@@ -1,7 +1,8 @@
 package edu.stanford.nlp.mt.metrics;
 
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 
 import edu.stanford.nlp.mt.decoder.recomb.RecombinationFilter;
@@ -9,9 +10,6 @@ import edu.stanford.nlp.mt.decoder.util.State;
 import edu.stanford.nlp.mt.util.NBestListContainer;
 import edu.stanford.nlp.mt.util.ScoredFeaturizedTranslation;
 import edu.stanford.nlp.mt.util.Sequence;
-import edu.stanford.nlp.stats.Counter;
-import edu.stanford.nlp.stats.ClassicCounter;
-import edu.stanford.nlp.stats.Counters;
 
 /**
  * 
@@ -19,26 +17,25 @@ import edu.stanford.nlp.stats.Counters;
  * 
  * @param <TK>
  */
-public class NISTMetric<TK, FV> extends AbstractMetric<TK, FV> {
+public class NISTMetric<TK, FV> extends AbstractMetric<TK, FV> implements DecomposableMetric<TK> {
   static public final int DEFAULT_MAX_NGRAM_ORDER = 10;
 
-  final List<Counter<Sequence<TK>>> maxReferenceCounts;
-  Counter<Sequence<TK>> ngramInfo;
+  final List<NGramReferences> referenceNgrams;
+  Long2DoubleOpenHashMap ngramInfo;
   final int[][] refLengths;
   final int order;
 
-  public void setNgramInfo(Counter<Sequence<TK>> i) {
+  public void setNgramInfo(Long2DoubleOpenHashMap i) {
     ngramInfo = i;
   }
 
-  public Counter<Sequence<TK>> getNgramInfo() {
+  public Long2DoubleOpenHashMap getNgramInfo() {
     return ngramInfo;
   }
 
   public NISTMetric(List<List<Sequence<TK>>> referencesList) {
     this.order = DEFAULT_MAX_NGRAM_ORDER;
-    maxReferenceCounts = new ArrayList<Counter<Sequence<TK>>>(
-        referencesList.size());
+    referenceNgrams = new ArrayList<NGramReferences>(referencesList.size());
     refLengths = new int[referencesList.size()][];
     initReferences(referencesList);
     initNgramWeights(referencesList);
@@ -55,45 +52,14 @@ public class NISTMetric<TK, FV> extends AbstractMetric<TK, FV> {
             "No references found for data point: %d\n", listI));
       }
 
-      refLengths[listI] = new int[refsSz];
-      Counter<Sequence<TK>> maxReferenceCount = MetricUtils.getMaxNGramCounts(
-          references, order);
-      maxReferenceCounts.add(maxReferenceCount);
-      refLengths[listI][0] = references.get(0).size();
-
-      for (int refI = 1; refI < refsSz; refI++) {
-        refLengths[listI][refI] = references.get(refI).size();
-        Counter<Sequence<TK>> altCounts = MetricUtils.getNGramCounts(
-            references.get(refI), order);
-        for (Sequence<TK> sequence : new HashSet<Sequence<TK>>(
-            altCounts.keySet())) {
-          double cnt = maxReferenceCount.getCount(sequence);
-          double altCnt = altCounts.getCount(sequence);
-          if (cnt < altCnt) {
-            maxReferenceCount.setCount(sequence, altCnt);
-          }
-        }
-      }
+      NGramReferences ngrams = new NGramReferences(references, order);
+      referenceNgrams.add(ngrams);
+      refLengths[listI] = ngrams.lengths();
     }
   }
 
   private void initNgramWeights(List<List<Sequence<TK>>> referencesList) {
-    int len = 0;
-    Counter<Sequence<TK>> allNgrams = new ClassicCounter<Sequence<TK>>();
-    for (List<Sequence<TK>> references : referencesList) {
-      for (Sequence<TK> reference : references) {
-        len += reference.size();
-        Counter<Sequence<TK>> altCounts = MetricUtils.getNGramCounts(
-            reference, order);
-        addToCounts(allNgrams, altCounts);
-      }
-    }
-    ngramInfo = MetricUtils.getNGramInfo(allNgrams, len);
-  }
-
-  static private <TK> void addToCounts(Counter<Sequence<TK>> counter,
-      Counter<Sequence<TK>> otherCounter) {
-    Counters.addInPlace(counter, otherCounter);
+    ngramInfo = NGramReferences.informationWeights(referencesList, order);
   }
 
   @Override
@@ -118,6 +84,49 @@ public class NISTMetric<TK, FV> extends AbstractMetric<TK, FV> {
     return sum / refLengths[index].length;
   }
 
+  @Override
+  public int numSufficientStatistics() {
+    // Information-weighted match counts, possible match counts, candidate length,
+    // and average reference length.
+    return 2 * order + 2;
+  }
+
+  @Override
+  public double[] sufficientStatistics(Sequence<TK> translation, int segmentId) {
+    double[] stats = new double[numSufficientStatistics()];
+    if (translation == null) return stats;
+    double[] localCounts = referenceNgrams.get(segmentId).matchCounts(translation, ngramInfo);
+    System.arraycopy(localCounts, 0, stats, 0, order);
+    int seqSz = translation.size();
+    for (int i = 0; i < order; i++) {
+      stats[order + i] = Math.max(0, seqSz - i);
+    }
+    stats[2 * order] = seqSz;
+    stats[2 * order + 1] = averageReferenceLength(segmentId);
+    return stats;
+  }
+
+  @Override
+  public double scoreStatistics(double[] stats) {
+    double ngramPrecisionScore = 0;
+    for (int i = 0; i < order; i++) {
+      double p = stats[i] / stats[order + i];
+      ngramPrecisionScore += !Double.isNaN(p) ? p : 0;
+    }
+    return brevityPenalty(stats[2 * order], stats[2 * order + 1]) * ngramPrecisionScore;
+  }
+
+  private static double brevityPenalty(double c, double r) {
+    double ratio = c / r;
+    if (ratio >= 1.0)
+      return 1.0;
+    if (ratio <= 0.0)
+      return 0.0;
+    double ratio_x = 1.5, score_x = .5;
+    double beta = -Math.log(score_x) / Math.log(ratio_x) / Math.log(ratio_x);
+    return Math.exp(-beta * Math.log(ratio) * Math.log(ratio));
+  }
+
   @Override
   public RecombinationFilter<IncrementalEvaluationMetric<TK, FV>> getIncrementalMetricRecombinationFilter() {
     throw new UnsupportedOperationException();
@@ -152,7 +161,7 @@ public class NISTMetric<TK, FV> extends AbstractMetric<TK, FV> {
       futurePossibleCounts = null;
       r = 0;
       c = 0;
-      this.sequences = new ArrayList<Sequence<TK>>(maxReferenceCounts.size());
+      this.sequences = new ArrayList<Sequence<TK>>(referenceNgrams.size());
     }
 
     NISTIncrementalMetric(NBestListContainer<TK, FV> nbest) {
@@ -177,10 +186,7 @@ public class NISTMetric<TK, FV> extends AbstractMetric<TK, FV> {
               futurePossibleCounts[i][j] = possibleMatchCounts(j, seqSz);
             }
           }
-          Counter<Sequence<TK>> canidateCounts = MetricUtils.getNGramCounts(
-              tran.translation, order);
-          MetricUtils.clipCounts(canidateCounts, maxReferenceCounts.get(i));
-          double[] localCounts = localMatchCounts(canidateCounts);
+          double[] localCounts = referenceNgrams.get(i).matchCounts(tran.translation, ngramInfo);
           for (int j = 0; j < order; j++) {
             if (futureMatchCounts[i][j] < localCounts[j]) {
               futureMatchCounts[i][j] = localCounts[j];
@@ -200,7 +206,7 @@ public class NISTMetric<TK, FV> extends AbstractMetric<TK, FV> {
         System.err.println();
       }
 
-      this.sequences = new ArrayList<Sequence<TK>>(maxReferenceCounts.size());
+      this.sequences = new ArrayList<Sequence<TK>>(referenceNgrams.size());
     }
 
     /**
@@ -227,43 +233,27 @@ public class NISTMetric<TK, FV> extends AbstractMetric<TK, FV> {
       return d >= 0 ? d : 0;
     }
 
-    private double[] localMatchCounts(Counter<Sequence<TK>> clippedCounts) {
-      double[] counts = new double[order];
-      for (Sequence<TK> ngram : clippedCounts.keySet()) {
-        double cnt = clippedCounts.getCount(ngram);
-        if (cnt > 0) {
-          int len = ngram.size();
-          if (ngramInfo.containsKey(ngram))
-            counts[len - 1] += cnt * ngramInfo.getCount(ngram);
-          else
-            System.err.println("Missing key for " + ngram.toString());
-        }
-      }
-      return counts;
-    }
-
-    private void incCounts(Counter<Sequence<TK>> clippedCounts,
+    private void incCounts(double[] localCounts,
         Sequence<TK> sequence, int mul) {
       int seqSz = sequence.size();
       for (int i = 0; i < order; i++) {
         possibleMatchCounts[i] += mul * possibleMatchCounts(i, seqSz);
       }
 
-      double[] localCounts = localMatchCounts(clippedCounts);
       for (int i = 0; i < order; i++) {
         // System.err.printf("local Counts[%d]: %d\n", i, localCounts[i]);
         matchCounts[i] += mul * localCounts[i];
       }
     }
 
-    private void incCounts(Counter<Sequence<TK>> clippedCounts,
+    private void incCounts(double[] localCounts,
         Sequence<TK> sequence) {
-      incCounts(clippedCounts, sequence, 1);
+      incCounts(localCounts, sequence, 1);
     }
 
-    private void decCounts(Counter<Sequence<TK>> clippedCounts,
+    private void decCounts(double[] localCounts,
         Sequence<TK> sequence) {
-      incCounts(clippedCounts, sequence, -1);
+      incCounts(localCounts, sequence, -1);
     }
 
     @Override
@@ -276,17 +266,15 @@ public class NISTMetric<TK, FV> extends AbstractMetric<TK, FV> {
     public IncrementalEvaluationMetric<TK, FV> add(
         Sequence<TK> tran) {
       int pos = sequences.size();
-      if (pos >= maxReferenceCounts.size()) {
+      if (pos >= referenceNgrams.size()) {
         throw new RuntimeException(String.format(
             "Attempt to add more candidates, %d, than references, %d.",
-            pos + 1, maxReferenceCounts.size()));
+            pos + 1, referenceNgrams.size()));
       }
       if (tran != null) {
-        Counter<Sequence<TK>> canidateCounts = MetricUtils.getNGramCounts(
-            tran, order);
-        MetricUtils.clipCounts(canidateCounts, maxReferenceCounts.get(pos));
+        double[] localCounts = referenceNgrams.get(pos).matchCounts(tran, ngramInfo);
         sequences.add(tran);
-        incCounts(canidateCounts, tran);
+        incCounts(localCounts, tran);
         c += tran.size();
         r += averageReferenceLength(pos);
       } else {
@@ -302,20 +290,18 @@ public class NISTMetric<TK, FV> extends AbstractMetric<TK, FV> {
         throw new IndexOutOfBoundsException(String.format("Index: %d >= %d",
             index, sequences.size()));
       }
-      Counter<Sequence<TK>> canidateCounts = (trans == null ? new ClassicCounter<Sequence<TK>>()
-          : MetricUtils.getNGramCounts(trans.translation, order));
-      MetricUtils.clipCounts(canidateCounts, maxReferenceCounts.get(index));
+      double[] localCounts = (trans == null ? new double[order]
+          : referenceNgrams.get(index).matchCounts(trans.translation, ngramInfo));
       if (sequences.get(index) != null) {
-        Counter<Sequence<TK>> oldCanidateCounts = MetricUtils.getNGramCounts(
-            sequences.get(index), order);
-        MetricUtils.clipCounts(oldCanidateCounts, maxReferenceCounts.get(index));
-        decCounts(oldCanidateCounts, sequences.get(index));
+        double[] oldLocalCounts = referenceNgrams.get(index).matchCounts(
+            sequences.get(index), ngramInfo);
+        decCounts(oldLocalCounts, sequences.get(index));
         c -= sequences.get(index).size();
         r -= averageReferenceLength(index);
       }
       sequences.set(index, (trans == null ? null : trans.translation));
       if (trans != null) {
-        incCounts(canidateCounts, trans.translation);
+        incCounts(localCounts, trans.translation);
         c += sequences.get(index).size();
         r += averageReferenceLength(index);
       }
@@ -371,14 +357,7 @@ public class NISTMetric<TK, FV> extends AbstractMetric<TK, FV> {
     }
 
     public double brevityPenalty() {
-      double ratio = c / r;
-      if (ratio >= 1.0)
-        return 1.0;
-      if (ratio <= 0.0)
-        return 0.0;
-      double ratio_x = 1.5, score_x = .5;
-      double beta = -Math.log(score_x) / Math.log(ratio_x) / Math.log(ratio_x);
-      return Math.exp(-beta * Math.log(ratio) * Math.log(ratio));
+      return NISTMetric.brevityPenalty(c, r);
     }
 
     public void printScores() {
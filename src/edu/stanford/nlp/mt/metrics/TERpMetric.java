@@ -28,7 +28,7 @@ import com.bbn.mt.terp.NormalizeText;
  * @param <TK>
  * @param <FV>
  */
-public class TERpMetric<TK, FV> extends AbstractMetric<TK, FV> {
+public class TERpMetric<TK, FV> extends AbstractMetric<TK, FV> implements DecomposableMetric<TK> {
   final List<List<Sequence<TK>>> referencesList;
 
   enum EditType {
@@ -186,6 +186,28 @@ public class TERpMetric<TK, FV> extends AbstractMetric<TK, FV> {
     return bestAl;
   }
 
+  @Override
+  public int numSufficientStatistics() {
+    // Number of edits and average number of reference words
+    return 2;
+  }
+
+  @Override
+  public double[] sufficientStatistics(Sequence<TK> translation, int segmentId) {
+    double[] stats = new double[2];
+    if (translation != null) {
+      TERalignment align = calcTER(translation, segmentId, null);
+      stats[0] = align.numEdits;
+      stats[1] = align.numWords;
+    }
+    return stats;
+  }
+
+  @Override
+  public double scoreStatistics(double[] stats) {
+    return -stats[0] / stats[1];
+  }
+
   public class TERpIncrementalMetric implements
       IncrementalEvaluationMetric<TK, FV> {
     TERalignment[] aligns = new TERalignment[referencesList.size()];
@@ -1,12 +1,17 @@
 package edu.stanford.nlp.mt.tm;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import edu.stanford.nlp.mt.decoder.feat.RuleFeaturizer;
 import edu.stanford.nlp.mt.decoder.util.Scorer;
+import edu.stanford.nlp.mt.tm.RuleCache.RuleTemplate;
 import edu.stanford.nlp.mt.util.CoverageSet;
+import edu.stanford.nlp.mt.util.FeatureValue;
+import edu.stanford.nlp.mt.util.Featurizable;
 import edu.stanford.nlp.mt.util.InputProperties;
+import edu.stanford.nlp.mt.util.InputProperty;
 import edu.stanford.nlp.mt.util.Sequence;
 
 
@@ -22,6 +27,9 @@ abstract public class AbstractPhraseGenerator<TK, FV> implements
     TranslationModel<TK,FV> {
   
   protected RuleFeaturizer<TK, FV> phraseFeaturizer;
+  
+  // Shared by clones
+  protected RuleCache<TK,FV> ruleCache;
 
   /**
    * Constructor.
@@ -47,6 +55,9 @@ abstract public class AbstractPhraseGenerator<TK, FV> implements
     int longestForeignPhrase = this.longestSourcePhrase();
     if (longestForeignPhrase < 0)
       longestForeignPhrase = -longestForeignPhrase;
+    final String domain = sourceInputProperties != null && 
+        sourceInputProperties.containsKey(InputProperty.Domain) ? 
+            (String) sourceInputProperties.get(InputProperty.Domain) : null;
     for (int startIdx = 0; startIdx < sequenceSz; startIdx++) {
       for (int len = 1; len <= longestForeignPhrase; len++) {
         int endIdx = startIdx + len;
@@ -55,6 +66,18 @@ abstract public class AbstractPhraseGenerator<TK, FV> implements
         CoverageSet foreignCoverage = new CoverageSet(sequenceSz);
         foreignCoverage.set(startIdx, endIdx);
         Sequence<TK> foreignPhrase = source.subsequence(startIdx, endIdx);
+        if (ruleCache != null) {
+          List<RuleTemplate<TK,FV>> templates = ruleCache.get(foreignPhrase, domain);
+          if (templates == null) {
+            templates = featurize(foreignPhrase, foreignCoverage, source, 
+                sourceInputId, sourceInputProperties);
+            ruleCache.put(foreignPhrase, domain, templates);
+          }
+          for (RuleTemplate<TK,FV> template : templates) {
+            opts.add(template.anchor(foreignCoverage, scorer, this.getName()));
+          }
+          continue;
+        }
         List<Rule<TK>> abstractOpts = this.query(foreignPhrase);
         if (abstractOpts != null) {
           for (Rule<TK> abstractOpt : abstractOpts) {
@@ -68,6 +91,44 @@ abstract public class AbstractPhraseGenerator<TK, FV> implements
     return opts;
   }
 
+  /**
+   * Query and featurize the rules for a source span.
+   */
+  private List<RuleTemplate<TK,FV>> featurize(Sequence<TK> foreignPhrase,
+      CoverageSet foreignCoverage, Sequence<TK> source, int sourceInputId,
+      InputProperties sourceInputProperties) {
+    List<Rule<TK>> abstractOpts = this.query(foreignPhrase);
+    if (abstractOpts == null) return Collections.emptyList();
+    List<RuleTemplate<TK,FV>> templates = new ArrayList<>(abstractOpts.size());
+    for (Rule<TK> abstractOpt : abstractOpts) {
+      ConcreteRule<TK,FV> rule = new ConcreteRule<TK,FV>(abstractOpt, foreignCoverage, 
+          null, 0.0, this.getName());
+      List<FeatureValue<FV>> features = phraseFeaturizer == null ? 
+          new ArrayList<FeatureValue<FV>>() : phraseFeaturizer.ruleFeaturize(
+              new Featurizable<TK,FV>(source, sourceInputProperties, rule, sourceInputId));
+      templates.add(new RuleTemplate<TK,FV>(abstractOpt, features));
+    }
+    return templates;
+  }
+
+  /**
+   * Cache featurized rules across input sentences.
+   * 
+   * @param ruleCache The cache, or null to disable caching.
+   */
+  public void setRuleCache(RuleCache<TK,FV> ruleCache) {
+    this.ruleCache = ruleCache;
+  }
+
+  /**
+   * The rule cache, or null if caching is disabled.
+   * 
+   * @return
+   */
+  public RuleCache<TK,FV> getRuleCache() {
+    return ruleCache;
+  }
+
   /**
    * Return a list of rules for a source span.
    * 
@@ -85,5 +146,6 @@ abstract public class AbstractPhraseGenerator<TK, FV> implements
   @Override
   public void setFeaturizer(RuleFeaturizer<TK, FV> featurizer) {
     phraseFeaturizer = featurizer;
+    if (ruleCache != null) ruleCache.clear();
   }
 }
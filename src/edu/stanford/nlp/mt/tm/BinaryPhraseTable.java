@@ -0,0 +1,564 @@
+package edu.stanford.nlp.mt.tm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.nlp.mt.decoder.util.RuleGrid;
+import edu.stanford.nlp.mt.decoder.util.Scorer;
+import edu.stanford.nlp.mt.util.IOTools;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.IStrings;
+import edu.stanford.nlp.mt.util.InputProperties;
+import edu.stanford.nlp.mt.util.LRUCache.ArrayKey;
+import edu.stanford.nlp.mt.util.PhraseAlignment;
+import edu.stanford.nlp.mt.util.Sequence;
+import edu.stanford.nlp.mt.util.SimpleSequence;
+import edu.stanford.nlp.util.StringUtils;
+
+/**
+ * A read-only phrase table that is served from a memory-mapped binary file.
+ * The binary file is created from the standard text format with
+ * {@link #compile(String, String)}. Loading only reads the vocabulary and the
+ * alignment templates; all rules stay on disk, so multiple decoder processes
+ * on one machine share the OS page cache. Does *not* support gappy rules.
+ *
+ * File layout (big-endian):
+ * <pre>
+ *   header       : MAGIC VERSION numScores longestSource longestTarget
+ *                  numSources numRules sourcePoolSize targetPoolSize stringTableBytes
+ *   string table : vocabulary and alignment templates (modified UTF-8)
+ *   int[]   sourceStart (numSources+1) offsets into sourcePool
+ *   int[]   sourcePool  source phrases sorted lexicographically by word id
+ *   int[]   ruleStart   (numSources+1) index of the first rule of each source
+ *   int[]   targetStart (numRules+1) offsets into targetPool
+ *   int[]   targetPool
+ *   float[] scores      (numRules*numScores)
+ *   int[]   alignments  (numRules) index into the alignment templates, or -1
+ * </pre>
+ *
+ * @param <FV>
+ */
+public class BinaryPhraseTable<FV> extends AbstractPhraseGenerator<IString, FV>
+    implements PhraseTable<IString> {
+
+  public static final String FILE_EXTENSION = ".bpt";
+
+  private static final int MAGIC = 0x50425054;
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 10 * (Integer.SIZE / Byte.SIZE);
+  private static final int INT_BYTES = Integer.SIZE / Byte.SIZE;
+
+  private final String name;
+  private final String[] scoreNames;
+  private final int minRuleIndex;
+  private final int numScores;
+  private final int numSources;
+  private final int numRules;
+  private final int longestSourcePhrase;
+  private final int longestTargetPhrase;
+
+  // Mapping between the file vocabulary and the system vocabulary
+  private final int[] fileToSystem;
+  private final int[] systemToFile;
+  private final PhraseAlignment[] alignmentTemplates;
+
+  // Memory-mapped sections
+  private final IntBuffer sourceStart;
+  private final IntBuffer sourcePool;
+  private final IntBuffer ruleStart;
+  private final IntBuffer targetStart;
+  private final IntBuffer targetPool;
+  private final FloatBuffer scores;
+  private final IntBuffer alignments;
+
+  /**
+   * Constructor.
+   *
+   * @param filename
+   * @throws IOException
+   */
+  public BinaryPhraseTable(String filename) throws IOException {
+    this(CompiledPhraseTable.DEFAULT_FEATURE_PREFIX, filename);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param featurePrefix
+   * @param filename
+   * @throws IOException
+   */
+  public BinaryPhraseTable(String featurePrefix, String filename) throws IOException {
+    super(null);
+    final long startTime = System.nanoTime();
+    File f = new File(filename);
+    name = String.format("%s:%s", this.getClass().getName(), f.getPath()).intern();
+
+    // Read the header and the string table
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+    if (in.readInt() != MAGIC) {
+      in.close();
+      throw new IOException("Not a binary phrase table: " + filename);
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      in.close();
+      throw new IOException(String.format("Unsupported binary phrase table version %d in %s",
+          version, filename));
+    }
+    numScores = in.readInt();
+    longestSourcePhrase = in.readInt();
+    longestTargetPhrase = in.readInt();
+    numSources = in.readInt();
+    numRules = in.readInt();
+    final int sourcePoolSize = in.readInt();
+    final int targetPoolSize = in.readInt();
+    final int stringTableBytes = in.readInt();
+
+    final int vocabSize = in.readInt();
+    fileToSystem = new int[vocabSize];
+    int maxSystemId = -1;
+    for (int i = 0; i < vocabSize; ++i) {
+      fileToSystem[i] = new IString(in.readUTF()).id;
+      maxSystemId = Math.max(maxSystemId, fileToSystem[i]);
+    }
+    systemToFile = new int[maxSystemId + 1];
+    Arrays.fill(systemToFile, -1);
+    for (int i = 0; i < vocabSize; ++i) {
+      systemToFile[fileToSystem[i]] = i;
+    }
+    alignmentTemplates = new PhraseAlignment[in.readInt()];
+    for (int i = 0; i < alignmentTemplates.length; ++i) {
+      alignmentTemplates[i] = PhraseAlignment.getPhraseAlignment(in.readUTF());
+    }
+    in.close();
+
+    // Map the rule sections
+    try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+      FileChannel channel = raf.getChannel();
+      long offset = HEADER_BYTES + stringTableBytes;
+      sourceStart = channel.map(MapMode.READ_ONLY, offset, bytes(numSources + 1)).asIntBuffer();
+      offset += bytes(numSources + 1);
+      sourcePool = channel.map(MapMode.READ_ONLY, offset, bytes(sourcePoolSize)).asIntBuffer();
+      offset += bytes(sourcePoolSize);
+      ruleStart = channel.map(MapMode.READ_ONLY, offset, bytes(numSources + 1)).asIntBuffer();
+      offset += bytes(numSources + 1);
+      targetStart = channel.map(MapMode.READ_ONLY, offset, bytes(numRules + 1)).asIntBuffer();
+      offset += bytes(numRules + 1);
+      targetPool = channel.map(MapMode.READ_ONLY, offset, bytes(targetPoolSize)).asIntBuffer();
+      offset += bytes(targetPoolSize);
+      scores = channel.map(MapMode.READ_ONLY, offset, bytes((long) numRules * numScores)).asFloatBuffer();
+      offset += bytes((long) numRules * numScores);
+      alignments = channel.map(MapMode.READ_ONLY, offset, bytes(numRules)).asIntBuffer();
+    }
+
+    minRuleIndex = CompiledPhraseTable.reserveRuleIds(numRules);
+    scoreNames = new String[numScores];
+    for (int i = 0; i < numScores; i++) {
+      scoreNames[i] = String.format("%s.%d", featurePrefix, i);
+    }
+    double elapsedTime = ((double) System.nanoTime() - startTime) / 1e9;
+    System.err.printf("Done mapping binary phrase table: %s (rules: %d time: %.3f s)%n",
+        f.getAbsolutePath(), numRules, elapsedTime);
+  }
+
+  private static long bytes(long numElements) {
+    return numElements * INT_BYTES;
+  }
+
+  @Override
+  public int size() { return numRules; }
+
+  @Override
+  public int minRuleIndex() { return minRuleIndex; }
+
+  @Override
+  public int longestSourcePhrase() { return longestSourcePhrase; }
+
+  @Override
+  public int longestTargetPhrase() { return longestTargetPhrase; }
+
+  @Override
+  public List<String> getFeatureNames() { return Arrays.asList(scoreNames); }
+
+  @Override
+  public String getName() { return name; }
+
+  @Override
+  public String toString() { return getName(); }
+
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    return super.clone();
+  }
+
+  /**
+   * Convert a source sequence to the file vocabulary.
+   *
+   * @param sequence
+   * @return null if the sequence contains a word that is not in the table.
+   */
+  private int[] toFileIds(Sequence<IString> sequence) {
+    int[] key = new int[sequence.size()];
+    for (int i = 0; i < key.length; ++i) {
+      int systemId = sequence.get(i).id;
+      if (systemId < 0 || systemId >= systemToFile.length || systemToFile[systemId] < 0) {
+        return null;
+      }
+      key[i] = systemToFile[systemId];
+    }
+    return key;
+  }
+
+  /**
+   * Binary search for a source phrase.
+   *
+   * @param key
+   * @return the source index or -1 if not found.
+   */
+  private int findSource(int[] key) {
+    int lo = 0;
+    int hi = numSources - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int cmp = compareSource(mid, key);
+      if (cmp < 0) {
+        lo = mid + 1;
+      } else if (cmp > 0) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  private int compareSource(int sourceIndex, int[] key) {
+    int start = sourceStart.get(sourceIndex);
+    int length = sourceStart.get(sourceIndex + 1) - start;
+    int n = Math.min(length, key.length);
+    for (int i = 0; i < n; ++i) {
+      int cmp = Integer.compare(sourcePool.get(start + i), key[i]);
+      if (cmp != 0) return cmp;
+    }
+    return length - key.length;
+  }
+
+  private int[] targetArray(int ruleIndex) {
+    int start = targetStart.get(ruleIndex);
+    int[] target = new int[targetStart.get(ruleIndex + 1) - start];
+    for (int i = 0; i < target.length; ++i) {
+      target[i] = fileToSystem[targetPool.get(start + i)];
+    }
+    return target;
+  }
+
+  @Override
+  public List<Rule<IString>> query(Sequence<IString> sourceSequence) {
+    int[] key = toFileIds(sourceSequence);
+    int sourceIndex = key == null ? -1 : findSource(key);
+    if (sourceIndex < 0) return null;
+    final int firstRule = ruleStart.get(sourceIndex);
+    final int lastRule = ruleStart.get(sourceIndex + 1);
+    List<Rule<IString>> ruleList = new ArrayList<>(lastRule - firstRule);
+    float[] ruleScores = new float[numScores];
+    for (int r = firstRule; r < lastRule; ++r) {
+      for (int i = 0; i < numScores; ++i) {
+        ruleScores[i] = scores.get(r * numScores + i);
+      }
+      int alignmentIndex = alignments.get(r);
+      PhraseAlignment alignment = alignmentIndex < 0 ? null : alignmentTemplates[alignmentIndex];
+      Sequence<IString> targetSequence = IStrings.getIStringSequence(targetArray(r));
+      // Rule copies the scores array
+      ruleList.add(new Rule<IString>(minRuleIndex + r, ruleScores, scoreNames,
+          targetSequence, sourceSequence, alignment));
+    }
+    return ruleList;
+  }
+
+  @Override
+  public int getId(Sequence<IString> sourceSequence,
+      Sequence<IString> targetSequence) {
+    int[] key = toFileIds(sourceSequence);
+    int sourceIndex = key == null ? -1 : findSource(key);
+    if (sourceIndex < 0) return -1;
+    int[] target = new int[targetSequence.size()];
+    for (int i = 0; i < target.length; ++i) {
+      target[i] = targetSequence.get(i).id;
+    }
+    for (int r = ruleStart.get(sourceIndex), last = ruleStart.get(sourceIndex + 1); r < last; ++r) {
+      if (Arrays.equals(target, targetArray(r))) {
+        return minRuleIndex + r;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public RuleGrid<IString, FV> getRuleGrid(Sequence<IString> source,
+      InputProperties sourceInputProperties, List<Sequence<IString>> targets,
+      int sourceInputId, Scorer<FV> scorer) {
+    throw new UnsupportedOperationException("Not yet implemented");
+  }
+
+  /**
+   * A rule during compilation. Word ids are in the file vocabulary.
+   */
+  private static class CompileEntry {
+    final int[] target;
+    final float[] scores;
+    final int alignment;
+    CompileEntry(int[] target, float[] scores, int alignment) {
+      this.target = target;
+      this.scores = scores;
+      this.alignment = alignment;
+    }
+  }
+
+  private static int[] toFileIds(List<String> words, Map<String,Integer> vocab, List<String> vocabList) {
+    int[] ids = new int[words.size()];
+    int i = 0;
+    for (String word : words) {
+      Integer id = vocab.get(word);
+      if (id == null) {
+        id = vocabList.size();
+        vocab.put(word, id);
+        vocabList.add(word);
+      }
+      ids[i++] = id;
+    }
+    return ids;
+  }
+
+  private static void checkSectionSize(long numElements, String section) {
+    if (bytes(numElements) > Integer.MAX_VALUE) {
+      throw new RuntimeException(String.format(
+          "Section %s exceeds the maximum mappable size (%d elements)", section, numElements));
+    }
+  }
+
+  /**
+   * Compile a text phrase table to the binary format.
+   *
+   * @param textFile
+   * @param binaryFile
+   * @throws IOException
+   */
+  public static void compile(String textFile, String binaryFile) throws IOException {
+    final long startTime = System.nanoTime();
+    Map<String,Integer> vocab = new HashMap<>();
+    List<String> vocabList = new ArrayList<>();
+    Map<String,Integer> alignmentIndex = new HashMap<>();
+    List<String> alignmentList = new ArrayList<>();
+    Map<ArrayKey,Integer> sourceIndex = new HashMap<>();
+    List<int[]> sources = new ArrayList<>();
+    List<List<CompileEntry>> rules = new ArrayList<>();
+    int numScores = -1;
+    int numRules = 0;
+    int longestSource = -1;
+    int longestTarget = -1;
+    long targetPoolSize = 0;
+
+    LineNumberReader reader = IOTools.getReaderFromFile(textFile);
+    for (String line; (line = reader.readLine()) != null;) {
+      List<List<String>> fields = StringUtils.splitFieldsFast(line, CompiledPhraseTable.FIELD_DELIM);
+      if (fields.size() != 5) {
+        reader.close();
+        throw new RuntimeException(String.format("phrase table line %d has %d fields",
+            reader.getLineNumber(), fields.size()));
+      }
+      int[] source = toFileIds(fields.get(0), vocab, vocabList);
+      int[] target = toFileIds(fields.get(1), vocab, vocabList);
+      String targetConstellation = StringUtils.join(fields.get(3));
+      List<String> scoreList = fields.get(4);
+      if (numScores < 0) {
+        numScores = scoreList.size();
+      } else if (numScores != scoreList.size()) {
+        reader.close();
+        throw new RuntimeException(String.format(
+            "Error (line %d): Each entry must have exactly the same number of translation scores",
+            reader.getLineNumber()));
+      }
+      float[] scores;
+      try {
+        scores = IOTools.stringListToNumeric(scoreList);
+      } catch (NumberFormatException e) {
+        reader.close();
+        throw new RuntimeException(String.format("Number format error on line %d",
+            reader.getLineNumber()));
+      }
+      int alignment = -1;
+      if ( ! targetConstellation.equals("")) {
+        Integer id = alignmentIndex.get(targetConstellation);
+        if (id == null) {
+          id = alignmentList.size();
+          alignmentIndex.put(targetConstellation, id);
+          alignmentList.add(targetConstellation);
+        }
+        alignment = id;
+      }
+      ArrayKey key = new ArrayKey(source);
+      Integer id = sourceIndex.get(key);
+      if (id == null) {
+        id = sources.size();
+        sourceIndex.put(key, id);
+        sources.add(source);
+        rules.add(new ArrayList<CompileEntry>(2));
+      }
+      rules.get(id).add(new CompileEntry(target, scores, alignment));
+      ++numRules;
+      targetPoolSize += target.length;
+      longestSource = Math.max(longestSource, source.length);
+      longestTarget = Math.max(longestTarget, target.length);
+    }
+    reader.close();
+    if (numScores < 0) numScores = 0;
+
+    // Sort the source phrases so that they can be binary searched
+    long sourcePoolSize = 0;
+    Integer[] order = new Integer[sources.size()];
+    for (int i = 0; i < order.length; ++i) {
+      order[i] = i;
+      sourcePoolSize += sources.get(i).length;
+    }
+    final List<int[]> sourceList = sources;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer x, Integer y) {
+        int[] a = sourceList.get(x);
+        int[] b = sourceList.get(y);
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; ++i) {
+          int cmp = Integer.compare(a[i], b[i]);
+          if (cmp != 0) return cmp;
+        }
+        return a.length - b.length;
+      }
+    });
+    checkSectionSize(sourcePoolSize, "sourcePool");
+    checkSectionSize(targetPoolSize, "targetPool");
+    checkSectionSize((long) numRules * numScores, "scores");
+    checkSectionSize(numRules + 1L, "targetStart");
+
+    // Serialize the string table
+    ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+    DataOutputStream stringTable = new DataOutputStream(stringBytes);
+    stringTable.writeInt(vocabList.size());
+    for (String word : vocabList) stringTable.writeUTF(word);
+    stringTable.writeInt(alignmentList.size());
+    for (String alignment : alignmentList) stringTable.writeUTF(alignment);
+    stringTable.close();
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(binaryFile), 1 << 16));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(numScores);
+    out.writeInt(longestSource);
+    out.writeInt(longestTarget);
+    out.writeInt(sources.size());
+    out.writeInt(numRules);
+    out.writeInt((int) sourcePoolSize);
+    out.writeInt((int) targetPoolSize);
+    out.writeInt(stringBytes.size());
+    stringBytes.writeTo(out);
+
+    // sourceStart and sourcePool
+    int offset = 0;
+    for (int i : order) {
+      out.writeInt(offset);
+      offset += sources.get(i).length;
+    }
+    out.writeInt(offset);
+    for (int i : order) {
+      for (int id : sources.get(i)) out.writeInt(id);
+    }
+    // ruleStart
+    offset = 0;
+    for (int i : order) {
+      out.writeInt(offset);
+      offset += rules.get(i).size();
+    }
+    out.writeInt(offset);
+    // targetStart and targetPool
+    offset = 0;
+    for (int i : order) {
+      for (CompileEntry entry : rules.get(i)) {
+        out.writeInt(offset);
+        offset += entry.target.length;
+      }
+    }
+    out.writeInt(offset);
+    for (int i : order) {
+      for (CompileEntry entry : rules.get(i)) {
+        for (int id : entry.target) out.writeInt(id);
+      }
+    }
+    // scores
+    for (int i : order) {
+      for (CompileEntry entry : rules.get(i)) {
+        for (float score : entry.scores) out.writeFloat(score);
+      }
+    }
+    // alignments
+    for (int i : order) {
+      for (CompileEntry entry : rules.get(i)) {
+        out.writeInt(entry.alignment);
+      }
+    }
+    out.close();
+
+    double elapsedTime = ((double) System.nanoTime() - startTime) / 1e9;
+    System.err.printf("Compiled %s to %s (sources: %d rules: %d time: %.3f s)%n",
+        textFile, binaryFile, sources.size(), numRules, elapsedTime);
+  }
+
+  /**
+   *
+   * @param args
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length == 2) {
+      compile(args[0], args[1]);
+
+    } else if (args.length == 3 && args[0].equals("-q")) {
+      BinaryPhraseTable<String> table = new BinaryPhraseTable<>(args[1]);
+      List<Rule<IString>> rules = table.query(new SimpleSequence<IString>(
+          IStrings.toIStringArray(args[2].split("\\s+"))));
+      if (rules == null) {
+        System.out.printf("No translation options found.%n");
+      } else {
+        for (Rule<IString> rule : rules) {
+          System.out.printf("\t%s : %s%n", rule.target, Arrays.toString(rule.scores));
+        }
+      }
+
+    } else {
+      System.err.printf("Usage: java %s phrase_table_file binary_file%s%n",
+          BinaryPhraseTable.class.getName(), FILE_EXTENSION);
+      System.err.printf("       java %s -q binary_file%s phrase%n",
+          BinaryPhraseTable.class.getName(), FILE_EXTENSION);
+      System.exit(-1);
+    }
+  }
+}
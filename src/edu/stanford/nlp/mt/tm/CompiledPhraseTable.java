@@ -9,6 +9,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import edu.stanford.nlp.mt.decoder.feat.base.TranslationModelFeaturizer;
 import edu.stanford.nlp.mt.decoder.util.RuleGrid;
 import edu.stanford.nlp.mt.decoder.util.Scorer;
 import edu.stanford.nlp.mt.util.IOTools;
@@ -23,6 +24,7 @@ import edu.stanford.nlp.mt.util.ProbingIntegerArrayRawIndex;
 import edu.stanford.nlp.mt.util.Sequence;
 import edu.stanford.nlp.mt.util.Sequences;
 import edu.stanford.nlp.mt.util.SimpleSequence;
+import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.util.StringUtils;
 
 /**
@@ -54,6 +56,11 @@ public class CompiledPhraseTable<FV> extends AbstractPhraseGenerator<IString, FV
   protected int longestSourcePhrase = -1;
   protected int longestTargetPhrase = -1;
 
+  // Load-time rule pruning. The dense score weights are null unless the table
+  // is pruned.
+  private final int ruleLimit;
+  private double[] scoreWeights;
+
   /**
    * Constructor.
    *
@@ -74,23 +81,62 @@ public class CompiledPhraseTable<FV> extends AbstractPhraseGenerator<IString, FV
   public CompiledPhraseTable(
       String featurePrefix,
       String filename) throws IOException {
+    this(featurePrefix, filename, 0, null);
+  }
+
+  /**
+   * Constructor that keeps only the top-k rules for each source phrase under the
+   * dense translation model weights, i.e., the weights of the 
+   * <code>TM:&lt;score name&gt;</code> features. Rules are pruned while the table
+   * is loaded, so at most k rules per source phrase are held in memory. Ties
+   * are broken in favor of the rule that appears first in the file.
+   * <code>query()</code> returns the rules in descending order of score.
+   *
+   * @param featurePrefix
+   * @param filename
+   * @param ruleLimit The maximum number of rules per source phrase, or 0 to 
+   *        keep all rules.
+   * @param weights The model weights, or null to keep all rules.
+   * @throws IOException
+   */
+  public CompiledPhraseTable(
+      String featurePrefix,
+      String filename, int ruleLimit, Counter<String> weights) throws IOException {
     super(null);
+    if (ruleLimit < 0) throw new IllegalArgumentException("Invalid rule limit: " + ruleLimit);
     File f = new File(filename);
     name = String.format("%s:%s", this.getClass().getName(), f.getPath()).intern();
     minRuleIndex = ruleIdCounter.get();
     ruleLists = new ArrayList<>(INITIAL_CAPACITY);
     sourceToRuleIndex = new ProbingIntegerArrayRawIndex();
     targetIndex = new ProbingIntegerArrayIndex();
-    int countScores = init(f);
+    this.ruleLimit = weights == null ? 0 : ruleLimit;
+    int countScores = init(f, featurePrefix, weights);
     scoreNames = new String[countScores];
     for (int i = 0; i < countScores; i++) {
-      scoreNames[i] = String.format("%s.%d", featurePrefix, i);
+      scoreNames[i] = scoreName(featurePrefix, i);
     }
+    if (this.ruleLimit > 0) sortRules();
+  }
+
+  private static String scoreName(String featurePrefix, int i) {
+    return String.format("%s.%d", featurePrefix, i);
   }
 
   @Override
   public int size() { return ruleIdCounter.get(); }
 
+  /**
+   * Reserve a contiguous block of rule ids for a phrase table that does
+   * not assign ids through <code>addEntry()</code>.
+   *
+   * @param numRules
+   * @return The first id in the block.
+   */
+  static int reserveRuleIds(int numRules) {
+    return ruleIdCounter.getAndAdd(numRules);
+  }
+
   /**
    * Add a rule to the phrase table.
    *
@@ -103,9 +149,7 @@ public class CompiledPhraseTable<FV> extends AbstractPhraseGenerator<IString, FV
       Sequence<IString> targetSequence, PhraseAlignment alignment,
       float[] scores) {
     int[] sourceArray = Sequences.toIntArray(sourceSequence);
-    int[] targetArray = Sequences.toIntArray(targetSequence);
     int fIndex = sourceToRuleIndex.insertIntoIndex(sourceArray);
-    int eIndex = this.targetIndex.indexOf(targetArray, true);
 
     if (ruleLists.size() <= fIndex) {
       while (ruleLists.size() <= fIndex)
@@ -113,11 +157,86 @@ public class CompiledPhraseTable<FV> extends AbstractPhraseGenerator<IString, FV
     }
     List<PhraseTableEntry> intTransOpts = ruleLists.get(fIndex);
     if (intTransOpts == null) {
-      intTransOpts = new LinkedList<>();
+      intTransOpts = ruleLimit > 0 ? new ArrayList<PhraseTableEntry>(ruleLimit) :
+        new LinkedList<PhraseTableEntry>();
       ruleLists.set(fIndex, intTransOpts);
     }
-    intTransOpts.add(new PhraseTableEntry(ruleIdCounter.getAndIncrement(),
-        targetIndex.get(eIndex), scores, alignment));
+    
+    // Load-time pruning. Replace the worst rule if the new rule has a strictly 
+    // higher score, so that ties keep the earlier rule.
+    int replaceIndex = -1;
+    if (ruleLimit > 0 && intTransOpts.size() == ruleLimit) {
+      double worstScore = Double.POSITIVE_INFINITY;
+      int worstId = -1;
+      for (int i = 0; i < ruleLimit; ++i) {
+        final PhraseTableEntry rule = intTransOpts.get(i);
+        final double score = ruleScore(rule.scores);
+        // Among tied rules, the last one in the file is the worst
+        if (score < worstScore || (score == worstScore && rule.id > worstId)) {
+          worstScore = score;
+          worstId = rule.id;
+          replaceIndex = i;
+        }
+      }
+      if (ruleScore(scores) <= worstScore) return;
+    }
+    
+    int[] targetArray = Sequences.toIntArray(targetSequence);
+    int eIndex = this.targetIndex.indexOf(targetArray, true);
+    PhraseTableEntry entry = new PhraseTableEntry(ruleIdCounter.getAndIncrement(),
+        targetIndex.get(eIndex), scores, alignment);
+    if (replaceIndex < 0) {
+      intTransOpts.add(entry);
+    } else {
+      intTransOpts.set(replaceIndex, entry);
+    }
+  }
+
+  /**
+   * Dense translation model score of a rule under the pruning weights.
+   */
+  private double ruleScore(float[] scores) {
+    double score = 0.0;
+    for (int i = 0; i < scoreWeights.length; ++i) {
+      score += scoreWeights[i] * scores[i];
+    }
+    return score;
+  }
+
+  /**
+   * Sort the rules for each source phrase by descending score. Ties are broken
+   * by rule id, which follows the order of the file.
+   */
+  private void sortRules() {
+    for (int fIndex = 0, sz = ruleLists.size(); fIndex < sz; ++fIndex) {
+      List<PhraseTableEntry> rules = ruleLists.get(fIndex);
+      if (rules == null) continue;
+      final int numRules = rules.size();
+      final double[] scores = new double[numRules];
+      final int[] order = new int[numRules];
+      for (int i = 0; i < numRules; ++i) {
+        order[i] = i;
+        scores[i] = ruleScore(rules.get(i).scores);
+      }
+      // Insertion sort of the indices. Lists hold at most ruleLimit entries.
+      for (int i = 1; i < numRules; ++i) {
+        final int idx = order[i];
+        int j = i - 1;
+        for (; j >= 0 && precedes(idx, order[j], scores, rules); --j) {
+          order[j+1] = order[j];
+        }
+        order[j+1] = idx;
+      }
+      final PhraseTableEntry[] sorted = new PhraseTableEntry[numRules];
+      for (int i = 0; i < numRules; ++i) {
+        sorted[i] = rules.get(order[i]);
+      }
+      ruleLists.set(fIndex, Arrays.asList(sorted));
+    }
+  }
+
+  private static boolean precedes(int a, int b, double[] scores, List<PhraseTableEntry> rules) {
+    return scores[a] > scores[b] || (scores[a] == scores[b] && rules.get(a).id < rules.get(b).id);
   }
 
   @Override
@@ -127,10 +246,12 @@ public class CompiledPhraseTable<FV> extends AbstractPhraseGenerator<IString, FV
    * Load the phrase table from file.
    *
    * @param f
+   * @param featurePrefix
+   * @param weights The weights for load-time pruning.
    * @return
    * @throws IOException
    */
-  private int init(File f) throws IOException {
+  private int init(File f, String featurePrefix, Counter<String> weights) throws IOException {
     Runtime rt = Runtime.getRuntime();
     long prePhraseTableLoadMemUsed = rt.totalMemory() - rt.freeMemory();
     final long startTime = System.nanoTime();
@@ -152,6 +273,13 @@ public class CompiledPhraseTable<FV> extends AbstractPhraseGenerator<IString, FV
       // Ensure that all rules in the phrase table have the same number of scores
       if (numScores < 0) {
         numScores = scoreList.size();
+        if (ruleLimit > 0) {
+          scoreWeights = new double[numScores];
+          for (int i = 0; i < numScores; ++i) {
+            scoreWeights[i] = weights.getCount(String.format("%s:%s", 
+                TranslationModelFeaturizer.FEATURE_PREFIX, scoreName(featurePrefix, i)));
+          }
+        }
       } else if (numScores != scoreList.size()) {
         throw new RuntimeException(
             String
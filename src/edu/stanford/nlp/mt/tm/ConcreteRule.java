@@ -1,7 +1,6 @@
 package edu.stanford.nlp.mt.tm;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
 import edu.stanford.nlp.mt.decoder.feat.RuleFeaturizer;
@@ -99,7 +98,7 @@ public class ConcreteRule<TK,FV> implements Comparable<ConcreteRule<TK,FV>> {
         new ArrayList<FeatureValue<FV>>() : phraseFeaturizer.ruleFeaturize(f);
     
     // Cache selected features
-    cachedFeatureList = new LinkedList<>();
+    cachedFeatureList = new ArrayList<>();
     for (FeatureValue<FV> feature : features) {
       if ( ! feature.doNotCache) {
         cachedFeatureList.add(feature);
@@ -133,7 +132,7 @@ public class ConcreteRule<TK,FV> implements Comparable<ConcreteRule<TK,FV>> {
     this.phraseTableName = phraseTableName;
     this.sourcePosition = sourceCoverage.nextSetBit(0);
 
-    cachedFeatureList = new LinkedList<>();
+    cachedFeatureList = new ArrayList<>();
     
     // TM scores:
     double totalScore = 0.0;
@@ -171,6 +170,27 @@ public class ConcreteRule<TK,FV> implements Comparable<ConcreteRule<TK,FV>> {
     // this.isolationScore);
   }
 
+  /**
+   * Constructor for rules whose features have already been extracted. The
+   * feature list is not copied.
+   *
+   * @param abstractRule
+   * @param sourceCoverage
+   * @param cachedFeatureList
+   * @param isolationScore
+   * @param phraseTableName
+   */
+  public ConcreteRule(Rule<TK> abstractRule, CoverageSet sourceCoverage,
+      List<FeatureValue<FV>> cachedFeatureList, double isolationScore,
+      String phraseTableName) {
+    this.abstractRule = abstractRule;
+    this.sourceCoverage = sourceCoverage;
+    this.phraseTableName = phraseTableName;
+    this.sourcePosition = sourceCoverage.nextSetBit(0);
+    this.cachedFeatureList = cachedFeatureList;
+    this.isolationScore = isolationScore;
+  }
+
   @Override
   public String toString() {
     return String.format("%s ==> %s %s %s", abstractRule.source,
@@ -0,0 +1,234 @@
+package edu.stanford.nlp.mt.tm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.stanford.nlp.mt.decoder.util.Scorer;
+import edu.stanford.nlp.mt.util.CoverageSet;
+import edu.stanford.nlp.mt.util.FeatureValue;
+import edu.stanford.nlp.mt.util.LRUCache;
+import edu.stanford.nlp.mt.util.Sequence;
+
+/**
+ * A bounded, threadsafe cache of featurized rules that is shared across input
+ * sentences. Entries are keyed by source n-gram and input domain. Each entry
+ * holds the rules returned by the phrase table query along with the rule
+ * features, which are independent of the position of the n-gram in the
+ * input. Empty query results are also cached.
+ *
+ * The cache is split into segments, each of which is an LRU cache guarded by
+ * its own lock.
+ *
+ * NOTE: The cache assumes that the rule features depend only on the rule and
+ * the input domain.
+ *
+ * @param <TK>
+ * @param <FV>
+ */
+public class RuleCache<TK,FV> {
+
+  private static final int NUM_SEGMENTS = 16;
+
+  private final LRUCache<Key<TK>,List<RuleTemplate<TK,FV>>>[] segments;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final int maxSize;
+
+  /**
+   * Constructor.
+   *
+   * @param maxSize Maximum number of source n-grams in the cache.
+   */
+  @SuppressWarnings("unchecked")
+  public RuleCache(int maxSize) {
+    if (maxSize <= 0) throw new IllegalArgumentException("Invalid cache size: " + maxSize);
+    this.maxSize = maxSize;
+    final int segmentSize = Math.max(1, maxSize / NUM_SEGMENTS);
+    segments = new LRUCache[NUM_SEGMENTS];
+    for (int i = 0; i < NUM_SEGMENTS; ++i) {
+      segments[i] = new LRUCache<Key<TK>,List<RuleTemplate<TK,FV>>>(segmentSize) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key<TK>,List<RuleTemplate<TK,FV>>> eldest) {
+          boolean evict = super.removeEldestEntry(eldest);
+          if (evict) evictions.incrementAndGet();
+          return evict;
+        }
+      };
+    }
+  }
+
+  private LRUCache<Key<TK>,List<RuleTemplate<TK,FV>>> segment(Key<TK> key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return segments[(h & 0x7fffffff) % NUM_SEGMENTS];
+  }
+
+  /**
+   * Lookup the rules for a source n-gram.
+   *
+   * @param source
+   * @param domain The input domain, or null if the input has no domain.
+   * @return The cached rules, or null if the n-gram is not in the cache.
+   */
+  public List<RuleTemplate<TK,FV>> get(Sequence<TK> source, String domain) {
+    final Key<TK> key = new Key<>(source, domain);
+    final LRUCache<Key<TK>,List<RuleTemplate<TK,FV>>> segment = segment(key);
+    final List<RuleTemplate<TK,FV>> rules;
+    synchronized(segment) {
+      rules = segment.get(key);
+    }
+    if (rules == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return rules;
+  }
+
+  /**
+   * Add the rules for a source n-gram.
+   *
+   * @param source
+   * @param domain The input domain, or null if the input has no domain.
+   * @param rules
+   */
+  public void put(Sequence<TK> source, String domain, List<RuleTemplate<TK,FV>> rules) {
+    final Key<TK> key = new Key<>(source, domain);
+    final LRUCache<Key<TK>,List<RuleTemplate<TK,FV>>> segment = segment(key);
+    synchronized(segment) {
+      segment.put(key, rules);
+    }
+  }
+
+  /**
+   * Remove all entries from the cache. The counters are not reset.
+   */
+  public void clear() {
+    for (LRUCache<Key<TK>,List<RuleTemplate<TK,FV>>> segment : segments) {
+      synchronized(segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  /**
+   * Number of source n-grams in the cache.
+   *
+   * @return
+   */
+  public int size() {
+    int size = 0;
+    for (LRUCache<Key<TK>,List<RuleTemplate<TK,FV>>> segment : segments) {
+      synchronized(segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  public long hits() { return hits.get(); }
+
+  public long misses() { return misses.get(); }
+
+  public long evictions() { return evictions.get(); }
+
+  /**
+   * Fraction of lookups that were answered by the cache.
+   *
+   * @return
+   */
+  public double hitRate() {
+    final long h = hits.get();
+    final long total = h + misses.get();
+    return total == 0 ? 0.0 : (double) h / total;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("RuleCache size: %d/%d hits: %d misses: %d hit rate: %.2f%% evictions: %d",
+        size(), maxSize, hits(), misses(), hitRate() * 100.0, evictions());
+  }
+
+  /**
+   * A featurized rule that is not anchored to a source span.
+   *
+   * @param <TK>
+   * @param <FV>
+   */
+  public static class RuleTemplate<TK,FV> {
+    public final Rule<TK> abstractRule;
+
+    // All rule features, which are needed to compute the isolation score.
+    private final List<FeatureValue<FV>> features;
+
+    // The features that are scored with the derivation. Shared by all rules
+    // anchored from this template.
+    private final List<FeatureValue<FV>> cachedFeatureList;
+
+    /**
+     * Constructor.
+     *
+     * @param abstractRule
+     * @param features
+     */
+    public RuleTemplate(Rule<TK> abstractRule, List<FeatureValue<FV>> features) {
+      this.abstractRule = abstractRule;
+      this.features = new ArrayList<>(features);
+      this.cachedFeatureList = new ArrayList<>(features.size());
+      for (FeatureValue<FV> feature : features) {
+        if ( ! feature.doNotCache) {
+          cachedFeatureList.add(feature);
+        }
+      }
+    }
+
+    /**
+     * Create a rule for a source span. The isolation score is computed under
+     * the current weights of the scorer.
+     *
+     * @param sourceCoverage
+     * @param scorer
+     * @param phraseTableName
+     * @return
+     */
+    public ConcreteRule<TK,FV> anchor(CoverageSet sourceCoverage, Scorer<FV> scorer,
+        String phraseTableName) {
+      final double isolationScore = scorer == null ? Double.MIN_VALUE :
+        scorer.getIncrementalScore(features);
+      return new ConcreteRule<TK,FV>(abstractRule, sourceCoverage, cachedFeatureList,
+          isolationScore, phraseTableName);
+    }
+  }
+
+  /**
+   * Cache key.
+   */
+  private static class Key<TK> {
+    private final Sequence<TK> source;
+    private final String domain;
+    private final int hashCode;
+    public Key(Sequence<TK> source, String domain) {
+      this.source = source;
+      this.domain = domain;
+      this.hashCode = domain == null ? source.hashCode() :
+        31 * source.hashCode() + domain.hashCode();
+    }
+    @Override
+    public int hashCode() { return hashCode; }
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      } else if ( ! (o instanceof Key)) {
+        return false;
+      }
+      Key<?> other = (Key<?>) o;
+      return hashCode == other.hashCode && source.equals(other.source) &&
+          (domain == null ? other.domain == null : domain.equals(other.domain));
+    }
+  }
+}
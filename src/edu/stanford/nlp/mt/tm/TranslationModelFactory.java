@@ -5,7 +5,7 @@ import java.util.LinkedList;
 import java.util.List;
 
 import edu.stanford.nlp.mt.util.IString;
-
+import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.util.Pair;
 
 /**
@@ -20,6 +20,8 @@ public class TranslationModelFactory {
   public static final String DTU_GENERATOR = "dtu";
   public static final String QUERY_LIMIT_OPTION = "querylimit";
   public static final String FEATURE_PREFIX_OPTION = "featpref";
+  public static final String RULE_CACHE_OPTION = "rulecache";
+  public static final String RULE_LIMIT_OPTION = "rulelimit";
   public static final String SEPARATOR = ":";
   
   /**
@@ -29,13 +31,30 @@ public class TranslationModelFactory {
    * @return
    * @throws IOException
    */
-  @SuppressWarnings("unchecked")
   static public <FV> Pair<TranslationModel<IString,FV>,List<PhraseTable<IString>>> factory(
       String pgName, String filename, String...options) throws IOException {
+    return factory(pgName, filename, (Counter<String>) null, options);
+  }
+
+  /**
+   * Factory method for phrase table loading. If <code>RULE_LIMIT_OPTION</code> is
+   * set, then text phrase tables keep only the top-k rules per source phrase under
+   * the dense translation model weights in <code>weights</code>.
+   * 
+   * @param weights The model weights for load-time rule pruning, or null.
+   * @param options
+   * @return
+   * @throws IOException
+   */
+  @SuppressWarnings("unchecked")
+  static public <FV> Pair<TranslationModel<IString,FV>,List<PhraseTable<IString>>> factory(
+      String pgName, String filename, Counter<String> weights, String...options) throws IOException {
     
     // Parse options
     int queryLimit = -1;
     String featurePrefix = null;
+    int ruleCacheSize = 0;
+    int ruleLimit = 0;
     for (String option : options) {
       String[] fields = option.split(SEPARATOR);
       assert fields.length == 2 : String.format("Invalid option: " + option);
@@ -45,6 +64,10 @@ public class TranslationModelFactory {
         queryLimit = Integer.parseInt(value);
       } else if (key.equals(FEATURE_PREFIX_OPTION)) {
         featurePrefix = value;
+      } else if (key.equals(RULE_CACHE_OPTION)) {
+        ruleCacheSize = Integer.parseInt(value);
+      } else if (key.equals(RULE_LIMIT_OPTION)) {
+        ruleLimit = Integer.parseInt(value);
       }
     }
     
@@ -57,15 +80,25 @@ public class TranslationModelFactory {
       List<TranslationModel<IString,FV>> generators = new LinkedList<TranslationModel<IString,FV>>();
       List<PhraseTable<IString>> tables = new LinkedList<>();
 
+      if (ruleLimit > 0 && (withGaps || filename.endsWith(BinaryPhraseTable.FILE_EXTENSION))) {
+        System.err.printf("WARNING: rule pruning is not supported for %s%n", filename);
+      }
       TranslationModel<IString,FV> pt;
       if (withGaps) {
         pt = new DTUTable<FV>(filename);
-      } else {
+      } else if (filename.endsWith(BinaryPhraseTable.FILE_EXTENSION)) {
         if (featurePrefix == null) {
-          pt = new CompiledPhraseTable<FV>(filename);
+          pt = new BinaryPhraseTable<FV>(filename);
         } else {
-          pt = new CompiledPhraseTable<FV>(featurePrefix, filename);
+          pt = new BinaryPhraseTable<FV>(featurePrefix, filename);
         }
+      } else {
+        pt = new CompiledPhraseTable<FV>(featurePrefix == null ? 
+            CompiledPhraseTable.DEFAULT_FEATURE_PREFIX : featurePrefix, filename, 
+                ruleLimit, weights);
+      }
+      if (ruleCacheSize > 0 && ! withGaps) {
+        ((AbstractPhraseGenerator<IString,FV>) pt).setRuleCache(new RuleCache<IString,FV>(ruleCacheSize));
       }
       generators.add(pt);
       tables.add((PhraseTable<IString>) pt);
@@ -0,0 +1,34 @@
+package edu.stanford.nlp.mt.tools;
+
+import edu.stanford.nlp.mt.util.IOTools;
+import edu.stanford.nlp.stats.Counter;
+
+/**
+ * Convert a Phrasal weight vector between the binary, legacy binary (Java
+ * serialization), and text formats. The input format is detected
+ * automatically. The output format is determined by the file extension,
+ * unless <code>-legacy</code> is specified.
+ *
+ */
+public class ConvertWeights {
+
+  public static void main(String[] args) {
+    boolean legacy = args.length > 0 && args[0].equals("-legacy");
+    int argIdx = legacy ? 1 : 0;
+    if (args.length - argIdx != 2) {
+      System.err.printf("Usage: java %s [-legacy] input_wts_file output_wts_file%n",
+          ConvertWeights.class.getName());
+      System.err.printf("  Output files ending in %s are written in the binary format.%n",
+          IOTools.WEIGHTS_FILE_EXTENSION);
+      System.err.printf("  Other output files are written in the text format.%n");
+      System.exit(-1);
+    }
+    Counter<String> weights = IOTools.readWeights(args[argIdx]);
+    if (legacy) {
+      IOTools.writeLegacyWeights(args[argIdx + 1], weights);
+    } else {
+      IOTools.writeWeights(args[argIdx + 1], weights);
+    }
+    System.err.printf("Converted %d weights%n", weights.size());
+  }
+}
@@ -0,0 +1,128 @@
+package edu.stanford.nlp.mt.tools;
+
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.stanford.nlp.mt.lm.BatchLanguageModel;
+import edu.stanford.nlp.mt.lm.LMState;
+import edu.stanford.nlp.mt.lm.LanguageModel;
+import edu.stanford.nlp.mt.lm.LanguageModelFactory;
+import edu.stanford.nlp.mt.util.IOTools;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.IStrings;
+import edu.stanford.nlp.mt.util.Sequence;
+import edu.stanford.nlp.mt.util.Sequences;
+
+/**
+ * Microbenchmark that compares single and batch queries to a language model
+ * that supports batch queries, e.g., <code>kenlmbatch:</code> or <code>nplm:</code>.
+ *
+ * Each word in the input file becomes one query, which is the word and its
+ * preceding context up to the order of the LM.
+ *
+ */
+public final class LanguageModelBenchmark {
+
+  private static final int DEFAULT_BATCH_SIZE = 256;
+  private static final int DEFAULT_ITERATIONS = 5;
+
+  private LanguageModelBenchmark() {}
+
+  /**
+   *
+   * @param args
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    int batchSize = DEFAULT_BATCH_SIZE;
+    int iterations = DEFAULT_ITERATIONS;
+    int argIdx = 0;
+    for (; argIdx < args.length && args[argIdx].startsWith("-"); ++argIdx) {
+      if (args[argIdx].equals("-batch")) {
+        batchSize = Integer.parseInt(args[++argIdx]);
+      } else if (args[argIdx].equals("-iters")) {
+        iterations = Integer.parseInt(args[++argIdx]);
+      } else {
+        break;
+      }
+    }
+    if (args.length - argIdx != 2) {
+      System.err.printf("Usage: java %s [-batch n] [-iters n] type:path input_file%n",
+          LanguageModelBenchmark.class.getName());
+      System.exit(-1);
+    }
+    LanguageModel<IString> languageModel = LanguageModelFactory.load(args[argIdx]);
+    if ( ! (languageModel instanceof BatchLanguageModel)) {
+      System.err.printf("%s does not support batch queries%n", languageModel.getName());
+      System.exit(-1);
+    }
+    BatchLanguageModel lm = (BatchLanguageModel) languageModel;
+
+    // Read the queries
+    List<int[]> queryList = new ArrayList<>();
+    LineNumberReader reader = IOTools.getReaderFromFile(args[argIdx + 1]);
+    for (String line; (line = reader.readLine()) != null;) {
+      Sequence<IString> seq = Sequences.wrapStartEnd(IStrings.tokenize(line),
+          lm.getStartToken(), lm.getEndToken());
+      int[] ids = Sequences.toIntArray(seq);
+      for (int i = 1; i < ids.length; ++i) {
+        queryList.add(Arrays.copyOfRange(ids, Math.max(0, i - lm.order() + 1), i + 1));
+      }
+    }
+    reader.close();
+    final int numQueries = queryList.size();
+    final int[][] queries = queryList.toArray(new int[numQueries][]);
+    final int[] startIndices = new int[numQueries];
+    for (int i = 0; i < numQueries; ++i) startIndices[i] = queries[i].length - 1;
+    System.out.printf("LM: %s  #queries: %d  batch size: %d%n", lm.getName(), numQueries, batchSize);
+
+    // Check that the two methods agree
+    double[] singleScores = new double[numQueries];
+    double[] batchScores = new double[numQueries];
+    scoreSingle(lm, queries, startIndices, singleScores);
+    scoreBatch(lm, queries, startIndices, batchSize, batchScores);
+    for (int i = 0; i < numQueries; ++i) {
+      if (singleScores[i] != batchScores[i]) {
+        System.err.printf("Score mismatch for query %d: %f vs. %f%n", i, singleScores[i],
+            batchScores[i]);
+      }
+    }
+
+    // Time
+    for (int iter = 0; iter < iterations; ++iter) {
+      long startTime = System.nanoTime();
+      scoreSingle(lm, queries, startIndices, singleScores);
+      final double singleTime = (System.nanoTime() - startTime) / (double) numQueries;
+      startTime = System.nanoTime();
+      scoreBatch(lm, queries, startIndices, batchSize, batchScores);
+      final double batchTime = (System.nanoTime() - startTime) / (double) numQueries;
+      System.out.printf("Iteration %d: single: %.1f ns/query  batch: %.1f ns/query  speedup: %.2fx%n",
+          iter, singleTime, batchTime, singleTime / batchTime);
+    }
+  }
+
+  private static void scoreSingle(BatchLanguageModel lm, int[][] queries, int[] startIndices,
+      double[] scores) {
+    for (int i = 0; i < queries.length; ++i) {
+      scores[i] = lm.score(queries[i], startIndices[i], null).getScore();
+    }
+  }
+
+  private static void scoreBatch(BatchLanguageModel lm, int[][] queries, int[] startIndices,
+      int batchSize, double[] scores) {
+    final LMState[] priorStates = new LMState[batchSize];
+    for (int start = 0; start < queries.length; start += batchSize) {
+      final int end = Math.min(queries.length, start + batchSize);
+      final int[][] batch = Arrays.copyOfRange(queries, start, end);
+      final int[] batchStartIndices = Arrays.copyOfRange(startIndices, start, end);
+      LMState[] states = lm.score(batch, batchStartIndices,
+          batch.length == batchSize ? priorStates : new LMState[batch.length]);
+      for (int i = 0; i < states.length; ++i) {
+        scores[start + i] = states[i].getScore();
+      }
+    }
+  }
+}
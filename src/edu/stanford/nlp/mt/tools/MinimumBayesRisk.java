@@ -1,5 +1,7 @@
 package edu.stanford.nlp.mt.tools;
 
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -14,18 +16,29 @@ import edu.stanford.nlp.util.concurrent.ThreadsafeProcessor;
 import edu.stanford.nlp.util.Pair;
 import edu.stanford.nlp.util.PropertiesUtils;
 import edu.stanford.nlp.util.StringUtils;
+import edu.stanford.nlp.mt.metrics.BLEUMetric;
 import edu.stanford.nlp.mt.metrics.EvaluationMetric;
 import edu.stanford.nlp.mt.metrics.CorpusLevelMetricFactory;
+import edu.stanford.nlp.mt.metrics.NGramReferences;
 import edu.stanford.nlp.mt.util.BasicNBestList;
 import edu.stanford.nlp.mt.util.BasicNBestEntry;
 import edu.stanford.nlp.mt.util.IString;
-import edu.stanford.nlp.mt.util.ScoredFeaturizedTranslation;
 import edu.stanford.nlp.mt.util.Sequence;
 
 /**
  * Minimum Bayes Risk decoding.
  *
+ * For BLEU, the n-grams of each hypothesis are extracted once per n-best list,
+ * and the pairwise sentence-level BLEU scores are computed from these
+ * statistics. The expected n-gram mode replaces the pairwise comparisons with a
+ * comparison to the expected n-gram counts under the model, which is linear in the
+ * size of the n-best list. See:
+ *
+ * J. DeNero, D. Chiang, and K. Knight. 2009. Fast consensus decoding over translation
+ * forests. In ACL-IJCNLP.
+ *
  * @author danielcer
+ * @author Spence Green
  *
  */
 public class MinimumBayesRisk {
@@ -43,7 +56,9 @@ public class MinimumBayesRisk {
     .append(" Options:").append(nl)
     .append("   -o str     : Orientation of the scores [risk|utility] (default: utility)").append(nl)
     .append("   -m str     : Metric (default: ").append(DEFAULT_METRIC).append(")").append(nl)
-    .append("   -s num     : Scale parameter (default: ").append(DEFAULT_SCALE).append(")").append(nl);
+    .append("   -s num     : Scale parameter (default: ").append(DEFAULT_SCALE).append(")").append(nl)
+    .append("   -e         : Compare to expected n-gram counts instead of pairwise (bleu only)").append(nl)
+    .append("   -t num     : Number of threads (default: all cores)").append(nl);
     return sb.toString();
   }
 
@@ -52,18 +67,30 @@ public class MinimumBayesRisk {
     argDefs.put("o", 1);
     argDefs.put("m", 1);
     argDefs.put("s", 1);
+    argDefs.put("e", 0);
+    argDefs.put("t", 1);
     return argDefs;
   }
 
+  /**
+   * True if the metric is sentence-level smoothed BLEU when computed against a
+   * single pseudo-reference.
+   */
+  private static boolean isBLEU(String metricName) {
+    return metricName.equals("bleu") || metricName.equals("smoothbleu");
+  }
+
   private static class Processor implements ThreadsafeProcessor<List<BasicNBestEntry>, List<Pair<Double, String>>> {
     private final String metricName;
     private final boolean risk;
     private final double scale;
+    private final boolean expected;
 
-    Processor(String in_metricName, boolean in_risk, double in_scale) {
+    Processor(String in_metricName, boolean in_risk, double in_scale, boolean in_expected) {
       metricName = in_metricName;
       risk = in_risk;
       scale = in_scale;
+      expected = in_expected;
     }
 
     // Class is threadsafe for concurrent calls.
@@ -72,10 +99,60 @@ public class MinimumBayesRisk {
     }
 
     public List<Pair<Double, String>> process(List<BasicNBestEntry> nbestlist) {
+      double[] nbestScores = isBLEU(metricName) ? bleuScores(nbestlist) : metricScores(nbestlist);
+      int hypI = -1;
+      List<Pair<Double,String>>
+      rescoredNBestList = new ArrayList<Pair<Double,String>>(nbestlist.size());
+      for (BasicNBestEntry hyp : nbestlist) {
+        hypI++;
+        rescoredNBestList.add(new Pair<Double,String>(nbestScores[hypI], hyp.getLine()));
+      }
+      Collections.sort(rescoredNBestList);
+      if (!risk) {
+        Collections.reverse(rescoredNBestList);
+      }
+      return rescoredNBestList;
+    }
+
+    /**
+     * Expected BLEU from precomputed n-gram statistics.
+     */
+    private double[] bleuScores(List<BasicNBestEntry> nbestlist) {
+      final int size = nbestlist.size();
+      List<Sequence<IString>> hypotheses = new ArrayList<>(size);
+      double[] posteriors = new double[size];
+      for (int i = 0; i < size; ++i) {
+        BasicNBestEntry entry = nbestlist.get(i);
+        hypotheses.add(entry.getTokens());
+        posteriors[i] = scale * entry.getScore();
+      }
+      normalize(posteriors);
+      NBestStatistics stats = new NBestStatistics(hypotheses, BLEUMetric.DEFAULT_MAX_NGRAM_ORDER);
+      if (expected) {
+        return stats.expectedBLEU(posteriors);
+      }
+      double[] nbestScores = new double[size];
+      for (int hypI = 0; hypI < size; ++hypI) {
+        for (int refI = 0; refI < size; ++refI) {
+          nbestScores[hypI] += posteriors[refI] * stats.sentenceBLEU(hypI, refI);
+        }
+        if (VERBOSE) {
+          System.err.printf("hyp(%d): %s\n", hypI, nbestlist.get(hypI));
+          System.err.printf("nbestScores[%d]: %f\n", hypI, nbestScores[hypI]);
+        }
+      }
+      return nbestScores;
+    }
+
+    /**
+     * Expected score under an arbitrary metric. Instantiates a metric for each
+     * pseudo-reference.
+     */
+    private double[] metricScores(List<BasicNBestEntry> nbestlist) {
       double[] nbestScores = new double[nbestlist.size()];
 
-      for (BasicNBestEntry refTrans : nbestlist) 
-      { 
+      for (BasicNBestEntry refTrans : nbestlist)
+      {
         @SuppressWarnings("unchecked")
         List<List<Sequence<IString>>> fakeRef = Arrays.asList(
             Arrays.asList(refTrans.getTokens()));
@@ -83,13 +160,13 @@ public class MinimumBayesRisk {
             CorpusLevelMetricFactory.newMetric(metricName,fakeRef);
 
         int hypI = -1;
-        for (BasicNBestEntry hyp : nbestlist) 
+        for (BasicNBestEntry hyp : nbestlist)
         { hypI++;
         @SuppressWarnings("unchecked")
-        double metricScore = metric.scoreSeq(Arrays.asList(hyp.getTokens())); 
+        double metricScore = metric.scoreSeq(Arrays.asList(hyp.getTokens()));
 
         double fracHypScore = metricScore * Math.exp(scale*refTrans.getScore());
-        nbestScores[hypI] += fracHypScore; 
+        nbestScores[hypI] += fracHypScore;
         if (VERBOSE) {
           System.err.printf("hyp(%d): %s\n", hypI, hyp);
           System.err.printf("scale: %f\n", scale);
@@ -100,23 +177,132 @@ public class MinimumBayesRisk {
         }
         }
       }
-      int hypI = -1;
-      List<Pair<Double,String>>
-      rescoredNBestList = new ArrayList<Pair<Double,String>>(nbestlist.size());
-      for (BasicNBestEntry hyp : nbestlist) {
-        hypI++;
-        rescoredNBestList.add(new Pair<Double,String>(nbestScores[hypI], hyp.getLine()));
+      return nbestScores;
+    }
+  }
+
+  /**
+   * Convert log scores to a probability distribution in place.
+   *
+   * @param logScores
+   */
+  static void normalize(double[] logScores) {
+    double max = Double.NEGATIVE_INFINITY;
+    for (double s : logScores) max = Math.max(max, s);
+    double z = 0.0;
+    for (int i = 0; i < logScores.length; ++i) {
+      logScores[i] = Math.exp(logScores[i] - max);
+      z += logScores[i];
+    }
+    for (int i = 0; i < logScores.length; ++i) {
+      logScores[i] /= z;
+    }
+  }
+
+  /**
+   * N-gram statistics of the entries of an n-best list. The n-gram ids of each
+   * entry are computed once by <code>NGramReferences</code>, and the sentence-level
+   * scores are computed by <code>BLEUMetric</code>.
+   *
+   * @author Spence Green
+   *
+   */
+  static class NBestStatistics {
+    private final int order;
+    private final long[][][] ngramIds;
+    private final int[] lengths;
+    // Each entry as the reference of the other entries
+    private final NGramReferences[] references;
+
+    /**
+     * Constructor.
+     *
+     * @param hypotheses
+     * @param order Maximum n-gram order.
+     */
+    public NBestStatistics(List<Sequence<IString>> hypotheses, int order) {
+      this.order = order;
+      final int size = hypotheses.size();
+      ngramIds = new long[size][][];
+      lengths = new int[size];
+      references = new NGramReferences[size];
+      for (int h = 0; h < size; ++h) {
+        Sequence<IString> hyp = hypotheses.get(h);
+        ngramIds[h] = NGramReferences.sortedNgramIds(NGramReferences.toIds(hyp), order);
+        lengths[h] = hyp.size();
+        references[h] = new NGramReferences(Collections.singletonList(hyp), order);
       }
-      Collections.sort(rescoredNBestList);
-      if (!risk) {
-        Collections.reverse(rescoredNBestList);
+    }
+
+    /**
+     * Smoothed sentence-level BLEU of a hypothesis against another entry as the
+     * reference. Equal to <code>BLEUMetric.scoreSeq()</code> with a single reference.
+     *
+     * @param hyp
+     * @param ref
+     * @return
+     */
+    public double sentenceBLEU(int hyp, int ref) {
+      return zeroIfNaN(BLEUMetric.computeLocalSmoothScore(ngramIds[hyp], lengths[hyp],
+          references[ref], false));
+    }
+
+    /**
+     * Sentence-level BLEU of each hypothesis against the expected n-gram counts
+     * and length of the n-best list.
+     *
+     * @param posteriors
+     * @return
+     */
+    public double[] expectedBLEU(double[] posteriors) {
+      final int size = lengths.length;
+      final Long2DoubleOpenHashMap expectedCounts = new Long2DoubleOpenHashMap();
+      double expectedLength = 0.0;
+      for (int h = 0; h < size; ++h) {
+        final double posterior = posteriors[h];
+        forEachCount(ngramIds[h], (n, id, count) -> expectedCounts.addTo(id, posterior * count));
+        expectedLength += posterior * lengths[h];
       }
-      return rescoredNBestList;
+      final double refLength = BLEUMetric.LENGTH_BIAS * expectedLength;
+
+      final double[] scores = new double[size];
+      for (int h = 0; h < size; ++h) {
+        final double[] matches = new double[order];
+        forEachCount(ngramIds[h], (n, id, count) -> matches[n] += Math.min(count, expectedCounts.get(id)));
+        scores[h] = zeroIfNaN(BLEUMetric.computeLocalSmoothScore(matches, lengths[h], refLength,
+            order, false));
+      }
+      return scores;
+    }
+
+    @FunctionalInterface
+    private static interface NgramCountConsumer {
+      public void accept(int orderIndex, long id, int count);
+    }
+
+    /**
+     * Run-length decode sorted n-gram ids.
+     */
+    private static void forEachCount(long[][] sortedIds, NgramCountConsumer consumer) {
+      for (int n = 0; n < sortedIds.length; ++n) {
+        final long[] ids = sortedIds[n];
+        for (int i = 0; i < ids.length;) {
+          int j = i + 1;
+          while (j < ids.length && ids[j] == ids[i]) ++j;
+          consumer.accept(n, ids[i], j - i);
+          i = j;
+        }
+      }
+    }
+
+    // Empty hypotheses have undefined precision
+    private static double zeroIfNaN(double score) {
+      return Double.isNaN(score) ? 0.0 : score;
     }
   }
 
   /**
-   * 
+   *
    * @param args
    * @throws IOException
    */
@@ -131,11 +317,18 @@ public class MinimumBayesRisk {
     final String orientation = options.getProperty("o", "utility");
     final boolean risk = "risk".equals(orientation);
     final String metricName = options.getProperty("m", DEFAULT_METRIC);
+    final boolean expected = PropertiesUtils.getBool(options, "e", false);
+    final int numThreads = PropertiesUtils.getInt(options, "t", 0);
+    if (expected && ! isBLEU(metricName)) {
+      System.err.printf("Expected n-gram mode is not supported for metric: %s%n", metricName);
+      System.exit(-1);
+    }
 
     final String filename = options.getProperty("");
     BasicNBestList nbestlists = new BasicNBestList(filename);
-    MulticoreWrapper<List<BasicNBestEntry>, List<Pair<Double, String>>> wrapper = 
-      new MulticoreWrapper<List<BasicNBestEntry>, List<Pair<Double, String>>>(0, new Processor(metricName, risk, scale), true);
+    MulticoreWrapper<List<BasicNBestEntry>, List<Pair<Double, String>>> wrapper =
+      new MulticoreWrapper<List<BasicNBestEntry>, List<Pair<Double, String>>>(numThreads,
+          new Processor(metricName, risk, scale, expected), true);
     for (List<BasicNBestEntry> nbestlist : nbestlists) {
       wrapper.put(nbestlist);
       while (wrapper.peek()) {
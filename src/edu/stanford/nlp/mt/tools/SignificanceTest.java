@@ -1,9 +1,15 @@
 package edu.stanford.nlp.mt.tools;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import edu.stanford.nlp.mt.metrics.DecomposableMetric;
 import edu.stanford.nlp.mt.metrics.EvaluationMetric;
 import edu.stanford.nlp.mt.metrics.CorpusLevelMetricFactory;
 import edu.stanford.nlp.mt.metrics.IncrementalEvaluationMetric;
@@ -16,20 +22,36 @@ import edu.stanford.nlp.mt.util.Sequence;
 
 
 /**
- * Approximate Randomization Test for Statistical Significance Testing.
- * 
- * See Riezler &amp; Maxwell's 2005 paper: On Some Pitfalls in Automatic 
- * Evaluation and Significance Testing for MT, in the Workshop on Intrinsic 
+ * Statistical significance testing of differences in corpus-level metric scores.
+ * The first system is the baseline, and each of the other systems is compared
+ * to it with two paired tests:
+ *
+ * Approximate randomization. See Riezler &amp; Maxwell's 2005 paper: On Some Pitfalls
+ * in Automatic Evaluation and Significance Testing for MT, in the Workshop on Intrinsic
  * and Extrinsic Evaluation Measures for Machine Translation
- * 
+ *
+ * Paired bootstrap resampling. See Koehn's 2004 paper: Statistical Significance Tests
+ * for Machine Translation Evaluation, in EMNLP. The p-value is computed from the
+ * bootstrap distribution of the difference shifted to zero mean, which makes
+ * it comparable to approximate randomization.
+ *
+ * For metrics that implement <code>DecomposableMetric</code> (BLEU, NIST, TER,
+ * and their linear combinations), the sufficient statistics of each segment are
+ * computed once, and each sample is scored by summing them. Samples are generated
+ * in parallel. Sample i is always generated from the same seed, so the results
+ * do not depend on the number of threads.
+ *
  * @author danielcer
- * 
+ * @author Spence Green
+ *
  */
 public class SignificanceTest {
-  
+
   // Smallest possible p-value is 1/5000, which is well below p<0.001
   static public final int SAMPLES = 5000;
 
+  static public final long DEFAULT_SEED = 8682522807148012L;
+
   static double scoreList(List<Sequence<IString>> transList,
       EvaluationMetric<IString, String> eval) {
     IncrementalEvaluationMetric<IString, String> incEval = eval
@@ -41,76 +63,253 @@ public class SignificanceTest {
     return incEval.score();
   }
 
+  /**
+   * Scores a pseudo-system in which output j is the translation of segment
+   * <code>segments[j]</code> by system <code>systems[j]</code>.
+   */
+  private static interface CorpusScorer {
+    public double score(int[] segments, int[] systems);
+  }
+
+  /**
+   * Scores a pseudo-system by summing precomputed sufficient statistics.
+   */
+  private static class SufficientStatisticsScorer implements CorpusScorer {
+    private final DecomposableMetric<IString> metric;
+    // system -> segment -> statistics
+    private final double[][][] statistics;
+
+    public SufficientStatisticsScorer(DecomposableMetric<IString> metric,
+        List<List<Sequence<IString>>> systemTrans) {
+      this.metric = metric;
+      this.statistics = new double[systemTrans.size()][][];
+      for (int i = 0; i < statistics.length; ++i) {
+        List<Sequence<IString>> trans = systemTrans.get(i);
+        statistics[i] = new double[trans.size()][];
+        for (int j = 0; j < statistics[i].length; ++j) {
+          statistics[i][j] = metric.sufficientStatistics(trans.get(j), j);
+        }
+      }
+    }
+
+    @Override
+    public double score(int[] segments, int[] systems) {
+      final double[] sum = new double[metric.numSufficientStatistics()];
+      for (int j = 0; j < segments.length; ++j) {
+        final double[] stats = statistics[systems[j]][segments[j]];
+        for (int k = 0; k < sum.length; ++k) {
+          sum[k] += stats[k];
+        }
+      }
+      return metric.scoreStatistics(sum);
+    }
+  }
+
+  /**
+   * Scores a pseudo-system with the incremental metric. A resampled corpus
+   * requires a new metric instance for the resampled references.
+   */
+  private static class MetricScorer implements CorpusScorer {
+    private final String metricName;
+    private final List<List<Sequence<IString>>> references;
+    private final EvaluationMetric<IString, String> eval;
+    private final List<List<Sequence<IString>>> systemTrans;
+
+    public MetricScorer(String metricName, List<List<Sequence<IString>>> references,
+        EvaluationMetric<IString, String> eval, List<List<Sequence<IString>>> systemTrans) {
+      this.metricName = metricName;
+      this.references = references;
+      this.eval = eval;
+      this.systemTrans = systemTrans;
+    }
+
+    @Override
+    public double score(int[] segments, int[] systems) {
+      boolean isIdentity = true;
+      List<Sequence<IString>> trans = new ArrayList<>(segments.length);
+      List<List<Sequence<IString>>> sampleReferences = new ArrayList<>(segments.length);
+      for (int j = 0; j < segments.length; ++j) {
+        isIdentity &= segments[j] == j;
+        trans.add(systemTrans.get(systems[j]).get(segments[j]));
+        sampleReferences.add(references.get(segments[j]));
+      }
+      EvaluationMetric<IString, String> metric = isIdentity ? eval :
+        CorpusLevelMetricFactory.newMetric(metricName, sampleReferences);
+      synchronized(metric) {
+        return scoreList(trans, metric);
+      }
+    }
+  }
+
+  /**
+   * Counts of the sampled differences that matched or exceeded the true difference.
+   */
+  private static class SampleCounts {
+    public int randomizationCount = 0;
+    public int bootstrapCount = 0;
+  }
+
+  /**
+   * Run the samples in the range [start,end) for the comparison of the baseline
+   * to a system.
+   */
+  private static SampleCounts runSamples(CorpusScorer scorer, int system, int numSegments,
+      double trueDiff, long seed, int start, int end, double[] bootstrapDiffs) {
+    final int[] identity = new int[numSegments];
+    for (int j = 0; j < numSegments; ++j) identity[j] = j;
+    final int[] segments = new int[numSegments];
+    final int[] systems1 = new int[numSegments];
+    final int[] systems2 = new int[numSegments];
+    final SampleCounts counts = new SampleCounts();
+    for (int i = start; i < end; ++i) {
+      Random r = new Random(seed + i);
+
+      // Approximate randomization: swap the outputs of each segment with probability 0.5
+      for (int j = 0; j < numSegments; j++) {
+        if (r.nextDouble() >= 0.5) {
+          systems1[j] = 0;
+          systems2[j] = system;
+        } else {
+          systems1[j] = system;
+          systems2[j] = 0;
+        }
+      }
+      double sampleDiff = Math.abs(scorer.score(identity, systems2) - scorer.score(identity, systems1));
+      if (sampleDiff >= Math.abs(trueDiff))
+        counts.randomizationCount++;
+
+      // Paired bootstrap: resample the segments with replacement
+      Arrays.fill(systems1, 0);
+      Arrays.fill(systems2, system);
+      for (int j = 0; j < numSegments; j++) {
+        segments[j] = r.nextInt(numSegments);
+      }
+      sampleDiff = scorer.score(segments, systems2) - scorer.score(segments, systems1);
+      bootstrapDiffs[i] = sampleDiff;
+      if (Math.abs(sampleDiff - trueDiff) >= Math.abs(trueDiff))
+        counts.bootstrapCount++;
+    }
+    return counts;
+  }
+
   /**
    * Runs the significance test, applying NIST tokenization to the input.
-   * 
+   *
    * @param args
    * @throws Exception
    */
   static public void main(String[] args) throws Exception {
-    if (args.length != 4) {
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    int numSamples = SAMPLES;
+    long seed = DEFAULT_SEED;
+    int argIdx = 0;
+    for (; argIdx < args.length && args[argIdx].startsWith("-"); ++argIdx) {
+      if (args[argIdx].equals("-threads")) {
+        numThreads = Integer.parseInt(args[++argIdx]);
+      } else if (args[argIdx].equals("-samples")) {
+        numSamples = Integer.parseInt(args[++argIdx]);
+      } else if (args[argIdx].equals("-seed")) {
+        seed = Long.parseLong(args[++argIdx]);
+      } else {
+        break;
+      }
+    }
+    if (args.length - argIdx < 4) {
       System.err
-          .printf("Usage: java %s metric_name reference_prefix system1 system2%n", SignificanceTest.class.getName());
+          .printf("Usage: java %s [-threads n] [-samples n] [-seed n] metric_name reference_prefix baseline system [system...]%n",
+              SignificanceTest.class.getName());
       System.exit(-1);
     }
-    String evalMetricName = args[0];
-    String referencePrefix = args[1];
-    String system1TransFilename = args[2];
-    String system2TransFilename = args[3];
+    String evalMetricName = args[argIdx];
+    String referencePrefix = args[argIdx + 1];
+    String[] systemFilenames = Arrays.copyOfRange(args, argIdx + 2, args.length);
+    final int numSystems = systemFilenames.length;
 
     // Load everything we need
     boolean doNIST = true;
     List<List<Sequence<IString>>> references = MetricUtils.readReferences(IOTools.fileNamesFromPathPrefix(referencePrefix), doNIST);
     EvaluationMetric<IString, String> eval = CorpusLevelMetricFactory.newMetric(evalMetricName, references);
-    List<Sequence<IString>> system1Trans = IStrings.tokenizeFile(system1TransFilename, doNIST);
-    List<Sequence<IString>> system2Trans = IStrings.tokenizeFile(system2TransFilename, doNIST);
+    List<List<Sequence<IString>>> systemTrans = new ArrayList<>(numSystems);
+    int numSegments = Integer.MAX_VALUE;
+    for (String filename : systemFilenames) {
+      List<Sequence<IString>> trans = IStrings.tokenizeFile(filename, doNIST);
+      systemTrans.add(trans);
+      numSegments = Math.min(numSegments, trans.size());
+    }
+    for (int i = 0; i < numSystems; ++i) {
+      if (systemTrans.get(i).size() != numSegments) {
+        System.err.printf("Warning: %s contains %d translations. Truncating to %d translations%n",
+            systemFilenames[i], systemTrans.get(i).size(), numSegments);
+        systemTrans.set(i, systemTrans.get(i).subList(0, numSegments));
+      }
+    }
+    final int[] identity = new int[numSegments];
+    for (int j = 0; j < numSegments; ++j) identity[j] = j;
 
-    if (system1Trans.size() != system2Trans.size()) {
-      System.err
-          .printf(
-              "Warning: %s contains %d translations while %s contains %d translations%n",
-              system1TransFilename, system1Trans.size(), system2TransFilename,
-              system2Trans.size());
-      int min = Math.min(system1Trans.size(), system2Trans.size());
-      System.err.printf("Truncating both to %d translations%n", min);
-      system1Trans = system1Trans.subList(0, min);
-      system2Trans = system2Trans.subList(0, min);
+    // Precompute the sufficient statistics if possible
+    final long startTime = System.nanoTime();
+    final CorpusScorer scorer = eval instanceof DecomposableMetric &&
+        ((DecomposableMetric<?>) eval).isDecomposable() ?
+        new SufficientStatisticsScorer(uncheckedCast(eval), systemTrans) :
+          new MetricScorer(evalMetricName, references, eval, systemTrans);
+    if ( ! (scorer instanceof SufficientStatisticsScorer)) {
+      System.err.printf("Warning: %s does not support sufficient statistics. Sampling will be slow.%n",
+          evalMetricName);
     }
 
-    // Compute the given metric for both system outputs
-    double system1Eval = scoreList(system1Trans, eval);
-    double system2Eval = scoreList(system2Trans, eval);
-
-    double trueSystemDiff = Math.abs(system1Eval - system2Eval);
-
-    System.out.printf("System1 Eval: %f System2 Eval: %f abs(Diff): %f%n",
-        system1Eval, system2Eval, trueSystemDiff);
-    System.out.printf("Sampling...");
-    Random r = new Random(8682522807148012L);
-    int matchedOrExceededDiffs = 0;
-    for (int i = 0; i < SAMPLES; i++) {
-      if ((i % 10) == 0)
-        System.out.printf(".");
-      List<Sequence<IString>> sample1Trans = new ArrayList<>(system1Trans.size());
-      List<Sequence<IString>> sample2Trans = new ArrayList<>(system2Trans.size());
-      int sz = system1Trans.size();
-      for (int ii = 0; ii < sz; ii++) {
-        if (r.nextDouble() >= 0.5) {
-          sample1Trans.add(system1Trans.get(ii));
-          sample2Trans.add(system2Trans.get(ii));
-        } else {
-          sample1Trans.add(system2Trans.get(ii));
-          sample2Trans.add(system1Trans.get(ii));
+    // Compute the given metric for each system output
+    double[] systemEval = new double[numSystems];
+    for (int i = 0; i < numSystems; ++i) {
+      int[] systems = new int[numSegments];
+      Arrays.fill(systems, i);
+      systemEval[i] = scorer.score(identity, systems);
+    }
+
+    System.out.printf("Metric: %s  Segments: %d  Samples: %d  Seed: %d%n", evalMetricName,
+        numSegments, numSamples, seed);
+    System.out.printf("Baseline: %s  Eval: %f%n", systemFilenames[0], systemEval[0]);
+    ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
+    try {
+      for (int system = 1; system < numSystems; ++system) {
+        final double trueDiff = systemEval[system] - systemEval[0];
+        final double[] bootstrapDiffs = new double[numSamples];
+        final int chunkSize = (numSamples + numThreads - 1) / numThreads;
+        List<Future<SampleCounts>> results = new ArrayList<>(numThreads);
+        for (int start = 0; start < numSamples; start += chunkSize) {
+          final int s = system, from = start, to = Math.min(numSamples, start + chunkSize);
+          final int n = numSegments;
+          final long sd = seed;
+          results.add(threadPool.submit(() -> runSamples(scorer, s, n, trueDiff, sd, from, to, bootstrapDiffs)));
         }
+        int randomizationCount = 0;
+        int bootstrapCount = 0;
+        for (Future<SampleCounts> result : results) {
+          SampleCounts counts = result.get();
+          randomizationCount += counts.randomizationCount;
+          bootstrapCount += counts.bootstrapCount;
+        }
+        double pRandomization = (randomizationCount + 1.0) / (numSamples + 1.0);
+        double pBootstrap = (bootstrapCount + 1.0) / (numSamples + 1.0);
+        Arrays.sort(bootstrapDiffs);
+        double lower = bootstrapDiffs[(int) (0.025 * (numSamples - 1))];
+        double upper = bootstrapDiffs[(int) Math.ceil(0.975 * (numSamples - 1))];
+        System.out.printf("System: %s  Eval: %f  Diff: %f%n", systemFilenames[system],
+            systemEval[system], trueDiff);
+        System.out.printf("  approximate randomization: p = %f (%d+1)/(%d+1)%n", pRandomization,
+            randomizationCount, numSamples);
+        System.out.printf("  paired bootstrap:          p = %f (%d+1)/(%d+1)  95%% CI of diff: [%f, %f]%n",
+            pBootstrap, bootstrapCount, numSamples, lower, upper);
       }
-      double sample1Eval = scoreList(sample1Trans, eval);
-      double sample2Eval = scoreList(sample2Trans, eval);
-      double sampleDiff = Math.abs(sample1Eval - sample2Eval);
-      if (sampleDiff >= trueSystemDiff)
-        matchedOrExceededDiffs++;
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      threadPool.shutdown();
     }
-    double p = (matchedOrExceededDiffs + 1.0) / (SAMPLES + 1.0);
-    System.out.printf("%np = %f (%d+1)/(%d+1)%n", p, matchedOrExceededDiffs,
-        SAMPLES);
+    System.err.printf("Elapsed time: %.2f sec%n", (System.nanoTime() - startTime) / 1e9);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static DecomposableMetric<IString> uncheckedCast(EvaluationMetric<IString,String> eval) {
+    return (DecomposableMetric<IString>) eval;
   }
 }
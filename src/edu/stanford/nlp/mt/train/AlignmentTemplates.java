@@ -5,7 +5,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Properties;
 
-import edu.stanford.nlp.mt.util.DynamicIntegerArrayIndex;
+import edu.stanford.nlp.mt.util.ConcurrentIntegerArrayIndex;
 import edu.stanford.nlp.mt.util.IString;
 import edu.stanford.nlp.mt.util.IntegerArrayIndex;
 import edu.stanford.nlp.mt.util.Sequences;
@@ -36,10 +36,10 @@ public class AlignmentTemplates extends AbstractCollection<AlignmentTemplate> {
 
   private final SourceFilter sourceFilter;
 
-  private final IntegerArrayIndex fIndex = new DynamicIntegerArrayIndex(),
-      index = new DynamicIntegerArrayIndex(),
-      aIndex = new DynamicIntegerArrayIndex(),
-      eIndex = new DynamicIntegerArrayIndex();
+  private final IntegerArrayIndex fIndex = new ConcurrentIntegerArrayIndex(),
+      index = new ConcurrentIntegerArrayIndex(),
+      aIndex = new ConcurrentIntegerArrayIndex(),
+      eIndex = new ConcurrentIntegerArrayIndex();
 
   private final ArrayList<Int2IntArrayMap> aCounter = new ArrayList<Int2IntArrayMap>();
 
@@ -168,7 +168,7 @@ public class DTUPhraseExtractor extends AbstractPhraseExtractor {
 
     final CoverageSet f, e;
 
-    boolean isContiguous(BitSet bitset) {
+    boolean isContiguous(CoverageSet bitset) {
       int i = bitset.nextSetBit(0);
       int j = bitset.nextClearBit(i + 1);
       return (bitset.nextSetBit(j + 1) == -1);
@@ -392,7 +392,7 @@ public class DTUPhraseExtractor extends AbstractPhraseExtractor {
       return unalignedGap;
     }
 
-    boolean hasUnalignedGap(WordAlignment sent, BitSet fs, boolean source) {
+    boolean hasUnalignedGap(WordAlignment sent, CoverageSet fs, boolean source) {
       if (fs.isEmpty())
         return false;
       int startIdx, endIdx = 0;
@@ -427,7 +427,7 @@ public class DTUPhraseExtractor extends AbstractPhraseExtractor {
           || hasUnalignedSubphrase(sent, e, false);
     }
 
-    boolean hasUnalignedSubphrase(WordAlignment sent, BitSet fs, boolean source) {
+    boolean hasUnalignedSubphrase(WordAlignment sent, CoverageSet fs, boolean source) {
       int startIdx, endIdx = 0;
       while (true) {
         startIdx = fs.nextSetBit(endIdx);
@@ -465,7 +465,7 @@ public class DTUPhraseExtractor extends AbstractPhraseExtractor {
       return hasLooseGap(sent, f, true);
     }
 
-    boolean hasLooseGap(WordAlignment sent, BitSet fs, boolean source) {
+    boolean hasLooseGap(WordAlignment sent, CoverageSet fs, boolean source) {
       if (fs.isEmpty())
         return false;
       int startIdx, endIdx = 0;
@@ -519,8 +519,8 @@ public class DTUPhraseExtractor extends AbstractPhraseExtractor {
       return true;
     }
 
-    BitSet adjacentWords(BitSet bitset, boolean growOutside) {
-      BitSet adjWords = new BitSet();
+    CoverageSet adjacentWords(CoverageSet bitset, boolean growOutside) {
+      CoverageSet adjWords = new CoverageSet();
       int firstI = bitset.nextSetBit(0);
       int lastI = bitset.length() - 1;
       int si = 0;
@@ -540,8 +540,8 @@ public class DTUPhraseExtractor extends AbstractPhraseExtractor {
       return adjWords;
     }
 
-    BitSet candidateIdx(BitSet currentSet, boolean growOutside) {
-      BitSet successors = adjacentWords(currentSet, growOutside);
+    CoverageSet candidateIdx(CoverageSet currentSet, boolean growOutside) {
+      CoverageSet successors = adjacentWords(currentSet, growOutside);
       if (DEBUG) {
         System.err.printf("sent: %s\n", sent);
         System.err.println("dtu to expand: " + this);
@@ -557,7 +557,7 @@ public class DTUPhraseExtractor extends AbstractPhraseExtractor {
       if (growSource) {
         int s = -1;
         if (growInside && sizeF() < maxSize) {
-          BitSet successors = candidateIdx(f, growInsideAndOutside
+          CoverageSet successors = candidateIdx(f, growInsideAndOutside
               && spanF() < maxSpan);
           while (true) {
             s = successors.nextSetBit(s + 1);
@@ -570,7 +570,7 @@ public class DTUPhraseExtractor extends AbstractPhraseExtractor {
       {
         int s = -1;
         if (growInside && sizeE() < maxSize) {
-          BitSet successors = candidateIdx(e, growInsideAndOutside
+          CoverageSet successors = candidateIdx(e, growInsideAndOutside
               && spanE() < maxSpan);
           while (true) {
             s = successors.nextSetBit(s + 1);
@@ -1,6 +1,7 @@
 package edu.stanford.nlp.mt.train;
 
 import edu.stanford.nlp.mt.tm.DTUTable;
+import edu.stanford.nlp.mt.util.CoverageSet;
 import edu.stanford.nlp.mt.util.IString;
 import edu.stanford.nlp.mt.util.Sequence;
 import edu.stanford.nlp.mt.util.SimpleSequence;
@@ -8,16 +9,15 @@ import edu.stanford.nlp.mt.util.SimpleSequence;
 import java.util.Map;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.BitSet;
 
 public class DiscontinuousSubSequences {
 
-  public static Sequence<IString> subsequence(Sequence<IString> seq, BitSet bs,
+  public static Sequence<IString> subsequence(Sequence<IString> seq, CoverageSet bs,
       Map<Integer, Integer> align) {
     return subsequence(seq, bs, align, -1);
   }
 
-  public static Sequence<IString> subsequence(Sequence<IString> seq, BitSet bs,
+  public static Sequence<IString> subsequence(Sequence<IString> seq, CoverageSet bs,
       Map<Integer, Integer> align, int maxGaps) {
     List<IString> toks = new ArrayList<IString>(bs.cardinality() + 3);
     if (align != null)
@@ -37,6 +37,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 import java.io.IOException;
 import java.io.LineNumberReader;
@@ -128,6 +129,9 @@ public class PhraseExtract {
   static public final String TRIPLE_FILE = "tripleFile";
   static public final String MIN_PHRASE_COUNT = "minCount";
   static public final String OUTPUT_DIR = "outputDir";
+  static public final String SHARDS_OPT = "shards";
+  static public final String SHARD_BUFFER_OPT = "shardBufferSize";
+  static public final String TMP_DIR_OPT = "tmpDir";
   
   
   // phrase translation probs:  
@@ -163,6 +167,7 @@ public class PhraseExtract {
         LEX_REORDERING_PHRASAL_OPT, LEX_REORDERING_HIER_OPT, OUTPUT_DIR,
         LEX_REORDERING_START_CLASS_OPT, LEX_REORDERING_2DISC_CLASS_OPT,
         MAX_INCONSISTENCIES_OPT, MEM_USAGE_FREQ_OPT, PHRASE_EXTRACTOR_OPT,
+        SHARDS_OPT, SHARD_BUFFER_OPT, TMP_DIR_OPT,
         SymmetricalWordAlignment.ADD_BOUNDARY_MARKERS_OPT,
         SymmetricalWordAlignment.UNALIGN_BOUNDARY_MARKERS_OPT, LOWERCASE_OPT,
         AbstractPhraseExtractor.MAX_PHRASE_LEN_OPT,
@@ -462,6 +467,21 @@ public class PhraseExtract {
     }
     
     // Configure the phrase extractor
+    phraseExtractor = newPhraseExtractor(alTemps, extractors);
+
+    setTotalPassNumber();
+  }
+
+  /**
+   * Create the phrase extractor specified by the properties.
+   * 
+   * @param alTemps
+   * @param extractors
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  private AbstractPhraseExtractor newPhraseExtractor(AlignmentTemplates alTemps,
+      List<AbstractFeatureExtractor> extractors) {
     final boolean withGaps = PropertiesUtils.getBool(prop, WITH_GAPS_OPT, false);
     String phraseExtractorName = prop.getProperty(PHRASE_EXTRACTOR_OPT, null);
     if (phraseExtractorName != null) {
@@ -472,17 +492,15 @@ public class PhraseExtract {
         Constructor<AbstractPhraseExtractor> ct = cls
             .getConstructor(new Class[] { Properties.class,
                 AlignmentTemplates.class, List.class });
-        phraseExtractor = ct.newInstance(prop, alTemps, extractors);
+        return ct.newInstance(prop, alTemps, extractors);
       } catch (Exception e) {
         throw new RuntimeException(e);
       }
     
     } else {
-      phraseExtractor = withGaps ? new DTUPhraseExtractor(prop, alTemps,
+      return withGaps ? new DTUPhraseExtractor(prop, alTemps,
           extractors) : new FlatPhraseExtractor(prop, alTemps, extractors);
     }
-
-    setTotalPassNumber();
   }
 
   /**
@@ -491,7 +509,7 @@ public class PhraseExtract {
    * @author Spence Green
    *
    */
-  private static class ExtractorInput {
+  static class ExtractorInput {
     public final int lineNb;
     public final String fLine;
     public final String eLine;
@@ -567,6 +585,139 @@ public class PhraseExtract {
   }
   
   
+  /**
+   * Read the aligned bitext and pass each sentence pair to the consumer.
+   * 
+   * @param consumer
+   * @throws IOException
+   */
+  private void readAlignedData(Consumer<ExtractorInput> consumer) throws IOException {
+    boolean useGIZA = alignInvCorpus != null;
+    LineNumberReader aInvReader = null, fReader = IOTools
+        .getReaderFromFile(fCorpus), eReader = IOTools
+        .getReaderFromFile(eCorpus), aReader = IOTools
+        .getReaderFromFile(alignCorpus);
+    if (useGIZA)
+      aInvReader = IOTools.getReaderFromFile(alignInvCorpus);
+
+    int lineNb = 0;
+    for (String fLine;; ++lineNb) {
+      fLine = fReader.readLine();
+
+      boolean done = (fLine == null || lineNb == endAtLine);
+
+      if (tripleFile && !done) {
+        fLine = fLine.split(" \\|\\|\\| ")[0];
+      }
+
+      if (lineNb % memUsageFreq == 0 || done) {
+        // long totalMemory = Runtime.getRuntime().totalMemory()/(1<<20);
+        long freeMemory = Runtime.getRuntime().freeMemory() / (1 << 20);
+        // double totalStepSecs = (System.currentTimeMillis() -
+        // startStepTimeMillis)/1000.0;
+        // startStepTimeMillis = System.currentTimeMillis();
+        System.err.printf(" %d (mem=%dm)...", lineNb, freeMemory);
+        // if (verbose)
+        // System.err.printf("line %d (secs = %.3f, totalmem = %dm, freemem = %dm, %s)...%n",
+        // lineNb, totalStepSecs, totalMemory, freeMemory,
+        // alTemps.getSizeInfo());
+      }
+
+      if (done) {
+        if (startAtLine >= 0 || endAtLine >= 0)
+          System.err.printf("%nRange done: [%d-%d], current line is %d.%n",
+              startAtLine, endAtLine - 1, lineNb);
+        break;
+      }
+
+      String eLine = eReader.readLine();
+      if (tripleFile) {
+        eLine = eLine.split(tripleDelim)[1].trim();
+      }
+      if (eLine == null)
+        throw new IOException("Target-language corpus is too short!");
+
+      
+     
+      
+      boolean skipLine = (fLine.isEmpty() || eLine.isEmpty());
+
+      
+      
+      // Read alignment:
+      String aLine = null;
+      if (useGIZA) {
+        String ef1 = aReader.readLine();
+        String ef2 = aReader.readLine();
+        String ef3 = aReader.readLine();
+        String fe1 = aInvReader.readLine();
+        String fe2 = aInvReader.readLine();
+        String fe3 = aInvReader.readLine();
+        if (!skipLine) {
+          GIZAWordAlignment gizaAlign = new GIZAWordAlignment(fe1, fe2,
+              fe3, ef1, ef2, ef3);
+          SymmetricalWordAlignment symAlign = AlignmentSymmetrizer
+              .symmetrize(gizaAlign, symmetrizationType);
+          symAlign.reverse();
+          aLine = symAlign.toString().trim();
+
+        }
+      } else {
+        aLine = aReader.readLine();
+        if (tripleFile) {
+          String[] toks = aLine.split(tripleDelim);
+          if (toks.length >= 3) {
+            aLine = aLine.split(tripleDelim)[2].trim();
+          } else {
+            aLine = "";
+          }
+        }
+        if (aLine == null)
+          throw new IOException("Alignment file is too short!");
+      }
+      if (skipLine || aLine.isEmpty())
+        continue;
+      
+      if (lineNb < startAtLine)
+        continue;
+      
+      if (addBoundaryMarkers) {
+       
+        eLine = new StringBuffer(TokenUtils.START_TOKEN).append(" ").append(eLine).append(" ")
+            .append(TokenUtils.END_TOKEN).toString();
+        fLine = new StringBuffer(TokenUtils.START_TOKEN).append(" ").append(fLine).append(" ")
+            .append(TokenUtils.END_TOKEN).toString();
+        
+        int eLen = eLine.split("\\s+").length - 1;
+        int fLen = fLine.split("\\s+").length - 1;
+       
+        aLine = new StringBuffer("0-0 ").append(shiftAlignment(aLine)).append(fLen).append("-")
+            .append(eLen).toString();
+      }
+      
+      if (DETAILED_DEBUG) {
+        System.err.printf("e(%d): %s%n", lineNb, eLine);
+        System.err.printf("f(%d): %s%n", lineNb, fLine);
+        System.err.printf("a(%d): %s%n", lineNb, aLine);
+      }
+      if (lowercase) {
+        fLine = fLine.toLowerCase();
+        eLine = eLine.toLowerCase();
+      }
+      
+      consumer.accept(new ExtractorInput(lineNb,fLine, eLine, aLine));
+    }
+
+    if (eReader.readLine() != null && startAtLine < 0 && endAtLine < 0)
+      throw new IOException("Target-language corpus contains extra lines!");
+    if (aReader.readLine() != null && startAtLine < 0 && endAtLine < 0)
+      throw new IOException("Alignment file contains extra lines!");
+
+    fReader.close();
+    eReader.close();
+    aReader.close();
+  }
+
   // Make as many passes over training data as needed to extract features.
   void extractFromAlignedData() {
 
@@ -589,8 +740,6 @@ public class PhraseExtract {
             new MulticoreWrapper<ExtractorInput,Boolean>(nThreads, 
                 new Extractor(phraseExtractor, prop, extractors), false);
 
-        boolean useGIZA = alignInvCorpus != null;
-
         // Read data and process data:
         if (passNumber > 0)
           System.err
@@ -599,135 +748,15 @@ public class PhraseExtract {
             "Pass %d on training data (max phrase len: %d,%d)...%nLine",
             passNumber + 1, AbstractPhraseExtractor.maxPhraseLenF,
             AbstractPhraseExtractor.maxPhraseLenE);
-        LineNumberReader aInvReader = null, fReader = IOTools
-            .getReaderFromFile(fCorpus), eReader = IOTools
-            .getReaderFromFile(eCorpus), aReader = IOTools
-            .getReaderFromFile(alignCorpus);
-        if (useGIZA)
-          aInvReader = IOTools.getReaderFromFile(alignInvCorpus);
-
-        int lineNb = 0;
-        for (String fLine;; ++lineNb) {
-          fLine = fReader.readLine();
-
-          boolean done = (fLine == null || lineNb == endAtLine);
-
-          if (tripleFile && !done) {
-            fLine = fLine.split(" \\|\\|\\| ")[0];
-          }
-
-          if (lineNb % memUsageFreq == 0 || done) {
-            // long totalMemory = Runtime.getRuntime().totalMemory()/(1<<20);
-            long freeMemory = Runtime.getRuntime().freeMemory() / (1 << 20);
-            // double totalStepSecs = (System.currentTimeMillis() -
-            // startStepTimeMillis)/1000.0;
-            // startStepTimeMillis = System.currentTimeMillis();
-            System.err.printf(" %d (mem=%dm)...", lineNb, freeMemory);
-            // if (verbose)
-            // System.err.printf("line %d (secs = %.3f, totalmem = %dm, freemem = %dm, %s)...%n",
-            // lineNb, totalStepSecs, totalMemory, freeMemory,
-            // alTemps.getSizeInfo());
-          }
-
-          if (done) {
-            if (startAtLine >= 0 || endAtLine >= 0)
-              System.err.printf("%nRange done: [%d-%d], current line is %d.%n",
-                  startAtLine, endAtLine - 1, lineNb);
-            break;
-          }
-
-          String eLine = eReader.readLine();
-          if (tripleFile) {
-            eLine = eLine.split(tripleDelim)[1].trim();
-          }
-          if (eLine == null)
-            throw new IOException("Target-language corpus is too short!");
-
-          
-         
-          
-          boolean skipLine = (fLine.isEmpty() || eLine.isEmpty());
-
-          
-          
-          // Read alignment:
-          String aLine = null;
-          if (useGIZA) {
-            String ef1 = aReader.readLine();
-            String ef2 = aReader.readLine();
-            String ef3 = aReader.readLine();
-            String fe1 = aInvReader.readLine();
-            String fe2 = aInvReader.readLine();
-            String fe3 = aInvReader.readLine();
-            if (!skipLine) {
-              GIZAWordAlignment gizaAlign = new GIZAWordAlignment(fe1, fe2,
-                  fe3, ef1, ef2, ef3);
-              SymmetricalWordAlignment symAlign = AlignmentSymmetrizer
-                  .symmetrize(gizaAlign, symmetrizationType);
-              symAlign.reverse();
-              aLine = symAlign.toString().trim();
-
-            }
-          } else {
-            aLine = aReader.readLine();
-            if (tripleFile) {
-              String[] toks = aLine.split(tripleDelim);
-              if (toks.length >= 3) {
-                aLine = aLine.split(tripleDelim)[2].trim();
-              } else {
-                aLine = "";
-              }
-            }
-            if (aLine == null)
-              throw new IOException("Alignment file is too short!");
-          }
-          if (skipLine || aLine.isEmpty())
-            continue;
-          
-          if (lineNb < startAtLine)
-            continue;
-          
-          if (addBoundaryMarkers) {
-           
-            eLine = new StringBuffer(TokenUtils.START_TOKEN).append(" ").append(eLine).append(" ")
-                .append(TokenUtils.END_TOKEN).toString();
-            fLine = new StringBuffer(TokenUtils.START_TOKEN).append(" ").append(fLine).append(" ")
-                .append(TokenUtils.END_TOKEN).toString();
-            
-            int eLen = eLine.split("\\s+").length - 1;
-            int fLen = fLine.split("\\s+").length - 1;
-           
-            aLine = new StringBuffer("0-0 ").append(shiftAlignment(aLine)).append(fLen).append("-")
-                .append(eLen).toString();
-          }
-          
-          if (DETAILED_DEBUG) {
-            System.err.printf("e(%d): %s%n", lineNb, eLine);
-            System.err.printf("f(%d): %s%n", lineNb, fLine);
-            System.err.printf("a(%d): %s%n", lineNb, aLine);
-          }
-          if (lowercase) {
-            fLine = fLine.toLowerCase();
-            eLine = eLine.toLowerCase();
-          }
-          
-          wrapper.put(new ExtractorInput(lineNb,fLine, eLine, aLine));
+        readAlignedData(input -> {
+          wrapper.put(input);
           while(wrapper.peek()) {
             boolean success = wrapper.poll();
             if ( ! success) {
               throw new RuntimeException("Extractor failure");
             }
           }
-        }
-
-        if (eReader.readLine() != null && startAtLine < 0 && endAtLine < 0)
-          throw new IOException("Target-language corpus contains extra lines!");
-        if (aReader.readLine() != null && startAtLine < 0 && endAtLine < 0)
-          throw new IOException("Alignment file contains extra lines!");
-
-        fReader.close();
-        eReader.close();
-        aReader.close();
+        });
 
         doneReadingData = true;
         wrapper.join();
@@ -849,6 +878,15 @@ public class PhraseExtract {
   }
 
   public void extractAll() {
+    final int numShards = PropertiesUtils.getInt(prop, SHARDS_OPT, 0);
+    if (numShards > 0) {
+      try {
+        extractSharded(numShards);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      return;
+    }
     if (filterFromDev) {
       int sz = sourceFilter.size();
       int size = 1 + (numSplits == 0 ? sz : sz / numSplits);
@@ -870,6 +908,50 @@ public class PhraseExtract {
     }
   }
 
+  /**
+   * Extract the Moses phrase table with bounded memory. See {@link ShardedPhraseExtract}.
+   * 
+   * @param numShards
+   * @throws IOException
+   */
+  private void extractSharded(int numShards) throws IOException {
+    if (PropertiesUtils.getBool(prop, WITH_GAPS_OPT, false)) {
+      throw new UnsupportedOperationException("Sharded extraction does not support gappy phrases");
+    }
+    String outFile = DEFAULT_PTABLE_NAME;
+    String extractorSpec = prop.getProperty(FEATURE_EXTRACTORS_OPT);
+    if (extractorSpec == null) {
+      System.err.println("WARNING: sharded extraction does not produce a lexicalized reordering model");
+    } else {
+      String[] extractorAndFileName = extractorSpec.trim().split(FILE_DELIM);
+      if (extractorSpec.contains(FEATURE_EXTRACTOR_DELIM) || extractorAndFileName.length != 2 ||
+          ! extractorAndFileName[0].trim().equals(MosesPharoahFeatureExtractor.class.getName())) {
+        throw new UnsupportedOperationException("Sharded extraction only supports "
+            + MosesPharoahFeatureExtractor.class.getName());
+      }
+      outFile = extractorAndFileName[1].trim();
+    }
+    if (outputDir != null) {
+      outFile = outputDir + "/" + outFile;
+    }
+
+    if (filterFromDev) {
+      sourceFilter.setRange(0, sourceFilter.size());
+    } else {
+      System.err
+          .println("WARNING: extracting phrase table not targeted to a specific dev/test corpus!");
+    }
+    AlignmentTemplates filter = ShardedPhraseExtract.newAlignmentTemplates(prop, sourceFilter);
+    try (ShardedPhraseExtract sharded = new ShardedPhraseExtract(prop,
+        newPhraseExtractor(filter, new ArrayList<>()), numShards, nThreads)) {
+      System.err.printf("Sharded extraction on training data (max phrase len: %d,%d)...%nLine",
+          AbstractPhraseExtractor.maxPhraseLenF, AbstractPhraseExtractor.maxPhraseLenE);
+      readAlignedData(sharded::put);
+      System.err.println();
+      sharded.write(outFile, withAlign);
+    }
+  }
+
   static void usage() {
     System.err
         .printf("Usage: java edu.stanford.nlp.mt.train.PhraseExtract [ARGS]%n"
@@ -905,6 +987,10 @@ public class PhraseExtract {
             + " -verbose : enable verbose mode%n"
             + " -minCount <n> : Retain only phrases that occur >= n times%n"
             + " -outputDir path : Output files to <path>%n"
+            + " -shards <n> : extract the phrase table in <n> shards with bounded memory%n"
+            + "  (phrase table features only; no reordering model)%n"
+            + " -shardBufferSize <n> : phrase pairs per thread before spilling to disk%n"
+            + " -tmpDir <directory> : directory for temporary files%n"
             + " -addSentenceBoundaryMarkers : Add <s> and </s> tokens at the beginning and end fof the sentence%n");
   }
 
@@ -0,0 +1,735 @@
+package edu.stanford.nlp.mt.train;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import edu.stanford.nlp.mt.util.IOTools;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.IStrings;
+import edu.stanford.nlp.mt.util.Sequence;
+import edu.stanford.nlp.util.PropertiesUtils;
+import edu.stanford.nlp.util.concurrent.MulticoreWrapper;
+import edu.stanford.nlp.util.concurrent.ThreadsafeProcessor;
+
+/**
+ * Sharded, external-memory extraction of the four phrase translation features
+ * of Moses: phi(f|e), lex(f|e), phi(e|f), and lex(e|f). Unlike the default
+ * extraction, which counts phrases in a global in-memory index, the phrase table
+ * need not fit in memory:
+ *
+ * <ol>
+ *   <li>Each worker counts phrase pairs and word pairs in thread-local tables.
+ *   When the phrase pair table is full, the worker spills it to disk as sorted
+ *   runs, one run per shard. Phrase pairs are assigned to shards by source phrase.</li>
+ *   <li>The runs of each shard are merged in parallel. Since the runs are sorted,
+ *   all translations of a source phrase are adjacent, so c(f) is computed in one
+ *   scan. The phrase pairs are written to a second set of runs sharded and sorted
+ *   by target phrase.</li>
+ *   <li>The second set of runs is merged in parallel to compute c(e). Then the
+ *   features are computed and written to the phrase table.</li>
+ * </ol>
+ *
+ * The most frequent alignment of each phrase pair is retained. Ties are broken
+ * by the lexicographic order of the alignment strings as in Moses.
+ *
+ * Phrase pairs over the fertility limit or rejected by the source filter are not
+ * written to the phrase table, but they are counted in c(f) and c(e) as in the
+ * default extraction. The default extraction only counts such a pair if its source
+ * or target phrase was indexed by an earlier phrase pair, whereas a phrase here
+ * may be indexed anywhere in the bitext. The two are the same when each phrase
+ * first occurs in a pair that is written to the phrase table.
+ *
+ * The runs are written to a temporary directory, which is deleted by <code>close()</code>.
+ *
+ */
+public class ShardedPhraseExtract implements Closeable {
+
+  public static final int DEFAULT_BUFFER_SIZE = 1 << 21;
+
+  // Fraction of the maximum heap at which workers spill early
+  private static final double MAX_HEAP_FRACTION = 0.8;
+
+  private static final String DELIM = " " + AlignmentTemplate.DELIM + " ";
+  private static final char FIELD_DELIM = '\t';
+  private static final Pattern PHRASE_DELIM = Pattern.compile(Pattern.quote(DELIM));
+
+  // Alignment of phrase pairs that only count toward c(f) and c(e)
+  private static final String MARGINAL_ONLY = "*";
+
+  private final int numShards;
+  private final int numThreads;
+  private final int bufferSize;
+  private final File tmpDir;
+
+  // Feature options
+  private final double phiFilter;
+  private final double lexFilter;
+  private final boolean onlyPhi;
+  private final int minCount;
+
+  private final MulticoreWrapper<PhraseExtract.ExtractorInput,Boolean> wrapper;
+  private final List<ShardWorker> workers = Collections.synchronizedList(new ArrayList<>());
+  private final List<List<File>> pairRuns;
+  private final List<List<File>> invertedRuns;
+  private final AtomicInteger runId = new AtomicInteger();
+
+  // Word pair counts for lexical weighting
+  private final Long2IntOpenHashMap feLexCounts = new Long2IntOpenHashMap();
+  private final Int2IntOpenHashMap fLexCounts = new Int2IntOpenHashMap();
+  private final Int2IntOpenHashMap eLexCounts = new Int2IntOpenHashMap();
+
+  /**
+   * Constructor.
+   *
+   * @param prop Phrase extraction properties.
+   * @param phraseExtractor Prototype phrase extractor. Must be configured with
+   *   the <code>AlignmentTemplates</code> returned by <code>newAlignmentTemplates()</code>.
+   * @param numShards Number of shards.
+   * @param numThreads Number of extraction and merge threads.
+   * @throws IOException
+   */
+  public ShardedPhraseExtract(Properties prop, AbstractPhraseExtractor phraseExtractor,
+      int numShards, int numThreads) throws IOException {
+    if (numShards < 1) throw new IllegalArgumentException("Number of shards must be positive: " + numShards);
+    if (PropertiesUtils.getBool(prop, PhraseExtract.IBM_LEX_MODEL_OPT, false)) {
+      throw new UnsupportedOperationException("Sharded extraction does not support the IBM lexical model");
+    }
+    this.numShards = numShards;
+    this.numThreads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+    this.bufferSize = PropertiesUtils.getInt(prop, PhraseExtract.SHARD_BUFFER_OPT, DEFAULT_BUFFER_SIZE);
+    String tmpRoot = prop.getProperty(PhraseExtract.TMP_DIR_OPT, System.getProperty("java.io.tmpdir"));
+    this.tmpDir = Files.createTempDirectory(new File(tmpRoot).toPath(), "phrase-extract").toFile();
+    this.phiFilter = Double.parseDouble(prop.getProperty(PhraseExtract.PTABLE_PHI_FILTER_OPT,
+        Double.toString(MosesPharoahFeatureExtractor.DEFAULT_PHI_FILTER)));
+    this.lexFilter = Double.parseDouble(prop.getProperty(PhraseExtract.PTABLE_LEX_FILTER_OPT,
+        Double.toString(MosesPharoahFeatureExtractor.DEFAULT_LEX_FILTER)));
+    this.onlyPhi = PropertiesUtils.getBool(prop, PhraseExtract.ONLY_ML_OPT, false);
+    this.minCount = PropertiesUtils.getInt(prop, PhraseExtract.MIN_PHRASE_COUNT, 0);
+
+    this.pairRuns = newRunLists(numShards);
+    this.invertedRuns = newRunLists(numShards);
+    this.wrapper = new MulticoreWrapper<PhraseExtract.ExtractorInput,Boolean>(this.numThreads,
+        new ShardWorker(phraseExtractor, prop), false);
+    System.err.printf("Sharded extraction: %d shards  %d threads  buffer: %d  tmp: %s%n",
+        numShards, this.numThreads, bufferSize, tmpDir.getPath());
+  }
+
+  private static List<List<File>> newRunLists(int numShards) {
+    List<List<File>> runs = new ArrayList<>(numShards);
+    for (int i = 0; i < numShards; ++i) {
+      runs.add(Collections.synchronizedList(new ArrayList<>()));
+    }
+    return runs;
+  }
+
+  /**
+   * An <code>AlignmentTemplates</code> that only applies the source filter and the
+   * fertility limit. Phrases are not indexed, so memory usage does not grow
+   * with the bitext. Allowed phrases have key 0; other phrases have key -1 and
+   * only count toward c(f) and c(e).
+   *
+   * @param prop
+   * @param sourceFilter
+   * @return
+   */
+  public static AlignmentTemplates newAlignmentTemplates(Properties prop, SourceFilter sourceFilter) {
+    final double maxFertility = Double.parseDouble(prop.getProperty(
+        PhraseExtract.MAX_FERTILITY_OPT,
+        Integer.toString(AlignmentTemplates.DEFAULT_MAX_FERTILITY)));
+    return new AlignmentTemplates(prop, sourceFilter) {
+      @Override
+      public void addToIndex(AlignmentTemplate alTemp) {
+        boolean add = ! sourceFilter.isEnabled() || sourceFilter.allows(alTemp);
+        double fertility = alTemp.e().size() / alTemp.f().size();
+        alTemp.setKey(add && fertility <= maxFertility ? 0 : -1);
+      }
+      @Override
+      public void incrementAlignmentCount(AlignmentTemplate alTemp) {}
+    };
+  }
+
+  /**
+   * Extract phrases from a sentence pair.
+   *
+   * @param input
+   */
+  void put(PhraseExtract.ExtractorInput input) {
+    wrapper.put(input);
+    while (wrapper.peek()) {
+      if ( ! wrapper.poll()) throw new RuntimeException("Extractor failure");
+    }
+  }
+
+  /**
+   * Finish extraction, merge the runs, and write the phrase table.
+   *
+   * @param outFile
+   * @param withAlign
+   * @throws IOException
+   */
+  public void write(String outFile, boolean withAlign) throws IOException {
+    long startTime = System.nanoTime();
+    wrapper.join();
+    while (wrapper.peek()) {
+      if ( ! wrapper.poll()) throw new RuntimeException("Extractor failure");
+    }
+    for (ShardWorker worker : workers) {
+      worker.spill();
+      worker.mergeLexCounts();
+    }
+    System.err.printf("Extraction done. Runs: %d  Elapsed: %.3fs%n", runId.get(),
+        (System.nanoTime() - startTime) / 1e9);
+
+    ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
+    try {
+      // Phase 1: source phrase counts
+      List<Future<?>> results = new ArrayList<>(numShards);
+      for (int i = 0; i < numShards; ++i) {
+        final int shard = i;
+        results.add(threadPool.submit(() -> { mergePhrasePairs(shard); return null; }));
+      }
+      for (Future<?> result : results) result.get();
+      System.err.printf("Merged phrase pairs. Elapsed: %.3fs%n", (System.nanoTime() - startTime) / 1e9);
+
+      // Phase 2: target phrase counts and scoring
+      results.clear();
+      final File[] shardFiles = new File[numShards];
+      final int[] phrasesWritten = new int[numShards];
+      for (int i = 0; i < numShards; ++i) {
+        final int shard = i;
+        shardFiles[shard] = new File(tmpDir, String.format("ptable.%d", shard));
+        results.add(threadPool.submit(() -> {
+          phrasesWritten[shard] = scorePhrasePairs(shard, shardFiles[shard], withAlign);
+          return null;
+        }));
+      }
+      for (Future<?> result : results) result.get();
+
+      // Concatenate the shards
+      int totalWritten = 0;
+      PrintStream out = IOTools.getWriterFromFile(outFile);
+      if (out == null) throw new IOException("Cannot write the phrase table: " + outFile);
+      for (int i = 0; i < numShards; ++i) {
+        Files.copy(shardFiles[i].toPath(), out);
+        shardFiles[i].delete();
+        totalWritten += phrasesWritten[i];
+      }
+      out.close();
+      System.err.printf("Phrases written: %d%n", totalWritten);
+
+    } catch (InterruptedException | ExecutionException e) {
+      throw new RuntimeException(e);
+    } finally {
+      threadPool.shutdown();
+    }
+    System.err.printf("Done generating phrase table. Elapsed time: %.3fs.%n",
+        (System.nanoTime() - startTime) / 1e9);
+  }
+
+  /**
+   * Delete the temporary directory and the runs in it, including the runs of
+   * an extraction that failed.
+   */
+  @Override
+  public void close() {
+    File[] files = tmpDir.listFiles();
+    if (files != null) {
+      for (File file : files) file.delete();
+    }
+    tmpDir.delete();
+  }
+
+  /**
+   * Merge the phrase pair runs of a shard. Computes c(f,e) and c(f), and writes
+   * the phrase pairs to runs sorted by target phrase.
+   */
+  private void mergePhrasePairs(int shard) throws IOException {
+    final List<String> keys = new ArrayList<>();
+    final IntArrayList counts = new IntArrayList();
+    final RunWriter out = new RunWriter(invertedRuns, "inv");
+    try (RunMerger merger = new RunMerger(pairRuns.get(shard))) {
+      String source = null;
+      for (String key; (key = merger.peekKey()) != null;) {
+        int count = 0;
+        while (key.equals(merger.peekKey())) {
+          count += Integer.parseInt(value(merger.next()));
+        }
+        String f = field(key, 0);
+        if ( ! f.equals(source)) {
+          invertSourceGroup(keys, counts, out);
+          keys.clear();
+          counts.clear();
+          source = f;
+        }
+        keys.add(key);
+        counts.add(count);
+      }
+      invertSourceGroup(keys, counts, out);
+    }
+    out.close();
+    deleteRuns(pairRuns.get(shard));
+  }
+
+  /**
+   * Aggregate the alignments of the phrase pairs of one source phrase, and write
+   * each phrase pair as: e ||| f TAB c(f,e) TAB c(f,e,a) TAB c(f) TAB a
+   *
+   * A pair that only counts toward c(f) and c(e) has the same alignment in every
+   * instance since the fertility limit and the source filter depend only on the pair.
+   */
+  private void invertSourceGroup(List<String> keys, IntArrayList counts, RunWriter out) {
+    int fCount = 0;
+    for (int i = 0; i < counts.size(); ++i) fCount += counts.getInt(i);
+    for (int i = 0; i < keys.size();) {
+      final String pair = prefix(keys.get(i), 2);
+      int pairCount = 0;
+      int best = i;
+      int j = i;
+      // Keys are sorted, so the first maximum has the smallest alignment string.
+      for (; j < keys.size() && prefix(keys.get(j), 2).equals(pair); ++j) {
+        pairCount += counts.getInt(j);
+        if (counts.getInt(j) > counts.getInt(best)) best = j;
+      }
+      final String key = keys.get(best);
+      final String e = field(key, 1);
+      final String f = field(key, 0);
+      String line = new StringBuilder(e).append(DELIM).append(f).append(FIELD_DELIM)
+          .append(pairCount).append(FIELD_DELIM).append(counts.getInt(best)).append(FIELD_DELIM)
+          .append(fCount).append(FIELD_DELIM).append(field(key, 2)).toString();
+      out.add(shardOf(e), line);
+      i = j;
+    }
+  }
+
+  /**
+   * Merge the inverted runs of a shard, score each phrase pair, and write the
+   * rules to a file.
+   *
+   * @return the number of rules written.
+   */
+  private int scorePhrasePairs(int shard, File outFile, boolean withAlign) throws IOException {
+    int numWritten = 0;
+    final List<String> lines = new ArrayList<>();
+    try (RunMerger merger = new RunMerger(invertedRuns.get(shard));
+        PrintStream out = new PrintStream(new FileOutputStream(outFile), false, "UTF-8")) {
+      String target = null;
+      for (String line; (line = merger.next()) != null;) {
+        String e = field(line, 0);
+        if ( ! e.equals(target)) {
+          numWritten += scoreTargetGroup(lines, out, withAlign);
+          lines.clear();
+          target = e;
+        }
+        lines.add(line);
+      }
+      numWritten += scoreTargetGroup(lines, out, withAlign);
+    }
+    deleteRuns(invertedRuns.get(shard));
+    return numWritten;
+  }
+
+  private int scoreTargetGroup(List<String> lines, PrintStream out, boolean withAlign) throws IOException {
+    double eCount = 0.0;
+    for (String line : lines) eCount += Integer.parseInt(line.split("\t")[1]);
+    int numWritten = 0;
+    for (String line : lines) {
+      final String[] fields = line.split("\t", -1);
+      if (fields[4].equals(MARGINAL_ONLY)) continue;
+      final String[] phrases = PHRASE_DELIM.split(fields[0], -1);
+      final double pairCount = Integer.parseInt(fields[1]);
+      final int alignmentCount = Integer.parseInt(fields[2]);
+      final double fCount = Integer.parseInt(fields[3]);
+      if (alignmentCount < minCount) continue;
+
+      final double phi_f_e = pairCount / eCount;
+      final double phi_e_f = pairCount / fCount;
+      if (phiFilter > phi_e_f) continue;
+
+      final AlignmentTemplate alTemp = newAlignmentTemplate(phrases[1], phrases[0], fields[4]);
+      final double lex_f_e = getLexScore(alTemp);
+      final double lex_e_f = getLexScoreInv(alTemp);
+      if (lexFilter > lex_e_f) continue;
+
+      final double[] scores = onlyPhi ? new double[] { phi_f_e, phi_e_f } :
+        new double[] { phi_f_e, lex_f_e, phi_e_f, lex_e_f };
+      StringBuilder sb = new StringBuilder(alTemp.toString(withAlign));
+      sb.append(DELIM);
+      for (double score : scores) {
+        score = (score > 0.0) ? Math.log(score) : score;
+        sb.append((float) score).append(" ");
+      }
+      out.println(sb.toString());
+      ++numWritten;
+    }
+    return numWritten;
+  }
+
+  /**
+   * Create an alignment template from a source phrase, a target phrase, and an
+   * alignment in the f-e format of <code>AlignmentTemplate.alignmentToString()</code>.
+   */
+  private static AlignmentTemplate newAlignmentTemplate(String f, String e, String alignment) {
+    final String[] points = alignment.isEmpty() ? new String[0] : alignment.split(" ");
+    final int[] align = new int[points.length];
+    for (int i = 0; i < points.length; ++i) {
+      int delim = points[i].indexOf('-');
+      byte fIndex = Byte.parseByte(points[i].substring(0, delim));
+      byte eIndex = Byte.parseByte(points[i].substring(delim + 1));
+      align[i] = AlignmentTemplate.alignmentToNumber(eIndex, fIndex);
+    }
+    return new AlignmentTemplate(IStrings.toIntArray(IStrings.toIStringArray(f.split(" "))),
+        IStrings.toIntArray(IStrings.toIStringArray(e.split(" "))), align, false);
+  }
+
+  /**
+   * Lexically-weighted probability of f given e according to Moses.
+   * See <code>MosesPharoahFeatureExtractor</code>.
+   */
+  private double getLexScore(AlignmentTemplate alTemp) {
+    double lex = 1.0;
+    for (int fi = 0; fi < alTemp.f().size(); ++fi) {
+      double wSum = 0.0;
+      int alCount = alTemp.f2e(fi).size();
+      if (alCount == 0) {
+        wSum = getLexProb(alTemp.f().get(fi), MosesPharoahFeatureExtractor.NULL_STR);
+      } else {
+        for (int ei : alTemp.f2e(fi)) {
+          wSum += getLexProb(alTemp.f().get(fi), alTemp.e().get(ei));
+        }
+        wSum /= alCount;
+      }
+      lex *= wSum == 0.0 ? MosesPharoahFeatureExtractor.MIN_LEX_PROB : wSum;
+    }
+    return lex;
+  }
+
+  /**
+   * Lexically-weighted probability of e given f according to Moses.
+   */
+  private double getLexScoreInv(AlignmentTemplate alTemp) {
+    double lex = 1.0;
+    for (int ei = 0; ei < alTemp.e().size(); ++ei) {
+      double wSum = 0.0;
+      int alCount = alTemp.e2f(ei).size();
+      if (alCount == 0) {
+        wSum = getLexProbInv(MosesPharoahFeatureExtractor.NULL_STR, alTemp.e().get(ei));
+      } else {
+        for (int fi : alTemp.e2f(ei)) {
+          wSum += getLexProbInv(alTemp.f().get(fi), alTemp.e().get(ei));
+        }
+        wSum /= alCount;
+      }
+      lex *= wSum == 0.0 ? MosesPharoahFeatureExtractor.MIN_LEX_PROB : wSum;
+    }
+    return lex;
+  }
+
+  private double getLexProb(IString f, IString e) {
+    int eCount = eLexCounts.get(e.id);
+    return eCount == 0 ? 0.0 : feLexCounts.get(lexKey(f.id, e.id)) / (double) eCount;
+  }
+
+  private double getLexProbInv(IString f, IString e) {
+    int fCount = fLexCounts.get(f.id);
+    return fCount == 0 ? 0.0 : feLexCounts.get(lexKey(f.id, e.id)) / (double) fCount;
+  }
+
+  private static long lexKey(int f, int e) {
+    return ((long) f << 32) | (e & 0xffffffffL);
+  }
+
+  private int shardOf(String phrase) {
+    int h = phrase.hashCode();
+    h ^= (h >>> 16);
+    return (h & Integer.MAX_VALUE) % numShards;
+  }
+
+  /**
+   * The i-th field of a key of the form f ||| e ||| a.
+   */
+  private static String field(String key, int i) {
+    int start = 0;
+    for (int j = 0; j < i; ++j) {
+      start = key.indexOf(DELIM, start) + DELIM.length();
+    }
+    int end = key.indexOf(DELIM, start);
+    if (end < 0) end = key.indexOf(FIELD_DELIM, start);
+    return end < 0 ? key.substring(start) : key.substring(start, end);
+  }
+
+  /**
+   * The first n fields of a key including the trailing delimiter.
+   */
+  private static String prefix(String key, int n) {
+    int end = 0;
+    for (int j = 0; j < n; ++j) {
+      end = key.indexOf(DELIM, end) + DELIM.length();
+    }
+    return key.substring(0, end);
+  }
+
+  private static String value(String line) {
+    return line.substring(line.lastIndexOf(FIELD_DELIM) + 1);
+  }
+
+  private static void deleteRuns(List<File> runs) {
+    for (File run : runs) run.delete();
+    runs.clear();
+  }
+
+  /**
+   * Buffers lines for each shard, and writes them to sorted runs.
+   */
+  private class RunWriter {
+    private final List<List<File>> runs;
+    private final String name;
+    private final List<List<String>> buffers;
+    private int size = 0;
+
+    public RunWriter(List<List<File>> runs, String name) {
+      this.runs = runs;
+      this.name = name;
+      this.buffers = new ArrayList<>(numShards);
+      for (int i = 0; i < numShards; ++i) buffers.add(new ArrayList<>());
+    }
+
+    public void add(int shard, String line) {
+      buffers.get(shard).add(line);
+      if (++size >= bufferSize) flush();
+    }
+
+    public void flush() {
+      for (int i = 0; i < numShards; ++i) {
+        List<String> buffer = buffers.get(i);
+        if (buffer.isEmpty()) continue;
+        Collections.sort(buffer, (a, b) -> key(a).compareTo(key(b)));
+        File run = new File(tmpDir, String.format("%s.%d.%d", name, i, runId.getAndIncrement()));
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(run), "UTF-8"))) {
+          for (String line : buffer) {
+            writer.write(line);
+            writer.write('\n');
+          }
+        } catch (IOException e) {
+          throw new RuntimeException("Could not write run: " + run.getPath(), e);
+        }
+        runs.get(i).add(run);
+        buffer.clear();
+      }
+      size = 0;
+    }
+
+    public void close() {
+      flush();
+    }
+  }
+
+  private static String key(String line) {
+    int end = line.indexOf(FIELD_DELIM);
+    return end < 0 ? line : line.substring(0, end);
+  }
+
+  /**
+   * A sorted run on disk.
+   */
+  private static class RunReader implements Comparable<RunReader> {
+    private final BufferedReader reader;
+    public String line;
+    public String key;
+
+    public RunReader(File file) throws IOException {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    }
+
+    public boolean advance() throws IOException {
+      line = reader.readLine();
+      if (line == null) {
+        reader.close();
+        return false;
+      }
+      key = key(line);
+      return true;
+    }
+
+    @Override
+    public int compareTo(RunReader o) {
+      return key.compareTo(o.key);
+    }
+  }
+
+  /**
+   * k-way merge of sorted runs.
+   */
+  private static class RunMerger implements Closeable {
+    private final PriorityQueue<RunReader> queue;
+
+    public RunMerger(List<File> runs) throws IOException {
+      queue = new PriorityQueue<>(Math.max(1, runs.size()));
+      for (File run : runs) {
+        RunReader reader = new RunReader(run);
+        if (reader.advance()) queue.add(reader);
+      }
+    }
+
+    public String peekKey() {
+      return queue.isEmpty() ? null : queue.peek().key;
+    }
+
+    public String next() throws IOException {
+      RunReader reader = queue.poll();
+      if (reader == null) return null;
+      String line = reader.line;
+      if (reader.advance()) queue.add(reader);
+      return line;
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (RunReader reader : queue) reader.reader.close();
+      queue.clear();
+    }
+  }
+
+  /**
+   * Extracts phrases and counts phrase pairs and word pairs in thread-local tables.
+   */
+  private class ShardWorker implements ThreadsafeProcessor<PhraseExtract.ExtractorInput,Boolean> {
+    private final AbstractPhraseExtractor phraseEx;
+    private final SymmetricalWordAlignment sent;
+    private final Properties properties;
+    private final Object2IntOpenHashMap<String> pairCounts = new Object2IntOpenHashMap<>();
+    private final Long2IntOpenHashMap feLex = new Long2IntOpenHashMap();
+    private final Int2IntOpenHashMap fLex = new Int2IntOpenHashMap();
+    private final Int2IntOpenHashMap eLex = new Int2IntOpenHashMap();
+    private final RunWriter runWriter;
+
+    public ShardWorker(AbstractPhraseExtractor phraseEx, Properties properties) {
+      try {
+        this.phraseEx = (AbstractPhraseExtractor) phraseEx.clone();
+      } catch (CloneNotSupportedException e) {
+        throw new RuntimeException(e);
+      }
+      this.sent = new SymmetricalWordAlignment(properties);
+      this.properties = properties;
+      this.runWriter = new RunWriter(pairRuns, "pairs");
+      workers.add(this);
+    }
+
+    @Override
+    public Boolean process(PhraseExtract.ExtractorInput input) {
+      try {
+        sent.init(input.lineNb, input.fLine, input.eLine, input.aLine, false, false);
+      } catch (Exception e) {
+        System.err.println("Invalid line: " + input.toString());
+        throw new RuntimeException(e);
+      }
+      phraseEx.extractPhrases(sent);
+      for (AlignmentTemplateInstance alTemp : phraseEx.getAlGrid().getAlTemps()) {
+        String alignment = alTemp.getKey() < 0 ? MARGINAL_ONLY :
+          AlignmentTemplate.alignmentToString(alTemp.getCompactAlignment());
+        String key = new StringBuilder(alTemp.f().toString()).append(DELIM)
+            .append(alTemp.e().toString()).append(DELIM).append(alignment).toString();
+        pairCounts.addTo(key, 1);
+      }
+      countWords();
+      if (pairCounts.size() >= bufferSize ||
+          (pairCounts.size() >= bufferSize / 16 && heapIsFull())) {
+        spill();
+      }
+      return true;
+    }
+
+    /**
+     * Word pair counts as in <code>MosesPharoahFeatureExtractor</code>.
+     */
+    private void countWords() {
+      Sequence<IString> f = sent.f();
+      Sequence<IString> e = sent.e();
+      final int nullId = MosesPharoahFeatureExtractor.NULL_STR.id;
+      for (int fi = 0; fi < f.size(); ++fi) {
+        for (int ei : sent.f2e(fi)) addLexCount(f.get(fi).id, e.get(ei).id);
+        if (sent.f2e(fi).isEmpty()) addLexCount(f.get(fi).id, nullId);
+      }
+      for (int ei = 0; ei < e.size(); ++ei) {
+        if (sent.e2f(ei).isEmpty()) addLexCount(nullId, e.get(ei).id);
+      }
+    }
+
+    private void addLexCount(int f, int e) {
+      feLex.addTo(lexKey(f, e), 1);
+      fLex.addTo(f, 1);
+      eLex.addTo(e, 1);
+    }
+
+    private boolean heapIsFull() {
+      Runtime rt = Runtime.getRuntime();
+      return rt.totalMemory() - rt.freeMemory() > MAX_HEAP_FRACTION * rt.maxMemory();
+    }
+
+    /**
+     * Write the phrase pair counts to sorted runs.
+     */
+    public void spill() {
+      for (String key : pairCounts.keySet()) {
+        runWriter.add(shardOf(key.substring(0, key.indexOf(DELIM))),
+            key + FIELD_DELIM + pairCounts.getInt(key));
+      }
+      runWriter.flush();
+      pairCounts.clear();
+      pairCounts.trim();
+    }
+
+    /**
+     * Add the word pair counts to the global tables. Not threadsafe.
+     */
+    public void mergeLexCounts() {
+      for (LongIterator it = feLex.keySet().iterator(); it.hasNext();) {
+        long k = it.nextLong();
+        feLexCounts.addTo(k, feLex.get(k));
+      }
+      for (IntIterator it = fLex.keySet().iterator(); it.hasNext();) {
+        int k = it.nextInt();
+        fLexCounts.addTo(k, fLex.get(k));
+      }
+      for (IntIterator it = eLex.keySet().iterator(); it.hasNext();) {
+        int k = it.nextInt();
+        eLexCounts.addTo(k, eLex.get(k));
+      }
+      feLex.clear();
+      fLex.clear();
+      eLex.clear();
+    }
+
+    @Override
+    public ThreadsafeProcessor<PhraseExtract.ExtractorInput, Boolean> newInstance() {
+      return new ShardWorker(this.phraseEx, this.properties);
+    }
+  }
+}
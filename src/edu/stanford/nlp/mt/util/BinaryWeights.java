@@ -0,0 +1,247 @@
+package edu.stanford.nlp.mt.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import edu.stanford.nlp.stats.ClassicCounter;
+import edu.stanford.nlp.stats.Counter;
+
+/**
+ * Compact binary format for weight vectors. Replaces Java serialization of
+ * <code>Counter</code>, which is slow and generates a lot of garbage for
+ * models with millions of sparse features.
+ *
+ * The file is uncompressed and laid out so that it can be memory-mapped:
+ *
+ * <pre>
+ *   int      magic
+ *   int      version
+ *   int      number of features n
+ *   int      size of the string table in bytes
+ *   int[n+1] offsets of the feature names in the string table
+ *   byte[]   string table (UTF-8), padded so that the weights are 8-byte aligned
+ *   double[n] weights
+ * </pre>
+ *
+ * All values are big-endian.
+ *
+ */
+public class BinaryWeights {
+
+  public static final int MAGIC = 0x50574754;
+  public static final int VERSION = 1;
+
+  private static final int HEADER_BYTES = 4 * Integer.BYTES;
+
+  private final String[] names;
+  private final double[] weights;
+
+  /**
+   * Constructor.
+   *
+   * @param names
+   * @param weights
+   */
+  public BinaryWeights(String[] names, double[] weights) {
+    if (names.length != weights.length) {
+      throw new IllegalArgumentException(String.format("Dimension mismatch: %d names, %d weights",
+          names.length, weights.length));
+    }
+    this.names = names;
+    this.weights = weights;
+  }
+
+  /**
+   * Number of features.
+   *
+   * @return
+   */
+  public int size() { return names.length; }
+
+  /**
+   * Feature names. Parallel to <code>weights()</code>.
+   *
+   * @return
+   */
+  public String[] names() { return names; }
+
+  /**
+   * Feature weights. Parallel to <code>names()</code>.
+   *
+   * @return
+   */
+  public double[] weights() { return weights; }
+
+  /**
+   * Convert to a counter.
+   *
+   * @return
+   */
+  public Counter<String> toCounter() {
+    Counter<String> counter = new ClassicCounter<>(names.length);
+    for (int i = 0; i < names.length; ++i) {
+      counter.setCount(names[i], weights[i]);
+    }
+    return counter;
+  }
+
+  /**
+   * Convert a counter. Null keys are skipped.
+   *
+   * @param counter
+   * @return
+   */
+  public static BinaryWeights fromCounter(Counter<String> counter) {
+    int size = 0;
+    for (String key : counter.keySet()) {
+      if (key != null) ++size;
+    }
+    String[] names = new String[size];
+    double[] weights = new double[size];
+    int i = 0;
+    for (String key : counter.keySet()) {
+      // TODO(spenceg) - find out what is generating 'null' model weights
+      // for now, we'll just have the decoding model ignore them
+      if (key == null) continue;
+      names[i] = key;
+      weights[i++] = counter.getCount(key);
+    }
+    return new BinaryWeights(names, weights);
+  }
+
+  /**
+   * True if the file is in the binary weights format.
+   *
+   * @param filename
+   * @return
+   */
+  public static boolean isBinaryWeightsFile(String filename) {
+    File file = new File(filename);
+    if ( ! file.isFile() || file.length() < HEADER_BYTES) return false;
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      return in.readInt() == MAGIC;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Load a weight vector by memory-mapping the file.
+   *
+   * @param filename
+   * @return
+   * @throws IOException
+   */
+  public static BinaryWeights load(String filename) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+        FileChannel channel = file.getChannel()) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC) {
+        throw new IOException("Not a binary weights file: " + filename);
+      }
+      int version = buffer.getInt();
+      if (version != VERSION) {
+        throw new IOException(String.format("Unsupported binary weights version %d: %s", version, filename));
+      }
+      final int size = buffer.getInt();
+      final int tableBytes = buffer.getInt();
+      final int tableStart = HEADER_BYTES + (size + 1) * Integer.BYTES;
+      final long weightsStart = weightsOffset(size, tableBytes);
+      if (size < 0 || tableBytes < 0 || weightsStart + (long) size * Double.BYTES > buffer.capacity()) {
+        throw new IOException("Truncated binary weights file: " + filename);
+      }
+
+      // Feature names
+      IntBuffer offsets = buffer.asIntBuffer();
+      byte[] table = new byte[tableBytes];
+      buffer.position(tableStart);
+      buffer.get(table);
+      String[] names = new String[size];
+      for (int i = 0; i < size; ++i) {
+        int start = offsets.get(i);
+        int end = offsets.get(i + 1);
+        if (start < 0 || end < start || end > tableBytes) {
+          throw new IOException("Corrupt string table in binary weights file: " + filename);
+        }
+        names[i] = new String(table, start, end - start, StandardCharsets.UTF_8);
+      }
+
+      // Weights
+      buffer.position((int) weightsStart);
+      DoubleBuffer weightBuffer = buffer.asDoubleBuffer();
+      double[] weights = new double[size];
+      weightBuffer.get(weights);
+      return new BinaryWeights(names, weights);
+    }
+  }
+
+  /**
+   * Write a weight vector to file.
+   *
+   * @param filename
+   * @param counter
+   * @throws IOException
+   */
+  public static void save(String filename, Counter<String> counter) throws IOException {
+    fromCounter(counter).save(filename);
+  }
+
+  /**
+   * Write this weight vector to file.
+   *
+   * @param filename
+   * @throws IOException
+   */
+  public void save(String filename) throws IOException {
+    final int size = names.length;
+    byte[][] encoded = new byte[size][];
+    int tableBytes = 0;
+    for (int i = 0; i < size; ++i) {
+      encoded[i] = names[i].getBytes(StandardCharsets.UTF_8);
+      tableBytes += encoded[i].length;
+    }
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(filename), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(size);
+      out.writeInt(tableBytes);
+      int offset = 0;
+      out.writeInt(offset);
+      for (byte[] name : encoded) {
+        offset += name.length;
+        out.writeInt(offset);
+      }
+      for (byte[] name : encoded) {
+        out.write(name);
+      }
+      final long tableEnd = HEADER_BYTES + (long) (size + 1) * Integer.BYTES + tableBytes;
+      for (long i = tableEnd, end = weightsOffset(size, tableBytes); i < end; ++i) {
+        out.writeByte(0);
+      }
+      for (double weight : weights) {
+        out.writeDouble(weight);
+      }
+    }
+  }
+
+  /**
+   * Position of the weights in the file. The string table is padded so that
+   * the weights are aligned.
+   */
+  private static long weightsOffset(int size, int tableBytes) {
+    final long tableEnd = HEADER_BYTES + (long) (size + 1) * Integer.BYTES + tableBytes;
+    return (tableEnd + Double.BYTES - 1) / Double.BYTES * Double.BYTES;
+  }
+}
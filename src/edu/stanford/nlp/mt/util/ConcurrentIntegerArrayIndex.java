@@ -0,0 +1,341 @@
+package edu.stanford.nlp.mt.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A threadsafe <code>IntegerArrayIndex</code> based on open addressing.
+ *
+ * Keys are copied into a flat <code>int[]</code> arena, so the index does not
+ * allocate an object per key. Each slot of the hash table is a <code>long</code>
+ * that packs the hash code of the key and its id. An insert claims an empty slot
+ * with a CAS, assigns the next id, and then publishes the id in the slot.
+ *
+ * When the table is full, the threads that insert into it migrate it cooperatively
+ * to a table of twice the size. Each thread claims chunks of slots until the
+ * migration is complete.
+ *
+ * Lookups never wait for other threads. A key whose insert has not published its
+ * id is not found, and a lookup during a migration reads the slots that have not
+ * been moved yet and then the new table. Inserts may wait for a concurrent insert
+ * of a key with the same hash code and for a migration to finish.
+ *
+ * Ids are contiguous in [0, size()). Arena and id pages grow geometrically and
+ * are never copied.
+ *
+ */
+public class ConcurrentIntegerArrayIndex implements IntegerArrayIndex {
+
+  private static final int DEFAULT_CAPACITY = 1 << 10;
+  private static final double MAX_LOAD = 0.5;
+
+  // Slot encoding: hash code in the upper 32 bits; id + 1 in the lower 32 bits.
+  private static final long EMPTY = 0L;
+  private static final long MOVED = 0xFFFFFFFEL;
+  private static final int RESERVED = 0xFFFFFFFF;
+  private static final int RETRY = Integer.MIN_VALUE;
+
+  // Slots per migration chunk
+  private static final int TRANSFER_CHUNK = 1 << 10;
+
+  // Page k of the arena and the id table has size 2^(k + PAGE_BITS)
+  private static final int PAGE_BITS = 10;
+  private static final int MAX_PAGES = 31 - PAGE_BITS;
+
+  private final AtomicReference<Table> table;
+  private final AtomicInteger nextId = new AtomicInteger();
+  private final AtomicLong arenaTop = new AtomicLong();
+  private final AtomicReferenceArray<int[]> arena = new AtomicReferenceArray<>(MAX_PAGES);
+  // Id -> arena address << 32 | key length + 1
+  private final AtomicReferenceArray<AtomicLongArray> keyAddresses =
+      new AtomicReferenceArray<>(MAX_PAGES);
+  private volatile boolean locked = false;
+
+  /**
+   * Constructor.
+   */
+  public ConcurrentIntegerArrayIndex() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param initialCapacity Expected number of keys.
+   */
+  public ConcurrentIntegerArrayIndex(int initialCapacity) {
+    int capacity = Integer.highestOneBit(Math.max(16, (int) (initialCapacity / MAX_LOAD)) - 1) << 1;
+    table = new AtomicReference<>(new Table(capacity));
+  }
+
+  /**
+   * An open addressing hash table, and the state of its migration.
+   */
+  private static class Table {
+    final AtomicLongArray slots;
+    final int mask;
+    final int threshold;
+    final int numChunks;
+    final AtomicReference<Table> next = new AtomicReference<>();
+    final AtomicInteger claimedChunks = new AtomicInteger();
+    final AtomicInteger transferredChunks = new AtomicInteger();
+
+    Table(int capacity) {
+      slots = new AtomicLongArray(capacity);
+      mask = capacity - 1;
+      threshold = (int) (capacity * MAX_LOAD);
+      numChunks = (capacity + TRANSFER_CHUNK - 1) / TRANSFER_CHUNK;
+    }
+  }
+
+  @Override
+  public int size() {
+    return nextId.get();
+  }
+
+  /**
+   * Returns null if the id is not in the index, including an id whose key has
+   * not been published yet.
+   */
+  @Override
+  public int[] get(int idx) {
+    if (idx < 0 || idx >= nextId.get()) return null;
+    long address = keyAddress(idx);
+    if (address == 0L) return null;
+    int page = page(address >>> 32);
+    int offset = (int) ((address >>> 32) - pageStart(page));
+    int[] key = new int[(int) address - 1];
+    System.arraycopy(arena.get(page), offset, key, 0, key.length);
+    return key;
+  }
+
+  @Override
+  public int indexOf(int[] key) {
+    return indexOf(key, false);
+  }
+
+  @Override
+  public int indexOf(int[] key, boolean add) {
+    // Same semantics as DynamicIntegerArrayIndex: ignore add when locked
+    add &= ! locked;
+    final int hash = hash(key);
+    if ( ! add) return find(table.get(), key, hash);
+    for (;;) {
+      Table t = table.get();
+      if (t.next.get() != null) {
+        helpTransfer(t);
+        continue;
+      }
+      int id = insert(t, key, hash);
+      if (id != RETRY) return id;
+    }
+  }
+
+  @Override
+  public void lock() {
+    locked = true;
+  }
+
+  /**
+   * Look up a key without waiting for inserts or migrations. Keys are copied to
+   * the next table before their slots are marked as moved, so a key that is not
+   * in the unmoved slots of the probe sequence is either in the next table or not
+   * in the index.
+   */
+  private int find(Table t, int[] key, int hash) {
+    for (; t != null; t = t.next.get()) {
+      final AtomicLongArray slots = t.slots;
+      boolean moved = false;
+      int idx = hash & t.mask;
+      for (int numProbes = 0; numProbes <= t.mask; ++numProbes, idx = (idx + 1) & t.mask) {
+        final long slot = slots.get(idx);
+        if (slot == EMPTY) {
+          break;
+        } else if (slot == MOVED) {
+          // The slot may have been empty, so keep probing
+          moved = true;
+        } else if ((int) (slot >>> 32) == hash) {
+          int value = (int) slot;
+          if (value != RESERVED && keyEquals(value - 1, key)) return value - 1;
+        }
+      }
+      if ( ! moved) return -1;
+    }
+    return -1;
+  }
+
+  /**
+   * Look up a key and insert it if it is absent. Returns <code>RETRY</code> if
+   * the table is being migrated.
+   */
+  private int insert(Table t, int[] key, int hash) {
+    final AtomicLongArray slots = t.slots;
+    int idx = hash & t.mask;
+    for (int numProbes = 0; numProbes <= t.mask;) {
+      long slot = slots.get(idx);
+      if (slot == EMPTY) {
+        if ( ! slots.compareAndSet(idx, EMPTY, ((long) hash << 32) | (RESERVED & 0xFFFFFFFFL))) {
+          continue;
+        }
+        int id = addKey(key);
+        slots.set(idx, ((long) hash << 32) | (id + 1));
+        if (id >= t.threshold) resize(t);
+        return id;
+
+      } else if (slot == MOVED) {
+        helpTransfer(t);
+        return RETRY;
+
+      } else if ((int) (slot >>> 32) == hash) {
+        int value = (int) slot;
+        if (value == RESERVED) {
+          // Another thread is inserting a key with the same hash code
+          Thread.yield();
+          continue;
+        }
+        if (keyEquals(value - 1, key)) return value - 1;
+      }
+      idx = (idx + 1) & t.mask;
+      ++numProbes;
+    }
+    resize(t);
+    return RETRY;
+  }
+
+  /**
+   * Copy a key to the arena and assign it an id.
+   */
+  private int addKey(int[] key) {
+    final int id = nextId.getAndIncrement();
+    if (id == Integer.MAX_VALUE - 1) throw new IllegalStateException("Index is full");
+    final long address = allocate(key.length);
+    final int page = page(address);
+    System.arraycopy(key, 0, arena.get(page), (int) (address - pageStart(page)), key.length);
+    final int idPage = page(id);
+    idPage(idPage).set((int) (id - pageStart(idPage)), (address << 32) | (key.length + 1));
+    return id;
+  }
+
+  /**
+   * The arena address of a key, or 0 if the id has been assigned but the key
+   * is not yet published. Ids in the hash table are always published.
+   */
+  private long keyAddress(int id) {
+    final int page = page(id);
+    final AtomicLongArray addresses = idPage(page);
+    return addresses.get((int) (id - pageStart(page)));
+  }
+
+  private boolean keyEquals(int id, int[] key) {
+    final long address = keyAddress(id);
+    if ((int) address - 1 != key.length) return false;
+    final int page = page(address >>> 32);
+    final int[] keys = arena.get(page);
+    final int offset = (int) ((address >>> 32) - pageStart(page));
+    for (int i = 0; i < key.length; ++i) {
+      if (keys[offset + i] != key[i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Allocate a contiguous range of the arena. Ranges do not cross pages.
+   */
+  private long allocate(int length) {
+    for (;;) {
+      final long top = arenaTop.get();
+      long start = top;
+      int page = page(start);
+      while (start + length > pageStart(page + 1)) {
+        start = pageStart(++page);
+      }
+      if (page >= MAX_PAGES) throw new IllegalStateException("Arena is full");
+      if (arenaTop.compareAndSet(top, start + length)) {
+        if (arena.get(page) == null) {
+          arena.compareAndSet(page, null, new int[pageSize(page)]);
+        }
+        return start;
+      }
+    }
+  }
+
+  private AtomicLongArray idPage(int page) {
+    AtomicLongArray addresses = keyAddresses.get(page);
+    if (addresses == null) {
+      keyAddresses.compareAndSet(page, null, new AtomicLongArray(pageSize(page)));
+      addresses = keyAddresses.get(page);
+    }
+    return addresses;
+  }
+
+  private static int page(long address) {
+    return 63 - Long.numberOfLeadingZeros((address >>> PAGE_BITS) + 1);
+  }
+
+  private static long pageStart(int page) {
+    return ((1L << page) - 1) << PAGE_BITS;
+  }
+
+  private static int pageSize(int page) {
+    return 1 << (page + PAGE_BITS);
+  }
+
+  private static int hash(int[] key) {
+    long h = MurmurHash.hash64(key, key.length, 1);
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * Start the migration of a table if necessary, and help to finish it.
+   */
+  private void resize(Table t) {
+    if (t.next.get() == null) {
+      t.next.compareAndSet(null, new Table((t.mask + 1) << 1));
+    }
+    helpTransfer(t);
+  }
+
+  /**
+   * Migrate chunks of a table until the migration is complete.
+   */
+  private void helpTransfer(Table t) {
+    final Table next = t.next.get();
+    if (next == null) return;
+    for (int chunk; (chunk = t.claimedChunks.getAndIncrement()) < t.numChunks;) {
+      final int end = Math.min(t.mask + 1, (chunk + 1) * TRANSFER_CHUNK);
+      for (int i = chunk * TRANSFER_CHUNK; i < end; ++i) {
+        transfer(t, i, next);
+      }
+      t.transferredChunks.incrementAndGet();
+    }
+    while (t.transferredChunks.get() < t.numChunks) {
+      Thread.yield();
+    }
+    table.compareAndSet(t, next);
+  }
+
+  private static void transfer(Table t, int i, Table next) {
+    for (;;) {
+      final long slot = t.slots.get(i);
+      if (slot == EMPTY) {
+        if (t.slots.compareAndSet(i, EMPTY, MOVED)) return;
+
+      } else if ((int) slot == RESERVED) {
+        // Wait for the insert to finish
+        Thread.yield();
+
+      } else {
+        // Keys are unique and the new table is not yet visible to inserts
+        final int hash = (int) (slot >>> 32);
+        for (int idx = hash & next.mask; ; idx = (idx + 1) & next.mask) {
+          if (next.slots.compareAndSet(idx, EMPTY, slot)) break;
+        }
+        t.slots.set(i, MOVED);
+        return;
+      }
+    }
+  }
+}
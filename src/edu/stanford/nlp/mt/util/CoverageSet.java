@@ -2,35 +2,423 @@ package edu.stanford.nlp.mt.util;
 
 import edu.stanford.nlp.util.IntPair;
 
-import java.util.BitSet;
+import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
- * util.BitSet with a faster clone operation, a more readable toString() result
- * (e.g., {1,3-6} instead of {1,3,4,5,6}), and the ability to iterate through
- * bits set to true. Note: The BitSet iterator doesn't allow removal.
+ * A set of source positions. The first 128 positions are stored inline in two
+ * words so that coverage sets for typical sentences require a single small
+ * allocation; longer sentences spill to an overflow array. The cardinality is
+ * maintained on update and the hash code is cached, since coverage sets are
+ * used as hash keys throughout the decoder.
+ * 
+ * The API mirrors util.BitSet. The class also has a more readable toString()
+ * result (e.g., {1,3-6} instead of {1,3,4,5,6}), and the ability to iterate
+ * through bits set to true. Note: The iterator doesn't allow removal.
  * 
  * @author danielcer
  * @author Michel Galley
+ * @author Spence Green
  * 
  */
-public class CoverageSet extends BitSet implements Iterable<Integer> {
+public class CoverageSet implements Iterable<Integer>, Serializable {
+
+  private static final long serialVersionUID = 2L;
+
+  private static final int ADDRESS_BITS_PER_WORD = 6;
+  private static final int BITS_PER_WORD = 1 << ADDRESS_BITS_PER_WORD;
+  private static final int INLINE_WORDS = 2;
+  private static final long[] EMPTY_WORDS = new long[0];
 
-  private static final long serialVersionUID = 1L;
+  // Positions [0,128)
+  private long word0;
+  private long word1;
+  
+  // Positions [128,...)
+  private long[] overflow = EMPTY_WORDS;
+  
+  private int cardinality = 0;
+  
+  // Zero if not computed
+  private transient int hashCode = 0;
 
+  /**
+   * Constructor.
+   * 
+   * @param size Expected number of positions.
+   */
   public CoverageSet(int size) {
-    super(size);
+    if (size < 0) throw new NegativeArraySizeException("size < 0: " + size);
+    int numWords = numWords(size);
+    if (numWords > INLINE_WORDS) {
+      overflow = new long[numWords - INLINE_WORDS];
+    }
+  }
+
+  /**
+   * Constructor.
+   */
+  public CoverageSet() {}
+
+  /**
+   * Copy constructor.
+   * 
+   * @param other
+   */
+  private CoverageSet(CoverageSet other) {
+    word0 = other.word0;
+    word1 = other.word1;
+    overflow = other.overflow.length == 0 ? EMPTY_WORDS : other.overflow.clone();
+    cardinality = other.cardinality;
+    hashCode = other.hashCode;
+  }
+
+  private static int numWords(int size) {
+    return (size + BITS_PER_WORD - 1) >>> ADDRESS_BITS_PER_WORD;
+  }
+  
+  private int wordsInUse() {
+    return INLINE_WORDS + overflow.length;
+  }
+
+  private long word(int wordIndex) {
+    switch (wordIndex) {
+    case 0:
+      return word0;
+    case 1:
+      return word1;
+    default:
+      wordIndex -= INLINE_WORDS;
+      return wordIndex < overflow.length ? overflow[wordIndex] : 0L;
+    }
+  }
+
+  /**
+   * Set a word without updating the cardinality or the hash code.
+   */
+  private void setWord(int wordIndex, long word) {
+    switch (wordIndex) {
+    case 0:
+      word0 = word;
+      break;
+    case 1:
+      word1 = word;
+      break;
+    default:
+      wordIndex -= INLINE_WORDS;
+      if (wordIndex >= overflow.length) {
+        if (word == 0L) return;
+        overflow = Arrays.copyOf(overflow, Math.max(2 * overflow.length, wordIndex + 1));
+      }
+      overflow[wordIndex] = word;
+    }
+  }
+  
+  private void recount() {
+    int count = Long.bitCount(word0) + Long.bitCount(word1);
+    for (long word : overflow) count += Long.bitCount(word);
+    cardinality = count;
+    hashCode = 0;
+  }
+  
+  private static void checkIndex(int index) {
+    if (index < 0) throw new IndexOutOfBoundsException("index < 0: " + index);
+  }
+
+  /**
+   * Returns the value of the bit at index.
+   * 
+   * @param index
+   * @return
+   */
+  public boolean get(int index) {
+    checkIndex(index);
+    return (word(index >>> ADDRESS_BITS_PER_WORD) & (1L << index)) != 0;
   }
 
-  public CoverageSet() {
-    super();
+  /**
+   * Sets the bit at index to true.
+   * 
+   * @param index
+   */
+  public void set(int index) {
+    checkIndex(index);
+    final int wordIndex = index >>> ADDRESS_BITS_PER_WORD;
+    final long word = word(wordIndex);
+    final long mask = 1L << index;
+    if ((word & mask) == 0) {
+      setWord(wordIndex, word | mask);
+      ++cardinality;
+      hashCode = 0;
+    }
+  }
+
+  /**
+   * Sets the bits from fromIndex (inclusive) to toIndex (exclusive) to true.
+   * 
+   * @param fromIndex
+   * @param toIndex
+   */
+  public void set(int fromIndex, int toIndex) {
+    checkIndex(fromIndex);
+    if (toIndex < fromIndex) throw new IndexOutOfBoundsException(
+        String.format("fromIndex %d > toIndex %d", fromIndex, toIndex));
+    if (fromIndex == toIndex) return;
+    final int startWordIndex = fromIndex >>> ADDRESS_BITS_PER_WORD;
+    final int endWordIndex = (toIndex - 1) >>> ADDRESS_BITS_PER_WORD;
+    final long firstWordMask = -1L << fromIndex;
+    final long lastWordMask = -1L >>> -toIndex;
+    if (startWordIndex == endWordIndex) {
+      setWord(startWordIndex, word(startWordIndex) | (firstWordMask & lastWordMask));
+    } else {
+      setWord(startWordIndex, word(startWordIndex) | firstWordMask);
+      for (int i = startWordIndex + 1; i < endWordIndex; ++i) {
+        setWord(i, -1L);
+      }
+      setWord(endWordIndex, word(endWordIndex) | lastWordMask);
+    }
+    recount();
+  }
+
+  /**
+   * Sets the bit at index to false.
+   * 
+   * @param index
+   */
+  public void clear(int index) {
+    checkIndex(index);
+    final int wordIndex = index >>> ADDRESS_BITS_PER_WORD;
+    final long word = word(wordIndex);
+    final long mask = 1L << index;
+    if ((word & mask) != 0) {
+      setWord(wordIndex, word & ~mask);
+      --cardinality;
+      hashCode = 0;
+    }
+  }
+
+  /**
+   * Sets all bits to false.
+   */
+  public void clear() {
+    word0 = 0L;
+    word1 = 0L;
+    Arrays.fill(overflow, 0L);
+    cardinality = 0;
+    hashCode = 0;
+  }
+
+  /**
+   * Returns the index of the first bit that is set to true on or after
+   * fromIndex, or -1 if there is no such bit.
+   * 
+   * @param fromIndex
+   * @return
+   */
+  public int nextSetBit(int fromIndex) {
+    checkIndex(fromIndex);
+    final int wordsInUse = wordsInUse();
+    int wordIndex = fromIndex >>> ADDRESS_BITS_PER_WORD;
+    if (wordIndex >= wordsInUse) return -1;
+    long word = word(wordIndex) & (-1L << fromIndex);
+    while (true) {
+      if (word != 0) {
+        return (wordIndex * BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+      }
+      if (++wordIndex == wordsInUse) return -1;
+      word = word(wordIndex);
+    }
+  }
+
+  /**
+   * Returns the index of the first bit that is set to false on or after
+   * fromIndex.
+   * 
+   * @param fromIndex
+   * @return
+   */
+  public int nextClearBit(int fromIndex) {
+    checkIndex(fromIndex);
+    final int wordsInUse = wordsInUse();
+    int wordIndex = fromIndex >>> ADDRESS_BITS_PER_WORD;
+    if (wordIndex >= wordsInUse) return fromIndex;
+    long word = ~word(wordIndex) & (-1L << fromIndex);
+    while (true) {
+      if (word != 0) {
+        return (wordIndex * BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+      }
+      if (++wordIndex == wordsInUse) return wordIndex * BITS_PER_WORD;
+      word = ~word(wordIndex);
+    }
+  }
+
+  /**
+   * The index of the highest set bit plus one.
+   * 
+   * @return
+   */
+  public int length() {
+    for (int i = wordsInUse() - 1; i >= 0; --i) {
+      final long word = word(i);
+      if (word != 0) {
+        return BITS_PER_WORD * (i + 1) - Long.numberOfLeadingZeros(word);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * The number of bits of space in use.
+   * 
+   * @return
+   */
+  public int size() {
+    return wordsInUse() * BITS_PER_WORD;
+  }
+
+  /**
+   * The number of bits set to true.
+   * 
+   * @return
+   */
+  public int cardinality() {
+    return cardinality;
+  }
+
+  /**
+   * True if no bits are set.
+   * 
+   * @return
+   */
+  public boolean isEmpty() {
+    return cardinality == 0;
+  }
+
+  /**
+   * True if this set and other have a bit in common.
+   * 
+   * @param other
+   * @return
+   */
+  public boolean intersects(CoverageSet other) {
+    if ((word0 & other.word0) != 0 || (word1 & other.word1) != 0) return true;
+    final int n = Math.min(overflow.length, other.overflow.length);
+    for (int i = 0; i < n; ++i) {
+      if ((overflow[i] & other.overflow[i]) != 0) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Logical OR of this set and other.
+   * 
+   * @param other
+   */
+  public void or(CoverageSet other) {
+    word0 |= other.word0;
+    word1 |= other.word1;
+    for (int i = 0; i < other.overflow.length; ++i) {
+      if (other.overflow[i] != 0L) {
+        setWord(i + INLINE_WORDS, word(i + INLINE_WORDS) | other.overflow[i]);
+      }
+    }
+    recount();
+  }
+
+  /**
+   * Logical AND of this set and other.
+   * 
+   * @param other
+   */
+  public void and(CoverageSet other) {
+    word0 &= other.word0;
+    word1 &= other.word1;
+    for (int i = 0; i < overflow.length; ++i) {
+      overflow[i] &= other.word(i + INLINE_WORDS);
+    }
+    recount();
+  }
+
+  /**
+   * Clears all bits in this set that are set in other.
+   * 
+   * @param other
+   */
+  public void andNot(CoverageSet other) {
+    word0 &= ~other.word0;
+    word1 &= ~other.word1;
+    for (int i = 0; i < overflow.length; ++i) {
+      overflow[i] &= ~other.word(i + INLINE_WORDS);
+    }
+    recount();
+  }
+
+  /**
+   * Logical XOR of this set and other.
+   * 
+   * @param other
+   */
+  public void xor(CoverageSet other) {
+    word0 ^= other.word0;
+    word1 ^= other.word1;
+    for (int i = 0; i < other.overflow.length; ++i) {
+      if (other.overflow[i] != 0L) {
+        setWord(i + INLINE_WORDS, word(i + INLINE_WORDS) ^ other.overflow[i]);
+      }
+    }
+    recount();
+  }
+
+  /**
+   * Returns a new set that is the union of this set and other. Neither 
+   * set is modified.
+   * 
+   * @param other
+   * @return
+   */
+  public CoverageSet union(CoverageSet other) {
+    CoverageSet c = new CoverageSet(this);
+    c.or(other);
+    return c;
   }
 
   @Override
   public CoverageSet clone() {
-    CoverageSet c = new CoverageSet(this.size());
-    c.or(this);
-    return c;
+    return new CoverageSet(this);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    } else if ( ! (o instanceof CoverageSet)) {
+      return false;
+    }
+    CoverageSet other = (CoverageSet) o;
+    if (cardinality != other.cardinality || word0 != other.word0 || word1 != other.word1) {
+      return false;
+    }
+    final int n = Math.max(overflow.length, other.overflow.length);
+    for (int i = INLINE_WORDS; i < n + INLINE_WORDS; ++i) {
+      if (word(i) != other.word(i)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Same hash function as util.BitSet.
+   */
+  @Override
+  public int hashCode() {
+    if (hashCode == 0) {
+      long h = 1234;
+      for (int i = wordsInUse(); --i >= 0; ) {
+        h ^= word(i) * (i + 1);
+      }
+      hashCode = (int) ((h >> 32) ^ h);
+    }
+    return hashCode;
   }
 
   public boolean isContiguous() {
@@ -19,6 +19,12 @@ public class FeatureValue<T> {
   // This feature is a baseline dense feature.
   public final boolean isDenseFeature;
 
+  // Id of the name in the GlobalFeatureIndex. Resolved lazily if the
+  // featurizer did not supply it. A negative value -(n+1) records that the
+  // name was absent when the index held n names. The index only grows, so the
+  // lookup is repeated only after names have been added.
+  private int id = -1;
+
   /**
    * Constructor.
    * 
@@ -43,6 +49,41 @@ public class FeatureValue<T> {
     this.isDenseFeature = isDense;
   }
 
+  /**
+   * Constructor.
+   * 
+   * @param name
+   * @param value
+   * @param isDense
+   * @param id The id of name in the <code>GlobalFeatureIndex</code>.
+   */
+  public FeatureValue(T name, double value, boolean isDense, int id) {
+    this(name, value, isDense);
+    if (id >= 0) this.id = id;
+  }
+
+  /**
+   * The id of the feature name in the <code>GlobalFeatureIndex</code>, or
+   * <code>GlobalFeatureIndex.UNKNOWN_ID</code> if the name is not in the index.
+   * The name is not added to the index, so sparse feature names do not grow it.
+   * 
+   * @return
+   */
+  public int getId() {
+    // Racy but idempotent. Read the size before the lookup so that a name
+    // added concurrently is found on the next call.
+    int id = this.id;
+    if (id < 0) {
+      final int size = GlobalFeatureIndex.size();
+      if (id != -(size + 1)) {
+        id = GlobalFeatureIndex.indexOf(name.toString());
+        if (id < 0) id = -(size + 1);
+        this.id = id;
+      }
+    }
+    return id < 0 ? GlobalFeatureIndex.UNKNOWN_ID : id;
+  }
+
   @Override
   public String toString() {
     return String.format("%s:%f", name, value);
@@ -127,6 +127,26 @@ public class Featurizable<TK, FV> {
    */
   public Featurizable(Derivation<TK, FV> derivation, int sourceInputId,
       int nbStatefulFeaturizers) {
+    this(derivation, sourceInputId, (nbStatefulFeaturizers > 0) ? 
+        new FeaturizerState[nbStatefulFeaturizers] : null);
+  }
+
+  /**
+   * Constructor for a derivation that is equivalent to the derivation
+   * associated with <code>equivalent</code>, e.g., because it was created by
+   * replacing the antecedent with a recombined hypothesis. The featurizer states
+   * of <code>equivalent</code> are copied.
+   * 
+   * @param derivation
+   * @param equivalent
+   */
+  public Featurizable(Derivation<TK, FV> derivation, Featurizable<TK, FV> equivalent) {
+    this(derivation, equivalent.sourceInputId, equivalent.states == null ? null :
+      equivalent.states.clone());
+  }
+
+  private Featurizable(Derivation<TK, FV> derivation, int sourceInputId,
+      FeaturizerState[] states) {
     this.sourceInputId = sourceInputId;
     done = derivation.isDone();
     this.rule = derivation.rule;
@@ -144,8 +164,7 @@ public class Featurizable<TK, FV> {
     sourceInputProperties = derivation.sourceInputProperties;
     numUntranslatedSourceTokens = derivation.untranslatedTokens;
     prior = derivation.preceedingDerivation.featurizable;
-    states = (nbStatefulFeaturizers > 0) ? new FeaturizerState[nbStatefulFeaturizers]
-        : null;
+    this.states = states;
     this.derivation = derivation;
   }
 
@@ -0,0 +1,66 @@
+package edu.stanford.nlp.mt.util;
+
+import edu.stanford.nlp.util.Index;
+import edu.stanford.nlp.util.concurrent.ConcurrentHashIndex;
+
+/**
+ * System-wide String->Int mapping for feature names. Featurizers that know
+ * their feature names ahead of time resolve the ids once, and scorers look up
+ * weights by id instead of hashing the feature names. The names are only needed
+ * for weight I/O and n-best list output.
+ *
+ * Names enter the index only through {@link #add(String)}, which is called for
+ * the fixed feature names of featurizers and by the scorers for every name in
+ * the weight vectors that they are given. A feature that is not in the index
+ * therefore has zero weight. Sparse feature names are looked up but never
+ * added, so the index is bounded by the size of the model. The index is never
+ * cleared because ids are cached in featurizers and scorers.
+ *
+ */
+public final class GlobalFeatureIndex {
+
+  private static final int INITIAL_CAPACITY = 10000;
+  private static final Index<String> index = new ConcurrentHashIndex<String>(INITIAL_CAPACITY);
+  public static final int UNKNOWN_ID = ConcurrentHashIndex.UNKNOWN_ID;
+
+  private GlobalFeatureIndex() {}
+
+  /**
+   * Add a feature name to the index.
+   *
+   * @param featureName
+   * @return the id of the feature.
+   */
+  public static int add(String featureName) {
+    return index.addToIndex(featureName);
+  }
+
+  /**
+   * Get the id of a feature name.
+   *
+   * @param featureName
+   * @return the id or <code>UNKNOWN_ID</code> if the name is not in the index.
+   */
+  public static int indexOf(String featureName) {
+    return index.indexOf(featureName);
+  }
+
+  /**
+   * Get the name of a feature id.
+   *
+   * @param id
+   * @return
+   */
+  public static String get(int id) {
+    return index.get(id);
+  }
+
+  /**
+   * Number of features in the index.
+   *
+   * @return
+   */
+  public static int size() {
+    return index.size();
+  }
+}
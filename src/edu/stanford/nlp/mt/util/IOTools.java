@@ -189,17 +189,43 @@ public final class IOTools {
   }
 
   /**
-   * Read weights from a file. Supports both binary and text formats.
+   * Read weights from a file. Supports the binary format of
+   * <code>BinaryWeights</code>, the legacy format (Java serialization of a
+   * <code>Counter</code>), and the text format.
    *
    * @param filename
    * @param featureIndex
    * @return a counter of weights
-   * @throws IOException
-   * @throws ClassNotFoundException
    */
   public static Counter<String> readWeights(String filename,
       Index<String> featureIndex) {
     Counter<String> wts;
+    if (BinaryWeights.isBinaryWeightsFile(filename)) {
+      try {
+        wts = BinaryWeights.load(filename).toCounter();
+      } catch (IOException e) {
+        throw new RuntimeException("Could not load weights: " + filename, e);
+      }
+    } else {
+      wts = readLegacyWeights(filename);
+    }
+
+    if (featureIndex != null) {
+      for (String key : wts.keySet()) {
+        featureIndex.addToIndex(key);
+      }
+    }
+    return wts;
+  }
+
+  /**
+   * Read weights in the legacy binary format or the text format.
+   *
+   * @param filename
+   * @return
+   */
+  private static Counter<String> readLegacyWeights(String filename) {
+    Counter<String> wts;
     try {
       ObjectInputStream ois = new ObjectInputStream(new FileInputStream(
           filename));
@@ -210,22 +236,17 @@ public final class IOTools {
     } catch (ClassNotFoundException e) {
        wts = Counters.loadCounter(filename, String.class);
     }
-
-    if (featureIndex != null) {
-      for (String key : wts.keySet()) {
-        featureIndex.addToIndex(key);
-      }
-    }
     return wts;
   }
 
-
   public static Counter<String> readWeights(String filename) {
     return readWeights(filename, null);
   }
 
   /**
-   * Write weights to a file. Supports both binary and text formats.
+   * Write weights to a file. Files with the <code>WEIGHTS_FILE_EXTENSION</code>
+   * are written in the format of <code>BinaryWeights</code>. Otherwise, the
+   * weights are written in the text format.
    *
    * @param filename
    * @param wts
@@ -233,10 +254,7 @@ public final class IOTools {
   public static void writeWeights(String filename, Counter<String> wts) {
     try {
       if (filename.endsWith(WEIGHTS_FILE_EXTENSION)) {
-        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(
-            filename));
-        oos.writeObject(wts);
-        oos.close();
+        BinaryWeights.save(filename, wts);
       } else {
         Counters.saveCounter(wts, filename);
       }
@@ -247,6 +265,24 @@ public final class IOTools {
     }
   }
 
+  /**
+   * Write weights to a file in the legacy binary format (Java serialization
+   * of a <code>Counter</code>).
+   *
+   * @param filename
+   * @param wts
+   */
+  public static void writeLegacyWeights(String filename, Counter<String> wts) {
+    try {
+      ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(
+          filename));
+      oos.writeObject(wts);
+      oos.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
   /**
    * Write an n-best list to file.
    *
@@ -259,8 +295,25 @@ public final class IOTools {
       String outputType,
       Pattern featurePattern,
       PrintStream nbestListWriter) {
-    assert translations != null;
     assert nbestListWriter != null;
+    nbestListWriter.append(nbestToString(translations, sourceInputId, outputType, featurePattern));
+  }
+
+  /**
+   * Format an n-best list for output. The result can be written to the n-best list
+   * file later, e.g., by a different thread.
+   *
+   * @param translations
+   * @param sourceInputId
+   * @param outputType
+   * @param featurePattern
+   * @return
+   */
+  public static String nbestToString(List<RichTranslation<IString, String>> translations,
+      int sourceInputId,
+      String outputType,
+      Pattern featurePattern) {
+    assert translations != null;
 
     StringBuilder sb = new StringBuilder(translations.size() * 500);
     String nl = System.getProperty("line.separator");
@@ -279,7 +332,7 @@ public final class IOTools {
       }
       sb.append(nl);
     }
-    nbestListWriter.append(sb.toString());
+    return sb.toString();
   }
 
   
@@ -306,6 +359,16 @@ public final class IOTools {
    * Write an empty entry to a n-best list file.
    */
   public static void writeEmptyNBest(int sourceInputId, PrintStream nbestListWriter) {
+    nbestListWriter.append(emptyNBestToString(sourceInputId));
+  }
+
+  /**
+   * Format an empty n-best list for output.
+   *
+   * @param sourceInputId
+   * @return
+   */
+  public static String emptyNBestToString(int sourceInputId) {
     StringBuilder sb = new StringBuilder(50);
     String nl = System.getProperty("line.separator");
     sb.append(sourceInputId).append(" ").append(CompiledPhraseTable.FIELD_DELIM).append(" ");
@@ -314,7 +377,7 @@ public final class IOTools {
     sb.append(" 0.0000E0 ").append(CompiledPhraseTable.FIELD_DELIM).append(" ");
     sb.append(" ");
     sb.append(nl);
-    nbestListWriter.append(sb.toString());
+    return sb.toString();
   }
 
   /**
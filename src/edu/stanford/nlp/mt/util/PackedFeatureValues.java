@@ -0,0 +1,83 @@
+package edu.stanford.nlp.mt.util;
+
+import java.util.AbstractList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An immutable, compact list of feature values. Stores the
+ * <code>GlobalFeatureIndex</code> ids and the values in primitive arrays, and
+ * materializes <code>FeatureValue</code> objects only when the list is read.
+ *
+ * String feature names are recovered from the <code>GlobalFeatureIndex</code>.
+ * Names that are not in the index, such as sparse feature names, and names that
+ * are not Strings are kept as they are.
+ *
+ * @param <FV>
+ */
+public class PackedFeatureValues<FV> extends AbstractList<FeatureValue<FV>>
+  implements RandomAccess {
+
+  private final int[] ids;
+  private final double[] values;
+  // Names of the features that are not recovered from the index. Null if there are none.
+  private final FV[] names;
+  private final BitSet isDense;
+
+  /**
+   * Constructor.
+   *
+   * @param features The features to copy.
+   */
+  @SuppressWarnings("unchecked")
+  public PackedFeatureValues(List<FeatureValue<FV>> features) {
+    final int size = features.size();
+    ids = new int[size];
+    values = new double[size];
+    isDense = new BitSet(size);
+    FV[] unindexedNames = null;
+    int i = 0;
+    for (FeatureValue<FV> feature : features) {
+      ids[i] = feature.name instanceof String ? feature.getId() : GlobalFeatureIndex.UNKNOWN_ID;
+      values[i] = feature.value;
+      if (feature.isDenseFeature) isDense.set(i);
+      if (ids[i] < 0) {
+        if (unindexedNames == null) unindexedNames = (FV[]) new Object[size];
+        unindexedNames[i] = feature.name;
+      }
+      ++i;
+    }
+    names = unindexedNames;
+  }
+
+  /**
+   * The <code>GlobalFeatureIndex</code> id of the ith feature, or
+   * <code>GlobalFeatureIndex.UNKNOWN_ID</code> if the name is not in the index.
+   *
+   * @param i
+   * @return
+   */
+  public int getId(int i) { return ids[i]; }
+
+  /**
+   * The value of the ith feature.
+   *
+   * @param i
+   * @return
+   */
+  public double getValue(int i) { return values[i]; }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public FeatureValue<FV> get(int index) {
+    // Only String names are recovered from the index, so the cast is safe
+    final FV name = ids[index] < 0 ? names[index] : (FV) GlobalFeatureIndex.get(ids[index]);
+    return new FeatureValue<FV>(name, values[index], isDense.get(index), ids[index]);
+  }
+
+  @Override
+  public int size() {
+    return ids.length;
+  }
+}
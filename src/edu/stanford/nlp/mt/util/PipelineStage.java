@@ -0,0 +1,307 @@
+package edu.stanford.nlp.mt.util;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * One stage of a pipeline of thread pools. Each stage reads jobs from a bounded
+ * input queue, processes them with a fixed number of worker threads, and puts the
+ * results into the input queue of the next stage. Since all queues are bounded,
+ * a slow stage blocks the stages in front of it, so the number of jobs in flight,
+ * and hence the memory footprint of the pipeline, is bounded.
+ *
+ * Jobs are numbered by the producer. Null inputs are passed through without
+ * processing, so that jobs that are skipped in one stage keep their position. The
+ * last stage restores the input order with <code>drainInOrder()</code>. The
+ * reorder buffer of <code>drainInOrder()</code> is bounded by the number of permits
+ * that the producer acquires before each <code>put()</code>.
+ *
+ * The first error raised by a worker or by the consumer stops the pipeline: the
+ * linked stages pass the remaining jobs through without processing them, <code>put()</code>
+ * refuses new jobs, and <code>drainInOrder()</code> throws the error.
+ *
+ * Usage:
+ * <pre>
+ *   PipelineStage&lt;A,B&gt; first = new PipelineStage&lt;&gt;(...);
+ *   PipelineStage&lt;B,C&gt; last = first.then(new PipelineStage&lt;&gt;(...));
+ *   Semaphore inFlight = new Semaphore(maxJobs);
+ *   first.start(); last.start();
+ *   // Producer thread: inFlight.acquire(); first.put(0, a0); ... first.close();
+ *   last.drainInOrder(c -&gt; ..., inFlight);
+ * </pre>
+ *
+ * @param <I>
+ * @param <O>
+ */
+public class PipelineStage<I,O> {
+
+  /**
+   * Processes one job. Called concurrently by the workers of a stage.
+   *
+   * @param <I>
+   * @param <O>
+   */
+  @FunctionalInterface
+  public static interface Worker<I,O> {
+    /**
+     * Process an input.
+     *
+     * @param jobId The number of the job assigned by the producer.
+     * @param input
+     * @param workerId Fixed id of the calling thread in the range [0,numWorkers).
+     * @return the output, or null to skip the job in the later stages.
+     */
+    public O process(long jobId, I input, int workerId);
+  }
+
+  /**
+   * A numbered job. The end of the input is marked with <code>END</code>.
+   */
+  private static class Job<T> implements Comparable<Job<T>> {
+    @SuppressWarnings("rawtypes")
+    private static final Job END = new Job<>(-1, null);
+    public final long id;
+    public final T item;
+    public Job(long id, T item) {
+      this.id = id;
+      this.item = item;
+    }
+    @Override
+    public int compareTo(Job<T> o) {
+      return Long.compare(id, o.id);
+    }
+  }
+
+  private final String name;
+  private final int numWorkers;
+  private final Worker<I,O> worker;
+  private final BlockingQueue<Job<I>> inputQueue;
+  private BlockingQueue<Job<O>> outputQueue;
+  private final AtomicInteger liveWorkers;
+  // Shared by the linked stages
+  private AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+  // Metrics
+  private final LongAdder numJobs = new LongAdder();
+  private final LongAdder busyTime = new LongAdder();
+  private final LongAdder queueDepthSum = new LongAdder();
+  private final LongAdder queueDepthSamples = new LongAdder();
+  private final AtomicInteger maxQueueDepth = new AtomicInteger();
+  private volatile long startTime;
+  private volatile long endTime;
+  private int maxReorderBufferSize = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param name Name of the stage for logging.
+   * @param numWorkers Number of worker threads.
+   * @param queueCapacity Capacity of the input queue.
+   * @param worker
+   */
+  public PipelineStage(String name, int numWorkers, int queueCapacity, Worker<I,O> worker) {
+    if (numWorkers < 1) throw new IllegalArgumentException("Number of workers must be positive: " + numWorkers);
+    if (queueCapacity < 1) throw new IllegalArgumentException("Queue capacity must be positive: " + queueCapacity);
+    this.name = name;
+    this.numWorkers = numWorkers;
+    this.worker = worker;
+    this.inputQueue = new ArrayBlockingQueue<>(queueCapacity);
+    this.liveWorkers = new AtomicInteger(numWorkers);
+  }
+
+  /**
+   * Send the output of this stage to the next stage. Link the stages from the
+   * first to the last, since the next stage takes over the failure state of this one.
+   *
+   * @param next
+   * @return the next stage.
+   */
+  public <R> PipelineStage<O,R> then(PipelineStage<O,R> next) {
+    if (startTime != 0) throw new IllegalStateException("Stage already started: " + name);
+    outputQueue = next.inputQueue;
+    next.failure = failure;
+    return next;
+  }
+
+  /**
+   * Start the worker threads. If this stage is not connected to another stage,
+   * then the output is read with <code>drainInOrder()</code>.
+   */
+  public void start() {
+    if (startTime != 0) throw new IllegalStateException("Stage already started: " + name);
+    if (outputQueue == null) outputQueue = new ArrayBlockingQueue<>(inputQueue.remainingCapacity());
+    startTime = System.nanoTime();
+    for (int i = 0; i < numWorkers; ++i) {
+      final int workerId = i;
+      Thread thread = new Thread(() -> run(workerId), String.format("%s-%d", name, i));
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Submit a job. Blocks if the input queue is full.
+   *
+   * @param jobId
+   * @param input
+   * @throws InterruptedException
+   * @throws IllegalStateException if the pipeline has stopped after an error.
+   */
+  public void put(long jobId, I input) throws InterruptedException {
+    if (jobId < 0) throw new IllegalArgumentException("Job ids must be non-negative: " + jobId);
+    if (failure.get() != null) throw new IllegalStateException("Pipeline stopped: " + name, failure.get());
+    inputQueue.put(new Job<>(jobId, input));
+  }
+
+  /**
+   * Signal the end of the input.
+   *
+   * @throws InterruptedException
+   */
+  @SuppressWarnings("unchecked")
+  public void close() throws InterruptedException {
+    inputQueue.put(Job.END);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void run(int workerId) {
+    try {
+      for (;;) {
+        final int depth = inputQueue.size();
+        queueDepthSum.add(depth);
+        queueDepthSamples.increment();
+        maxQueueDepth.accumulateAndGet(depth, Math::max);
+
+        final Job<I> job = inputQueue.take();
+        if (job == Job.END) {
+          // Wake up the other workers
+          inputQueue.put(job);
+          break;
+        }
+        // After a failure, pass the job through so that the queues drain
+        O output = null;
+        if (job.item != null && failure.get() == null) {
+          final long jobStart = System.nanoTime();
+          try {
+            output = worker.process(job.id, job.item, workerId);
+          } catch (RuntimeException | Error e) {
+            if (failure.compareAndSet(null, e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e))) {
+              System.err.printf("%s: job %d failed: %s%n", name, job.id, e);
+            }
+          }
+          busyTime.add(System.nanoTime() - jobStart);
+          numJobs.increment();
+        }
+        outputQueue.put(new Job<>(job.id, output));
+      }
+      if (liveWorkers.decrementAndGet() == 0) {
+        endTime = System.nanoTime();
+        outputQueue.put(Job.END);
+      }
+
+    } catch (InterruptedException e) {
+      failure.compareAndSet(null, new RuntimeException(name + " interrupted", e));
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Read the output of this stage in the order of the job ids, which must be
+   * consecutive and start from 0. Null outputs are passed to the consumer.
+   * Blocks until the end of the input.
+   *
+   * @param consumer
+   * @throws InterruptedException
+   */
+  public void drainInOrder(Consumer<O> consumer) throws InterruptedException {
+    drainInOrder(consumer, null);
+  }
+
+  /**
+   * Read the output of this stage in the order of the job ids, and release one
+   * permit of <code>inFlight</code> for each job. If the producer acquires a permit
+   * before each <code>put()</code>, then the reorder buffer holds fewer jobs than
+   * there are permits, even if one job stalls.
+   *
+   * @param consumer
+   * @param inFlight Permits of the producer, or null.
+   * @throws InterruptedException
+   */
+  @SuppressWarnings("unchecked")
+  public void drainInOrder(Consumer<O> consumer, Semaphore inFlight) throws InterruptedException {
+    if (startTime == 0) throw new IllegalStateException("Stage not started: " + name);
+    final PriorityQueue<Job<O>> pending = new PriorityQueue<>();
+    long nextId = 0;
+    for (Job<O> job; (job = outputQueue.take()) != Job.END;) {
+      if (failure.get() != null) {
+        // Discard the remaining output
+        if (inFlight != null) inFlight.release(pending.size() + 1);
+        pending.clear();
+        continue;
+      }
+      pending.add(job);
+      maxReorderBufferSize = Math.max(maxReorderBufferSize, pending.size());
+      while ( ! pending.isEmpty() && pending.peek().id == nextId) {
+        accept(consumer, pending.poll(), inFlight);
+        ++nextId;
+      }
+    }
+    checkFailure();
+    // Gaps in the job ids
+    while ( ! pending.isEmpty()) {
+      accept(consumer, pending.poll(), inFlight);
+    }
+    checkFailure();
+  }
+
+  private void accept(Consumer<O> consumer, Job<O> job, Semaphore inFlight) {
+    if (failure.get() == null) {
+      try {
+        consumer.accept(job.item);
+      } catch (RuntimeException e) {
+        failure.compareAndSet(null, e);
+      }
+    }
+    if (inFlight != null) inFlight.release();
+  }
+
+  /**
+   * Throw the first error raised by a worker or by the consumer, if any.
+   */
+  public void checkFailure() {
+    final RuntimeException e = failure.get();
+    if (e != null) throw e;
+  }
+
+  /**
+   * Largest number of jobs held by <code>drainInOrder()</code> for reordering.
+   */
+  int maxReorderBufferSize() {
+    return maxReorderBufferSize;
+  }
+
+  /**
+   * Throughput, utilization, and queue depth of this stage.
+   */
+  @Override
+  public String toString() {
+    final long end = endTime == 0 ? System.nanoTime() : endTime;
+    final double elapsed = Math.max(1, end - startTime) / 1e9;
+    final long jobs = numJobs.sum();
+    final long samples = queueDepthSamples.sum();
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%s: %d jobs  %.2f jobs/sec  workers: %d  utilization: %.1f%%  queue depth: %.1f avg %d max",
+        name, jobs, jobs / elapsed, numWorkers, 100.0 * (busyTime.sum() / 1e9) / (numWorkers * elapsed),
+        samples == 0 ? 0.0 : queueDepthSum.sum() / (double) samples, maxQueueDepth.get()));
+    if (maxReorderBufferSize > 0) {
+      sb.append(String.format("  reorder buffer: %d max", maxReorderBufferSize));
+    }
+    return sb.toString();
+  }
+}
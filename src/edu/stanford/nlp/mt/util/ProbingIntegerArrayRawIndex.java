@@ -41,6 +41,21 @@ public class ProbingIntegerArrayRawIndex implements IntegerArrayRawIndex {
     }
   }
 
+  /**
+   * Lookup the range <code>key[start, start+length)</code> without copying it.
+   */
+  public int find(int[] key, int start, int length) {
+    long hashed = hash(key, start, length);
+    for (int i = ideal(hashed); ; ++i) {
+      if (i == values.length)
+        i = 0;
+      if (hashedKeys[i] == hashed)
+        return values[i];
+      if (hashedKeys[i] == 0)
+        return -1;
+    }
+  }
+
   public int findOrInsert(int[] key) {
     long hashed = hash(key);
     int i;
@@ -74,6 +89,9 @@ public class ProbingIntegerArrayRawIndex implements IntegerArrayRawIndex {
   private static long hash(int[] key) {
     return MurmurHash.hash64(key, key.length, 1);
   }
+  private static long hash(int[] key, int start, int length) {
+    return MurmurHash.hash64(key, start, length, 1);
+  }
   private int ideal(long hashed) {
     return ((int)hashed) & mask;
   }
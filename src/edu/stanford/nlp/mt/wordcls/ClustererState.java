@@ -1,45 +1,35 @@
 package edu.stanford.nlp.mt.wordcls;
 
-import java.io.Serializable;
-import java.util.List;
-import java.util.Map;
-
-import edu.stanford.nlp.mt.util.IString;
-import edu.stanford.nlp.stats.Counter;
-import edu.stanford.nlp.stats.TwoDimensionalCounter;
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
 
 /**
- * State required for distributed one-sided class clustering.
- * 
+ * State required for distributed one-sided class clustering. All fields
+ * except the vocabulary subset are shared by the workers and are read-only
+ * during an iteration.
+ *
  * @author Spence Green
  *
  */
-public class ClustererState implements Serializable {
-  
-  private static final long serialVersionUID = 6116063336985767319L;
+public class ClustererState {
 
   // Subset to cluster
-  public final List<IString> vocabularySubset;
-  
+  public final int[] vocabularySubset;
+
   // Gross statistics from the data
-  public final Counter<IString> wordCount;
-  public final TwoDimensionalCounter<IString, NgramHistory> historyCount;
-  
+  public final WordHistoryMatrix historyCount;
+
   // Current state of the clustering
-  public final Map<IString, Integer> wordToClass;
-  public final Counter<Integer> classCount;
-  public final TwoDimensionalCounter<Integer, NgramHistory> classHistoryCount;
-  
+  public final int[] wordToClass;
+  public final long[] classCount;
+  public final Int2LongOpenHashMap[] classHistoryCount;
+
   public final int numClasses;
   public final double currentObjectiveValue;
-  
-  public ClustererState(List<IString> vocabularySubset, Counter<IString> wordCount,
-      TwoDimensionalCounter<IString, NgramHistory> historyCount, Map<IString, Integer> inWordToClass,
-      Counter<Integer> inClassCount,
-      TwoDimensionalCounter<Integer, NgramHistory> inClassHistoryCount, int numClasses, 
-      double currentObjectiveValue) {
+
+  public ClustererState(int[] vocabularySubset, WordHistoryMatrix historyCount,
+      int[] inWordToClass, long[] inClassCount, Int2LongOpenHashMap[] inClassHistoryCount,
+      int numClasses, double currentObjectiveValue) {
     this.vocabularySubset = vocabularySubset;
-    this.wordCount = wordCount;
     this.historyCount = historyCount;
     this.wordToClass = inWordToClass;
     this.classCount = inClassCount;
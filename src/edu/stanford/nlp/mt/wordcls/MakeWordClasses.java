@@ -1,31 +1,26 @@
 package edu.stanford.nlp.mt.wordcls;
 
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+
+import java.io.File;
 import java.io.IOException;
-import java.io.LineNumberReader;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
+import java.util.Random;
+import java.util.stream.IntStream;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import edu.stanford.nlp.mt.util.IOTools;
 import edu.stanford.nlp.mt.util.IString;
-import edu.stanford.nlp.mt.util.IStrings;
-import edu.stanford.nlp.mt.util.Sequence;
 import edu.stanford.nlp.mt.util.TokenUtils;
-import edu.stanford.nlp.stats.ClassicCounter;
-import edu.stanford.nlp.stats.Counter;
-import edu.stanford.nlp.stats.Counters;
-import edu.stanford.nlp.stats.TwoDimensionalCounter;
 import edu.stanford.nlp.util.Pair;
 import edu.stanford.nlp.util.PropertiesUtils;
 import edu.stanford.nlp.util.StringUtils;
@@ -55,16 +50,18 @@ public class MakeWordClasses {
 
   private static enum OutputFormat {SRILM, TSV};
 
-  private static final int INITIAL_CAPACITY = 100000;
-  private final Map<IString,Integer> wordToClass;
-  private final Counter<IString> wordCount;
-  private final TwoDimensionalCounter<IString, NgramHistory> historyCount;
-  private TwoDimensionalCounter<Integer,NgramHistory> classHistoryCount;
-  private final ClassicCounter<Integer> classCount;
+  private int[] wordToClass;
+  private long[] classCount;
+  private Int2LongOpenHashMap[] classHistoryCount;
+  private WordHistoryMatrix historyCount;
+  private IString[] vocabulary;
   private final OutputFormat outputFormat;
   private final int vocabThreshold;
-  private List<IString> effectiveVocabulary;
+  private int[] effectiveVocabulary;
   private final boolean normalizeDigits;
+  private final File statsFile;
+  private final String tmpDir;
+  private final int bufferSize;
 
   private double currentObjectiveValue = 0.0;
   
@@ -92,6 +89,11 @@ public class MakeWordClasses {
 
     this.normalizeDigits = PropertiesUtils.getBool(properties, "normdigits", true);
 
+    this.statsFile = properties.containsKey("stats") ? new File(properties.getProperty("stats")) : null;
+    this.tmpDir = properties.getProperty("tmpdir", null);
+    this.bufferSize = PropertiesUtils.getInt(properties, "buffersize", WordHistoryCounter.DEFAULT_BUFFER_SIZE);
+    assert this.bufferSize > 0;
+
     this.outputFormat = OutputFormat.valueOf(
         properties.getProperty("format", OutputFormat.TSV.toString()).toUpperCase());
 
@@ -104,103 +106,117 @@ public class MakeWordClasses {
     if (normalizeDigits) {
       logger.info("Mapping all ASCII digit characters to 0");
     }
-
-    // Internal data structures
-    wordToClass = new HashMap<>(INITIAL_CAPACITY);
-    wordCount = new ClassicCounter<IString>(INITIAL_CAPACITY);
-    classCount = new ClassicCounter<Integer>(numClasses);
-    historyCount = new TwoDimensionalCounter<IString,NgramHistory>();
-    classHistoryCount = new TwoDimensionalCounter<Integer,NgramHistory>();
+    if (statsFile != null) {
+      logger.info("Statistics file: {}", statsFile.getPath());
+    }
   }
 
   /**
-   * Read the input and create the initial clustering.
+   * Load the word-history statistics, counting the input files first if
+   * necessary, and create the initial clustering.
    * 
    * @param filenames
    * @throws IOException
    */
   private void initialize(String[] filenames) throws IOException {
-    List<IString> defaultHistory = new LinkedList<>();
-    for (int i = 0; i < order-1; ++i) {
-      defaultHistory.add(TokenUtils.START_TOKEN);
-    }
-    
-    // Read the vocabulary and histories
     final long startTime = System.nanoTime();
-    for (String filename : filenames) {
-      logger.info("Reading: " + filename);
-      LineNumberReader reader = IOTools.getReaderFromFile(filename, inputEncoding);
-      for (String line; (line = reader.readLine()) != null;) {
-        line = line.trim();
-        if (line.length() == 0) continue;
-        Sequence<IString> tokens = IStrings.tokenize(line);
-        List<IString> history = new LinkedList<>(defaultHistory);
-        for (IString token : tokens) {
-          if (normalizeDigits && TokenUtils.hasDigit(token.toString())) {
-            token = new IString(TokenUtils.normalizeDigits(token.toString()));
-          }
-          wordCount.incrementCount(token);
-          historyCount.incrementCount(token, new NgramHistory(history));
-
-          // Update the ngram history
-          history.add(token);
-          history.remove(0);
-        }
+    final WordHistoryStatistics stats;
+    if (statsFile != null && statsFile.exists()) {
+      logger.info("Loading statistics: {}", statsFile.getPath());
+      stats = WordHistoryStatistics.load(statsFile.getPath());
+      if (stats.order != order || stats.normalizeDigits != normalizeDigits) {
+        throw new RuntimeException(String.format(
+            "Statistics file has order %d and normdigits %b, but this run has order %d and normdigits %b",
+            stats.order, stats.normalizeDigits, order, normalizeDigits));
+      }
+    } else {
+      File outFile = statsFile == null ? File.createTempFile("wordcls", ".stats",
+          tmpDir == null ? null : new File(tmpDir)) : statsFile;
+      WordHistoryCounter counter = new WordHistoryCounter(order, normalizeDigits, numThreads,
+          bufferSize, tmpDir, inputEncoding);
+      try {
+        counter.count(filenames, outFile);
+        stats = WordHistoryStatistics.load(outFile.getPath());
+      } finally {
+        if (statsFile == null) outFile.delete();
       }
-      reader.close();
     }
-    NgramHistory.lockIndex();
+    final WordHistoryMatrix rawCounts = stats.counts;
     final double elapsedTime = ((double) System.nanoTime() - startTime) / 1e9;
-    logger.info(String.format("Done reading input files (%.3fsec)", elapsedTime));
+    logger.info(String.format("Done loading statistics (%.3fsec)", elapsedTime));
     logger.info(String.format("Input gross statistics: %d words  %d tokens  %d histories", 
-        wordCount.keySet().size(), (int) wordCount.totalCount(), (int) historyCount.totalCount()));
+        rawCounts.numWords(), rawCounts.totalCount(), rawCounts.numHistories));
 
     // Collapse vocabulary by mapping rare words to <unk>
-    Set<IString> fullVocabulary = new HashSet<>(wordCount.keySet());
-    Set<IString> filteredWords = new HashSet<>(fullVocabulary.size());
-    for (IString word : fullVocabulary) {
-      int count = (int) wordCount.getCount(word);
-      if (vocabThreshold > 0 && count < vocabThreshold) {
-        filteredWords.add(word);
-        wordCount.incrementCount(TokenUtils.UNK_TOKEN, count);
-        wordCount.remove(word);
-        Counter<NgramHistory> histories = historyCount.getCounter(word);
-        Counter<NgramHistory> unkHistories = historyCount.getCounter(TokenUtils.UNK_TOKEN);
-        Counters.addInPlace(unkHistories, histories);
-        historyCount.remove(word);
+    final int[] rawIdToWord = new int[rawCounts.numWords()];
+    final List<IString> vocab = new ArrayList<>(rawCounts.numWords());
+    int numFiltered = 0;
+    int unkId = -1;
+    for (int rawId = 0; rawId < rawIdToWord.length; ++rawId) {
+      IString word = stats.vocabulary[rawId];
+      boolean isRare = vocabThreshold > 0 && rawCounts.wordCount(rawId) < vocabThreshold;
+      if (isRare) ++numFiltered;
+      if (isRare || word.equals(TokenUtils.UNK_TOKEN)) {
+        if (unkId < 0) {
+          unkId = vocab.size();
+          vocab.add(TokenUtils.UNK_TOKEN);
+        }
+        rawIdToWord[rawId] = unkId;
+      } else {
+        rawIdToWord[rawId] = vocab.size();
+        vocab.add(word);
       }
     }
-
-    // Setup the vocabulary that will be clustered (i.e., the
-    // effective vocabulary)
-    if (filteredWords.size() > 0) {
+    if (numFiltered > 0) {
       logger.info(String.format("Mapping %d / %d words to unk token %s", 
-          filteredWords.size(), fullVocabulary.size(), TokenUtils.UNK_TOKEN.toString()));
-      fullVocabulary.add(TokenUtils.UNK_TOKEN);
+          numFiltered, rawIdToWord.length, TokenUtils.UNK_TOKEN.toString()));
     }
-    fullVocabulary.removeAll(filteredWords);
-    effectiveVocabulary = new ArrayList<>(fullVocabulary);
+    vocabulary = vocab.toArray(new IString[vocab.size()]);
+    historyCount = rawCounts.remap(rawIdToWord, vocabulary.length);
+
+    // Setup the vocabulary that will be clustered (i.e., the
+    // effective vocabulary) in descending order of frequency
+    Integer[] sortedWords = new Integer[vocabulary.length];
+    for (int i = 0; i < sortedWords.length; ++i) sortedWords[i] = i;
+    Arrays.sort(sortedWords, (a, b) -> Long.compare(historyCount.wordCount(b), historyCount.wordCount(a)));
 
     // Initialize clustering
-    Collections.sort(effectiveVocabulary, Counters.toComparator(wordCount, false, true));
-    for (int i = 0; i < effectiveVocabulary.size(); ++i) {
-      IString word = effectiveVocabulary.get(i);
+    wordToClass = new int[vocabulary.length];
+    classCount = new long[numClasses];
+    classHistoryCount = new Int2LongOpenHashMap[numClasses];
+    for (int classId = 0; classId < numClasses; ++classId) {
+      classHistoryCount[classId] = new Int2LongOpenHashMap();
+    }
+    effectiveVocabulary = new int[vocabulary.length];
+    for (int i = 0; i < sortedWords.length; ++i) {
+      int word = sortedWords[i];
       int classId = i % numClasses;
-      classCount.incrementCount(classId, wordCount.getCount(word));
-      wordToClass.put(word, classId);
-      Counter<NgramHistory> historiesForWord = historyCount.getCounter(word);
-      Counter<NgramHistory> historiesForClass = classHistoryCount.getCounter(classId);
-      Counters.addInPlace(historiesForClass, historiesForWord);
+      effectiveVocabulary[i] = word;
+      wordToClass[word] = classId;
+      classCount[classId] += historyCount.wordCount(word);
+      Int2LongOpenHashMap historiesForClass = classHistoryCount[classId];
+      for (int j = historyCount.rowStart[word]; j < historyCount.rowStart[word + 1]; ++j) {
+        historiesForClass.addTo(historyCount.histories[j], historyCount.counts[j]);
+      }
     }
-    Collections.shuffle(effectiveVocabulary);
+    shuffle(effectiveVocabulary, new Random());
 
     // Debug output
-    logger.info("Effective vocabulary size: " + String.valueOf(effectiveVocabulary.size()));
+    logger.info("Effective vocabulary size: " + String.valueOf(effectiveVocabulary.length));
     currentObjectiveValue = objectiveFunctionValue();
     logger.info("Finished generating initial cluster assignment");
     logger.info(String.format("Initial objective function value: %.3f%n", currentObjectiveValue));
   }
 
+  private static void shuffle(int[] array, Random random) {
+    for (int i = array.length - 1; i > 0; --i) {
+      int j = random.nextInt(i + 1);
+      int tmp = array[i];
+      array[i] = array[j];
+      array[j] = tmp;
+    }
+  }
+
   /**
    * Create word clusters from the list of input files.
    * 
@@ -235,7 +251,7 @@ public class MakeWordClasses {
 
       if (e > 0 && partitionNumber == 0) {
         logger.info("Sorting vocabulary according to the current class assignments");
-        Collections.sort(effectiveVocabulary, new WordClassComparator(wordToClass));
+        sortByClass(effectiveVocabulary);
       }
 
       logger.info(String.format("Iteration %d: partition %d start", e, partitionNumber));
@@ -251,36 +267,35 @@ public class MakeWordClasses {
 
       // Wait for shutdown and process results
       threadpool.join();
-      int numUpdates = 0;
+      List<PartialStateUpdate> results = new ArrayList<>(numThreads);
       while(threadpool.peek()) {
-        PartialStateUpdate result = threadpool.poll();
-        numUpdates += updateCountsWith(result);
+        results.add(threadpool.poll());
       }
-
-      // Clean out zeros from counters after updating
-      classHistoryCount.clean();
-      Counters.retainNonZeros(classCount);
+      int numUpdates = updateCountsWith(results);
+      currentObjectiveValue = objectiveFunctionValue();
 
       double elapsedTime = ((double) System.nanoTime() - iterationStartTime) / 1e9;
       logger.info(String.format("Iteration %d: elapsed time %.3fsec", e, elapsedTime));
       logger.info(String.format("Iteration %d: #updates %d", e, numUpdates));
-      logger.info(String.format("Iteration %d: objective: %.4f", e, objectiveFunctionValue()));
+      logger.info(String.format("Iteration %d: objective: %.4f", e, currentObjectiveValue));
     }
 
     double elapsedTime = ((double) System.nanoTime() - runStartTime) / 1e9;
     logger.info(String.format("Total runtime: %.3fsec", elapsedTime));
   }
 
-  private static class WordClassComparator implements Comparator<IString> {
-    Map<IString, Integer> map;
-    public WordClassComparator(Map<IString, Integer> map) {
-      this.map = map;
-    }
-    public int compare(IString a, IString b) {
-      int classA = map.get(a);
-      int classB = map.get(b);
-      return (int) Math.signum(classA - classB);
-    }
+  /**
+   * Stable counting sort of words by class assignment.
+   * 
+   * @param words
+   */
+  private void sortByClass(int[] words) {
+    int[] classStart = new int[numClasses + 1];
+    for (int word : words) ++classStart[wordToClass[word] + 1];
+    for (int c = 0; c < numClasses; ++c) classStart[c + 1] += classStart[c];
+    int[] sorted = new int[words.length];
+    for (int word : words) sorted[classStart[wordToClass[word]]++] = word;
+    System.arraycopy(sorted, 0, words, 0, words.length);
   }
   
   /**
@@ -288,21 +303,23 @@ public class MakeWordClasses {
    * 
    * @return
    */
-  private double objectiveFunctionValue() {    
+  private double objectiveFunctionValue() {
+    final double[] classValues = new double[numClasses];
+    IntStream.range(0, numClasses).parallel().forEach(classId -> {
+      double objValue = 0.0;
+      for (LongIterator it = classHistoryCount[classId].values().iterator(); it.hasNext();) {
+        long count = it.nextLong();
+        assert count > 0;
+        objValue += OneSidedObjectiveFunction.xLogX(count);
+      }
+      classValues[classId] = objValue - OneSidedObjectiveFunction.xLogX(classCount[classId]);
+    });
     double objValue = 0.0;
     for (int classId = 0; classId < numClasses; ++classId) {
-      Counter<NgramHistory> historyCount = classHistoryCount.getCounter(classId);
-      for (NgramHistory history : historyCount.keySet()) {
-        double count = historyCount.getCount(history);
-        assert count > 0.0;
-        objValue += count * Math.log(count);
-      }
-      double count = classCount.getCount(classId);
-      if (count > 0.0) {
-        objValue -= count * Math.log(count);
-      } else {
+      if (classCount[classId] == 0) {
         logger.warn("Empty cluster: {}", classId);
       }
+      objValue += classValues[classId];
     }
     return objValue;
   }
@@ -316,9 +333,9 @@ public class MakeWordClasses {
    * @return
    */
   private Pair<ClustererState,Integer> createInput(int partitionNumber, int threadId, int inputStart) {
-    int partitionSize = effectiveVocabulary.size() / vparts;
+    int partitionSize = effectiveVocabulary.length / vparts;
     int partitionStart = partitionNumber*partitionSize;
-    int partitionEnd = partitionNumber == vparts-1 ? effectiveVocabulary.size() : (partitionNumber+1)*partitionSize;
+    int partitionEnd = partitionNumber == vparts-1 ? effectiveVocabulary.length : (partitionNumber+1)*partitionSize;
     partitionSize = partitionEnd-partitionStart;
 
     int targetInputSize = partitionSize / numThreads;
@@ -330,10 +347,8 @@ public class MakeWordClasses {
     // end up in the same worker.
     int i = endIndex-1;
     for (; i < partitionEnd-1; ++i) {
-      IString iWord = effectiveVocabulary.get(i);
-      IString nextWord = effectiveVocabulary.get(i+1);
-      int iClass= wordToClass.get(iWord);
-      int nextClass= wordToClass.get(nextWord);
+      int iClass = wordToClass[effectiveVocabulary[i]];
+      int nextClass = wordToClass[effectiveVocabulary[i+1]];
       if (iClass != nextClass) {
         break;
       }
@@ -341,36 +356,52 @@ public class MakeWordClasses {
     logger.info(String.format("endIndex: %d -> %d", endIndex, i+1));
     endIndex = i+1;
 
-    List<IString> inputVocab = effectiveVocabulary.subList(startIndex, endIndex);
+    int[] inputVocab = Arrays.copyOfRange(effectiveVocabulary, startIndex, endIndex);
     
     logger.info(String.format("Partition %d thread %d size %d: input %d-%d", partitionNumber,
-        threadId, inputVocab.size(), startIndex, endIndex-1));
+        threadId, inputVocab.length, startIndex, endIndex-1));
     
     // Create the state
-    ClustererState state =  new ClustererState(inputVocab, this.wordCount, 
-        this.historyCount, this.wordToClass, this.classCount, this.classHistoryCount,
+    ClustererState state =  new ClustererState(inputVocab, this.historyCount, 
+        this.wordToClass, this.classCount, this.classHistoryCount,
         numClasses, this.currentObjectiveValue);
     return new Pair<ClustererState,Integer>(state, endIndex);
   }
 
-  private int updateCountsWith(PartialStateUpdate result) {
+  /**
+   * Merge the deltas of the workers into the global state. Classes are
+   * updated in parallel.
+   * 
+   * @param results
+   * @return the number of words that changed class.
+   */
+  private int updateCountsWith(List<PartialStateUpdate> results) {
     // Update counts
-    Counters.addInPlace(classCount, result.deltaClassCount);
-    Set<Integer> classes = result.deltaClassHistoryCount.firstKeySet();
-    for (Integer classId : classes) {
-      Counter<NgramHistory> counter = this.classHistoryCount.getCounter(classId);
-      Counter<NgramHistory> delta = result.deltaClassHistoryCount.getCounter(classId);
-      Counters.addInPlace(counter, delta);
-    }
+    IntStream.range(0, numClasses).parallel().forEach(classId -> {
+      final Int2LongOpenHashMap counter = classHistoryCount[classId];
+      for (PartialStateUpdate result : results) {
+        classCount[classId] += result.deltaClassCount[classId];
+        Int2LongOpenHashMap delta = result.deltaClassHistoryCount[classId];
+        if (delta == null) continue;
+        for (IntIterator it = delta.keySet().iterator(); it.hasNext();) {
+          int history = it.nextInt();
+          long count = delta.get(history);
+          count += counter.addTo(history, count);
+          // Clean out zeros from counters after updating
+          if (count == 0) counter.remove(history);
+        }
+      }
+    });
 
     // Update assignments
     int numUpdates = 0;
-    for (Map.Entry<IString, Integer> assignment : result.wordToClass.entrySet()) {
-      int oldAssignment = wordToClass.get(assignment.getKey());
-      int newAssignment = assignment.getValue();
-      if (oldAssignment != newAssignment) {
-        ++numUpdates;
-        wordToClass.put(assignment.getKey(), assignment.getValue());
+    for (PartialStateUpdate result : results) {
+      for (int i = 0; i < result.vocabularySubset.length; ++i) {
+        int word = result.vocabularySubset[i];
+        if (wordToClass[word] != result.wordToClass[i]) {
+          ++numUpdates;
+          wordToClass[word] = result.wordToClass[i];
+        }
       }
     }
     return numUpdates;
@@ -384,14 +415,14 @@ public class MakeWordClasses {
   public void writeResults(PrintStream out) {
     logger.info(String.format("Writing final class assignments in %s format",
         outputFormat.toString()));
-    Collections.sort(effectiveVocabulary, new WordClassComparator(wordToClass));
-    for (IString word : effectiveVocabulary) {
-      int assignment = wordToClass.get(word);
+    sortByClass(effectiveVocabulary);
+    for (int word : effectiveVocabulary) {
+      int assignment = wordToClass[word];
       if (outputFormat == OutputFormat.TSV) {
-        out.printf("%s\t%d%n", word.toString(), assignment);
+        out.printf("%s\t%d%n", vocabulary[word].toString(), assignment);
 
       } else if (outputFormat == OutputFormat.SRILM) {
-        out.printf("%d 1.0 %s%n", assignment, word.toString());
+        out.printf("%d 1.0 %s%n", assignment, vocabulary[word].toString());
       }
     }
   }
@@ -408,13 +439,16 @@ public class MakeWordClasses {
     argDefs.put("vclip", 1);
     argDefs.put("normdigits", 1);
     argDefs.put("encoding", 1);
+    argDefs.put("stats", 1);
+    argDefs.put("tmpdir", 1);
+    argDefs.put("buffersize", 1);
     return argDefs;
   }
 
   private static String usage() {
     StringBuilder sb = new StringBuilder();
     final String nl = System.getProperty("line.separator");
-    sb.append("Usage: java ").append(MakeWordClasses.class.getName()).append(" OPTS file [file] > output").append(nl)
+    sb.append("Usage: java ").append(MakeWordClasses.class.getName()).append(" OPTS [file [file]] > output").append(nl)
     .append(" -order num       : Model order (default: 2)").append(nl)
     .append(" -nthreads num    : Number of threads (default: 1)").append(nl)
     .append(" -nclasses num    : Number of classes (default: 512)").append(nl)
@@ -424,7 +458,10 @@ public class MakeWordClasses {
     .append(" -name str        : Run name for log file.").append(nl)
     .append(" -vclip num       : Map rare words to <unk> (default: 5)").append(nl)
     .append(" -normdigits bool : Map ASCII digits to 0 (default: true)").append(nl)
-    .append(" -encoding str    : Input file encoding (default: UTF-8)");
+    .append(" -encoding str    : Input file encoding (default: UTF-8)").append(nl)
+    .append(" -stats file      : Statistics file. Read if it exists, otherwise written from the input files.").append(nl)
+    .append(" -tmpdir dir      : Directory for temporary files (default: system temp dir)").append(nl)
+    .append(" -buffersize num  : Word-history pairs per counting thread before spilling to disk (default: 4194304)");
 
     return sb.toString();
   }
@@ -435,7 +472,8 @@ public class MakeWordClasses {
   public static void main(String[] args) {
     Properties options = StringUtils.argsToProperties(args, optionArgDefs());
     String[] filenames = options.getProperty("","").split("\\s+");
-    if (filenames.length < 1 || filenames[0].length() == 0 || options.containsKey("h")
+    boolean hasStats = options.containsKey("stats") && new File(options.getProperty("stats")).exists();
+    if ((! hasStats && (filenames.length < 1 || filenames[0].length() == 0)) || options.containsKey("h")
         || options.containsKey("help")) {
       System.err.println(usage());
       System.exit(-1);
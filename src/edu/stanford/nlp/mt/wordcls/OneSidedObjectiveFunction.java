@@ -1,165 +1,175 @@
 package edu.stanford.nlp.mt.wordcls;
 
-import java.util.HashMap;
-import java.util.Map;
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import edu.stanford.nlp.mt.util.IString;
-import edu.stanford.nlp.stats.ClassicCounter;
-import edu.stanford.nlp.stats.Counter;
-import edu.stanford.nlp.stats.TwoDimensionalCounter;
-
 
 /**
  * The one-sided class model of Uszkoreit and Brants (2008), which comes
  * from Whitaker and Woodland (2001).
- * 
+ *
+ * The objective is computed incrementally. The change from removing a word
+ * from its class is computed once per word, after which each candidate class
+ * only requires the change from adding the word.
+ *
  * @author Spence Green
  *
  */
 public class OneSidedObjectiveFunction {
 
   private static final Logger logger = LogManager.getLogger(OneSidedObjectiveFunction.class.getName());
-  
+
+  // Cache of x*log(x) for small counts
+  private static final int X_LOG_X_SIZE = 1 << 16;
+  private static final double[] X_LOG_X = new double[X_LOG_X_SIZE];
+  static {
+    for (int i = 1; i < X_LOG_X_SIZE; ++i) {
+      X_LOG_X[i] = i * Math.log(i);
+    }
+  }
+
   private double objValue = 0.0;
 
   private final ClustererState inputState;
-  private final Map<IString, Integer> localWordToClass;
+  private final WordHistoryMatrix historyCount;
+  private final int[] localWordToClass;
 
-  private final Counter<Integer> deltaClassCount;
-  private final TwoDimensionalCounter<Integer, NgramHistory> deltaClassHistoryCount;
+  private final long[] deltaClassCount;
+  private final Int2LongOpenHashMap[] deltaClassHistoryCount;
 
   /**
    * Constructor.
-   * 
+   *
    * @param input
    */
   public OneSidedObjectiveFunction(ClustererState input) {
     // Setup delta data structures
     this.inputState = input;
-    localWordToClass = new HashMap<>(input.vocabularySubset.size());
-    deltaClassCount = new ClassicCounter<Integer>(input.numClasses);
-    deltaClassHistoryCount = new TwoDimensionalCounter<Integer,NgramHistory>();
-    for (IString word : input.vocabularySubset) {
-      int classId = input.wordToClass.get(word);
-      localWordToClass.put(word, classId);
+    this.historyCount = input.historyCount;
+    localWordToClass = new int[input.vocabularySubset.length];
+    for (int i = 0; i < localWordToClass.length; ++i) {
+      localWordToClass[i] = input.wordToClass[input.vocabularySubset[i]];
     }
+    deltaClassCount = new long[input.numClasses];
+    deltaClassHistoryCount = new Int2LongOpenHashMap[input.numClasses];
     this.objValue = input.currentObjectiveValue;
   }
 
+  /**
+   * x*log(x) with 0*log(0) = 0.
+   *
+   * @param x
+   * @return
+   */
+  static double xLogX(long x) {
+    assert x >= 0;
+    return x < X_LOG_X_SIZE ? X_LOG_X[(int) x] : x * Math.log(x);
+  }
+
   public PartialStateUpdate cluster() {
     // Iterate over vocabulary
-    for (IString word : inputState.vocabularySubset) {
-      final int currentClass = localWordToClass.get(word);
+    final int[] vocabulary = inputState.vocabularySubset;
+    for (int i = 0; i < vocabulary.length; ++i) {
+      final int word = vocabulary[i];
+      final int currentClass = localWordToClass[i];
+      final double removeDelta = removeDelta(word, currentClass);
       int argMaxClass = currentClass;
-      double maxObjectiveValue = objValue;
+      double maxDelta = 0.0;
 
       // Compute objective value under tentative moves
       for (int candidateClass = 0; candidateClass < inputState.numClasses; ++candidateClass) {
         if (candidateClass == currentClass) continue;
 
-        double newObjective = move(word, currentClass, candidateClass, false);
-        if (newObjective > maxObjectiveValue) {
+        double delta = removeDelta + addDelta(word, candidateClass);
+        if (delta > maxDelta) {
           argMaxClass = candidateClass;
-          maxObjectiveValue = newObjective;
+          maxDelta = delta;
         }
       }
       // Final move
       if (argMaxClass != currentClass) {
-        // Should be the same computation, but with updates to state
-        double newObjValue = move(word, currentClass, argMaxClass, true);
-        assert newObjValue == maxObjectiveValue;
-        logger.info("{} {} --> {} ({})", word, currentClass, argMaxClass, 
-            newObjValue - objValue);
-        objValue = newObjValue;
+        move(word, currentClass, argMaxClass);
+        localWordToClass[i] = argMaxClass;
+        logger.debug("{} {} --> {} ({})", word, currentClass, argMaxClass, maxDelta);
+        objValue += maxDelta;
       }
     }
-    return new PartialStateUpdate(localWordToClass, deltaClassCount, deltaClassHistoryCount);
+    return new PartialStateUpdate(vocabulary, localWordToClass, deltaClassCount, deltaClassHistoryCount);
   }
 
   /**
-   * Explicitly update the local data structures and objective function value.
-   * 
-   * @param word
-   * @param fromClass
-   * @param toClass
-   * @param updateDeltaState 
+   * Objective function value after the updates of this worker.
+   *
+   * @return
    */
-  private double move(IString word, Integer fromClass, Integer toClass, boolean updateDeltaState) {
-    assert fromClass != toClass;
-    final Counter<NgramHistory> fullHistoryFromClass = inputState.classHistoryCount.getCounter(fromClass);
-    final Counter<NgramHistory> deltaFromClass = deltaClassHistoryCount.getCounter(fromClass);
-
-    final Counter<NgramHistory> fullHistoryToClass = inputState.classHistoryCount.getCounter(toClass);
-    final Counter<NgramHistory> deltaToClass = deltaClassHistoryCount.getCounter(toClass);
-
-    final Counter<NgramHistory> historiesForWord = inputState.historyCount.getCounter(word);
-
-    double fromClassCount = inputState.classCount.getCount(fromClass) + deltaClassCount.getCount(fromClass);
-    assert fromClassCount > 0.0;
-    double toClassCount = inputState.classCount.getCount(toClass) + deltaClassCount.getCount(toClass);
-    double wordCount = inputState.wordCount.getCount(word);
-
-    //
-    // Update first summation
-    //
-    double newObjValue = objValue;
-    for (NgramHistory history : historiesForWord.keySet()) {
-      double fromCount = fullHistoryFromClass.getCount(history) + deltaFromClass.getCount(history);
-      assert fromCount > 0.0;
-      double toCount = fullHistoryToClass.getCount(history) + deltaToClass.getCount(history);
-      double historyCount = historiesForWord.getCount(history);
-
-      // Remove old summands
-      newObjValue -= fromCount*Math.log(fromCount);
-      if (toCount > 0.0) {
-        newObjValue -= toCount*Math.log(toCount);
-      }
+  public double objectiveValue() { return objValue; }
 
-      // Update summands
-      fromCount -= historyCount;
-      toCount += historyCount;
-      if (updateDeltaState) {
-        deltaFromClass.decrementCount(history, historyCount);
-        deltaToClass.incrementCount(history, historyCount);
-      }
+  private long classHistoryCount(int classId, int history) {
+    Int2LongOpenHashMap delta = deltaClassHistoryCount[classId];
+    return inputState.classHistoryCount[classId].get(history) +
+        (delta == null ? 0L : delta.get(history));
+  }
 
-      // Add updated summands
-      if (fromCount > 0.0) {
-        newObjValue += fromCount*Math.log(fromCount);
-      }
-      newObjValue += toCount*Math.log(toCount);
-    }
+  private long classCount(int classId) {
+    return inputState.classCount[classId] + deltaClassCount[classId];
+  }
 
-    //
-    // Update second summation
-    //
-    // Remove old summands
-    newObjValue += fromClassCount*Math.log(fromClassCount);
-    if (toClassCount > 0.0) {
-      newObjValue += toClassCount*Math.log(toClassCount);
+  /**
+   * Change in the objective from removing a word from a class.
+   */
+  private double removeDelta(int word, int fromClass) {
+    double delta = 0.0;
+    for (int j = historyCount.rowStart[word], end = historyCount.rowStart[word + 1]; j < end; ++j) {
+      long fromCount = classHistoryCount(fromClass, historyCount.histories[j]);
+      assert fromCount >= historyCount.counts[j];
+      delta += xLogX(fromCount - historyCount.counts[j]) - xLogX(fromCount);
     }
+    long fromClassCount = classCount(fromClass);
+    assert fromClassCount > 0;
+    delta -= xLogX(fromClassCount - historyCount.wordCount(word)) - xLogX(fromClassCount);
+    return delta;
+  }
 
-    // Update summands
-    fromClassCount -= wordCount;
-    toClassCount += wordCount;
-    if (updateDeltaState) {
-      deltaClassCount.decrementCount(fromClass, wordCount);
-      deltaClassCount.incrementCount(toClass, wordCount);
+  /**
+   * Change in the objective from adding a word to a class.
+   */
+  private double addDelta(int word, int toClass) {
+    double delta = 0.0;
+    for (int j = historyCount.rowStart[word], end = historyCount.rowStart[word + 1]; j < end; ++j) {
+      long toCount = classHistoryCount(toClass, historyCount.histories[j]);
+      delta += xLogX(toCount + historyCount.counts[j]) - xLogX(toCount);
     }
+    long toClassCount = classCount(toClass);
+    delta -= xLogX(toClassCount + historyCount.wordCount(word)) - xLogX(toClassCount);
+    return delta;
+  }
 
-    // Add updated summands
-    if (fromClassCount > 0.0) {
-      newObjValue -= fromClassCount*Math.log(fromClassCount);
+  /**
+   * Update the local data structures.
+   *
+   * @param word
+   * @param fromClass
+   * @param toClass
+   */
+  private void move(int word, int fromClass, int toClass) {
+    assert fromClass != toClass;
+    final Int2LongOpenHashMap deltaFromClass = deltaHistoryCount(fromClass);
+    final Int2LongOpenHashMap deltaToClass = deltaHistoryCount(toClass);
+    for (int j = historyCount.rowStart[word], end = historyCount.rowStart[word + 1]; j < end; ++j) {
+      deltaFromClass.addTo(historyCount.histories[j], -historyCount.counts[j]);
+      deltaToClass.addTo(historyCount.histories[j], historyCount.counts[j]);
     }
-    newObjValue -= toClassCount*Math.log(toClassCount);
+    final long wordCount = historyCount.wordCount(word);
+    deltaClassCount[fromClass] -= wordCount;
+    deltaClassCount[toClass] += wordCount;
+  }
 
-    // Change the class assignment
-    if (updateDeltaState) {
-      localWordToClass.put(word, toClass);
+  private Int2LongOpenHashMap deltaHistoryCount(int classId) {
+    if (deltaClassHistoryCount[classId] == null) {
+      deltaClassHistoryCount[classId] = new Int2LongOpenHashMap();
     }
-    return newObjValue;
+    return deltaClassHistoryCount[classId];
   }
 }
@@ -1,29 +1,28 @@
 package edu.stanford.nlp.mt.wordcls;
 
-import java.util.Map;
-
-import edu.stanford.nlp.mt.util.IString;
-import edu.stanford.nlp.stats.Counter;
-import edu.stanford.nlp.stats.TwoDimensionalCounter;
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
 
 /**
  * Delta data structures for updates to one-sided clusterer
  * class state.
- * 
+ *
  * @author Spence Green
  *
  */
 public class PartialStateUpdate {
 
   // Class assignments for the input vocabulary
-  public final Map<IString, Integer> wordToClass;
-  
-  // Deltas from the current clustering state
-  public final Counter<Integer> deltaClassCount;
-  public final TwoDimensionalCounter<Integer, NgramHistory> deltaClassHistoryCount;
-  
-  public PartialStateUpdate(Map<IString, Integer> wordToClass, Counter<Integer> classCount,
-      TwoDimensionalCounter<Integer, NgramHistory> classHistoryCount) {
+  public final int[] vocabularySubset;
+  public final int[] wordToClass;
+
+  // Deltas from the current clustering state. Classes without
+  // changes have null history deltas.
+  public final long[] deltaClassCount;
+  public final Int2LongOpenHashMap[] deltaClassHistoryCount;
+
+  public PartialStateUpdate(int[] vocabularySubset, int[] wordToClass, long[] classCount,
+      Int2LongOpenHashMap[] classHistoryCount) {
+    this.vocabularySubset = vocabularySubset;
     this.wordToClass = wordToClass;
     this.deltaClassCount = classCount;
     this.deltaClassHistoryCount = classHistoryCount;
@@ -0,0 +1,323 @@
+package edu.stanford.nlp.mt.wordcls;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.stanford.nlp.mt.util.ConcurrentIntegerArrayIndex;
+import edu.stanford.nlp.mt.util.IOTools;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.IStrings;
+import edu.stanford.nlp.mt.util.IntegerArrayIndex;
+import edu.stanford.nlp.mt.util.Sequence;
+import edu.stanford.nlp.mt.util.TokenUtils;
+import edu.stanford.nlp.util.concurrent.MulticoreWrapper;
+import edu.stanford.nlp.util.concurrent.ThreadsafeProcessor;
+
+/**
+ * Streaming first pass of word-class induction. Input files are read in
+ * parallel. Each worker counts (word, history) pairs in a primitive table and
+ * spills the table to a sorted run on disk when it is full. The runs are then
+ * merged into a statistics file that can be loaded with
+ * {@link WordHistoryStatistics#load(String)}.
+ *
+ * Memory use during counting is bounded by the number of threads times the
+ * buffer size, plus the history index.
+ *
+ */
+public class WordHistoryCounter {
+
+  private static final Logger logger = LogManager.getLogger(WordHistoryCounter.class);
+
+  public static final int DEFAULT_BUFFER_SIZE = 1 << 22;
+
+  private final int order;
+  private final boolean normalizeDigits;
+  private final int numThreads;
+  private final int bufferSize;
+  private final String tmpRoot;
+  private final String inputEncoding;
+
+  // Shared by all workers
+  private final IntegerArrayIndex historyIndex = new ConcurrentIntegerArrayIndex();
+  private final List<File> runs = Collections.synchronizedList(new ArrayList<>());
+  private final List<CountWorker> workers = Collections.synchronizedList(new ArrayList<>());
+  private final AtomicInteger runId = new AtomicInteger();
+  private final AtomicLong numTokens = new AtomicLong();
+  private File tmpDir;
+
+  /**
+   * Constructor.
+   *
+   * @param order Model order.
+   * @param normalizeDigits Map ASCII digits to 0.
+   * @param numThreads Number of files that are read in parallel.
+   * @param bufferSize Maximum number of entries in the table of a worker.
+   * @param tmpRoot Directory for sorted runs, or null for the system default.
+   * @param inputEncoding
+   */
+  public WordHistoryCounter(int order, boolean normalizeDigits, int numThreads, int bufferSize,
+      String tmpRoot, String inputEncoding) {
+    if (order < 2) throw new IllegalArgumentException("Invalid order: " + order);
+    if (bufferSize < 1) throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+    this.order = order;
+    this.normalizeDigits = normalizeDigits;
+    this.numThreads = numThreads;
+    this.bufferSize = bufferSize;
+    this.tmpRoot = tmpRoot;
+    this.inputEncoding = inputEncoding;
+  }
+
+  /**
+   * Count the input files and write the statistics to <code>outFile</code>.
+   *
+   * @param filenames
+   * @param outFile
+   * @throws IOException
+   */
+  public void count(String[] filenames, File outFile) throws IOException {
+    tmpDir = tmpRoot == null ? Files.createTempDirectory("wordcls").toFile() :
+      Files.createTempDirectory(new File(tmpRoot).toPath(), "wordcls").toFile();
+    try {
+      final long startTime = System.nanoTime();
+      MulticoreWrapper<String,Boolean> wrapper = new MulticoreWrapper<>(
+          Math.min(numThreads, filenames.length), new CountWorker());
+      for (String filename : filenames) {
+        wrapper.put(filename);
+        while (wrapper.peek()) wrapper.poll();
+      }
+      wrapper.join();
+      while (wrapper.peek()) wrapper.poll();
+      for (CountWorker worker : workers) worker.spill();
+      historyIndex.lock();
+      double elapsedTime = ((double) System.nanoTime() - startTime) / 1e9;
+      logger.info(String.format("Done reading input files (%.3fsec): %d tokens  %d histories  %d runs",
+          elapsedTime, numTokens.get(), historyIndex.size(), runs.size()));
+
+      merge(outFile);
+      elapsedTime = ((double) System.nanoTime() - startTime) / 1e9;
+      logger.info(String.format("Wrote statistics to %s (%.3fsec)", outFile.getPath(), elapsedTime));
+
+    } finally {
+      for (File run : runs) run.delete();
+      runs.clear();
+      tmpDir.delete();
+    }
+  }
+
+  /**
+   * k-way merge of the sorted runs into the statistics file. Keys are sorted by
+   * word and then by history, which is exactly the row-major order of the matrix.
+   */
+  private void merge(File outFile) throws IOException {
+    final IntArrayList rowStart = new IntArrayList();
+    final IntArrayList words = new IntArrayList();
+    long numEntries = 0;
+    try (RunMerger merger = new RunMerger(runs);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(outFile), 1 << 16))) {
+      // Placeholder for the header
+      out.write(new byte[WordHistoryStatistics.HEADER_SIZE]);
+      while (merger.hasNext()) {
+        final long key = merger.peekKey();
+        long count = 0;
+        while (merger.hasNext() && merger.peekKey() == key) count += merger.next();
+        if (count > Integer.MAX_VALUE) {
+          throw new RuntimeException("Count overflow for key: " + key);
+        }
+        final int word = (int) (key >>> 32);
+        if (words.isEmpty() || words.getInt(words.size() - 1) != word) {
+          if (numEntries >= Integer.MAX_VALUE) {
+            throw new RuntimeException("Too many word-history pairs: " + numEntries);
+          }
+          words.add(word);
+          rowStart.add((int) numEntries);
+        }
+        out.writeInt((int) key);
+        out.writeInt((int) count);
+        ++numEntries;
+      }
+      rowStart.add((int) numEntries);
+      for (int i = 0; i < rowStart.size(); ++i) out.writeInt(rowStart.getInt(i));
+      for (int i = 0; i < words.size(); ++i) {
+        out.writeUTF(new IString(words.getInt(i)).toString());
+      }
+    }
+
+    try (RandomAccessFile file = new RandomAccessFile(outFile, "rw")) {
+      file.writeInt(WordHistoryStatistics.MAGIC);
+      file.writeInt(WordHistoryStatistics.VERSION);
+      file.writeInt(order);
+      file.writeInt(normalizeDigits ? 1 : 0);
+      file.writeInt(words.size());
+      file.writeInt(historyIndex.size());
+      file.writeLong(numEntries);
+    }
+  }
+
+  /**
+   * Counts the word-history pairs of one input file at a time.
+   */
+  private class CountWorker implements ThreadsafeProcessor<String,Boolean> {
+    private final Long2IntOpenHashMap pairCounts = new Long2IntOpenHashMap();
+
+    public CountWorker() {
+      workers.add(this);
+    }
+
+    @Override
+    public Boolean process(String filename) {
+      logger.info("Reading: " + filename);
+      final int[] defaultHistory = new int[order - 1];
+      Arrays.fill(defaultHistory, TokenUtils.START_TOKEN.id);
+      long fileTokens = 0;
+      try {
+        LineNumberReader reader = IOTools.getReaderFromFile(filename, inputEncoding);
+        for (String line; (line = reader.readLine()) != null;) {
+          line = line.trim();
+          if (line.length() == 0) continue;
+          Sequence<IString> tokens = IStrings.tokenize(line);
+          int[] history = defaultHistory;
+          for (IString token : tokens) {
+            if (normalizeDigits && TokenUtils.hasDigit(token.toString())) {
+              token = new IString(TokenUtils.normalizeDigits(token.toString()));
+            }
+            int historyId = historyIndex.indexOf(history, true);
+            pairCounts.addTo(((long) token.id << 32) | historyId, 1);
+            if (pairCounts.size() >= bufferSize) spill();
+            ++fileTokens;
+
+            // Update the ngram history
+            int[] nextHistory = new int[history.length];
+            System.arraycopy(history, 1, nextHistory, 0, history.length - 1);
+            nextHistory[history.length - 1] = token.id;
+            history = nextHistory;
+          }
+        }
+        reader.close();
+      } catch (IOException e) {
+        throw new RuntimeException("Could not read: " + filename, e);
+      }
+      numTokens.addAndGet(fileTokens);
+      return true;
+    }
+
+    /**
+     * Write the table to a sorted run.
+     */
+    public void spill() {
+      if (pairCounts.isEmpty()) return;
+      final long[] keys = new long[pairCounts.size()];
+      int i = 0;
+      for (LongIterator it = pairCounts.keySet().iterator(); it.hasNext();) keys[i++] = it.nextLong();
+      Arrays.sort(keys);
+      File run = new File(tmpDir, String.format("counts.%d", runId.getAndIncrement()));
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(run), 1 << 16))) {
+        for (long key : keys) {
+          out.writeLong(key);
+          out.writeInt(pairCounts.get(key));
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Could not write run: " + run.getPath(), e);
+      }
+      runs.add(run);
+      pairCounts.clear();
+      pairCounts.trim(bufferSize);
+    }
+
+    @Override
+    public ThreadsafeProcessor<String, Boolean> newInstance() {
+      return new CountWorker();
+    }
+  }
+
+  /**
+   * A sorted run on disk.
+   */
+  private static class RunReader implements Comparable<RunReader> {
+    private final DataInputStream in;
+    public long key;
+    public int count;
+
+    public RunReader(File file) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    }
+
+    public boolean advance() throws IOException {
+      try {
+        key = in.readLong();
+      } catch (EOFException e) {
+        in.close();
+        return false;
+      }
+      count = in.readInt();
+      return true;
+    }
+
+    @Override
+    public int compareTo(RunReader o) {
+      return Long.compare(key, o.key);
+    }
+  }
+
+  /**
+   * k-way merge of sorted runs.
+   */
+  private static class RunMerger implements Closeable {
+    private final PriorityQueue<RunReader> queue;
+
+    public RunMerger(List<File> runs) throws IOException {
+      queue = new PriorityQueue<>(Math.max(1, runs.size()));
+      for (File run : runs) {
+        RunReader reader = new RunReader(run);
+        if (reader.advance()) queue.add(reader);
+      }
+    }
+
+    public boolean hasNext() {
+      return ! queue.isEmpty();
+    }
+
+    public long peekKey() {
+      return queue.peek().key;
+    }
+
+    public int next() throws IOException {
+      RunReader reader = queue.poll();
+      int count = reader.count;
+      if (reader.advance()) queue.add(reader);
+      return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (RunReader reader : queue) reader.in.close();
+      queue.clear();
+    }
+  }
+}
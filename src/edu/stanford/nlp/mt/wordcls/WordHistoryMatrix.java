@@ -0,0 +1,206 @@
+package edu.stanford.nlp.mt.wordcls;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+
+import java.util.Arrays;
+
+/**
+ * Word-history counts in compressed sparse row (CSR) format. Row w holds the
+ * histories of word w in ascending order of history id, and the number of times
+ * that w follows each history.
+ *
+ * Instances are immutable and threadsafe.
+ *
+ */
+public class WordHistoryMatrix {
+
+  // Row w spans [rowStart[w], rowStart[w+1])
+  public final int[] rowStart;
+  public final int[] histories;
+  public final int[] counts;
+  public final int numHistories;
+
+  private final long[] wordCounts;
+
+  /**
+   * Constructor.
+   *
+   * @param rowStart Row offsets. Has one more element than the number of words.
+   * @param histories History ids.
+   * @param counts Word-history counts.
+   * @param numHistories Number of distinct histories.
+   */
+  public WordHistoryMatrix(int[] rowStart, int[] histories, int[] counts, int numHistories) {
+    if (histories.length != counts.length || rowStart[rowStart.length - 1] != histories.length) {
+      throw new IllegalArgumentException("Inconsistent matrix dimensions");
+    }
+    this.rowStart = rowStart;
+    this.histories = histories;
+    this.counts = counts;
+    this.numHistories = numHistories;
+    // Each token follows exactly one history
+    this.wordCounts = new long[rowStart.length - 1];
+    for (int w = 0; w < wordCounts.length; ++w) {
+      long count = 0;
+      for (int j = rowStart[w]; j < rowStart[w + 1]; ++j) count += counts[j];
+      wordCounts[w] = count;
+    }
+  }
+
+  /**
+   * Number of words (rows).
+   *
+   * @return
+   */
+  public int numWords() { return wordCounts.length; }
+
+  /**
+   * Number of non-zero entries.
+   *
+   * @return
+   */
+  public int size() { return histories.length; }
+
+  /**
+   * Number of occurrences of a word.
+   *
+   * @param word
+   * @return
+   */
+  public long wordCount(int word) { return wordCounts[word]; }
+
+  /**
+   * Total number of tokens.
+   *
+   * @return
+   */
+  public long totalCount() {
+    long count = 0;
+    for (long c : wordCounts) count += c;
+    return count;
+  }
+
+  /**
+   * Map the rows of this matrix to a new set of rows. Rows that map to the same
+   * new row are merged, and rows that map to a negative row are discarded.
+   *
+   * @param rowOf
+   * @param numRows Number of rows in the new matrix.
+   * @return
+   */
+  public WordHistoryMatrix remap(int[] rowOf, int numRows) {
+    // Group the source rows of each new row with a counting sort
+    final int[] sourceStart = new int[numRows + 1];
+    final int[] newRowStart = new int[numRows + 1];
+    for (int w = 0; w < numWords(); ++w) {
+      if (rowOf[w] < 0) continue;
+      ++sourceStart[rowOf[w] + 1];
+      newRowStart[rowOf[w] + 1] += rowStart[w + 1] - rowStart[w];
+    }
+    for (int r = 0; r < numRows; ++r) {
+      sourceStart[r + 1] += sourceStart[r];
+      newRowStart[r + 1] += newRowStart[r];
+    }
+    final int[] sources = new int[sourceStart[numRows]];
+    final int[] next = Arrays.copyOf(sourceStart, numRows);
+    for (int w = 0; w < numWords(); ++w) {
+      if (rowOf[w] >= 0) sources[next[rowOf[w]]++] = w;
+    }
+
+    final int[] newHistories = new int[newRowStart[numRows]];
+    final int[] newCounts = new int[newHistories.length];
+    int size = 0;
+    for (int r = 0; r < numRows; ++r) {
+      final int start = size;
+      if (sourceStart[r + 1] - sourceStart[r] == 1) {
+        // Rows are already sorted
+        int w = sources[sourceStart[r]];
+        int length = rowStart[w + 1] - rowStart[w];
+        System.arraycopy(histories, rowStart[w], newHistories, size, length);
+        System.arraycopy(counts, rowStart[w], newCounts, size, length);
+        size += length;
+
+      } else if (sourceStart[r + 1] - sourceStart[r] > 1) {
+        // Pack each entry as (history << 32 | count), sort, and merge duplicates
+        long[] entries = new long[newRowStart[r + 1] - newRowStart[r]];
+        int n = 0;
+        for (int s = sourceStart[r]; s < sourceStart[r + 1]; ++s) {
+          int w = sources[s];
+          for (int j = rowStart[w]; j < rowStart[w + 1]; ++j) {
+            entries[n++] = ((long) histories[j] << 32) | (counts[j] & 0xFFFFFFFFL);
+          }
+        }
+        Arrays.sort(entries);
+        for (long entry : entries) {
+          int history = (int) (entry >>> 32);
+          if (size > start && newHistories[size - 1] == history) {
+            newCounts[size - 1] += (int) entry;
+          } else {
+            newHistories[size] = history;
+            newCounts[size++] = (int) entry;
+          }
+        }
+      }
+      newRowStart[r] = start;
+    }
+    newRowStart[numRows] = size;
+    return new WordHistoryMatrix(newRowStart, Arrays.copyOf(newHistories, size),
+        Arrays.copyOf(newCounts, size), numHistories);
+  }
+
+  /**
+   * Create a matrix from a table of word-history counts, where the key is
+   * (raw word id << 32 | history id). Raw word ids are mapped to rows by
+   * <code>rowOf</code>. Raw ids that map to the same row are merged, and raw ids
+   * that map to a negative row are discarded.
+   *
+   * @param pairCounts
+   * @param rowOf
+   * @param numWords Number of rows.
+   * @param numHistories
+   * @return
+   */
+  public static WordHistoryMatrix fromCounts(Long2IntOpenHashMap pairCounts, int[] rowOf,
+      int numWords, int numHistories) {
+    // Pack each entry as (history << 32 | count) and bucket by row
+    final int[] rowStart = new int[numWords + 1];
+    for (LongIterator it = pairCounts.keySet().iterator(); it.hasNext();) {
+      int row = rowOf[(int) (it.nextLong() >>> 32)];
+      if (row >= 0) ++rowStart[row + 1];
+    }
+    for (int w = 0; w < numWords; ++w) rowStart[w + 1] += rowStart[w];
+    final long[] entries = new long[rowStart[numWords]];
+    final int[] next = Arrays.copyOf(rowStart, numWords);
+    for (LongIterator it = pairCounts.keySet().iterator(); it.hasNext();) {
+      long key = it.nextLong();
+      int row = rowOf[(int) (key >>> 32)];
+      if (row < 0) continue;
+      entries[next[row]++] = (key << 32) | (pairCounts.get(key) & 0xFFFFFFFFL);
+    }
+
+    // Sort each row by history and merge duplicates
+    final int[] histories = new int[entries.length];
+    final int[] counts = new int[entries.length];
+    int size = 0;
+    for (int w = 0; w < numWords; ++w) {
+      final int start = rowStart[w];
+      final int end = rowStart[w + 1];
+      rowStart[w] = size;
+      Arrays.sort(entries, start, end);
+      for (int j = start; j < end; ++j) {
+        int history = (int) (entries[j] >>> 32);
+        int count = (int) entries[j];
+        if (size > rowStart[w] && histories[size - 1] == history) {
+          counts[size - 1] += count;
+        } else {
+          histories[size] = history;
+          counts[size++] = count;
+        }
+      }
+    }
+    rowStart[numWords] = size;
+    return new WordHistoryMatrix(rowStart, Arrays.copyOf(histories, size),
+        Arrays.copyOf(counts, size), numHistories);
+  }
+}
@@ -0,0 +1,126 @@
+package edu.stanford.nlp.mt.wordcls;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import edu.stanford.nlp.mt.util.IString;
+
+/**
+ * Word-history statistics for word-class induction, as written by
+ * {@link WordHistoryCounter}. Rows of the matrix are indexed by position in
+ * the vocabulary.
+ *
+ * The binary file layout (big-endian) is:
+ *
+ * <pre>
+ * header   : magic, version, order, normalizeDigits, numWords, numHistories (int), numEntries (long)
+ * entries  : numEntries x (history id, count) int pairs in row-major order
+ * rowStart : numWords+1 ints
+ * words    : numWords modified UTF-8 strings
+ * </pre>
+ *
+ */
+public class WordHistoryStatistics {
+
+  static final int MAGIC = 0x57435354;
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 6 * Integer.BYTES + Long.BYTES;
+
+  // Entries are mapped in segments of at most 1GB
+  private static final int MAX_SEGMENT_ENTRIES = 1 << 27;
+
+  public final IString[] vocabulary;
+  public final WordHistoryMatrix counts;
+  public final int order;
+  public final boolean normalizeDigits;
+
+  /**
+   * Constructor.
+   *
+   * @param vocabulary
+   * @param counts
+   * @param order
+   * @param normalizeDigits
+   */
+  public WordHistoryStatistics(IString[] vocabulary, WordHistoryMatrix counts, int order,
+      boolean normalizeDigits) {
+    if (vocabulary.length != counts.numWords()) {
+      throw new IllegalArgumentException("Vocabulary and matrix dimensions do not match");
+    }
+    this.vocabulary = vocabulary;
+    this.counts = counts;
+    this.order = order;
+    this.normalizeDigits = normalizeDigits;
+  }
+
+  /**
+   * Load a statistics file. The file is memory-mapped and copied into the
+   * arrays of a {@link WordHistoryMatrix}, so no parsing is required.
+   *
+   * @param filename
+   * @return
+   * @throws IOException
+   */
+  public static WordHistoryStatistics load(String filename) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+        FileChannel channel = file.getChannel()) {
+      if (channel.size() < HEADER_SIZE) {
+        throw new IOException("Not a word-history statistics file: " + filename);
+      }
+      ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+      if (header.getInt() != MAGIC) {
+        throw new IOException("Not a word-history statistics file: " + filename);
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException(String.format("Unsupported statistics file version %d: %s",
+            version, filename));
+      }
+      final int order = header.getInt();
+      final boolean normalizeDigits = header.getInt() != 0;
+      final int numWords = header.getInt();
+      final int numHistories = header.getInt();
+      final long numEntries = header.getLong();
+      if (numEntries > Integer.MAX_VALUE) {
+        throw new IOException("Too many entries in statistics file: " + numEntries);
+      }
+
+      // Entries
+      final int[] histories = new int[(int) numEntries];
+      final int[] counts = new int[(int) numEntries];
+      long position = HEADER_SIZE;
+      for (int i = 0; i < numEntries;) {
+        int n = (int) Math.min(numEntries - i, MAX_SEGMENT_ENTRIES);
+        IntBuffer segment = channel.map(MapMode.READ_ONLY, position, 2L * Integer.BYTES * n).asIntBuffer();
+        for (int end = i + n; i < end; ++i) {
+          histories[i] = segment.get();
+          counts[i] = segment.get();
+        }
+        position += 2L * Integer.BYTES * n;
+      }
+
+      // Row offsets
+      final int[] rowStart = new int[numWords + 1];
+      channel.map(MapMode.READ_ONLY, position, (long) Integer.BYTES * rowStart.length)
+        .asIntBuffer().get(rowStart);
+      position += (long) Integer.BYTES * rowStart.length;
+
+      // Vocabulary
+      channel.position(position);
+      final IString[] vocabulary = new IString[numWords];
+      DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+      for (int i = 0; i < numWords; ++i) {
+        vocabulary[i] = new IString(in.readUTF());
+      }
+      return new WordHistoryStatistics(vocabulary,
+          new WordHistoryMatrix(rowStart, histories, counts, numHistories), order, normalizeDigits);
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package edu.stanford.nlp.mt.decoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+import edu.stanford.nlp.mt.Phrasal;
+import edu.stanford.nlp.mt.decoder.feat.sparse.PunctuationDifference;
+import edu.stanford.nlp.mt.util.FeatureValues;
+import edu.stanford.nlp.mt.util.IOTools;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.IStrings;
+import edu.stanford.nlp.mt.util.InputProperties;
+import edu.stanford.nlp.mt.util.RichTranslation;
+import edu.stanford.nlp.mt.util.Sequence;
+import edu.stanford.nlp.stats.ClassicCounter;
+import edu.stanford.nlp.stats.Counter;
+
+/**
+ * Checks that seeding the beams of the cube pruning decoder with multiple threads
+ * gives the same output as sequential decoding, and which decoders seed in parallel.
+ */
+public class CubePruningDecoderTest extends TestCase {
+
+  private static Map<String,List<String>> config(String weightsFile, int intraSentenceThreads) {
+    Map<String,List<String>> config = new HashMap<>();
+    config.put(Phrasal.TRANSLATION_TABLE_OPT, Collections.singletonList("test-resources/inputs/mt06.phrase-table.gz"));
+    config.put(Phrasal.LANGUAGE_MODEL_OPT, Collections.singletonList("test-resources/inputs/mt06.flt_giga.lm.gz"));
+    config.put(Phrasal.DISTORTION_LIMIT, Collections.singletonList("6"));
+    config.put(Phrasal.WEIGHTS_FILE, Collections.singletonList(weightsFile));
+    config.put(Phrasal.INTRA_SENTENCE_THREADS, Collections.singletonList(String.valueOf(intraSentenceThreads)));
+    return config;
+  }
+
+  private static String weightsFile() throws IOException {
+    Counter<String> weights = new ClassicCounter<>();
+    weights.setCount("LM", 0.085872);
+    weights.setCount("TM:FPT.0", 0.019243);
+    weights.setCount("TM:FPT.2", 0.042900);
+    weights.setCount("PhrasePenalty", 0.073802);
+    weights.setCount("WordPenalty", -0.202287);
+    weights.setCount("LinearDistortion", -0.008814);
+    File file = File.createTempFile("cube-pruning", ".wts");
+    file.deleteOnExit();
+    IOTools.writeWeights(file.getPath(), weights);
+    return file.getPath();
+  }
+
+  public void testParallelSeedingIsDeterministic() throws Exception {
+    final String weightsFile = weightsFile();
+    Phrasal sequential = new Phrasal(config(weightsFile, 1));
+    Phrasal parallel = new Phrasal(config(weightsFile, 4));
+    StringBuilder sb = new StringBuilder();
+    for (int length = 1; length <= 12; ++length) {
+      if (sb.length() > 0) sb.append(' ');
+      sb.append("代表");
+      Sequence<IString> source = IStrings.tokenize(sb.toString());
+      RichTranslation<IString,String> expected = decode(sequential, source, length);
+      RichTranslation<IString,String> actual = decode(parallel, source, length);
+      assertEquals(expected.translation, actual.translation);
+      assertEquals(expected.score, actual.score, 0.0);
+      assertEquals(FeatureValues.toCounter(expected.features), FeatureValues.toCounter(actual.features));
+    }
+  }
+
+  public void testEachDecodingThreadHasItsOwnPool() throws Exception {
+    Map<String,List<String>> config = config(weightsFile(), 4);
+    config.put(Phrasal.NUM_THREADS, Collections.singletonList("2"));
+    Phrasal phrasal = new Phrasal(config);
+    ForkJoinPool pool0 = ((CubePruningDecoder<IString,String>) phrasal.getInferer(0)).threadPool;
+    ForkJoinPool pool1 = ((CubePruningDecoder<IString,String>) phrasal.getInferer(1)).threadPool;
+    // The default featurizers may all run in parallel
+    assertNotNull(pool0);
+    assertNotNull(pool1);
+    assertNotSame(pool0, pool1);
+    assertEquals(4, pool0.getParallelism());
+  }
+
+  public void testFeaturizerWithoutMarkerDisablesPool() throws Exception {
+    Map<String,List<String>> config = config(weightsFile(), 4);
+    config.put(Phrasal.ADDITIONAL_FEATURIZERS, 
+        Collections.singletonList(PunctuationDifference.class.getName() + "()"));
+    Phrasal phrasal = new Phrasal(config);
+    assertNull(((CubePruningDecoder<IString,String>) phrasal.getInferer(0)).threadPool);
+  }
+
+  private static RichTranslation<IString,String> decode(Phrasal phrasal, Sequence<IString> source, 
+      int sourceInputId) {
+    List<RichTranslation<IString,String>> translations = phrasal.decode(source, sourceInputId, 0, 1,
+        null, new InputProperties());
+    assertEquals(1, translations.size());
+    return translations.get(0);
+  }
+}
@@ -0,0 +1,126 @@
+package edu.stanford.nlp.mt.decoder;
+
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import edu.stanford.nlp.mt.decoder.CubePruningDecoder.Item;
+import edu.stanford.nlp.mt.decoder.CubePruningDecoder.ItemQueue;
+import edu.stanford.nlp.mt.decoder.h.SearchHeuristic;
+import edu.stanford.nlp.mt.decoder.util.Derivation;
+import edu.stanford.nlp.mt.decoder.util.Scorer;
+import edu.stanford.nlp.mt.tm.ConcreteRule;
+import edu.stanford.nlp.mt.util.CoverageSet;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.IStrings;
+import edu.stanford.nlp.mt.util.InputProperties;
+import edu.stanford.nlp.mt.util.Sequence;
+
+/**
+ * Compares the primitive heap of {@link CubePruningDecoder} with a
+ * {@link PriorityQueue} that uses the same ordering.
+ */
+public class ItemQueueTest extends TestCase {
+
+  private static final Sequence<IString> SOURCE = IStrings.tokenize("a b c");
+
+  /**
+   * Assigns a fixed score to each root derivation.
+   */
+  private static class FixedHeuristic implements SearchHeuristic<IString,String> {
+    double score;
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+      return super.clone();
+    }
+
+    @Override
+    public double getInitialHeuristic(Sequence<IString> sourceSequence,
+        InputProperties sourceInputProperties,
+        List<List<ConcreteRule<IString,String>>> options, Scorer<String> scorer,
+        int sourceInputId) {
+      return score;
+    }
+
+    @Override
+    public double getHeuristicDelta(Derivation<IString,String> newHypothesis,
+        CoverageSet newCoverage) {
+      return 0.0;
+    }
+  }
+
+  /**
+   * Null derivations first, and then the order of <code>Derivation.compareTo()</code>.
+   */
+  private static int compare(Item<IString,String> a, Item<IString,String> b) {
+    if (a.derivation == null || b.derivation == null) {
+      return a.derivation == null ? (b.derivation == null ? 0 : -1) : 1;
+    }
+    return a.derivation.compareTo(b.derivation);
+  }
+
+  public void testMatchesPriorityQueue() {
+    final Random random = new Random(7);
+    final FixedHeuristic heuristic = new FixedHeuristic();
+    // Few distinct scores so that ties are broken by id
+    final double[] scores = { Double.NEGATIVE_INFINITY, -2.5, -1.0, -1.0 + 1e-12, 0.0, 3.0 };
+    for (int trial = 0; trial < 50; ++trial) {
+      ItemQueue<IString,String> queue = new ItemQueue<>(1 + random.nextInt(4));
+      PriorityQueue<Item<IString,String>> reference = new PriorityQueue<>(11, ItemQueueTest::compare);
+      final int numOps = 1 + random.nextInt(500);
+      for (int op = 0; op < numOps; ++op) {
+        if (random.nextInt(3) > 0 || reference.isEmpty()) {
+          Item<IString,String> item;
+          if (random.nextInt(20) == 0) {
+            item = new Item<>(null, null);
+          } else {
+            heuristic.score = scores[random.nextInt(scores.length)];
+            item = new Item<>(new Derivation<>(0, SOURCE, null, heuristic, null, null), null);
+          }
+          queue.add(item);
+          reference.add(item);
+        } else {
+          Item<IString,String> expected = reference.poll();
+          Item<IString,String> actual = queue.poll();
+          // Null items are interchangeable
+          if (expected.derivation == null) {
+            assertNull(actual.derivation);
+          } else {
+            assertSame(expected, actual);
+          }
+        }
+        assertEquals(reference.size(), queue.size());
+        assertEquals(reference.isEmpty(), queue.isEmpty());
+      }
+      while ( ! reference.isEmpty()) {
+        Item<IString,String> expected = reference.poll();
+        Item<IString,String> actual = queue.poll();
+        if (expected.derivation == null) {
+          assertNull(actual.derivation);
+        } else {
+          assertSame(expected, actual);
+        }
+      }
+      assertNull(queue.poll());
+      assertTrue(queue.isEmpty());
+    }
+  }
+
+  public void testClear() {
+    final FixedHeuristic heuristic = new FixedHeuristic();
+    ItemQueue<IString,String> queue = new ItemQueue<>(0);
+    for (int i = 0; i < 10; ++i) {
+      heuristic.score = i;
+      queue.add(new Item<>(new Derivation<>(0, SOURCE, null, heuristic, null, null), null));
+    }
+    queue.clear();
+    assertTrue(queue.isEmpty());
+    assertNull(queue.poll());
+    heuristic.score = 1.0;
+    Item<IString,String> item = new Item<>(new Derivation<>(0, SOURCE, null, heuristic, null, null), null);
+    queue.add(item);
+    assertSame(item, queue.poll());
+  }
+}
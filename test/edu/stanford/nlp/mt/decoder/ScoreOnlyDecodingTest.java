@@ -0,0 +1,104 @@
+package edu.stanford.nlp.mt.decoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import edu.stanford.nlp.mt.Phrasal;
+import edu.stanford.nlp.mt.util.FeatureValue;
+import edu.stanford.nlp.mt.util.FeatureValues;
+import edu.stanford.nlp.mt.util.IOTools;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.IStrings;
+import edu.stanford.nlp.mt.util.InputProperties;
+import edu.stanford.nlp.mt.util.RichTranslation;
+import edu.stanford.nlp.mt.util.Sequence;
+import edu.stanford.nlp.stats.ClassicCounter;
+import edu.stanford.nlp.stats.Counter;
+
+/**
+ * Checks that decoding in score-only mode, where derivations do not retain their
+ * feature values, gives the same translations, scores and features as normal decoding.
+ */
+public class ScoreOnlyDecodingTest extends TestCase {
+
+  private static final String[] SOURCES = {
+    "代表",
+    "代表 代表",
+    "代表 代表 代表",
+  };
+
+  private static Map<String,List<String>> config(String weightsFile, boolean retainFeatures) {
+    Map<String,List<String>> config = new HashMap<>();
+    config.put(Phrasal.TRANSLATION_TABLE_OPT, Collections.singletonList("test-resources/inputs/mt06.phrase-table.gz"));
+    config.put(Phrasal.LANGUAGE_MODEL_OPT, Collections.singletonList("test-resources/inputs/mt06.flt_giga.lm.gz"));
+    config.put(Phrasal.DISTORTION_LIMIT, Collections.singletonList("6"));
+    config.put(Phrasal.WEIGHTS_FILE, Collections.singletonList(weightsFile));
+    if (retainFeatures) {
+      // Requesting an n-best list turns off score-only mode
+      config.put(Phrasal.NBEST_LIST_OPT, Collections.singletonList("1"));
+    }
+    return config;
+  }
+
+  private static String weightsFile() throws IOException {
+    Counter<String> weights = new ClassicCounter<>();
+    weights.setCount("LM", 0.085872);
+    weights.setCount("TM:FPT.0", 0.019243);
+    weights.setCount("TM:FPT.1", 0.052945);
+    weights.setCount("TM:FPT.2", 0.042900);
+    weights.setCount("TM:FPT.3", 0.025499);
+    weights.setCount("PhrasePenalty", 0.073802);
+    weights.setCount("WordPenalty", -0.202287);
+    weights.setCount("LinearDistortion", -0.008814);
+    File file = File.createTempFile("score-only", ".wts");
+    file.deleteOnExit();
+    IOTools.writeWeights(file.getPath(), weights);
+    return file.getPath();
+  }
+
+  public void testScoreOnlyMatchesNormalDecoding() throws Exception {
+    final String weightsFile = weightsFile();
+    Phrasal normal = new Phrasal(config(weightsFile, true));
+    Phrasal scoreOnly = new Phrasal(config(weightsFile, false));
+    Counter<String> weights = IOTools.readWeights(weightsFile);
+    for (int sourceInputId = 0; sourceInputId < SOURCES.length; ++sourceInputId) {
+      Sequence<IString> source = IStrings.tokenize(SOURCES[sourceInputId]);
+      RichTranslation<IString,String> expected = decode(normal, source, sourceInputId, null);
+      RichTranslation<IString,String> actual = decode(scoreOnly, source, sourceInputId, null);
+      assertEquals(expected.translation, actual.translation);
+      assertEquals(expected.score, actual.score, 1e-9);
+      assertEquals(FeatureValues.toCounter(expected.features), FeatureValues.toCounter(actual.features));
+      assertEquals(modelScore(actual.features, weights), actual.score, 1e-6);
+
+      // Force decode the normal 1-best output in score-only mode
+      List<Sequence<IString>> targets = new ArrayList<>();
+      targets.add(expected.translation);
+      RichTranslation<IString,String> forced = decode(scoreOnly, source, sourceInputId, targets);
+      assertEquals(expected.translation, forced.translation);
+      assertEquals(expected.score, forced.score, 1e-9);
+      assertEquals(FeatureValues.toCounter(expected.features), FeatureValues.toCounter(forced.features));
+    }
+  }
+
+  private static RichTranslation<IString,String> decode(Phrasal phrasal, Sequence<IString> source, 
+      int sourceInputId, List<Sequence<IString>> targets) {
+    List<RichTranslation<IString,String>> translations = phrasal.decode(source, sourceInputId, 0, 1,
+        targets, new InputProperties());
+    assertEquals(1, translations.size());
+    return translations.get(0);
+  }
+
+  private static double modelScore(Iterable<FeatureValue<String>> features, Counter<String> weights) {
+    double score = 0.0;
+    for (FeatureValue<String> feature : features) {
+      score += feature.value * weights.getCount(feature.name);
+    }
+    return score;
+  }
+}
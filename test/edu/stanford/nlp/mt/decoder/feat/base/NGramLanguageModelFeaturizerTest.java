@@ -0,0 +1,186 @@
+package edu.stanford.nlp.mt.decoder.feat.base;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+import edu.stanford.nlp.mt.decoder.feat.FeatureExtractor;
+import edu.stanford.nlp.mt.decoder.feat.Featurizer;
+import edu.stanford.nlp.mt.decoder.h.NullHeuristic;
+import edu.stanford.nlp.mt.decoder.h.SearchHeuristic;
+import edu.stanford.nlp.mt.decoder.util.Derivation;
+import edu.stanford.nlp.mt.decoder.util.Scorer;
+import edu.stanford.nlp.mt.decoder.util.SparseScorer;
+import edu.stanford.nlp.mt.lm.BatchLanguageModel;
+import edu.stanford.nlp.mt.lm.IntegerArrayLanguageModel;
+import edu.stanford.nlp.mt.lm.LMState;
+import edu.stanford.nlp.mt.lm.LanguageModelFactory;
+import edu.stanford.nlp.mt.tm.ConcreteRule;
+import edu.stanford.nlp.mt.tm.Rule;
+import edu.stanford.nlp.mt.util.CoverageSet;
+import edu.stanford.nlp.mt.util.FeatureValue;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.IStrings;
+import edu.stanford.nlp.mt.util.Sequence;
+import edu.stanford.nlp.stats.ClassicCounter;
+import edu.stanford.nlp.stats.Counter;
+
+/**
+ * Unit test for the batch queries of {@link NGramLanguageModelFeaturizer}.
+ */
+public class NGramLanguageModelFeaturizerTest extends TestCase {
+
+  private static final String ARPA_FILE = "test-resources/inputs/mt06.flt_giga.lm.gz";
+  private static final Sequence<IString> SOURCE = IStrings.tokenize("a b c");
+  private static final String[][] TARGETS = {
+    { "the", "the united", "he", "zzyzx" },
+    { "states", "said", "of the", "is" },
+    { "government", ".", "talks on", "the issue" },
+  };
+
+  /**
+   * Answers batch queries one query at a time, and counts the other queries.
+   */
+  private static class CountingBatchLanguageModel implements BatchLanguageModel {
+    private final IntegerArrayLanguageModel lm;
+    int numQueries = 0;
+
+    public CountingBatchLanguageModel(IntegerArrayLanguageModel lm) {
+      this.lm = lm;
+    }
+
+    @Override
+    public LMState[] score(int[][] sequences, int[] startOffsetIndices, LMState[] priorStates) {
+      LMState[] states = new LMState[sequences.length];
+      for (int i = 0; i < states.length; ++i) {
+        states[i] = lm.score(sequences[i], startOffsetIndices[i], priorStates[i]);
+      }
+      return states;
+    }
+
+    @Override
+    public LMState score(int[] sequence, int startOffsetIndex, LMState priorState) {
+      ++numQueries;
+      return lm.score(sequence, startOffsetIndex, priorState);
+    }
+
+    @Override
+    public LMState score(Sequence<IString> sequence, int startOffsetIndex, LMState priorState) {
+      ++numQueries;
+      return lm.score(sequence, startOffsetIndex, priorState);
+    }
+
+    @Override
+    public IString getStartToken() { return lm.getStartToken(); }
+
+    @Override
+    public IString getEndToken() { return lm.getEndToken(); }
+
+    @Override
+    public String getName() { return lm.getName(); }
+
+    @Override
+    public int order() { return lm.order(); }
+  }
+
+  private static List<List<ConcreteRule<IString,String>>> rules() {
+    List<List<ConcreteRule<IString,String>>> rules = new ArrayList<>();
+    for (int i = 0; i < SOURCE.size(); ++i) {
+      CoverageSet coverage = new CoverageSet(SOURCE.size());
+      coverage.set(i);
+      List<ConcreteRule<IString,String>> rulesAtPosition = new ArrayList<>();
+      for (String target : TARGETS[i]) {
+        Rule<IString> rule = new Rule<>(new float[] { 1.0f }, new String[] { "p" },
+            IStrings.tokenize(target), SOURCE.subsequence(i, i + 1), null);
+        rulesAtPosition.add(new ConcreteRule<IString,String>(rule, coverage,
+            Collections.<FeatureValue<String>>emptyList(), 0.0, "test"));
+      }
+      rules.add(rulesAtPosition);
+    }
+    return rules;
+  }
+
+  private static Scorer<String> scorer() {
+    Counter<String> weights = new ClassicCounter<>();
+    weights.setCount(NGramLanguageModelFeaturizer.DEFAULT_FEATURE_NAME, 1.0);
+    return new SparseScorer(weights);
+  }
+
+  /**
+   * Expands every derivation with every rule, left to right.
+   */
+  private static List<List<Derivation<IString,String>>> expand(NGramLanguageModelFeaturizer lmFeaturizer,
+      int sourceInputId, boolean prefetch) {
+    final FeatureExtractor<IString,String> featurizer = new FeatureExtractor<>(
+        Collections.<Featurizer<IString,String>>singletonList(lmFeaturizer));
+    final SearchHeuristic<IString,String> heuristic = new NullHeuristic<>();
+    final Scorer<String> scorer = scorer();
+    featurizer.initialize(sourceInputId, SOURCE);
+    List<List<Derivation<IString,String>>> beams = new ArrayList<>();
+    List<Derivation<IString,String>> beam = Collections.singletonList(
+        new Derivation<IString,String>(sourceInputId, SOURCE, null, heuristic, scorer, null));
+    for (List<ConcreteRule<IString,String>> rulesAtPosition : rules()) {
+      List<Derivation<IString,String>> antecedents = new ArrayList<>();
+      List<ConcreteRule<IString,String>> rules = new ArrayList<>();
+      for (Derivation<IString,String> antecedent : beam) {
+        for (ConcreteRule<IString,String> rule : rulesAtPosition) {
+          antecedents.add(antecedent);
+          rules.add(rule);
+        }
+      }
+      if (prefetch) featurizer.prefetch(sourceInputId, antecedents, rules);
+      beam = new ArrayList<>();
+      for (int i = 0; i < antecedents.size(); ++i) {
+        beam.add(new Derivation<>(sourceInputId, rules.get(i), antecedents.get(i).length,
+            antecedents.get(i), featurizer, scorer, heuristic));
+      }
+      beams.add(beam);
+    }
+    return beams;
+  }
+
+  public void testPrefetchedScoresMatch() throws IOException {
+    IntegerArrayLanguageModel lm = (IntegerArrayLanguageModel) LanguageModelFactory.load(ARPA_FILE);
+    CountingBatchLanguageModel batchLm = new CountingBatchLanguageModel(lm);
+    NGramLanguageModelFeaturizer batchFeaturizer = new NGramLanguageModelFeaturizer(batchLm);
+    List<List<Derivation<IString,String>>> expected = expand(new NGramLanguageModelFeaturizer(lm),
+        0, false);
+    List<List<Derivation<IString,String>>> actual = expand(batchFeaturizer, 0, true);
+
+    // All derivations were scored by the batch queries
+    assertEquals(0, batchLm.numQueries);
+    assertEquals(0, batchFeaturizer.numPrefetched());
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); ++i) {
+      assertEquals(expected.get(i).size(), actual.get(i).size());
+      for (int j = 0; j < expected.get(i).size(); ++j) {
+        Derivation<IString,String> e = expected.get(i).get(j);
+        Derivation<IString,String> a = actual.get(i).get(j);
+        assertEquals(e.targetSequence, a.targetSequence);
+        assertEquals(e.score, a.score, 1e-6);
+      }
+    }
+  }
+
+  public void testUnusedStatesAreDropped() throws IOException {
+    IntegerArrayLanguageModel lm = (IntegerArrayLanguageModel) LanguageModelFactory.load(ARPA_FILE);
+    NGramLanguageModelFeaturizer featurizer = new NGramLanguageModelFeaturizer(
+        new CountingBatchLanguageModel(lm));
+    FeatureExtractor<IString,String> extractor = new FeatureExtractor<>(
+        Collections.<Featurizer<IString,String>>singletonList(featurizer));
+    final SearchHeuristic<IString,String> heuristic = new NullHeuristic<>();
+    extractor.initialize(0, SOURCE);
+    Derivation<IString,String> root = new Derivation<>(0, SOURCE, null, heuristic, scorer(), null);
+    List<ConcreteRule<IString,String>> rules = rules().get(0);
+
+    // Prefetch derivations that are never built, e.g., because the search was aborted
+    extractor.prefetch(0, Collections.nCopies(rules.size(), root), rules);
+    assertEquals(rules.size(), featurizer.numPrefetched());
+
+    // The next sentence on this thread drops them
+    extractor.initialize(1, SOURCE);
+    assertEquals(0, featurizer.numPrefetched());
+  }
+}
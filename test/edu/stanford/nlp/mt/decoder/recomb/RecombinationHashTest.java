@@ -0,0 +1,169 @@
+package edu.stanford.nlp.mt.decoder.recomb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import edu.stanford.nlp.mt.decoder.h.NullHeuristic;
+import edu.stanford.nlp.mt.decoder.recomb.RecombinationHash.Status;
+import edu.stanford.nlp.mt.decoder.util.Derivation;
+import edu.stanford.nlp.mt.decoder.util.State;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.IStrings;
+
+/**
+ * Unit test for the open-addressing table of {@link RecombinationHash}.
+ */
+public class RecombinationHashTest extends TestCase {
+
+  /**
+   * A hypothesis that belongs to one recombination class.
+   */
+  private static class ToyState implements State<ToyState> {
+    final int recombinationClass;
+    final double score;
+
+    ToyState(int recombinationClass, double score) {
+      this.recombinationClass = recombinationClass;
+      this.score = score;
+    }
+
+    @Override
+    public int compareTo(ToyState o) { return Double.compare(o.score, score); }
+
+    @Override
+    public double score() { return score; }
+
+    @Override
+    public double partialScore() { return score; }
+
+    @Override
+    public State<ToyState> parent() { return null; }
+
+    @Override
+    public int depth() { return 0; }
+  }
+
+  /**
+   * Hashes classes into a few buckets so that probing and deletion are exercised.
+   */
+  private static class ToyFilter implements RecombinationFilter<ToyState> {
+    @Override
+    public boolean combinable(ToyState hypA, ToyState hypB) {
+      return hypA.recombinationClass == hypB.recombinationClass;
+    }
+
+    @Override
+    public long recombinationHashCode(ToyState hyp) {
+      return hyp.recombinationClass % 5;
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+      return super.clone();
+    }
+  }
+
+  public void testMatchesMap() {
+    final Random random = new Random(11);
+    RecombinationHash<ToyState> hash = new RecombinationHash<>(new ToyFilter());
+    Map<Integer,ToyState> reference = new HashMap<>();
+    List<ToyState> inserted = new ArrayList<>();
+    for (int op = 0; op < 20000; ++op) {
+      final int choice = random.nextInt(10);
+      if (choice < 6 || inserted.isEmpty()) {
+        // Also re-query hypotheses that are already in the table
+        ToyState hyp = random.nextInt(5) == 0 && ! inserted.isEmpty() ?
+            inserted.get(random.nextInt(inserted.size())) :
+              new ToyState(random.nextInt(200), random.nextInt(10));
+        ToyState best = reference.get(hyp.recombinationClass);
+        Status expected;
+        if (best == null) {
+          expected = Status.NOVEL;
+        } else if (best == hyp) {
+          expected = Status.SELF;
+        } else if (hyp.score > best.score) {
+          expected = Status.BETTER;
+        } else {
+          expected = Status.COMBINABLE;
+        }
+        assertEquals(expected, hash.update(hyp));
+        if (expected == Status.NOVEL || expected == Status.BETTER) {
+          assertSame(best, hash.getLastRedundant());
+          reference.put(hyp.recombinationClass, hyp);
+        }
+        assertSame(reference.get(hyp.recombinationClass), hash.getLastBestOnQuery());
+        inserted.add(hyp);
+
+      } else if (choice < 9) {
+        ToyState hyp = inserted.get(random.nextInt(inserted.size()));
+        hash.remove(hyp, true);
+        if (reference.get(hyp.recombinationClass) == hyp) {
+          reference.remove(hyp.recombinationClass);
+        }
+
+      } else {
+        ToyState hyp = inserted.get(random.nextInt(inserted.size()));
+        assertEquals(reference.get(hyp.recombinationClass) == hyp, hash.isBest(hyp));
+      }
+      assertEquals(reference.size(), hash.size());
+    }
+    assertEquals(new HashSet<>(reference.values()), new HashSet<>(hash.hypotheses()));
+  }
+
+  public void testRemoveMissing() {
+    RecombinationHash<ToyState> hash = new RecombinationHash<>(new ToyFilter());
+    hash.remove(new ToyState(1, 0.0), true);
+    try {
+      hash.remove(new ToyState(1, 0.0));
+      fail("Removed a missing hypothesis");
+    } catch (RuntimeException e) {
+      // Expected
+    }
+  }
+
+  /**
+   * Counts calls to the filter.
+   */
+  private static class CountingFilter implements RecombinationFilter<Derivation<IString,String>> {
+    int calls = 0;
+
+    @Override
+    public boolean combinable(Derivation<IString,String> hypA, Derivation<IString,String> hypB) {
+      return false;
+    }
+
+    @Override
+    public long recombinationHashCode(Derivation<IString,String> hyp) {
+      ++calls;
+      return 0;
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+      return super.clone();
+    }
+  }
+
+  public void testDerivationSignatureIsComputedOnce() {
+    CountingFilter filter = new CountingFilter();
+    RecombinationHash<Derivation<IString,String>> hash = new RecombinationHash<>(filter);
+    List<Derivation<IString,String>> derivations = new ArrayList<>();
+    for (int i = 0; i < 10; ++i) {
+      derivations.add(new Derivation<IString,String>(0, IStrings.tokenize("a b"), null,
+          new NullHeuristic<IString,String>(), null, null));
+    }
+    for (Derivation<IString,String> d : derivations) {
+      assertEquals(Status.NOVEL, hash.update(d));
+      assertEquals(Status.SELF, hash.update(d));
+      assertTrue(hash.isBest(d));
+    }
+    for (Derivation<IString,String> d : derivations) hash.remove(d);
+    assertEquals(0, hash.size());
+    assertEquals(derivations.size(), filter.calls);
+  }
+}
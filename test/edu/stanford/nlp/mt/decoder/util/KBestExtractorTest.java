@@ -0,0 +1,239 @@
+package edu.stanford.nlp.mt.decoder.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import edu.stanford.nlp.mt.decoder.feat.FeatureExtractor;
+import edu.stanford.nlp.mt.decoder.feat.Featurizer;
+import edu.stanford.nlp.mt.decoder.h.NullHeuristic;
+import edu.stanford.nlp.mt.decoder.h.SearchHeuristic;
+import edu.stanford.nlp.mt.decoder.recomb.RecombinationHistory;
+import edu.stanford.nlp.mt.tm.ConcreteRule;
+import edu.stanford.nlp.mt.tm.Rule;
+import edu.stanford.nlp.mt.util.CoverageSet;
+import edu.stanford.nlp.mt.util.FeatureValue;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.IStrings;
+import edu.stanford.nlp.mt.util.Sequence;
+import edu.stanford.nlp.mt.util.Sequences;
+import edu.stanford.nlp.stats.ClassicCounter;
+import edu.stanford.nlp.stats.Counter;
+
+/**
+ * Compares {@link KBestExtractor} with {@link StateLatticeDecoder}, the extractor
+ * that it replaced, on a small lattice.
+ */
+public class KBestExtractorTest extends TestCase {
+
+  private static final String FEATURE_NAME = "w";
+  private static final Sequence<IString> SOURCE = IStrings.tokenize("a b c d");
+  // The repeated target makes paths with the same target string. Derivations
+  // are recombined on the last target word, so "z x" is recombined with "x".
+  private static final String[] TARGETS = { "x", "y", "x", "z x" };
+
+  private RecombinationHistory<Derivation<IString,String>> recombinationHistory;
+  private List<Derivation<IString,String>> goalStates;
+
+  private void buildLattice(long seed) {
+    buildLattice(seed, false);
+  }
+
+  /**
+   * Builds a monotone lattice with one source word per rule and random rule scores.
+   *
+   * @param seed
+   * @param withDTUs If true, the derivations are built as in discontinuous decoding.
+   */
+  private void buildLattice(long seed, boolean withDTUs) {
+    final Random random = new Random(seed);
+    final FeatureExtractor<IString,String> featurizer = new FeatureExtractor<>(
+        new ArrayList<Featurizer<IString,String>>());
+    final SearchHeuristic<IString,String> heuristic = new NullHeuristic<>();
+    Counter<String> weights = new ClassicCounter<>();
+    weights.setCount(FEATURE_NAME, 1.0);
+    final Scorer<String> scorer = new SparseScorer(weights);
+
+    recombinationHistory = new RecombinationHistory<>();
+    List<Derivation<IString,String>> beam = Collections.singletonList(
+        new Derivation<IString,String>(0, SOURCE, null, heuristic, scorer, null));
+    for (int i = 0; i < SOURCE.size(); ++i) {
+      CoverageSet coverage = new CoverageSet(SOURCE.size());
+      coverage.set(i);
+      List<ConcreteRule<IString,String>> rules = new ArrayList<>();
+      for (String target : TARGETS) {
+        Rule<IString> rule = new Rule<>(new float[] { 1.0f }, new String[] { "p" },
+            IStrings.tokenize(target), SOURCE.subsequence(i, i + 1), null);
+        List<FeatureValue<String>> features = Collections.singletonList(
+            new FeatureValue<>(FEATURE_NAME, -10.0 * random.nextDouble()));
+        rules.add(new ConcreteRule<>(rule, coverage, features, 0.0, "test"));
+      }
+
+      // Expand and recombine on the last target word
+      Map<IString,List<Derivation<IString,String>>> states = new LinkedHashMap<>();
+      for (Derivation<IString,String> antecedent : beam) {
+        for (ConcreteRule<IString,String> rule : rules) {
+          Derivation<IString,String> d = withDTUs ?
+              new DTUHypothesis<IString,String>(0, rule, antecedent.length, antecedent, featurizer, scorer, heuristic) :
+              new Derivation<IString,String>(0, rule, antecedent.length, antecedent, featurizer, scorer, heuristic);
+          IString lastWord = d.targetSequence.get(d.targetSequence.size() - 1);
+          if ( ! states.containsKey(lastWord)) states.put(lastWord, new ArrayList<>());
+          states.get(lastWord).add(d);
+        }
+      }
+      beam = new ArrayList<>();
+      for (List<Derivation<IString,String>> recombined : states.values()) {
+        Derivation<IString,String> best = Collections.min(recombined);
+        for (Derivation<IString,String> d : recombined) {
+          if (d != best) recombinationHistory.log(best, d);
+        }
+        beam.add(best);
+      }
+    }
+    goalStates = beam;
+  }
+
+  private static Sequence<IString> targetOf(List<Derivation<IString,String>> path) {
+    Sequence<IString> target = path.get(0).targetSequence;
+    for (int i = 1; i < path.size(); ++i) {
+      target = Sequences.concatenate(target, path.get(i).rule.abstractRule.target);
+    }
+    return target;
+  }
+
+  private static double scoreOf(List<Derivation<IString,String>> path) {
+    double score = 0.0;
+    for (int i = 1; i < path.size(); ++i) {
+      Derivation<IString,String> d = path.get(i);
+      score += d.score - d.preceedingDerivation.score;
+    }
+    return score;
+  }
+
+  /**
+   * The paths of the old extractor, optionally with only the first path for each
+   * target string.
+   */
+  private List<List<Derivation<IString,String>>> baseline(boolean distinct) {
+    List<List<Derivation<IString,String>>> paths = new ArrayList<>();
+    Set<Sequence<IString>> targets = new HashSet<>();
+    for (List<Derivation<IString,String>> path : new StateLatticeDecoder<>(goalStates,
+        recombinationHistory)) {
+      if ( ! distinct || targets.add(targetOf(path))) paths.add(path);
+    }
+    return paths;
+  }
+
+  private List<List<Derivation<IString,String>>> kbest(KBestExtractor<IString,String> extractor) {
+    List<List<Derivation<IString,String>>> paths = new ArrayList<>();
+    while (extractor.hasNext()) {
+      final double score = extractor.nextScore();
+      List<Derivation<IString,String>> path = extractor.next();
+      assertEquals(scoreOf(path), score, 1e-9);
+      paths.add(path);
+    }
+    return paths;
+  }
+
+  private static void assertPathsEqual(List<List<Derivation<IString,String>>> expected,
+      List<List<Derivation<IString,String>>> actual, int size) {
+    for (int i = 0; i < size; ++i) {
+      assertEquals(scoreOf(expected.get(i)), scoreOf(actual.get(i)), 1e-9);
+      assertEquals(targetOf(expected.get(i)), targetOf(actual.get(i)));
+      assertEquals(expected.get(i), actual.get(i));
+    }
+  }
+
+  public void testMatchesStateLatticeDecoder() {
+    for (long seed = 0; seed < 5; ++seed) {
+      buildLattice(seed);
+      List<List<Derivation<IString,String>>> expected = baseline(false);
+      List<List<Derivation<IString,String>>> actual = kbest(new KBestExtractor<>(goalStates,
+          recombinationHistory, false, 0));
+      // Four rules per word
+      assertEquals(256, expected.size());
+      assertEquals(expected.size(), actual.size());
+      assertPathsEqual(expected, actual, expected.size());
+    }
+  }
+
+  public void testDistinctMatchesStateLatticeDecoder() {
+    for (long seed = 0; seed < 5; ++seed) {
+      buildLattice(seed);
+      List<List<Derivation<IString,String>>> expected = baseline(true);
+      KBestExtractor<IString,String> extractor = new KBestExtractor<>(goalStates,
+          recombinationHistory, true, Integer.MAX_VALUE);
+      List<List<Derivation<IString,String>>> actual = kbest(extractor);
+      // Three target strings per word
+      assertEquals(81, expected.size());
+      assertEquals(expected.size(), actual.size());
+      assertPathsEqual(expected, actual, expected.size());
+      // One duplicate for each prefix that is extended with "x"
+      assertEquals(40, extractor.numDuplicates());
+    }
+  }
+
+  public void testDistinctKeepsDTUPaths() {
+    for (long seed = 0; seed < 5; ++seed) {
+      buildLattice(seed, true);
+      List<List<Derivation<IString,String>>> expected = baseline(false);
+      KBestExtractor<IString,String> extractor = new KBestExtractor<>(goalStates,
+          recombinationHistory, true, 0);
+      List<List<Derivation<IString,String>>> actual = kbest(extractor);
+      // Paths with discontinuous derivations are rebuilt by the caller, so the
+      // duplicate target strings are not removed here.
+      assertEquals(256, expected.size());
+      assertEquals(expected.size(), actual.size());
+      assertPathsEqual(expected, actual, expected.size());
+      assertEquals(0, extractor.numDuplicates());
+      assertTrue(baseline(true).size() < actual.size());
+    }
+  }
+
+  public void testDuplicateLimit() {
+    final int maxDuplicates = 20;
+    for (long seed = 0; seed < 5; ++seed) {
+      buildLattice(seed);
+      List<List<Derivation<IString,String>>> expected = baseline(true);
+      KBestExtractor<IString,String> extractor = new KBestExtractor<>(goalStates,
+          recombinationHistory, true, maxDuplicates);
+      List<List<Derivation<IString,String>>> actual = kbest(extractor);
+      // Extraction stops, but the paths returned so far are the best ones
+      assertEquals(maxDuplicates + 1, extractor.numDuplicates());
+      assertTrue(actual.size() < expected.size());
+      assertPathsEqual(expected, actual, actual.size());
+    }
+  }
+
+  public void testReattachedDerivationsKeepPathScores() {
+    buildLattice(7);
+    KBestExtractor<IString,String> extractor = new KBestExtractor<>(goalStates,
+        recombinationHistory, false, 0);
+    int numReattached = 0;
+    while (extractor.hasNext()) {
+      final double score = extractor.nextScore();
+      List<Derivation<IString,String>> path = extractor.next();
+      // Same as the reconstruction in AbstractBeamInferer
+      Derivation<IString,String> goal = path.get(0);
+      for (int i = 1; i < path.size(); ++i) {
+        Derivation<IString,String> node = path.get(i);
+        if (node.preceedingDerivation != goal) {
+          goal = new Derivation<>(node, goal);
+          ++numReattached;
+        } else {
+          goal = node;
+        }
+      }
+      assertEquals(score, goal.score, 1e-9);
+      assertEquals(targetOf(path), goal.targetSequence);
+      assertSame(path.get(path.size() - 1).localFeatures, goal.localFeatures);
+    }
+    assertTrue(numReattached > 0);
+  }
+}
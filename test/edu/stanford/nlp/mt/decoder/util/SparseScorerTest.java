@@ -0,0 +1,127 @@
+package edu.stanford.nlp.mt.decoder.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import edu.stanford.nlp.mt.util.BinaryWeights;
+import edu.stanford.nlp.mt.util.FeatureValue;
+import edu.stanford.nlp.mt.util.GlobalFeatureIndex;
+import edu.stanford.nlp.mt.util.IOTools;
+import edu.stanford.nlp.stats.ClassicCounter;
+import edu.stanford.nlp.stats.Counter;
+
+/**
+ * Unit test for the weight cache of {@link SparseScorer}.
+ */
+public class SparseScorerTest extends TestCase {
+
+  public void testUpdateWeightsReplacesCachedWeights() {
+    final String dense = "SparseScorerTest.dense";
+    final int denseId = GlobalFeatureIndex.add(dense);
+    Counter<String> weights = new ClassicCounter<>();
+    weights.setCount(dense, 2.0);
+    SparseScorer scorer = new SparseScorer(weights);
+
+    List<FeatureValue<String>> features = new ArrayList<>();
+    features.add(new FeatureValue<String>(dense, 1.5, true, denseId));
+    assertEquals(3.0, scorer.getIncrementalScore(features), 1e-9);
+
+    Counter<String> newWeights = new ClassicCounter<>();
+    newWeights.setCount(dense, -1.0);
+    scorer.updateWeights(newWeights);
+    assertEquals(-1.5, scorer.getIncrementalScore(features), 1e-9);
+  }
+
+  public void testOnlyWeightNamesAreIndexed() {
+    final String sparse = "SparseScorerTest.sparse:a>b";
+    Counter<String> weights = new ClassicCounter<>();
+    weights.setCount(sparse, 0.5);
+    SparseScorer scorer = new SparseScorer(weights);
+
+    List<FeatureValue<String>> features = new ArrayList<>();
+    features.add(new FeatureValue<String>(sparse, 2.0));
+    features.add(new FeatureValue<String>("SparseScorerTest.unweighted", 1.0));
+    final int indexSize = GlobalFeatureIndex.size();
+    assertEquals(1.0, scorer.getIncrementalScore(features), 1e-9);
+    assertEquals(indexSize, GlobalFeatureIndex.size());
+    assertEquals(GlobalFeatureIndex.indexOf(sparse), features.get(0).getId());
+    assertTrue(features.get(0).getId() >= 0);
+    assertEquals(GlobalFeatureIndex.UNKNOWN_ID, features.get(1).getId());
+  }
+
+  public void testWeightsAddedToTheSameCounter() {
+    Counter<String> weights = new ClassicCounter<>();
+    weights.setCount("SparseScorerTest.first", 1.0);
+    SparseScorer scorer = new SparseScorer(weights);
+
+    List<FeatureValue<String>> features = new ArrayList<>();
+    features.add(new FeatureValue<String>("SparseScorerTest.second", 1.0));
+    assertEquals(0.0, scorer.getIncrementalScore(features), 1e-9);
+
+    // The feature cached its absent id, but the index has grown since
+    weights.setCount("SparseScorerTest.second", 3.0);
+    scorer.updateWeights(weights);
+    assertEquals(3.0, scorer.getIncrementalScore(features), 1e-9);
+  }
+
+  public void testWeightsReplacedInTheSameCounter() {
+    Counter<String> weights = new ClassicCounter<>();
+    weights.setCount("SparseScorerTest.removed", 1.0);
+    SparseScorer scorer = new SparseScorer(weights);
+
+    // Same counter and same size, but a new name
+    weights.remove("SparseScorerTest.removed");
+    weights.setCount("SparseScorerTest.replacement", -2.0);
+    scorer.updateWeights(weights);
+    List<FeatureValue<String>> features = new ArrayList<>();
+    features.add(new FeatureValue<String>("SparseScorerTest.replacement", 1.0));
+    features.add(new FeatureValue<String>("SparseScorerTest.removed", 1.0));
+    assertTrue(GlobalFeatureIndex.indexOf("SparseScorerTest.replacement") >= 0);
+    assertEquals(-2.0, scorer.getIncrementalScore(features), 1e-9);
+  }
+
+  public void testSharedWeights() {
+    Counter<String> weights = new ClassicCounter<>();
+    weights.setCount("SparseScorerTest.shared", 1.0);
+    SparseScorer scorer = new SparseScorer(BinaryWeights.fromCounter(weights));
+    SparseScorer sharing = new SparseScorer(scorer);
+    List<FeatureValue<String>> features = new ArrayList<>();
+    features.add(new FeatureValue<String>("SparseScorerTest.shared", 2.0));
+    assertEquals(2.0, sharing.getIncrementalScore(features), 1e-9);
+
+    // Updates are not shared
+    Counter<String> newWeights = new ClassicCounter<>();
+    newWeights.setCount("SparseScorerTest.shared", 4.0);
+    sharing.updateWeights(newWeights);
+    assertEquals(8.0, sharing.getIncrementalScore(features), 1e-9);
+    assertEquals(2.0, scorer.getIncrementalScore(features), 1e-9);
+  }
+
+  public void testDirectLoadMatchesCounter() throws IOException {
+    Counter<String> weights = new ClassicCounter<>();
+    weights.setCount("SparseScorerTest.LM", 0.5);
+    weights.setCount("SparseScorerTest.TM:phi(t|f)", -1.25);
+    weights.setCount("SparseScorerTest.sparse:x>y", 2.0);
+    File file = File.createTempFile("weights", IOTools.WEIGHTS_FILE_EXTENSION);
+    file.deleteOnExit();
+    IOTools.writeWeights(file.getPath(), weights);
+    assertTrue(BinaryWeights.isBinaryWeightsFile(file.getPath()));
+
+    Scorer<String> expected = new SparseScorer(weights);
+    Scorer<String> actual = ScorerFactory.factory(ScorerFactory.SPARSE_SCORER, file.getPath());
+    List<FeatureValue<String>> features = new ArrayList<>();
+    for (String featureName : weights.keySet()) {
+      features.add(new FeatureValue<String>(featureName, 3.0));
+    }
+    features.add(new FeatureValue<String>("SparseScorerTest.unweighted", 1.0));
+    assertEquals(expected.getIncrementalScore(features), actual.getIncrementalScore(features), 1e-9);
+    Counter<String> loaded = ((SparseScorer) actual).getWeightVector();
+    assertEquals(weights.keySet(), loaded.keySet());
+    for (String featureName : weights.keySet()) {
+      assertEquals(weights.getCount(featureName), loaded.getCount(featureName), 0.0);
+    }
+  }
+}
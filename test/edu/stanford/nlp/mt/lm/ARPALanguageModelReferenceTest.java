@@ -0,0 +1,133 @@
+package edu.stanford.nlp.mt.lm;
+
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import edu.stanford.nlp.mt.util.IOTools;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.IStrings;
+import edu.stanford.nlp.mt.util.Sequence;
+import edu.stanford.nlp.mt.util.Sequences;
+import edu.stanford.nlp.mt.util.TokenUtils;
+
+/**
+ * Compares the id-based scoring path of {@link ARPALanguageModel} with a direct
+ * implementation of the recursive backoff definition.
+ */
+public class ARPALanguageModelReferenceTest extends TestCase {
+
+  private static final String ARPA_FILE = "test-resources/inputs/mt06.flt_giga.lm.gz";
+
+  private static final String[] SENTENCES = {
+    "the united states and china have agreed to hold talks on the issue",
+    "he said that the government would not accept the proposal",
+    "this is a test sentence to be scored by the language model",
+    "zzyzx qwerty the",
+  };
+
+  /**
+   * The recursive model. Values are {log prob, log backoff}.
+   */
+  private static class RecursiveModel {
+    final Map<String,float[]> ngrams = new HashMap<>();
+    int order;
+
+    RecursiveModel(String filename) throws IOException {
+      final float log10LogConstant = (float) Math.log(10);
+      LineNumberReader reader = IOTools.getReaderFromFile(filename);
+      boolean inSection = false;
+      for (String line; (line = reader.readLine()) != null;) {
+        line = line.trim();
+        if (line.matches("\\\\\\d+-grams:")) {
+          inSection = true;
+          ++order;
+        } else if (line.startsWith("\\")) {
+          inSection = false;
+        } else if (inSection && line.length() > 0) {
+          String[] fields = line.split("\\s+");
+          StringBuilder key = new StringBuilder();
+          for (int i = 1; i <= order; ++i) {
+            if (i > 1) key.append(' ');
+            key.append(fields[i]);
+          }
+          float prob = Float.parseFloat(fields[0]) * log10LogConstant;
+          float bow = fields.length > order + 1 ?
+              Float.parseFloat(fields[order + 1]) * log10LogConstant : Float.NaN;
+          ngrams.put(key.toString(), new float[] { prob, bow });
+        }
+      }
+      reader.close();
+    }
+
+    /**
+     * Returns {score} and stores the matched context in state[0].
+     */
+    double scoreNgram(Sequence<IString> ngram, Sequence<IString>[] state) {
+      float[] entry = ngrams.get(ngram.toString());
+      if (entry != null) {
+        state[0] = ngram.subsequence(1, ngram.size());
+        return entry[0];
+      }
+      if (ngram.size() == 1) {
+        float[] unk = ngrams.get(TokenUtils.UNK_TOKEN.toString());
+        state[0] = ngram.subsequence(0, 0);
+        return unk == null ? ARPALanguageModel.UNKNOWN_WORD_SCORE : unk[0];
+      }
+      float[] prefix = ngrams.get(ngram.subsequence(0, ngram.size() - 1).toString());
+      double bow = prefix == null ? 0.0 : prefix[1];
+      if (Double.isNaN(bow)) bow = 0.0;
+      return bow + scoreNgram(ngram.subsequence(1, ngram.size()), state);
+    }
+
+    @SuppressWarnings("unchecked")
+    double score(Sequence<IString> sequence, int startOffsetIndex, Sequence<IString>[] state) {
+      double score = 0.0;
+      state[0] = sequence.subsequence(0, 0);
+      for (int pos = startOffsetIndex; pos < sequence.size(); ++pos) {
+        Sequence<IString>[] ngramState = new Sequence[1];
+        score += scoreNgram(sequence.subsequence(Math.max(0, pos - order + 1), pos + 1), ngramState);
+        state[0] = ngramState[0];
+      }
+      return score;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testMatchesRecursiveDefinition() throws IOException {
+    ARPALanguageModel lm = (ARPALanguageModel) LanguageModelFactory.load(ARPA_FILE);
+    RecursiveModel reference = new RecursiveModel(ARPA_FILE);
+    assertEquals(reference.order, lm.order());
+    for (String sentence : SENTENCES) {
+      Sequence<IString> seq = Sequences.wrapStartEnd(IStrings.tokenize(sentence),
+          lm.getStartToken(), lm.getEndToken());
+      Sequence<IString>[] expectedState = new Sequence[1];
+      double expected = reference.score(seq, 1, expectedState);
+      ARPALMState fromSequence = (ARPALMState) lm.score(seq, 1, null);
+      ARPALMState fromIds = (ARPALMState) lm.score(Sequences.toIntArray(seq), 1, null);
+      assertEquals(sentence, expected, fromSequence.getScore(), 0.0);
+      assertEquals(sentence, expected, fromIds.getScore(), 0.0);
+      assertTrue(sentence, Arrays.equals(Sequences.toIntArray(expectedState[0]), fromIds.getState()));
+      assertEquals(sentence, fromSequence, fromIds);
+
+      // Continue scoring from the state of a prefix, which is how the decoder queries the LM
+      for (int k = 2; k < seq.size(); ++k) {
+        ARPALMState prefix = (ARPALMState) lm.score(Sequences.toIntArray(seq.subsequence(0, k)), 1, null);
+        Sequence<IString>[] referencePrefix = new Sequence[1];
+        reference.score(seq.subsequence(0, k), 1, referencePrefix);
+        assertTrue(sentence, Arrays.equals(Sequences.toIntArray(referencePrefix[0]), prefix.getState()));
+
+        Sequence<IString> suffix = seq.subsequence(k, seq.size());
+        Sequence<IString> withContext = Sequences.concatenate(referencePrefix[0], suffix);
+        double expectedSuffix = reference.score(withContext, referencePrefix[0].size(), expectedState);
+        ARPALMState actual = (ARPALMState) lm.score(Sequences.toIntArray(suffix), 0, prefix);
+        assertEquals(sentence, expectedSuffix, actual.getScore(), 0.0);
+        assertTrue(sentence, Arrays.equals(Sequences.toIntArray(expectedState[0]), actual.getState()));
+        assertEquals(sentence, lm.score(suffix, 0, prefix), actual);
+      }
+    }
+  }
+}
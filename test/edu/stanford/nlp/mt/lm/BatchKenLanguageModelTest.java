@@ -0,0 +1,109 @@
+package edu.stanford.nlp.mt.lm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.IStrings;
+import edu.stanford.nlp.mt.util.Sequence;
+import edu.stanford.nlp.mt.util.Sequences;
+
+/**
+ * Compares the batch queries of {@link BatchKenLanguageModel} with the
+ * per-query results of {@link KenLanguageModel}. Skipped if the KenLM
+ * native library is not on <code>java.library.path</code>.
+ */
+public class BatchKenLanguageModelTest extends TestCase {
+
+  private static final String LM_FILE = "test-resources/inputs/kenlm.bin";
+
+  private static final String[] SENTENCES = {
+    "the united states and china have agreed to hold talks on the issue",
+    "he said that the government would not accept the proposal",
+    "this is a test sentence to be scored by the language model",
+    "zzyzx qwerty the",
+  };
+
+  private static boolean hasNativeLibrary() {
+    try {
+      System.loadLibrary("PhrasalKenLM");
+      return true;
+    } catch (UnsatisfiedLinkError e) {
+      System.err.printf("%s: skipped since the KenLM library is not available: %s%n",
+          BatchKenLanguageModelTest.class.getName(), e.getMessage());
+      return false;
+    }
+  }
+
+  public void testBatchMatchesSingleQueries() {
+    if ( ! hasNativeLibrary()) return;
+    KenLanguageModel lm = new KenLanguageModel(LM_FILE);
+    BatchKenLanguageModel batchLm = new BatchKenLanguageModel(LM_FILE);
+
+    // Split each sentence into phrases that are scored from the state of the prefix,
+    // as in the decoder. The first phrase includes the start token.
+    for (int phraseLength = 1; phraseLength <= 4; ++phraseLength) {
+      List<int[]> queries = new ArrayList<>();
+      List<Integer> startIndices = new ArrayList<>();
+      List<LMState> priorStates = new ArrayList<>();
+      List<LMState> expected = new ArrayList<>();
+      for (String sentence : SENTENCES) {
+        Sequence<IString> seq = Sequences.wrapStartEnd(IStrings.tokenize(sentence),
+            lm.getStartToken(), lm.getEndToken());
+        LMState priorState = null;
+        for (int start = 0, end; start < seq.size(); start = end) {
+          final int startIndex = start == 0 ? 1 : 0;
+          end = Math.min(seq.size(), start + startIndex + phraseLength);
+          Sequence<IString> phrase = seq.subsequence(start, end);
+          queries.add(Sequences.toIntArray(phrase));
+          startIndices.add(startIndex);
+          priorStates.add(priorState);
+          priorState = lm.score(phrase, startIndex, priorState);
+          expected.add(priorState);
+        }
+      }
+
+      final int numQueries = queries.size();
+      int[] startIndexArray = new int[numQueries];
+      for (int i = 0; i < numQueries; ++i) startIndexArray[i] = startIndices.get(i);
+      LMState[] actual = batchLm.score(queries.toArray(new int[numQueries][]), startIndexArray,
+          priorStates.toArray(new LMState[numQueries]));
+      assertEquals(numQueries, actual.length);
+      for (int i = 0; i < numQueries; ++i) {
+        assertEquals(expected.get(i).getScore(), actual[i].getScore(), 1e-6);
+        assertEquals(expected.get(i), actual[i]);
+        // Single queries through the batch model
+        LMState single = batchLm.score(queries.get(i), startIndexArray[i], priorStates.get(i));
+        assertEquals(expected.get(i).getScore(), single.getScore(), 1e-6);
+        assertEquals(expected.get(i), single);
+      }
+    }
+  }
+
+  public void testLargeBatch() {
+    if ( ! hasNativeLibrary()) return;
+    KenLanguageModel lm = new KenLanguageModel(LM_FILE);
+    BatchKenLanguageModel batchLm = new BatchKenLanguageModel(LM_FILE);
+
+    // Larger than the initial capacity of the direct buffers
+    final int numQueries = 2000;
+    int[][] queries = new int[numQueries][];
+    int[] startIndices = new int[numQueries];
+    LMState[] priorStates = new LMState[numQueries];
+    for (int i = 0; i < numQueries; ++i) {
+      Sequence<IString> seq = Sequences.wrapStart(IStrings.tokenize(SENTENCES[i % SENTENCES.length]),
+          lm.getStartToken());
+      queries[i] = Sequences.toIntArray(seq);
+      startIndices[i] = 1;
+    }
+    LMState[] actual = batchLm.score(queries, startIndices, priorStates);
+    for (int i = 0; i < numQueries; ++i) {
+      Sequence<IString> seq = Sequences.wrapStart(IStrings.tokenize(SENTENCES[i % SENTENCES.length]),
+          lm.getStartToken());
+      LMState expected = lm.score(seq, 1, null);
+      assertEquals(expected.getScore(), actual[i].getScore(), 1e-6);
+      assertEquals(expected, actual[i]);
+    }
+  }
+}
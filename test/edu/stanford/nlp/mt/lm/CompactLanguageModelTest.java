@@ -0,0 +1,128 @@
+package edu.stanford.nlp.mt.lm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import edu.stanford.nlp.mt.util.IOTools;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.IStrings;
+import edu.stanford.nlp.mt.util.Sequence;
+import edu.stanford.nlp.mt.util.Sequences;
+
+/**
+ * Compares the compact language model with {@link ARPALanguageModel}.
+ */
+public class CompactLanguageModelTest extends TestCase {
+
+  private static final String ARPA_FILE = "test-resources/inputs/mt06.flt_giga.lm.gz";
+
+  // Trigrams below this log10 probability are pruned
+  private static final double PRUNE_THRESHOLD = -1.0;
+
+  private static final String[] SENTENCES = {
+    "the united states and china have agreed to hold talks on the issue",
+    "he said that the government would not accept the proposal",
+    "this is a test sentence to be scored by the language model",
+    "zzyzx qwerty the",
+  };
+
+  private static String build(double pruneThreshold) throws IOException {
+    File file = File.createTempFile("compact-lm", ".bin");
+    file.deleteOnExit();
+    CompactLanguageModel.build(ARPA_FILE, file.getPath(), 16, pruneThreshold);
+    return file.getPath();
+  }
+
+  public void testScoresMatchARPA() throws IOException {
+    ARPALanguageModel arpa = (ARPALanguageModel) LanguageModelFactory.load(ARPA_FILE);
+    CompactLanguageModel compact = new CompactLanguageModel(build(Double.NEGATIVE_INFINITY));
+    assertEquals(arpa.order(), compact.order());
+    for (String sentence : SENTENCES) {
+      Sequence<IString> seq = Sequences.wrapStartEnd(IStrings.tokenize(sentence),
+          arpa.getStartToken(), arpa.getEndToken());
+      ARPALMState expected = (ARPALMState) arpa.score(seq, 1, null);
+      ARPALMState actual = (ARPALMState) compact.score(seq, 1, null);
+      // 16-bit quantization error is well below 1e-3 per token
+      assertEquals(sentence, expected.getScore(), actual.getScore(), 1e-3 * seq.size());
+      assertEquals(sentence, expected, actual);
+
+      // Continue scoring from the state of a prefix
+      for (int k = 2; k < seq.size(); ++k) {
+        LMState arpaPrefix = arpa.score(seq.subsequence(0, k), 1, null);
+        LMState compactPrefix = compact.score(seq.subsequence(0, k), 1, null);
+        LMState arpaState = arpa.score(seq.subsequence(k, seq.size()), 0, arpaPrefix);
+        LMState compactState = compact.score(seq.subsequence(k, seq.size()), 0, compactPrefix);
+        assertEquals(sentence, arpaState.getScore(), compactState.getScore(), 1e-3 * seq.size());
+        assertEquals(sentence, arpaState, compactState);
+      }
+    }
+  }
+
+  /**
+   * After pruning, the conditional distributions of the affected contexts still
+   * sum to one up to quantization error, because their backoff weights are recomputed.
+   */
+  public void testPruningRenormalizesBackoffs() throws IOException {
+    CompactLanguageModel full = new CompactLanguageModel(build(Double.NEGATIVE_INFINITY));
+    CompactLanguageModel pruned = new CompactLanguageModel(build(PRUNE_THRESHOLD));
+    List<int[]> contexts = prunedContexts(5);
+    assertEquals(5, contexts.size());
+    List<IString> vocabulary = unigrams();
+    for (int[] context : contexts) {
+      double fullMass = 0.0;
+      double prunedMass = 0.0;
+      for (IString word : vocabulary) {
+        int[] ngram = { context[0], context[1], word.id };
+        fullMass += Math.exp(full.score(ngram, 2, null).getScore());
+        prunedMass += Math.exp(pruned.score(ngram, 2, null).getScore());
+      }
+      assertEquals(fullMass, prunedMass, 1e-2);
+    }
+  }
+
+  private static List<IString> unigrams() throws IOException {
+    List<IString> words = new ArrayList<>();
+    LineNumberReader reader = IOTools.getReaderFromFile(ARPA_FILE);
+    boolean inSection = false;
+    for (String line; (line = reader.readLine()) != null;) {
+      if (line.startsWith("\\1-grams:")) {
+        inSection = true;
+      } else if (line.startsWith("\\2-grams:")) {
+        break;
+      } else if (inSection && line.trim().length() > 0) {
+        String[] fields = line.trim().split("\\s+");
+        words.add(new IString(fields[1]));
+      }
+    }
+    reader.close();
+    return words;
+  }
+
+  private static List<int[]> prunedContexts(int maxContexts) throws IOException {
+    Set<String> contexts = new LinkedHashSet<>();
+    LineNumberReader reader = IOTools.getReaderFromFile(ARPA_FILE);
+    boolean inSection = false;
+    for (String line; (line = reader.readLine()) != null && contexts.size() < maxContexts;) {
+      if (line.startsWith("\\3-grams:")) {
+        inSection = true;
+      } else if (inSection && line.trim().length() > 0 && ! line.startsWith("\\")) {
+        String[] fields = line.trim().split("\\s+");
+        if (Double.parseDouble(fields[0]) < PRUNE_THRESHOLD) {
+          contexts.add(fields[1] + " " + fields[2]);
+        }
+      }
+    }
+    reader.close();
+    List<int[]> ids = new ArrayList<>();
+    for (String context : contexts) {
+      ids.add(Sequences.toIntArray(IStrings.tokenize(context)));
+    }
+    return ids;
+  }
+}
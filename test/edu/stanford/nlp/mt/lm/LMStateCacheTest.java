@@ -0,0 +1,46 @@
+package edu.stanford.nlp.mt.lm;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the LM state cache.
+ */
+public class LMStateCacheTest extends TestCase {
+
+  public void testHitAndMiss() {
+    LMStateCache cache = new LMStateCache(16);
+    cache.reset(0);
+    LMState prior = new ARPALMState(-1.0, new int[] { 4, 5 });
+    LMState result = new ARPALMState(-2.0, new int[] { 5, 6 });
+    int[] query = new int[] { 6 };
+    int hash = LMStateCache.hash(prior, query, 0);
+    assertNull(cache.get(hash, prior, query, 0));
+    cache.put(hash, prior, query, 0, result);
+
+    // Equal, but not identical, keys
+    LMState equalPrior = new ARPALMState(-3.0, new int[] { 4, 5 });
+    int[] equalQuery = new int[] { 6 };
+    int equalHash = LMStateCache.hash(equalPrior, equalQuery, 0);
+    assertEquals(hash, equalHash);
+    assertSame(result, cache.get(equalHash, equalPrior, equalQuery, 0));
+
+    // Different start index and prior state
+    assertNull(cache.get(LMStateCache.hash(prior, query, 1), prior, query, 1));
+    LMState otherPrior = new ARPALMState(-1.0, new int[] { 4, 7 });
+    assertNull(cache.get(LMStateCache.hash(otherPrior, query, 0), otherPrior, query, 0));
+  }
+
+  public void testNullPriorAndReset() {
+    LMStateCache cache = new LMStateCache(10);
+    assertEquals(16, cache.capacity());
+    cache.reset(3);
+    assertEquals(3, cache.sourceInputId());
+    int[] query = new int[] { 1, 2, 3 };
+    LMState result = new ARPALMState(-2.0, new int[] { 2, 3 });
+    int hash = LMStateCache.hash(null, query, 1);
+    cache.put(hash, null, query, 1, result);
+    assertSame(result, cache.get(hash, null, query, 1));
+    cache.reset(4);
+    assertNull(cache.get(hash, null, query, 1));
+  }
+}
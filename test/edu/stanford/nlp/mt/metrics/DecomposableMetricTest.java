@@ -0,0 +1,99 @@
+package edu.stanford.nlp.mt.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.IStrings;
+import edu.stanford.nlp.mt.util.Sequence;
+
+/**
+ * Checks that the score of the summed sufficient statistics of each
+ * {@link DecomposableMetric} equals the score of its incremental metric.
+ */
+public class DecomposableMetricTest extends TestCase {
+
+  private static final String[][] REFERENCES = {
+    { "the cat sat on the mat", "there is a cat on the mat" },
+    { "he said that the government would not accept the proposal",
+      "the government will not accept the proposal , he said" },
+    { "talks on the issue will be held next week", "the talks will be held next week" },
+    { "this is a test", "this is only a test" },
+    { "the united states and china have agreed to hold talks",
+      "china and the united states agreed to talks" },
+  };
+
+  private static final String[] TRANSLATIONS = {
+    "the cat is on the mat",
+    "he said the government would not accept proposal",
+    "the talks on the issue next week",
+    "a test",
+    "the united states and china agreed to hold talks on the issue",
+  };
+
+  private static List<List<Sequence<IString>>> references() {
+    List<List<Sequence<IString>>> referencesList = new ArrayList<>();
+    for (String[] references : REFERENCES) {
+      List<Sequence<IString>> segment = new ArrayList<>();
+      for (String reference : references) segment.add(IStrings.tokenize(reference));
+      referencesList.add(segment);
+    }
+    return referencesList;
+  }
+
+  private static List<Sequence<IString>> translations() {
+    List<Sequence<IString>> translations = new ArrayList<>();
+    for (String translation : TRANSLATIONS) translations.add(IStrings.tokenize(translation));
+    return translations;
+  }
+
+  private static <M extends AbstractMetric<IString,String> & DecomposableMetric<IString>>
+  void assertDecomposes(M metric) {
+    List<Sequence<IString>> translations = translations();
+    assertTrue(metric.isDecomposable());
+    double[] sum = new double[metric.numSufficientStatistics()];
+    for (int i = 0; i < translations.size(); ++i) {
+      double[] stats = metric.sufficientStatistics(translations.get(i), i);
+      assertEquals(sum.length, stats.length);
+      for (int j = 0; j < sum.length; ++j) sum[j] += stats[j];
+    }
+    final double expected = metric.scoreSeq(translations);
+    assertEquals(expected, metric.scoreStatistics(sum), 1e-9);
+
+    // A prefix of the corpus
+    double[] prefix = new double[sum.length];
+    IncrementalEvaluationMetric<IString,String> incMetric = metric.getIncrementalMetric();
+    for (int i = 0; i < 3; ++i) {
+      double[] stats = metric.sufficientStatistics(translations.get(i), i);
+      for (int j = 0; j < prefix.length; ++j) prefix[j] += stats[j];
+      incMetric.add(translations.get(i));
+    }
+    assertEquals(incMetric.score(), metric.scoreStatistics(prefix), 1e-9);
+  }
+
+  public void testBLEU() {
+    assertDecomposes(new BLEUMetric<IString,String>(references()));
+  }
+
+  public void testSmoothedBLEU() {
+    assertDecomposes(new BLEUMetric<IString,String>(references(), true));
+  }
+
+  public void testNIST() {
+    assertDecomposes(new NISTMetric<IString,String>(references()));
+  }
+
+  public void testTERp() {
+    assertDecomposes(new TERpMetric<IString,String>(references()));
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testLinearCombination() {
+    List<List<Sequence<IString>>> references = references();
+    assertDecomposes(new LinearCombinationMetric<IString,String>(new double[] { 1.0, 0.5 },
+        new BLEUMetric<IString,String>(references), new TERpMetric<IString,String>(references)));
+    assertFalse(new LinearCombinationMetric<IString,String>(new double[] { 1.0 },
+        new WERMetric<IString,String>(references)).isDecomposable());
+  }
+}
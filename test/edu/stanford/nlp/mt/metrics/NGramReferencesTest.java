@@ -0,0 +1,56 @@
+package edu.stanford.nlp.mt.metrics;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import edu.stanford.nlp.mt.util.Sequence;
+import edu.stanford.nlp.mt.util.SimpleSequence;
+
+/**
+ * Unit test for reference n-gram statistics.
+ */
+public class NGramReferencesTest extends TestCase {
+
+  private static Sequence<String> toSequence(String s) {
+    return new SimpleSequence<String>(s.split("\\s+"));
+  }
+
+  public void testClippedMatches() {
+    List<Sequence<String>> refs = Arrays.asList(toSequence("the cat sat on the mat"),
+        toSequence("there is a cat on the mat"));
+    NGramReferences ngrams = new NGramReferences(refs, 4);
+    assertEquals(6, ngrams.minLength());
+
+    // "the" occurs at most twice in a reference
+    double[] counts = ngrams.matchCounts(toSequence("the the the cat"));
+    assertEquals(3.0, counts[0]);
+    assertEquals(1.0, counts[1]);
+
+    counts = ngrams.matchCounts(toSequence("a cat on the mat"));
+    assertEquals(5.0, counts[0]);
+    assertEquals(4.0, counts[1]);
+    assertEquals(3.0, counts[2]);
+    assertEquals(2.0, counts[3]);
+  }
+
+  public void testNGramIds() {
+    long[][] ids = NGramReferences.ngramIds(new int[] {1, 2, 1, 2}, 3);
+    assertEquals(4, ids[0].length);
+    assertEquals(3, ids[1].length);
+    assertEquals(2, ids[2].length);
+    assertEquals(ids[0][0], ids[0][2]);
+    assertEquals(ids[1][0], ids[1][2]);
+    assertFalse(ids[1][0] == ids[1][1]);
+    assertFalse(ids[0][0] == ids[1][0]);
+  }
+
+  public void testSmoothScore() {
+    List<Sequence<String>> refs = Arrays.asList(toSequence("the cat sat on the mat"));
+    Sequence<String> translation = toSequence("the cat sat on the mat");
+    assertEquals(1.0, BLEUMetric.computeLocalSmoothScore(translation, refs, 4, false), 1e-9);
+    assertEquals(BLEUMetric.computeLocalSmoothScore(translation, refs, 4, true),
+        BLEUMetric.computeLocalSmoothScore(translation, new NGramReferences(refs, 4), true), 1e-9);
+  }
+}
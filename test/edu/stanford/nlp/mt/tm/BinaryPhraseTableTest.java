@@ -0,0 +1,78 @@
+package edu.stanford.nlp.mt.tm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import edu.stanford.nlp.mt.util.IOTools;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.IStrings;
+import edu.stanford.nlp.mt.util.Sequence;
+import edu.stanford.nlp.util.StringUtils;
+
+/**
+ * Compiles a text phrase table to the binary format and checks that the
+ * binary table returns the same rules as {@link CompiledPhraseTable}.
+ */
+public class BinaryPhraseTableTest extends TestCase {
+
+  private static final String PHRASE_TABLE = "test-resources/inputs/dev12tune.phrase-table.gz";
+
+  public void testRoundTrip() throws IOException {
+    File binaryFile = File.createTempFile("phrase-table", BinaryPhraseTable.FILE_EXTENSION);
+    binaryFile.deleteOnExit();
+    BinaryPhraseTable.compile(PHRASE_TABLE, binaryFile.getPath());
+    CompiledPhraseTable<String> textTable = new CompiledPhraseTable<>(PHRASE_TABLE);
+    BinaryPhraseTable<String> binaryTable = new BinaryPhraseTable<>(binaryFile.getPath());
+
+    assertEquals(textTable.getFeatureNames(), binaryTable.getFeatureNames());
+    assertEquals(textTable.longestSourcePhrase(), binaryTable.longestSourcePhrase());
+    assertEquals(textTable.longestTargetPhrase(), binaryTable.longestTargetPhrase());
+
+    Set<String> sources = new HashSet<>();
+    LineNumberReader reader = IOTools.getReaderFromFile(PHRASE_TABLE);
+    for (String line; (line = reader.readLine()) != null;) {
+      sources.add(StringUtils.join(
+          StringUtils.splitFieldsFast(line, CompiledPhraseTable.FIELD_DELIM).get(0)));
+    }
+    reader.close();
+
+    int numRules = 0;
+    for (String source : sources) {
+      Sequence<IString> sourceSequence = IStrings.tokenize(source);
+      List<Rule<IString>> expected = sorted(textTable.query(sourceSequence));
+      List<Rule<IString>> actual = sorted(binaryTable.query(sourceSequence));
+      assertEquals(source, expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); ++i) {
+        Rule<IString> e = expected.get(i);
+        Rule<IString> a = actual.get(i);
+        assertEquals(e.target, a.target);
+        assertEquals(e.source, a.source);
+        assertTrue(Arrays.equals(e.scores, a.scores));
+        assertEquals(e.alignment, a.alignment);
+        assertEquals(textTable.getId(sourceSequence, e.target) >= 0,
+            binaryTable.getId(sourceSequence, a.target) >= 0);
+      }
+      numRules += actual.size();
+    }
+    assertEquals(8927, numRules);
+    assertEquals(8927, binaryTable.size());
+
+    // Unknown source phrases
+    assertNull(binaryTable.query(IStrings.tokenize("not-in-the-table")));
+  }
+
+  private static List<Rule<IString>> sorted(List<Rule<IString>> rules) {
+    List<Rule<IString>> list = new ArrayList<>(rules);
+    list.sort(Comparator.comparing((Rule<IString> r) -> r.target.toString())
+        .thenComparing(r -> Arrays.toString(r.scores)));
+    return list;
+  }
+}
@@ -0,0 +1,88 @@
+package edu.stanford.nlp.mt.tm;
+
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import edu.stanford.nlp.mt.decoder.feat.base.TranslationModelFeaturizer;
+import edu.stanford.nlp.mt.util.IOTools;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.IStrings;
+import edu.stanford.nlp.mt.util.Sequence;
+import edu.stanford.nlp.stats.ClassicCounter;
+import edu.stanford.nlp.stats.Counter;
+import edu.stanford.nlp.util.StringUtils;
+
+/**
+ * Unit test for load-time rule pruning in {@link CompiledPhraseTable}.
+ */
+public class CompiledPhraseTableTest extends TestCase {
+
+  private static final String PHRASE_TABLE = "test-resources/inputs/dev12tune.phrase-table.gz";
+
+  private static double score(Rule<IString> rule, double[] weights) {
+    double score = 0.0;
+    for (int i = 0; i < weights.length; ++i) score += weights[i] * rule.scores[i];
+    return score;
+  }
+
+  public void testPruningKeepsTopRules() throws IOException {
+    final int ruleLimit = 3;
+    CompiledPhraseTable<String> table = new CompiledPhraseTable<>(PHRASE_TABLE);
+    List<String> scoreNames = table.getFeatureNames();
+    // Only some scores are weighted, so that many rules tie
+    final double[] weights = new double[scoreNames.size()];
+    weights[0] = 1.0;
+    weights[2] = 0.5;
+    weights[scoreNames.size() - 1] = -2.0;
+    Counter<String> model = new ClassicCounter<>();
+    for (int i = 0; i < weights.length; ++i) {
+      if (weights[i] != 0.0) {
+        model.setCount(TranslationModelFeaturizer.FEATURE_PREFIX + ":" + scoreNames.get(i), weights[i]);
+      }
+    }
+    CompiledPhraseTable<String> prunedTable = new CompiledPhraseTable<>(
+        CompiledPhraseTable.DEFAULT_FEATURE_PREFIX, PHRASE_TABLE, ruleLimit, model);
+
+    Set<String> sources = new HashSet<>();
+    LineNumberReader reader = IOTools.getReaderFromFile(PHRASE_TABLE);
+    for (String line; (line = reader.readLine()) != null;) {
+      sources.add(StringUtils.join(
+          StringUtils.splitFieldsFast(line, CompiledPhraseTable.FIELD_DELIM).get(0)));
+    }
+    reader.close();
+
+    int numPruned = 0;
+    for (String source : sources) {
+      Sequence<IString> sourceSequence = IStrings.tokenize(source);
+      // Rule ids follow the order of the file in both tables
+      List<Rule<IString>> expected = new ArrayList<>(table.query(sourceSequence));
+      expected.sort(Comparator.comparingDouble((Rule<IString> r) -> -score(r, weights))
+          .thenComparingInt(r -> r.id));
+      expected = expected.subList(0, Math.min(ruleLimit, expected.size()));
+      List<Rule<IString>> actual = prunedTable.query(sourceSequence);
+      assertEquals(source, expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); ++i) {
+        assertEquals(source, expected.get(i).target, actual.get(i).target);
+        assertEquals(source, score(expected.get(i), weights), score(actual.get(i), weights), 1e-6);
+        assertTrue(prunedTable.getId(sourceSequence, actual.get(i).target) >= 0);
+      }
+      numPruned += table.query(sourceSequence).size() - actual.size();
+    }
+    assertTrue(numPruned > 0);
+  }
+
+  public void testNoPruningWithoutWeights() throws IOException {
+    CompiledPhraseTable<String> table = new CompiledPhraseTable<>(PHRASE_TABLE);
+    CompiledPhraseTable<String> unprunedTable = new CompiledPhraseTable<>(
+        CompiledPhraseTable.DEFAULT_FEATURE_PREFIX, PHRASE_TABLE, 1, null);
+    Sequence<IString> source = IStrings.tokenize("的");
+    assertEquals(table.query(source).size(), unprunedTable.query(source).size());
+    assertTrue(table.query(source).size() > 1);
+  }
+}
@@ -0,0 +1,145 @@
+package edu.stanford.nlp.mt.tm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+import edu.stanford.nlp.mt.decoder.feat.base.TranslationModelFeaturizer;
+import edu.stanford.nlp.mt.decoder.util.SparseScorer;
+import edu.stanford.nlp.mt.tm.RuleCache.RuleTemplate;
+import edu.stanford.nlp.mt.util.FeatureValue;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.IStrings;
+import edu.stanford.nlp.mt.util.InputProperties;
+import edu.stanford.nlp.mt.util.InputProperty;
+import edu.stanford.nlp.mt.util.Sequence;
+import edu.stanford.nlp.stats.ClassicCounter;
+import edu.stanford.nlp.stats.Counter;
+
+/**
+ * Unit test for {@link RuleCache} and for the cached query path of
+ * {@link AbstractPhraseGenerator}.
+ */
+public class RuleCacheTest extends TestCase {
+
+  private static final String PHRASE_TABLE = "test-resources/inputs/dev12tune.phrase-table.gz";
+
+  private static List<RuleTemplate<IString,String>> templates(String target) {
+    Rule<IString> rule = new Rule<>(new float[] { 1.0f }, new String[] { "p" },
+        IStrings.tokenize(target), IStrings.tokenize("src"), null);
+    return Collections.singletonList(new RuleTemplate<IString,String>(rule,
+        Collections.<FeatureValue<String>>emptyList()));
+  }
+
+  public void testHitsAndMisses() {
+    RuleCache<IString,String> cache = new RuleCache<>(100);
+    Sequence<IString> source = IStrings.tokenize("a b");
+    assertNull(cache.get(source, null));
+    List<RuleTemplate<IString,String>> rules = templates("x");
+    cache.put(source, null, rules);
+    // Equal keys built from a different sequence also hit
+    assertSame(rules, cache.get(IStrings.tokenize("a b"), null));
+    assertSame(rules, cache.get(source, null));
+
+    // Empty query results are cached too
+    List<RuleTemplate<IString,String>> empty = Collections.emptyList();
+    cache.put(IStrings.tokenize("c"), null, empty);
+    assertSame(empty, cache.get(IStrings.tokenize("c"), null));
+
+    assertEquals(3, cache.hits());
+    assertEquals(1, cache.misses());
+    assertEquals(0.75, cache.hitRate(), 1e-9);
+    assertEquals(2, cache.size());
+    assertEquals(0, cache.evictions());
+
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertNull(cache.get(source, null));
+    assertEquals(2, cache.misses());
+    assertEquals(3, cache.hits());
+  }
+
+  public void testDomainIsPartOfTheKey() {
+    RuleCache<IString,String> cache = new RuleCache<>(100);
+    Sequence<IString> source = IStrings.tokenize("a b");
+    List<RuleTemplate<IString,String>> general = templates("x");
+    List<RuleTemplate<IString,String>> news = templates("y");
+    cache.put(source, null, general);
+    assertNull(cache.get(source, "news"));
+    cache.put(source, "news", news);
+    assertNull(cache.get(source, "web"));
+    assertSame(general, cache.get(source, null));
+    assertSame(news, cache.get(source, "news"));
+    assertEquals(2, cache.size());
+  }
+
+  public void testEvictionPerSegment() {
+    // Sixteen segments of one entry each
+    RuleCache<IString,String> cache = new RuleCache<>(16);
+    List<Sequence<IString>> sources = new ArrayList<>();
+    for (int i = 0; i < 100; ++i) {
+      Sequence<IString> source = IStrings.tokenize("w" + i);
+      sources.add(source);
+      cache.put(source, null, templates("x" + i));
+      // The last entry of a segment is never evicted
+      assertNotNull(cache.get(source, null));
+      assertTrue(cache.size() <= 16);
+      assertEquals(i + 1, cache.size() + cache.evictions());
+    }
+    assertTrue(cache.evictions() > 0);
+
+    // Each segment holds the most recent of the keys that map to it
+    int found = 0;
+    for (Sequence<IString> source : sources) {
+      if (cache.get(source, null) != null) ++found;
+    }
+    assertEquals(cache.size(), found);
+  }
+
+  public void testCachedRulesMatchUncachedRules() throws IOException {
+    CompiledPhraseTable<String> table = new CompiledPhraseTable<>(PHRASE_TABLE);
+    table.setFeaturizer(new TranslationModelFeaturizer(Integer.MAX_VALUE));
+    Counter<String> weights = new ClassicCounter<>();
+    List<String> scoreNames = table.getFeatureNames();
+    for (int i = 0; i < scoreNames.size(); ++i) {
+      weights.setCount(TranslationModelFeaturizer.FEATURE_PREFIX + ":" + scoreNames.get(i),
+          0.1 * (i + 1));
+    }
+    SparseScorer scorer = new SparseScorer(weights);
+    Sequence<IString> source = IStrings.tokenize("必须 依法 尊重 人命 , 不 强拆 家庭 。");
+    InputProperties properties = new InputProperties();
+    properties.put(InputProperty.Domain, "news");
+
+    List<ConcreteRule<IString,String>> expected = table.getRules(source, properties, null, 0, scorer);
+    assertFalse(expected.isEmpty());
+
+    RuleCache<IString,String> cache = new RuleCache<>(1000);
+    table.setRuleCache(cache);
+    // The first query fills the cache and the second one is answered from it
+    assertRulesEqual(expected, table.getRules(source, properties, null, 0, scorer));
+    final long misses = cache.misses();
+    assertRulesEqual(expected, table.getRules(source, properties, null, 0, scorer));
+    assertEquals(misses, cache.misses());
+    assertEquals(misses, cache.hits());
+  }
+
+  private static void assertRulesEqual(List<ConcreteRule<IString,String>> expected,
+      List<ConcreteRule<IString,String>> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); ++i) {
+      ConcreteRule<IString,String> e = expected.get(i);
+      ConcreteRule<IString,String> a = actual.get(i);
+      assertEquals(e.abstractRule.source, a.abstractRule.source);
+      assertEquals(e.abstractRule.target, a.abstractRule.target);
+      assertTrue(Arrays.equals(e.abstractRule.scores, a.abstractRule.scores));
+      assertEquals(e.sourceCoverage, a.sourceCoverage);
+      assertEquals(e.sourcePosition, a.sourcePosition);
+      assertEquals(e.phraseTableName, a.phraseTableName);
+      assertEquals(e.isolationScore, a.isolationScore, 1e-9);
+      assertEquals(e.cachedFeatureList, a.cachedFeatureList);
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package edu.stanford.nlp.mt.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+import edu.stanford.nlp.mt.metrics.BLEUMetric;
+import edu.stanford.nlp.mt.tools.MinimumBayesRisk.NBestStatistics;
+import edu.stanford.nlp.mt.util.IString;
+import edu.stanford.nlp.mt.util.IStrings;
+import edu.stanford.nlp.mt.util.Sequence;
+
+/**
+ * Unit test for the BLEU statistics of {@link MinimumBayesRisk}.
+ */
+public class MinimumBayesRiskTest extends TestCase {
+
+  private static final String[] NBEST = {
+    "the cat sat on the mat",
+    "the cat sat on a mat",
+    "a cat is on the mat",
+    "the the the cat",
+    "on the mat the cat sat on the mat",
+    "dog",
+  };
+
+  private static List<Sequence<IString>> hypotheses() {
+    List<Sequence<IString>> hypotheses = new ArrayList<>();
+    for (String s : NBEST) hypotheses.add(IStrings.tokenize(s));
+    return hypotheses;
+  }
+
+  public void testSentenceBLEUMatchesMetric() {
+    List<Sequence<IString>> hypotheses = hypotheses();
+    NBestStatistics stats = new NBestStatistics(hypotheses, BLEUMetric.DEFAULT_MAX_NGRAM_ORDER);
+    for (int ref = 0; ref < hypotheses.size(); ++ref) {
+      BLEUMetric<IString,String> metric = new BLEUMetric<>(
+          Collections.singletonList(Collections.singletonList(hypotheses.get(ref))));
+      for (int hyp = 0; hyp < hypotheses.size(); ++hyp) {
+        final double expected = metric.scoreSeq(Collections.singletonList(hypotheses.get(hyp)));
+        assertEquals(NBEST[hyp] + " | " + NBEST[ref], expected, stats.sentenceBLEU(hyp, ref), 1e-9);
+      }
+    }
+  }
+
+  public void testExpectedBLEUOfOneEntry() {
+    List<Sequence<IString>> hypotheses = hypotheses();
+    NBestStatistics stats = new NBestStatistics(hypotheses, BLEUMetric.DEFAULT_MAX_NGRAM_ORDER);
+    // With all of the mass on one entry, the expected counts are the counts of that entry
+    for (int ref = 0; ref < hypotheses.size(); ++ref) {
+      double[] posteriors = new double[hypotheses.size()];
+      posteriors[ref] = 1.0;
+      double[] scores = stats.expectedBLEU(posteriors);
+      for (int hyp = 0; hyp < hypotheses.size(); ++hyp) {
+        assertEquals(NBEST[hyp] + " | " + NBEST[ref], stats.sentenceBLEU(hyp, ref), scores[hyp], 1e-9);
+      }
+    }
+  }
+}
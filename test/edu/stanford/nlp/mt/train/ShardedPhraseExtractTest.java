@@ -0,0 +1,167 @@
+package edu.stanford.nlp.mt.train;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+import edu.stanford.nlp.mt.util.IOTools;
+
+/**
+ * Compares {@link ShardedPhraseExtract} with the default extraction of
+ * {@link PhraseExtract} on a small bitext.
+ */
+public class ShardedPhraseExtractTest extends TestCase {
+
+  // source ||| target ||| alignment
+  private static final String[] BITEXT = {
+    "d ||| w ||| 0-0",
+    "d ||| w ||| 0-0",
+    "k l ||| w v u ||| 0-0 1-1 1-2",
+    "k l ||| w v u ||| 0-0 1-1 1-2",
+    "a b c ||| x y z ||| 0-0 1-1 2-2",
+    "a b ||| x y ||| 0-0 1-1",
+    "b c ||| y z ||| 0-0 1-1",
+    "a c ||| z x ||| 0-1 1-0",
+    "a b c ||| x y z ||| 0-0 1-1 2-2",
+    "a b ||| x y ||| 0-0 0-1 1-1",
+    "a b ||| x q y ||| 0-0 1-2",
+    "b c ||| y q z ||| 0-0 1-2",
+    // Over the fertility limit, but counted in c(d) and c(w v u)
+    "d ||| w v u ||| 0-0 0-1 0-2",
+    "d ||| w v u ||| 0-0 0-1 0-2",
+  };
+
+  private static final int MIN_COUNT = 2;
+  private static final int MAX_FERTILITY = 2;
+
+  private File dir;
+  private File bitext;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = Files.createTempDirectory("sharded-phrase-extract-test").toFile();
+    bitext = new File(dir, "bitext.txt");
+    PrintStream out = IOTools.getWriterFromFile(bitext);
+    for (String line : BITEXT) out.println(line);
+    out.close();
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : dir.listFiles()) file.delete();
+    dir.delete();
+  }
+
+  private Properties properties(String outputDir, String outFile) {
+    Properties prop = new Properties();
+    prop.setProperty(PhraseExtract.TRIPLE_FILE, bitext.getPath());
+    prop.setProperty(PhraseExtract.MIN_PHRASE_COUNT, Integer.toString(MIN_COUNT));
+    prop.setProperty(PhraseExtract.MAX_FERTILITY_OPT, Integer.toString(MAX_FERTILITY));
+    prop.setProperty(PhraseExtract.OUTPUT_DIR, outputDir);
+    prop.setProperty(PhraseExtract.FEATURE_EXTRACTORS_OPT, MosesPharoahFeatureExtractor.class.getName()
+        + PhraseExtract.FILE_DELIM + outFile);
+    prop.setProperty(PhraseExtract.THREADS_OPT, "1");
+    return prop;
+  }
+
+  private Properties shardedProperties(String outputDir, String outFile) {
+    Properties prop = properties(outputDir, outFile);
+    prop.setProperty(PhraseExtract.SHARDS_OPT, "2");
+    // Spill after every few phrase pairs
+    prop.setProperty(PhraseExtract.SHARD_BUFFER_OPT, "2");
+    prop.setProperty(PhraseExtract.TMP_DIR_OPT, dir.getPath());
+    prop.setProperty(PhraseExtract.THREADS_OPT, "2");
+    return prop;
+  }
+
+  private static void extract(Properties prop) throws IOException {
+    AbstractPhraseExtractor.setPhraseExtractionProperties(prop);
+    new PhraseExtract(prop).extractAll();
+  }
+
+  /**
+   * Map each rule "f ||| e ||| alignment" to its scores.
+   */
+  private static Map<String,float[]> readRules(File file) throws IOException {
+    Map<String,float[]> rules = new HashMap<>();
+    LineNumberReader reader = IOTools.getReaderFromFile(file);
+    for (String line; (line = reader.readLine()) != null;) {
+      final int delim = line.lastIndexOf(AlignmentTemplate.DELIM);
+      String[] fields = line.substring(delim + AlignmentTemplate.DELIM.length()).trim().split(" ");
+      float[] scores = new float[fields.length];
+      for (int i = 0; i < scores.length; ++i) scores[i] = Float.parseFloat(fields[i]);
+      assertNull(line, rules.put(line.substring(0, delim).trim(), scores));
+    }
+    reader.close();
+    return rules;
+  }
+
+  /**
+   * True if the rule translates f to e, with or without an alignment.
+   */
+  private static boolean hasPhrases(String rule, String f, String e) {
+    return (rule + " |||").startsWith(f + " ||| " + e + " |||");
+  }
+
+  private boolean hasTmpDir() {
+    for (File file : dir.listFiles()) {
+      if (file.isDirectory() && file.getName().startsWith("phrase-extract")) return true;
+    }
+    return false;
+  }
+
+  public void testMatchesDefaultExtraction() throws IOException {
+    extract(properties(dir.getPath(), "default.ptable"));
+    extract(shardedProperties(dir.getPath(), "sharded.ptable"));
+    Map<String,float[]> expected = readRules(new File(dir, "default.ptable"));
+    Map<String,float[]> actual = readRules(new File(dir, "sharded.ptable"));
+
+    assertFalse(expected.isEmpty());
+    assertEquals(expected.keySet(), actual.keySet());
+    for (String rule : expected.keySet()) {
+      float[] e = expected.get(rule);
+      float[] a = actual.get(rule);
+      assertEquals(rule, 4, a.length);
+      assertEquals(rule, e.length, a.length);
+      for (int i = 0; i < e.length; ++i) assertEquals(rule, e[i], a[i], 1e-6);
+    }
+
+    // Filtered by the minimum count and the fertility limit
+    for (String rule : actual.keySet()) {
+      assertFalse(rule, rule.startsWith("a c |||"));
+      assertFalse(rule, hasPhrases(rule, "d", "w v u"));
+    }
+
+    // phi(e|f) and phi(f|e) include the pairs over the fertility limit
+    int numChecked = 0;
+    for (String rule : actual.keySet()) {
+      if (hasPhrases(rule, "d", "w")) {
+        assertEquals(rule, Math.log(0.5), actual.get(rule)[2], 1e-6);
+        ++numChecked;
+      } else if (hasPhrases(rule, "k l", "w v u")) {
+        assertEquals(rule, Math.log(0.5), actual.get(rule)[0], 1e-6);
+        ++numChecked;
+      }
+    }
+    assertEquals(2, numChecked);
+    assertFalse(hasTmpDir());
+  }
+
+  public void testTmpDirIsDeletedOnFailure() throws IOException {
+    // The output directory does not exist, so writing the phrase table fails
+    // after the runs have been merged.
+    try {
+      extract(shardedProperties(new File(dir, "missing").getPath(), "sharded.ptable"));
+      fail();
+    } catch (RuntimeException e) {
+      // Expected
+    }
+    assertFalse(hasTmpDir());
+  }
+}
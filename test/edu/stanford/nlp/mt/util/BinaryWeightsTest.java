@@ -0,0 +1,42 @@
+package edu.stanford.nlp.mt.util;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the binary weights format.
+ */
+public class BinaryWeightsTest extends TestCase {
+
+  public void testRoundTrip() throws IOException {
+    String[] names = new String[] { "LM", "TM:phi(t|f)", "DiscrimPhrase:\u00fcber>over", "" };
+    double[] weights = new double[] { 0.5, -1.25, 1e-9, Double.MIN_VALUE };
+    File file = File.createTempFile("weights", IOTools.WEIGHTS_FILE_EXTENSION);
+    file.deleteOnExit();
+    new BinaryWeights(names, weights).save(file.getPath());
+
+    assertTrue(BinaryWeights.isBinaryWeightsFile(file.getPath()));
+    BinaryWeights loaded = BinaryWeights.load(file.getPath());
+    assertEquals(names.length, loaded.size());
+    for (int i = 0; i < names.length; ++i) {
+      assertEquals(names[i], loaded.names()[i]);
+      assertEquals(weights[i], loaded.weights()[i], 0.0);
+    }
+  }
+
+  public void testEmpty() throws IOException {
+    File file = File.createTempFile("weights", IOTools.WEIGHTS_FILE_EXTENSION);
+    file.deleteOnExit();
+    new BinaryWeights(new String[0], new double[0]).save(file.getPath());
+    assertEquals(0, BinaryWeights.load(file.getPath()).size());
+  }
+
+  public void testNotBinary() throws IOException {
+    File file = File.createTempFile("weights", ".txt");
+    file.deleteOnExit();
+    IOTools.getWriterFromFile(file.getPath()).close();
+    assertFalse(BinaryWeights.isBinaryWeightsFile(file.getPath()));
+  }
+}
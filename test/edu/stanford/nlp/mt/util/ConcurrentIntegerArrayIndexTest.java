@@ -0,0 +1,124 @@
+package edu.stanford.nlp.mt.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ConcurrentIntegerArrayIndexTest {
+  @Test
+  public void testInserts() {
+    ConcurrentIntegerArrayIndex test = new ConcurrentIntegerArrayIndex(16);
+    final int testTo = 100000;
+    for (int i = 0; i < testTo; ++i) {
+      int[] key = new int[] { i, i % 7 };
+      assertEquals(-1, test.indexOf(key));
+      assertEquals(i, test.indexOf(key, true));
+      assertEquals(i, test.indexOf(key, true));
+    }
+    assertEquals(testTo, test.size());
+    for (int i = 0; i < testTo; ++i) {
+      assertArrayEquals(new int[] { i, i % 7 }, test.get(i));
+    }
+    assertNull(test.get(testTo));
+  }
+
+  @Test
+  public void testEmptyKey() {
+    ConcurrentIntegerArrayIndex test = new ConcurrentIntegerArrayIndex();
+    assertEquals(0, test.indexOf(new int[0], true));
+    assertEquals(1, test.indexOf(new int[] { 0 }, true));
+    assertEquals(0, test.indexOf(new int[0]));
+    assertEquals(0, test.get(0).length);
+  }
+
+  @Test
+  public void testLock() {
+    ConcurrentIntegerArrayIndex test = new ConcurrentIntegerArrayIndex();
+    test.indexOf(new int[] { 1, 2 }, true);
+    test.lock();
+    assertEquals(-1, test.indexOf(new int[] { 2, 1 }, true));
+    assertEquals(0, test.indexOf(new int[] { 1, 2 }, true));
+    assertEquals(1, test.size());
+  }
+
+  @Test
+  public void testConcurrentInserts() throws Exception {
+    final ConcurrentIntegerArrayIndex test = new ConcurrentIntegerArrayIndex(16);
+    final int numThreads = 8;
+    final int numKeys = 50000;
+    ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
+    List<Future<int[]>> results = new ArrayList<>();
+    for (int t = 0; t < numThreads; ++t) {
+      final int offset = t * numKeys / numThreads;
+      results.add(threadPool.submit(() -> {
+        int[] ids = new int[numKeys];
+        for (int i = 0; i < numKeys; ++i) {
+          int k = (i + offset) % numKeys;
+          ids[k] = test.indexOf(new int[] { k % 1000, k / 1000 }, true);
+        }
+        return ids;
+      }));
+    }
+    List<int[]> ids = new ArrayList<>();
+    for (Future<int[]> result : results) ids.add(result.get());
+    threadPool.shutdown();
+
+    // Ids are unique, contiguous, and agree across threads
+    assertEquals(numKeys, test.size());
+    boolean[] seen = new boolean[numKeys];
+    for (int k = 0; k < numKeys; ++k) {
+      int id = ids.get(0)[k];
+      for (int[] threadIds : ids) assertEquals(id, threadIds[k]);
+      assertFalse(seen[id]);
+      seen[id] = true;
+      assertArrayEquals(new int[] { k % 1000, k / 1000 }, test.get(id));
+    }
+  }
+
+  @Test
+  public void testLookupsDuringInserts() throws Exception {
+    final ConcurrentIntegerArrayIndex test = new ConcurrentIntegerArrayIndex(16);
+    final int numReaders = 4;
+    final int numKeys = 200000;
+    // Keys [0, inserted) have been inserted
+    final AtomicInteger inserted = new AtomicInteger();
+    ExecutorService threadPool = Executors.newFixedThreadPool(numReaders + 1);
+    List<Future<Integer>> results = new ArrayList<>();
+    for (int t = 0; t < numReaders; ++t) {
+      results.add(threadPool.submit(() -> {
+        int numFound = 0;
+        for (int done; (done = inserted.get()) < numKeys;) {
+          int k = ThreadLocalRandom.current().nextInt(numKeys);
+          int[] key = new int[] { k % 1000, k / 1000 };
+          int id = test.indexOf(key);
+          // Reads during migrations find every key that was inserted before them
+          if (k < done) assertEquals(k, id);
+          if (id >= 0) {
+            assertArrayEquals(key, test.get(id));
+            ++numFound;
+          }
+        }
+        return numFound;
+      }));
+    }
+    try {
+      for (int k = 0; k < numKeys; ++k) {
+        assertEquals(k, test.indexOf(new int[] { k % 1000, k / 1000 }, true));
+        inserted.set(k + 1);
+      }
+      for (Future<Integer> result : results) result.get();
+    } finally {
+      // Stop the readers
+      inserted.set(numKeys);
+      threadPool.shutdown();
+    }
+  }
+}
@@ -58,4 +58,32 @@ public class CoverageSetTest  extends TestCase {
 		   assertTrue(bit.intValue() == bitOrderedSet[i]);
 	   }
    }
+   
+   public void testUnion() {
+     CoverageSet cs1 = new CoverageSet(10);
+     cs1.set(1); cs1.set(2);
+     CoverageSet cs2 = new CoverageSet(10);
+     cs2.set(2); cs2.set(5);
+     CoverageSet union = cs1.union(cs2);
+     assertEquals(3, union.cardinality());
+     assertEquals(2, cs1.cardinality());
+     assertEquals(2, cs2.cardinality());
+     assertTrue(union.get(1) && union.get(2) && union.get(5));
+   }
+   
+   public void testLongCoverage() {
+     CoverageSet cs1 = new CoverageSet(10);
+     cs1.set(0, 200);
+     assertEquals(200, cs1.cardinality());
+     assertEquals(200, cs1.length());
+     assertEquals(200, cs1.nextClearBit(0));
+     CoverageSet cs2 = new CoverageSet(300);
+     for (int i = 0; i < 200; ++i) cs2.set(i);
+     assertEquals(cs1, cs2);
+     assertEquals(cs1.hashCode(), cs2.hashCode());
+     cs2.clear(150);
+     assertFalse(cs1.equals(cs2));
+     assertEquals(150, cs2.nextClearBit(0));
+     assertEquals(151, cs2.nextSetBit(150));
+   }
 }
@@ -0,0 +1,55 @@
+package edu.stanford.nlp.mt.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link PackedFeatureValues}.
+ */
+public class PackedFeatureValuesTest extends TestCase {
+
+  public void testRoundTrip() {
+    final String dense = "PackedFeatureValuesTest.dense";
+    final int denseId = GlobalFeatureIndex.add(dense);
+    final String indexed = "PackedFeatureValuesTest.indexed";
+    GlobalFeatureIndex.add(indexed);
+    List<FeatureValue<String>> features = new ArrayList<>();
+    features.add(new FeatureValue<String>(dense, -1.25, true, denseId));
+    features.add(new FeatureValue<String>("PackedFeatureValuesTest.sparse:a>b", 1.0));
+    features.add(new FeatureValue<String>(indexed, 0.5));
+    features.add(new FeatureValue<String>("PackedFeatureValuesTest.unindexed", 2.0, true));
+
+    PackedFeatureValues<String> packed = new PackedFeatureValues<>(features);
+    assertEquals(features.size(), packed.size());
+    for (int i = 0; i < features.size(); ++i) {
+      FeatureValue<String> expected = features.get(i);
+      FeatureValue<String> actual = packed.get(i);
+      assertEquals(expected, actual);
+      assertEquals(expected.name, actual.name);
+      assertEquals(expected.value, actual.value, 0.0);
+      assertEquals(expected.isDenseFeature, actual.isDenseFeature);
+      assertEquals(expected.getId(), actual.getId());
+      assertEquals(expected.getId(), packed.getId(i));
+    }
+    assertEquals(features, new ArrayList<>(packed));
+  }
+
+  public void testNonStringNames() {
+    List<FeatureValue<Integer>> features = new ArrayList<>();
+    features.add(new FeatureValue<Integer>(7, 1.0, true));
+    features.add(new FeatureValue<Integer>(11, -3.0));
+    PackedFeatureValues<Integer> packed = new PackedFeatureValues<>(features);
+    assertEquals(Integer.valueOf(7), packed.get(0).name);
+    assertTrue(packed.get(0).isDenseFeature);
+    assertEquals(Integer.valueOf(11), packed.get(1).name);
+    assertFalse(packed.get(1).isDenseFeature);
+  }
+
+  public void testEmpty() {
+    PackedFeatureValues<String> packed = new PackedFeatureValues<>(new ArrayList<FeatureValue<String>>());
+    assertEquals(0, packed.size());
+    assertTrue(packed.isEmpty());
+  }
+}
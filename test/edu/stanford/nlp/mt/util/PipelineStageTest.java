@@ -0,0 +1,187 @@
+package edu.stanford.nlp.mt.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for pipelines of thread pools.
+ */
+public class PipelineStageTest extends TestCase {
+
+  private static final int NUM_JOBS = 1000;
+
+  public void testOrder() throws InterruptedException {
+    PipelineStage<Integer,Integer> first = new PipelineStage<>("square", 4, 2,
+        (jobId, input, workerId) -> {
+          // Skip odd inputs
+          if (input % 2 == 1) return null;
+          if (input % 7 == 0) Thread.yield();
+          return input * input;
+        });
+    PipelineStage<Integer,String> last = first.then(new PipelineStage<>("format", 3, 2,
+        (jobId, input, workerId) -> String.format("%d:%d", jobId, input)));
+    first.start();
+    last.start();
+
+    Thread producer = new Thread(() -> {
+      try {
+        for (int i = 0; i < NUM_JOBS; ++i) first.put(i, i);
+        first.close();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    producer.start();
+
+    List<String> output = new ArrayList<>();
+    last.drainInOrder(s -> output.add(s));
+    producer.join();
+    first.checkFailure();
+    last.checkFailure();
+
+    assertEquals(NUM_JOBS, output.size());
+    for (int i = 0; i < NUM_JOBS; ++i) {
+      if (i % 2 == 1) {
+        assertNull(output.get(i));
+      } else {
+        assertEquals(String.format("%d:%d", i, i * i), output.get(i));
+      }
+    }
+  }
+
+  public void testFailure() throws InterruptedException {
+    final int failedJob = 3;
+    PipelineStage<Integer,Integer> first = new PipelineStage<>("fail", 2, 4,
+        (jobId, input, workerId) -> {
+          if (input == failedJob) throw new UnsupportedOperationException();
+          return input;
+        });
+    PipelineStage<Integer,Integer> last = first.then(new PipelineStage<>("identity", 2, 4,
+        (jobId, input, workerId) -> input));
+    first.start();
+    last.start();
+
+    final Semaphore inFlight = new Semaphore(4);
+    final AtomicInteger numPut = new AtomicInteger();
+    final AtomicReference<Exception> producerFailure = new AtomicReference<>();
+    Thread producer = new Thread(() -> {
+      try {
+        for (int i = 0; i < NUM_JOBS; ++i) {
+          inFlight.acquire();
+          first.put(i, i);
+          numPut.incrementAndGet();
+        }
+      } catch (InterruptedException | IllegalStateException e) {
+        producerFailure.set(e);
+      } finally {
+        try {
+          first.close();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    producer.start();
+
+    List<Integer> output = new ArrayList<>();
+    try {
+      last.drainInOrder(i -> output.add(i), inFlight);
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // Expected
+    }
+    producer.join();
+
+    // The pipeline stopped at the failed job
+    assertTrue(output.size() <= failedJob);
+    for (int i = 0; i < output.size(); ++i) assertEquals(i, output.get(i).intValue());
+    assertTrue(producerFailure.get() instanceof IllegalStateException);
+    assertTrue(numPut.get() < NUM_JOBS);
+    try {
+      first.checkFailure();
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // Expected
+    }
+  }
+
+  public void testConsumerFailure() throws InterruptedException {
+    PipelineStage<Integer,Integer> stage = new PipelineStage<>("identity", 2, 4,
+        (jobId, input, workerId) -> input);
+    stage.start();
+    for (int i = 0; i < 4; ++i) stage.put(i, i);
+    stage.close();
+    List<Integer> output = new ArrayList<>();
+    try {
+      stage.drainInOrder(i -> {
+        if (i == 1) throw new UnsupportedOperationException();
+        output.add(i);
+      });
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // Expected
+    }
+    assertEquals(1, output.size());
+  }
+
+  public void testStalledJob() throws InterruptedException {
+    final int maxInFlight = 8;
+    final CountDownLatch stall = new CountDownLatch(1);
+    PipelineStage<Integer,Integer> stage = new PipelineStage<>("stall", 4, 2,
+        (jobId, input, workerId) -> {
+          if (jobId == 0) {
+            try {
+              stall.await();
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+          }
+          return input;
+        });
+    stage.start();
+
+    final Semaphore inFlight = new Semaphore(maxInFlight);
+    final AtomicInteger numPut = new AtomicInteger();
+    Thread producer = new Thread(() -> {
+      try {
+        for (int i = 0; i < NUM_JOBS; ++i) {
+          inFlight.acquire();
+          stage.put(i, i);
+          numPut.incrementAndGet();
+        }
+        stage.close();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    producer.start();
+
+    // Release the first job after a while. The producer blocks in the meantime.
+    final AtomicInteger numPutWhileStalled = new AtomicInteger();
+    Thread release = new Thread(() -> {
+      try {
+        Thread.sleep(200);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      numPutWhileStalled.set(numPut.get());
+      stall.countDown();
+    });
+    release.start();
+
+    List<Integer> output = new ArrayList<>();
+    stage.drainInOrder(i -> output.add(i), inFlight);
+    producer.join();
+    release.join();
+    assertEquals(maxInFlight, numPutWhileStalled.get());
+    assertEquals(NUM_JOBS, output.size());
+    for (int i = 0; i < NUM_JOBS; ++i) assertEquals(i, output.get(i).intValue());
+    assertTrue(stage.maxReorderBufferSize() <= maxInFlight);
+  }
+}
@@ -0,0 +1,225 @@
+package edu.stanford.nlp.mt.wordcls;
+
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the incremental exchange algorithm.
+ */
+public class OneSidedObjectiveFunctionTest extends TestCase {
+
+  private static final int NUM_WORDS = 200;
+  private static final int NUM_HISTORIES = 50;
+  private static final int NUM_CLASSES = 8;
+
+  private static WordHistoryMatrix randomMatrix(Random random) {
+    Long2IntOpenHashMap pairCounts = new Long2IntOpenHashMap();
+    for (int i = 0; i < 5000; ++i) {
+      int word = (int) Math.pow(NUM_WORDS, random.nextDouble());
+      int history = random.nextInt(NUM_HISTORIES);
+      pairCounts.addTo(((long) word << 32) | history, 1);
+    }
+    int[] rowOf = new int[NUM_WORDS];
+    for (int i = 0; i < rowOf.length; ++i) rowOf[i] = i;
+    return WordHistoryMatrix.fromCounts(pairCounts, rowOf, NUM_WORDS, NUM_HISTORIES);
+  }
+
+  private static double objective(WordHistoryMatrix m, int[] wordToClass) {
+    long[][] classHistoryCount = new long[NUM_CLASSES][NUM_HISTORIES];
+    long[] classCount = new long[NUM_CLASSES];
+    for (int w = 0; w < m.numWords(); ++w) {
+      classCount[wordToClass[w]] += m.wordCount(w);
+      for (int j = m.rowStart[w]; j < m.rowStart[w + 1]; ++j) {
+        classHistoryCount[wordToClass[w]][m.histories[j]] += m.counts[j];
+      }
+    }
+    double value = 0.0;
+    for (int c = 0; c < NUM_CLASSES; ++c) {
+      for (long count : classHistoryCount[c]) value += OneSidedObjectiveFunction.xLogX(count);
+      value -= OneSidedObjectiveFunction.xLogX(classCount[c]);
+    }
+    return value;
+  }
+
+  /**
+   * The exchange algorithm before the incremental objective on dense count tables.
+   * Each tentative move is scored from the running objective value.
+   */
+  private static int[] baseline(WordHistoryMatrix m, int[] inWordToClass, int numIterations) {
+    final int[] wordToClass = inWordToClass.clone();
+    long[][] classHistoryCount = new long[NUM_CLASSES][NUM_HISTORIES];
+    long[] classCount = new long[NUM_CLASSES];
+    for (int w = 0; w < m.numWords(); ++w) {
+      classCount[wordToClass[w]] += m.wordCount(w);
+      for (int j = m.rowStart[w]; j < m.rowStart[w + 1]; ++j) {
+        classHistoryCount[wordToClass[w]][m.histories[j]] += m.counts[j];
+      }
+    }
+    double objValue = objective(m, wordToClass);
+    for (int iter = 0; iter < numIterations; ++iter) {
+      for (int w = 0; w < m.numWords(); ++w) {
+        final int currentClass = wordToClass[w];
+        int argMaxClass = currentClass;
+        double maxObjectiveValue = objValue;
+        for (int candidateClass = 0; candidateClass < NUM_CLASSES; ++candidateClass) {
+          if (candidateClass == currentClass) continue;
+          double newObjective = objValue;
+          for (int j = m.rowStart[w]; j < m.rowStart[w + 1]; ++j) {
+            int h = m.histories[j];
+            long fromCount = classHistoryCount[currentClass][h];
+            long toCount = classHistoryCount[candidateClass][h];
+            newObjective += OneSidedObjectiveFunction.xLogX(fromCount - m.counts[j])
+                - OneSidedObjectiveFunction.xLogX(fromCount)
+                + OneSidedObjectiveFunction.xLogX(toCount + m.counts[j])
+                - OneSidedObjectiveFunction.xLogX(toCount);
+          }
+          long fromClassCount = classCount[currentClass];
+          long toClassCount = classCount[candidateClass];
+          newObjective -= OneSidedObjectiveFunction.xLogX(fromClassCount - m.wordCount(w))
+              - OneSidedObjectiveFunction.xLogX(fromClassCount)
+              + OneSidedObjectiveFunction.xLogX(toClassCount + m.wordCount(w))
+              - OneSidedObjectiveFunction.xLogX(toClassCount);
+          if (newObjective > maxObjectiveValue) {
+            argMaxClass = candidateClass;
+            maxObjectiveValue = newObjective;
+          }
+        }
+        if (argMaxClass != currentClass) {
+          for (int j = m.rowStart[w]; j < m.rowStart[w + 1]; ++j) {
+            classHistoryCount[currentClass][m.histories[j]] -= m.counts[j];
+            classHistoryCount[argMaxClass][m.histories[j]] += m.counts[j];
+          }
+          classCount[currentClass] -= m.wordCount(w);
+          classCount[argMaxClass] += m.wordCount(w);
+          wordToClass[w] = argMaxClass;
+          objValue = maxObjectiveValue;
+        }
+      }
+    }
+    return wordToClass;
+  }
+
+  public void testMatrix() {
+    WordHistoryMatrix m = randomMatrix(new Random(1));
+    assertEquals(5000, m.totalCount());
+    for (int w = 0; w < m.numWords(); ++w) {
+      for (int j = m.rowStart[w] + 1; j < m.rowStart[w + 1]; ++j) {
+        assertTrue(m.histories[j - 1] < m.histories[j]);
+      }
+    }
+  }
+
+  public void testRemap() {
+    WordHistoryMatrix m = randomMatrix(new Random(3));
+    // Merge odd words into row 0 and discard the last word
+    int[] rowOf = new int[NUM_WORDS];
+    int numRows = 1;
+    for (int w = 0; w < NUM_WORDS - 1; ++w) rowOf[w] = w % 2 == 1 ? 0 : numRows++;
+    rowOf[NUM_WORDS - 1] = -1;
+    WordHistoryMatrix r = m.remap(rowOf, numRows);
+    assertEquals(numRows, r.numWords());
+    assertEquals(m.totalCount() - m.wordCount(NUM_WORDS - 1), r.totalCount());
+    long[] expected = new long[NUM_HISTORIES];
+    for (int w = 1; w < NUM_WORDS - 1; w += 2) {
+      for (int j = m.rowStart[w]; j < m.rowStart[w + 1]; ++j) expected[m.histories[j]] += m.counts[j];
+    }
+    for (int j = r.rowStart[0]; j < r.rowStart[1]; ++j) {
+      if (j > r.rowStart[0]) assertTrue(r.histories[j - 1] < r.histories[j]);
+      assertEquals(expected[r.histories[j]], r.counts[j]);
+    }
+    assertEquals(m.wordCount(2), r.wordCount(rowOf[2]));
+  }
+
+  public void testIncrementalObjective() {
+    WordHistoryMatrix m = randomMatrix(new Random(2));
+    int[] wordToClass = new int[NUM_WORDS];
+    long[] classCount = new long[NUM_CLASSES];
+    Int2LongOpenHashMap[] classHistoryCount = new Int2LongOpenHashMap[NUM_CLASSES];
+    for (int c = 0; c < NUM_CLASSES; ++c) classHistoryCount[c] = new Int2LongOpenHashMap();
+    int[] vocabulary = new int[NUM_WORDS];
+    for (int w = 0; w < NUM_WORDS; ++w) {
+      vocabulary[w] = w;
+      wordToClass[w] = w % NUM_CLASSES;
+      classCount[wordToClass[w]] += m.wordCount(w);
+      for (int j = m.rowStart[w]; j < m.rowStart[w + 1]; ++j) {
+        classHistoryCount[wordToClass[w]].addTo(m.histories[j], m.counts[j]);
+      }
+    }
+    final double initialValue = objective(m, wordToClass);
+    ClustererState state = new ClustererState(vocabulary, m, wordToClass, classCount,
+        classHistoryCount, NUM_CLASSES, initialValue);
+    OneSidedObjectiveFunction objective = new OneSidedObjectiveFunction(state);
+    PartialStateUpdate update = objective.cluster();
+
+    // The exchange algorithm never decreases the objective
+    assertTrue(objective.objectiveValue() > initialValue);
+    int[] newWordToClass = new int[NUM_WORDS];
+    for (int i = 0; i < update.vocabularySubset.length; ++i) {
+      newWordToClass[update.vocabularySubset[i]] = update.wordToClass[i];
+    }
+    assertEquals(objective(m, newWordToClass), objective.objectiveValue(), 1e-6);
+
+    // Deltas are consistent with the new assignments
+    for (int c = 0; c < NUM_CLASSES; ++c) {
+      long count = classCount[c] + update.deltaClassCount[c];
+      long expected = 0;
+      for (int w = 0; w < NUM_WORDS; ++w) {
+        if (newWordToClass[w] == c) expected += m.wordCount(w);
+      }
+      assertEquals(expected, count);
+    }
+  }
+
+  public void testMatchesBaseline() {
+    final int numIterations = 3;
+    for (long seed = 0; seed < 5; ++seed) {
+      Random random = new Random(seed);
+      WordHistoryMatrix m = randomMatrix(random);
+      int[] wordToClass = new int[NUM_WORDS];
+      int[] vocabulary = new int[NUM_WORDS];
+      for (int w = 0; w < NUM_WORDS; ++w) {
+        vocabulary[w] = w;
+        wordToClass[w] = random.nextInt(NUM_CLASSES);
+      }
+      final int[] expected = baseline(m, wordToClass, numIterations);
+
+      // Apply the updates between iterations as MakeWordClasses does
+      long[] classCount = new long[NUM_CLASSES];
+      Int2LongOpenHashMap[] classHistoryCount = new Int2LongOpenHashMap[NUM_CLASSES];
+      for (int c = 0; c < NUM_CLASSES; ++c) classHistoryCount[c] = new Int2LongOpenHashMap();
+      for (int w = 0; w < NUM_WORDS; ++w) {
+        classCount[wordToClass[w]] += m.wordCount(w);
+        for (int j = m.rowStart[w]; j < m.rowStart[w + 1]; ++j) {
+          classHistoryCount[wordToClass[w]].addTo(m.histories[j], m.counts[j]);
+        }
+      }
+      double objValue = objective(m, wordToClass);
+      int numMoves = 0;
+      for (int iter = 0; iter < numIterations; ++iter) {
+        OneSidedObjectiveFunction objective = new OneSidedObjectiveFunction(new ClustererState(
+            vocabulary, m, wordToClass.clone(), classCount, classHistoryCount, NUM_CLASSES, objValue));
+        PartialStateUpdate update = objective.cluster();
+        for (int c = 0; c < NUM_CLASSES; ++c) {
+          classCount[c] += update.deltaClassCount[c];
+          Int2LongOpenHashMap delta = update.deltaClassHistoryCount[c];
+          if (delta == null) continue;
+          for (int history : delta.keySet()) classHistoryCount[c].addTo(history, delta.get(history));
+        }
+        for (int i = 0; i < update.vocabularySubset.length; ++i) {
+          if (wordToClass[update.vocabularySubset[i]] != update.wordToClass[i]) ++numMoves;
+          wordToClass[update.vocabularySubset[i]] = update.wordToClass[i];
+        }
+        objValue = objective.objectiveValue();
+      }
+      assertTrue(numMoves > 0);
+      for (int w = 0; w < NUM_WORDS; ++w) {
+        assertEquals("seed " + seed + " word " + w, expected[w], wordToClass[w]);
+      }
+      assertEquals(objective(m, expected), objValue, 1e-6);
+    }
+  }
+}